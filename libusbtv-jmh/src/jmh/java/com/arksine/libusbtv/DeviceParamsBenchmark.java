@@ -0,0 +1,56 @@
+// Copyright (C) 2020 Eric Callahan <arksine.code@gmail.com>
+//
+// This file may be distributed under the terms of the GNU GPLv3 license
+package com.arksine.libusbtv;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of building DeviceParams, which happens each time a setting such as the scan
+ * type or norm is changed.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DeviceParamsBenchmark {
+
+    private DeviceParams mParams;
+    private int mToggle;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        mParams = FrameBenchmarkState.buildParams(UsbTv.TvNorm.NTSC, UsbTv.ScanType.PROGRESSIVE);
+        mToggle = 0;
+    }
+
+    @Benchmark
+    public DeviceParams buildNew() {
+        return new DeviceParams.Builder()
+                .setTvNorm(UsbTv.TvNorm.NTSC)
+                .setScanType(UsbTv.ScanType.PROGRESSIVE)
+                .setFramePoolSize(4)
+                .build();
+    }
+
+    /**
+     * Copies existing params and changes one setting, as UsbTv does when a setting changes
+     */
+    @Benchmark
+    public DeviceParams rebuildFromExisting() {
+        mToggle ^= 1;
+        UsbTv.ScanType scanType = (mToggle == 0) ? UsbTv.ScanType.PROGRESSIVE :
+                UsbTv.ScanType.INTERLEAVED;
+        return new DeviceParams.Builder(mParams)
+                .setScanType(scanType)
+                .build();
+    }
+}
@@ -0,0 +1,37 @@
+// Copyright (C) 2020 Eric Callahan <arksine.code@gmail.com>
+//
+// This file may be distributed under the terms of the GNU GPLv3 license
+package com.arksine.libusbtv;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Creates frames the way the native frame pool does, backed by direct buffers and
+ * returned through the stub native layer.
+ */
+final class FrameBenchmarkState {
+
+    static final String STUB_LIBRARY = "usbtv_jmh_stub";
+
+    private FrameBenchmarkState() {}
+
+    static void loadStubLibrary() {
+        NativeLibrary.loadStandIn(STUB_LIBRARY);
+    }
+
+    static DeviceParams buildParams(UsbTv.TvNorm norm, UsbTv.ScanType scanType) {
+        return new DeviceParams.Builder()
+                .setTvNorm(norm)
+                .setScanType(scanType)
+                .build();
+    }
+
+    static UsbTvFrame[] allocateFramePool(DeviceParams params) {
+        UsbTvFrame[] pool = new UsbTvFrame[params.getFramePoolSize()];
+        for (int i = 0; i < pool.length; i++) {
+            ByteBuffer buf = ByteBuffer.allocateDirect(params.getFrameSizeInBytes());
+            pool[i] = new UsbTvFrame(params, buf, i, false);
+        }
+        return pool;
+    }
+}
@@ -0,0 +1,74 @@
+// Copyright (C) 2020 Eric Callahan <arksine.code@gmail.com>
+//
+// This file may be distributed under the terms of the GNU GPLv3 license
+package com.arksine.libusbtv;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Frame handoff from the driver callback thread to a render thread, as done by the
+ * sample renderers (OGLRenderer, TestRenderer).  The producer offers frames and returns
+ * them itself if the queue is full, the consumer polls with a timeout and returns each
+ * frame it receives.
+ */
+@State(Scope.Group)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class FrameQueueBenchmark {
+
+    @Param({"true", "false"})
+    public boolean mFair;
+
+    private UsbTvFrame[] mFramePool;
+    private ArrayBlockingQueue<UsbTvFrame> mFrameQueue;
+    private int mPoolIndex;
+
+    @Setup(Level.Iteration)
+    public void setup() {
+        FrameBenchmarkState.loadStubLibrary();
+        DeviceParams params = FrameBenchmarkState.buildParams(UsbTv.TvNorm.NTSC,
+                UsbTv.ScanType.PROGRESSIVE);
+        mFramePool = FrameBenchmarkState.allocateFramePool(params);
+        mFrameQueue = new ArrayBlockingQueue<>(params.getFramePoolSize(), mFair);
+        mPoolIndex = 0;
+    }
+
+    @Benchmark
+    @Group("handoff")
+    @GroupThreads(1)
+    public boolean offer() {
+        UsbTvFrame frame = mFramePool[mPoolIndex];
+        mPoolIndex = (mPoolIndex + 1) % mFramePool.length;
+
+        frame.unlock();
+        if (!mFrameQueue.offer(frame)) {
+            frame.returnFrame();
+            return false;
+        }
+        return true;
+    }
+
+    @Benchmark
+    @Group("handoff")
+    @GroupThreads(1)
+    public UsbTvFrame poll() throws InterruptedException {
+        UsbTvFrame frame = mFrameQueue.poll(100, TimeUnit.MILLISECONDS);
+        if (frame != null) {
+            frame.returnFrame();
+        }
+        return frame;
+    }
+}
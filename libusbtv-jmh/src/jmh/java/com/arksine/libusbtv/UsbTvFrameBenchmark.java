@@ -0,0 +1,70 @@
+// Copyright (C) 2020 Eric Callahan <arksine.code@gmail.com>
+//
+// This file may be distributed under the terms of the GNU GPLv3 license
+package com.arksine.libusbtv;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per frame costs paid by a frame consumer: returning a frame to the native pool and
+ * copying a frame that must outlive its pool slot.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class UsbTvFrameBenchmark {
+
+    @Param({"NTSC", "PAL"})
+    public UsbTv.TvNorm mNorm;
+
+    @Param({"PROGRESSIVE", "INTERLEAVED"})
+    public UsbTv.ScanType mScanType;
+
+    private UsbTvFrame mFrame;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        FrameBenchmarkState.loadStubLibrary();
+        DeviceParams params = FrameBenchmarkState.buildParams(mNorm, mScanType);
+        mFrame = FrameBenchmarkState.allocateFramePool(params)[0];
+    }
+
+    /**
+     * A frame delivered by the driver and returned by the consumer: the lock CAS plus
+     * the JNI call into the pool.
+     */
+    @Benchmark
+    public void returnFrame() {
+        mFrame.unlock();
+        mFrame.returnFrame();
+    }
+
+    /**
+     * A second return of the same frame, which the CAS rejects without calling native code
+     */
+    @Benchmark
+    public void returnFrameAlreadyReturned() {
+        mFrame.returnFrame();
+    }
+
+    @Benchmark
+    public UsbTvFrame copyOfFrame() {
+        return mFrame.copyOfFrame();
+    }
+
+    @Benchmark
+    public UsbTvFrame returnAndCopy() {
+        mFrame.unlock();
+        return mFrame.returnAndCopy();
+    }
+}
@@ -0,0 +1,25 @@
+// Copyright (C) 2020 Eric Callahan <arksine.code@gmail.com>
+//
+// This file may be distributed under the terms of the GNU GPLv3 license
+package timber.log;
+
+/**
+ * Desktop stand in for Timber, which is only published for Android.  Logging is
+ * discarded so it does not affect measurements.
+ */
+public final class Timber {
+
+    private Timber() {}
+
+    public static void v(String message, Object... args) {}
+
+    public static void d(String message, Object... args) {}
+
+    public static void i(String message, Object... args) {}
+
+    public static void w(String message, Object... args) {}
+
+    public static void e(String message, Object... args) {}
+
+    public static void e(Throwable t, String message, Object... args) {}
+}
@@ -0,0 +1,130 @@
+// Copyright (C) 2020 Eric Callahan <arksine.code@gmail.com>
+//
+// This file may be distributed under the terms of the GNU GPLv3 license
+//
+// Helpers shared by the host benchmarks
+//
+
+#ifndef USBTV007_ANDROID_BENCHUTIL_H
+#define USBTV007_ANDROID_BENCHUTIL_H
+
+#include <vector>
+#include <algorithm>
+#include <ctime>
+#include "usbtv_definitions.h"
+
+#define BENCH_ISO_PACKET_SIZE   (3 * USBTV_PACKET_SIZE)    // High bandwidth, 3 packets per microframe
+#define BENCH_FRAME_POOL_SIZE   USBTV_FRAME_POOL_SIZE
+
+/**
+ * Builds stream parameters the same way DeviceParams.Builder does for a norm and scan type
+ */
+static inline StreamParams makeStreamParams(TvNorm norm, ScanType scanType) {
+	StreamParams params;
+	params.frame.norm = norm;
+	params.frame.scanType = scanType;
+	params.frame.pixelFormat = PixelFormat::YUYV;
+	params.frame.frameWidth = 720;
+	params.frame.frameHeight = (norm == TvNorm::PAL) ? 576 : 480;
+	params.packetsPerField = (uint16_t)((params.frame.frameWidth * params.frame.frameHeight) /
+	                                    USBTV_PAYLOAD_SIZE);
+
+	// Frames built from a single field are half height
+	if (scanType == ScanType::PROGRESSIVE || scanType == ScanType::DISCARD) {
+		params.frame.frameHeight /= 2;
+	}
+	params.frame.bufferSize = (uint32_t)params.frame.frameWidth * params.frame.frameHeight * 2;
+
+	params.input = TvInput::USBTV_COMPOSITE_INPUT;
+	params.isoTransfers = USBTV_ISOC_TRANSFERS;
+	params.isoPacketsPerRequest = USBTV_ISOC_PACKETS_PER_REQUEST;
+	params.isoAutoTune = false;
+	params.deinterlaceMode = DeinterlaceMode::MOTION_ADAPTIVE;
+	params.denoiseStrength = 0;
+	params.crop = {0, 0, 0, 0};
+	params.scale = {0, 0, ScaleFilter::BILINEAR, false};
+	params.secondary = {0, 0, ScaleFilter::BILINEAR, DropPolicy::DROP_OLDEST};
+	return params;
+}
+
+/**
+ * Stream parameters keeping a centered region, the size of the frame less the margins
+ */
+static inline StreamParams makeCroppedStreamParams(TvNorm norm, ScanType scanType,
+                                                   uint16_t marginX, uint16_t marginY) {
+	StreamParams params = makeStreamParams(norm, scanType);
+	uint16_t fullHeight = (norm == TvNorm::PAL) ? 576 : 480;
+	params.crop = {marginX, marginY, (uint16_t)(720 - 2 * marginX),
+	               (uint16_t)(fullHeight - 2 * marginY)};
+	params.frame.frameWidth = params.crop.width;
+	params.frame.frameHeight = params.crop.height;
+	if (scanType == ScanType::PROGRESSIVE || scanType == ScanType::DISCARD) {
+		params.frame.frameHeight /= 2;
+	}
+	params.frame.bufferSize = (uint32_t)params.frame.frameWidth * params.frame.frameHeight * 2;
+	return params;
+}
+
+static inline const char* normName(TvNorm norm) {
+	return (norm == TvNorm::PAL) ? "PAL" : "NTSC";
+}
+
+static inline const char* scanTypeName(ScanType scanType) {
+	switch (scanType) {
+		case ScanType::PROGRESSIVE:
+			return "PROGRESSIVE";
+		case ScanType::DISCARD:
+			return "DISCARD";
+		case ScanType::INTERLEAVED:
+			return "INTERLEAVED";
+		case ScanType::DEINTERLACED:
+			return "DEINTERLACED";
+	}
+	return "UNKNOWN";
+}
+
+static inline const char* deinterlaceModeName(DeinterlaceMode mode) {
+	switch (mode) {
+		case DeinterlaceMode::BOB:
+			return "BOB";
+		case DeinterlaceMode::LINEAR:
+			return "LINEAR";
+		case DeinterlaceMode::BLEND:
+			return "BLEND";
+		case DeinterlaceMode::MOTION_ADAPTIVE:
+			return "MOTION_ADAPTIVE";
+	}
+	return "UNKNOWN";
+}
+
+static inline const char* scaleFilterName(ScaleFilter filter) {
+	switch (filter) {
+		case ScaleFilter::BILINEAR:
+			return "BILINEAR";
+		case ScaleFilter::BICUBIC:
+			return "BICUBIC";
+		case ScaleFilter::LANCZOS:
+			return "LANCZOS";
+	}
+	return "UNKNOWN";
+}
+
+static inline uint64_t processCpuTimeNs() {
+	timespec ts;
+	clock_gettime(CLOCK_PROCESS_CPUTIME_ID, &ts);
+	return (uint64_t)ts.tv_sec * 1000000000ULL + (uint64_t)ts.tv_nsec;
+}
+
+/**
+ * Returns the requested percentile of samples, which are sorted in place
+ */
+static inline uint64_t percentile(std::vector<uint64_t>& samples, double pct) {
+	if (samples.empty()) {
+		return 0;
+	}
+	std::sort(samples.begin(), samples.end());
+	size_t index = (size_t)((pct / 100.0) * (samples.size() - 1) + 0.5);
+	return samples[index];
+}
+
+#endif //USBTV007_ANDROID_BENCHUTIL_H
@@ -0,0 +1,612 @@
+// Copyright (C) 2020 Eric Callahan <arksine.code@gmail.com>
+//
+// This file may be distributed under the terms of the GNU GPLv3 license
+//
+// Google Benchmark suite for the driver's per packet and per frame paths.  The driver is
+// prepared for streaming without starting its threads, so each path is measured on its
+// own.  Use --benchmark_format=json (or --benchmark_out=<file>) for machine readable
+// results.  The target architecture is recorded in the context so ARM and x86 runs can
+// be told apart when compared.
+//
+
+#include <benchmark/benchmark.h>
+#include <vector>
+#include <cstring>
+#include "UsbTvDriver.h"
+#include "PixelKernels.h"
+#include "SyntheticUsbDevice.h"
+#include "BenchUtil.h"
+
+/**
+ * Exposes the private driver paths measured below.  Frames completed by processPacket are
+ * returned to the pool with recycleFrames, standing in for the frame process thread.
+ */
+class UsbTvDriverBench {
+public:
+	static UsbTvDriver* create(uint16_t framePoolSize) {
+		SyntheticStreamConfig config;
+		SyntheticUsbDevice::defaultConfig(&config, TvNorm::NTSC);
+		UsbTvDriver* driver = new UsbTvDriver(&_nullCallback, new SyntheticUsbDevice(config),
+		                                      framePoolSize, USBTV_VIDEO_EP, BENCH_ISO_PACKET_SIZE);
+		if (!driver->isInitialized()) {
+			delete driver;
+			return nullptr;
+		}
+		return driver;
+	}
+
+	static void prepare(UsbTvDriver* driver, const StreamParams& params, bool holdInputFrame) {
+		driver->applyStreamingParams(params);
+		driver->_streamActive = true;
+		driver->allocateFramePool(nullptr);
+		driver->_framePoolActive = true;
+		driver->_usbInputFrame = holdInputFrame ? driver->fetchFrameFromPool() : nullptr;
+	}
+
+	static void release(UsbTvDriver* driver) {
+		recycleFrames(driver);
+		if (driver->_usbInputFrame != nullptr) {
+			driver->_usbInputFrame->lock.clear(std::memory_order_release);
+			driver->_usbInputFrame = nullptr;
+		}
+		driver->_streamActive = false;
+		driver->_framePoolActive = false;
+		driver->freeFramePool();
+	}
+
+	static void recycleFrames(UsbTvDriver* driver) {
+		UsbTvFrame* frame;
+		while (driver->_frameProcessQueue->try_dequeue(frame)) {
+			frame->lock.clear(std::memory_order_release);
+		}
+	}
+
+	static void processPacket(UsbTvDriver* driver, uint8_t* packet) {
+		driver->processPacket((__be32*)packet);
+	}
+
+	static void packetToProgressiveFrame(UsbTvDriver* driver, uint8_t* packet, uint32_t packetNo) {
+		driver->packetToProgressiveFrame(packet, packetNo);
+	}
+
+	static void packetToInterleavedFrame(UsbTvDriver* driver, uint8_t* packet, uint32_t packetNo,
+	                                     bool isOdd) {
+		driver->packetToInterleavedFrame(packet, packetNo, isOdd);
+	}
+
+	static UsbTvFrame* fetchFrameFromPool(UsbTvDriver* driver) {
+		return driver->fetchFrameFromPool();
+	}
+
+private:
+	class NullCallback : public FrameCallback {
+	public:
+		void invoke(UsbTvFrame* frame) override {}
+	};
+
+	static NullCallback _nullCallback;
+};
+
+UsbTvDriverBench::NullCallback UsbTvDriverBench::_nullCallback;
+
+/**
+ * Packets for one odd and one even field
+ */
+static std::vector<uint8_t> generateFramePackets(TvNorm norm) {
+	SyntheticStreamConfig config;
+	SyntheticUsbDevice::defaultConfig(&config, norm);
+	SyntheticUsbDevice device(config);
+	uint32_t count = 2u * device.getPacketsPerField();
+	std::vector<uint8_t> packets(count * USBTV_PACKET_SIZE);
+	device.generatePackets(packets.data(), count);
+	return packets;
+}
+
+static void normScanTypeArgs(benchmark::internal::Benchmark* bench) {
+	for (int norm = 0; norm <= (int)TvNorm::PAL; norm++) {
+		for (int scan = 0; scan <= (int)ScanType::DEINTERLACED; scan++) {
+			bench->Args({norm, scan});
+		}
+	}
+}
+
+static void BM_ProcessPacket(benchmark::State& state) {
+	TvNorm norm = static_cast<TvNorm>(state.range(0));
+	ScanType scanType = static_cast<ScanType>(state.range(1));
+	StreamParams params = makeStreamParams(norm, scanType);
+	std::vector<uint8_t> packets = generateFramePackets(norm);
+	uint32_t packetCount = 2u * params.packetsPerField;
+
+	UsbTvDriver* driver = UsbTvDriverBench::create(BENCH_FRAME_POOL_SIZE);
+	UsbTvDriverBench::prepare(driver, params, true);
+
+	for (auto _ : state) {
+		// One iteration is a full frame, both fields
+		for (uint32_t i = 0; i < packetCount; i++) {
+			UsbTvDriverBench::processPacket(driver, &packets[i * USBTV_PACKET_SIZE]);
+		}
+		UsbTvDriverBench::recycleFrames(driver);
+	}
+
+	state.SetLabel(std::string(normName(norm)) + "/" + scanTypeName(scanType));
+	state.SetItemsProcessed(state.iterations() * packetCount);
+	state.SetBytesProcessed(state.iterations() * packetCount * USBTV_PAYLOAD_SIZE);
+	state.counters["fields"] = benchmark::Counter((double)state.iterations() * 2,
+	                                              benchmark::Counter::kIsRate);
+
+	UsbTvDriverBench::release(driver);
+	delete driver;
+}
+BENCHMARK(BM_ProcessPacket)->Apply(normScanTypeArgs);
+
+/**
+ * BM_ProcessPacket delivering luma only frames, so every payload is deinterleaved
+ */
+static void BM_ProcessPacketY8(benchmark::State& state) {
+	TvNorm norm = static_cast<TvNorm>(state.range(0));
+	ScanType scanType = static_cast<ScanType>(state.range(1));
+	StreamParams params = makeStreamParams(norm, scanType);
+	params.frame.pixelFormat = PixelFormat::Y8;
+	std::vector<uint8_t> packets = generateFramePackets(norm);
+	uint32_t packetCount = 2u * params.packetsPerField;
+
+	UsbTvDriver* driver = UsbTvDriverBench::create(BENCH_FRAME_POOL_SIZE);
+	UsbTvDriverBench::prepare(driver, params, true);
+
+	for (auto _ : state) {
+		for (uint32_t i = 0; i < packetCount; i++) {
+			UsbTvDriverBench::processPacket(driver, &packets[i * USBTV_PACKET_SIZE]);
+		}
+		UsbTvDriverBench::recycleFrames(driver);
+	}
+
+	state.SetLabel(std::string(normName(norm)) + "/" + scanTypeName(scanType));
+	state.SetItemsProcessed(state.iterations() * packetCount);
+	state.SetBytesProcessed(state.iterations() * packetCount * USBTV_PAYLOAD_SIZE);
+	state.counters["fields"] = benchmark::Counter((double)state.iterations() * 2,
+	                                              benchmark::Counter::kIsRate);
+
+	UsbTvDriverBench::release(driver);
+	delete driver;
+}
+BENCHMARK(BM_ProcessPacketY8)->Apply(normScanTypeArgs);
+
+/**
+ * BM_ProcessPacket with an overscan crop of 8 pixels at each side and 16 lines at the top
+ * and bottom, so packets are scattered line by line
+ */
+static void BM_ProcessPacketCropped(benchmark::State& state) {
+	TvNorm norm = static_cast<TvNorm>(state.range(0));
+	ScanType scanType = static_cast<ScanType>(state.range(1));
+	StreamParams params = makeCroppedStreamParams(norm, scanType, 8, 16);
+	std::vector<uint8_t> packets = generateFramePackets(norm);
+	uint32_t packetCount = 2u * params.packetsPerField;
+
+	UsbTvDriver* driver = UsbTvDriverBench::create(BENCH_FRAME_POOL_SIZE);
+	UsbTvDriverBench::prepare(driver, params, true);
+
+	for (auto _ : state) {
+		for (uint32_t i = 0; i < packetCount; i++) {
+			UsbTvDriverBench::processPacket(driver, &packets[i * USBTV_PACKET_SIZE]);
+		}
+		UsbTvDriverBench::recycleFrames(driver);
+	}
+
+	state.SetLabel(std::string(normName(norm)) + "/" + scanTypeName(scanType));
+	state.SetItemsProcessed(state.iterations() * packetCount);
+	state.SetBytesProcessed(state.iterations() * packetCount * USBTV_PAYLOAD_SIZE);
+	state.counters["fields"] = benchmark::Counter((double)state.iterations() * 2,
+	                                              benchmark::Counter::kIsRate);
+
+	UsbTvDriverBench::release(driver);
+	delete driver;
+}
+BENCHMARK(BM_ProcessPacketCropped)->Apply(normScanTypeArgs);
+
+static void BM_PacketToProgressiveFrame(benchmark::State& state) {
+	TvNorm norm = static_cast<TvNorm>(state.range(0));
+	StreamParams params = makeStreamParams(norm, ScanType::PROGRESSIVE);
+	std::vector<uint8_t> packets = generateFramePackets(norm);
+
+	UsbTvDriver* driver = UsbTvDriverBench::create(BENCH_FRAME_POOL_SIZE);
+	UsbTvDriverBench::prepare(driver, params, true);
+
+	for (auto _ : state) {
+		for (uint32_t i = 0; i < params.packetsPerField; i++) {
+			UsbTvDriverBench::packetToProgressiveFrame(
+					driver, &packets[i * USBTV_PACKET_SIZE + sizeof(__be32)], i);
+		}
+	}
+
+	state.SetLabel(normName(norm));
+	state.SetItemsProcessed(state.iterations() * params.packetsPerField);
+	state.SetBytesProcessed(state.iterations() * params.packetsPerField * USBTV_PAYLOAD_SIZE);
+
+	UsbTvDriverBench::release(driver);
+	delete driver;
+}
+BENCHMARK(BM_PacketToProgressiveFrame)->Arg((int)TvNorm::NTSC)->Arg((int)TvNorm::PAL);
+
+static void BM_PacketToInterleavedFrame(benchmark::State& state) {
+	TvNorm norm = static_cast<TvNorm>(state.range(0));
+	StreamParams params = makeStreamParams(norm, ScanType::INTERLEAVED);
+	std::vector<uint8_t> packets = generateFramePackets(norm);
+	uint32_t packetCount = 2u * params.packetsPerField;
+
+	UsbTvDriver* driver = UsbTvDriverBench::create(BENCH_FRAME_POOL_SIZE);
+	UsbTvDriverBench::prepare(driver, params, true);
+
+	for (auto _ : state) {
+		for (uint32_t i = 0; i < packetCount; i++) {
+			uint32_t packetNo = i % params.packetsPerField;
+			UsbTvDriverBench::packetToInterleavedFrame(
+					driver, &packets[i * USBTV_PACKET_SIZE + sizeof(__be32)], packetNo,
+					i < params.packetsPerField);
+		}
+	}
+
+	state.SetLabel(normName(norm));
+	state.SetItemsProcessed(state.iterations() * packetCount);
+	state.SetBytesProcessed(state.iterations() * packetCount * USBTV_PAYLOAD_SIZE);
+
+	UsbTvDriverBench::release(driver);
+	delete driver;
+}
+BENCHMARK(BM_PacketToInterleavedFrame)->Arg((int)TvNorm::NTSC)->Arg((int)TvNorm::PAL);
+
+/**
+ * Builds a frame from a field and two fields of history.  The second argument is the
+ * number of worker threads, 0 runs every stripe on the benchmark thread.
+ */
+static void BM_Deinterlace(benchmark::State& state) {
+	DeinterlaceMode mode = static_cast<DeinterlaceMode>(state.range(0));
+	uint8_t threads = (uint8_t)state.range(1);
+	StreamParams params = makeStreamParams(TvNorm::NTSC, ScanType::DEINTERLACED);
+	uint32_t fieldSize = params.frame.bufferSize / 2;
+
+	// Fields two apart differ slightly so the motion adaptive path sees some motion
+	std::vector<uint8_t> fields(3 * fieldSize);
+	for (uint32_t i = 0; i < fields.size(); i++) {
+		fields[i] = (uint8_t)((i * 7 + (i / fieldSize) * 3) & 0xff);
+	}
+	std::vector<uint8_t> frame(params.frame.bufferSize);
+
+	Deinterlacer deinterlacer(mode, (uint32_t)params.frame.frameWidth * 2, params.frame.frameHeight,
+	                          threads);
+	bool topField = true;
+	for (auto _ : state) {
+		deinterlacer.process(&fields[0], topField, &fields[fieldSize], &fields[2 * fieldSize],
+		                     &frame[0]);
+		benchmark::DoNotOptimize(frame.data());
+		topField = !topField;
+	}
+
+	state.SetLabel(deinterlaceModeName(mode));
+	state.SetItemsProcessed(state.iterations());
+	state.SetBytesProcessed(state.iterations() * params.frame.bufferSize);
+}
+
+static void deinterlaceArgs(benchmark::internal::Benchmark* bench) {
+	uint8_t threads = WorkerPool::defaultThreadCount(USBTV_DEINTERLACE_MAX_THREADS);
+	for (int mode = 0; mode <= (int)DeinterlaceMode::MOTION_ADAPTIVE; mode++) {
+		bench->Args({mode, 0});
+		if (threads > 0) {
+			bench->Args({mode, threads});
+		}
+	}
+}
+BENCHMARK(BM_Deinterlace)->Apply(deinterlaceArgs)->UseRealTime();
+
+/**
+ * Scales an NTSC frame.  Arguments are the output width and height, the filter and the
+ * number of worker threads.  The sizes cover square pixels, 720p and a thumbnail.
+ */
+static void BM_Scale(benchmark::State& state) {
+	uint16_t width = (uint16_t)state.range(0);
+	uint16_t height = (uint16_t)state.range(1);
+	ScaleFilter filter = static_cast<ScaleFilter>(state.range(2));
+	uint8_t threads = (uint8_t)state.range(3);
+	StreamParams params = makeStreamParams(TvNorm::NTSC, ScanType::INTERLEAVED);
+
+	std::vector<uint8_t> source(params.frame.bufferSize);
+	for (uint32_t i = 0; i < source.size(); i++) {
+		source[i] = (uint8_t)((i * 7 + (i / 1440) * 3) & 0xff);
+	}
+	std::vector<uint8_t> output((size_t)width * height * 2);
+
+	Scaler scaler(PixelFormat::YUYV, params.frame.frameWidth, params.frame.frameHeight, width,
+	              height, filter, threads);
+	for (auto _ : state) {
+		scaler.process(&source[0], &output[0]);
+		benchmark::DoNotOptimize(output.data());
+	}
+
+	state.SetLabel(std::to_string(width) + "x" + std::to_string(height) + "/" +
+	               scaleFilterName(filter));
+	state.SetItemsProcessed(state.iterations());
+	state.SetBytesProcessed(state.iterations() * params.frame.bufferSize);
+}
+
+static void scaleArgs(benchmark::internal::Benchmark* bench) {
+	uint8_t threads = WorkerPool::defaultThreadCount(USBTV_SCALER_MAX_THREADS);
+	const int sizes[][2] = {{640, 480}, {1280, 720}, {160, 120}};
+	for (const int* size : sizes) {
+		for (int filter = 0; filter <= (int)ScaleFilter::LANCZOS; filter++) {
+			bench->Args({size[0], size[1], filter, 0});
+			if (threads > 0) {
+				bench->Args({size[0], size[1], filter, threads});
+			}
+		}
+	}
+}
+BENCHMARK(BM_Scale)->Apply(scaleArgs)->UseRealTime();
+
+/**
+ * JPEG encoding of a frame, as the MJPEG server does.  Arguments are the norm, the pixel
+ * format and the number of worker threads.  Frames are interleaved, with a gradient and
+ * fine detail so every block has AC coefficients to code.
+ */
+static void BM_JpegEncode(benchmark::State& state) {
+	TvNorm norm = static_cast<TvNorm>(state.range(0));
+	PixelFormat format = static_cast<PixelFormat>(state.range(1));
+	uint8_t threads = (uint8_t)state.range(2);
+	StreamParams params = makeStreamParams(norm, ScanType::INTERLEAVED);
+	uint32_t bytesPerPixel = (format == PixelFormat::Y8) ? 1 : 2;
+	uint32_t stride = params.frame.frameWidth * bytesPerPixel;
+
+	std::vector<uint8_t> source(stride * params.frame.frameHeight);
+	for (uint32_t i = 0; i < source.size(); i++) {
+		uint32_t x = (i % stride) / bytesPerPixel;
+		uint32_t y = i / stride;
+		source[i] = (uint8_t)(((x + 2 * y) & 0xff) ^ ((x ^ y) & 0x8));
+	}
+	std::vector<uint8_t> jpeg;
+
+	JpegEncoder encoder(format, params.frame.frameWidth, params.frame.frameHeight,
+	                    USBTV_JPEG_DEFAULT_QUALITY, threads);
+	for (auto _ : state) {
+		encoder.encode(&source[0], &jpeg);
+		benchmark::DoNotOptimize(jpeg.data());
+	}
+
+	state.SetLabel(std::string(norm == TvNorm::NTSC ? "NTSC" : "PAL") +
+	               (format == PixelFormat::Y8 ? "/Y8" : "/YUYV") + "/" +
+	               std::to_string(jpeg.size() / 1024) + "KB");
+	state.SetItemsProcessed(state.iterations());
+	state.SetBytesProcessed(state.iterations() * source.size());
+}
+
+static void jpegEncodeArgs(benchmark::internal::Benchmark* bench) {
+	uint8_t threads = WorkerPool::defaultThreadCount(USBTV_JPEG_MAX_THREADS);
+	for (int norm = (int)TvNorm::NTSC; norm <= (int)TvNorm::PAL; norm++) {
+		for (int format = (int)PixelFormat::YUYV; format <= (int)PixelFormat::Y8; format++) {
+			bench->Args({norm, format, 0});
+			if (threads > 0) {
+				bench->Args({norm, format, threads});
+			}
+		}
+	}
+}
+BENCHMARK(BM_JpegEncode)->Apply(jpegEncodeArgs)->UseRealTime();
+
+/**
+ * Temporal noise reduction of one field.  Arguments are the norm and the strength.  Fields
+ * alternate between two noisy copies of a picture so most bytes fall under the motion
+ * threshold and take the filtered path.
+ */
+static void BM_Denoise(benchmark::State& state) {
+	TvNorm norm = static_cast<TvNorm>(state.range(0));
+	uint8_t strength = (uint8_t)state.range(1);
+	StreamParams params = makeStreamParams(norm, ScanType::PROGRESSIVE);
+	uint32_t fieldSize = params.frame.bufferSize;
+
+	std::vector<uint8_t> source(2 * fieldSize);
+	uint32_t noise = 1;
+	for (uint32_t i = 0; i < source.size(); i++) {
+		noise = noise * 1103515245 + 12345;
+		source[i] = (uint8_t)(((i % fieldSize) & 0x7f) + 64 + ((noise >> 16) & 0x7));
+	}
+	std::vector<uint8_t> field(fieldSize);
+
+	Denoiser denoiser(fieldSize);
+	uint32_t count = 0;
+	for (auto _ : state) {
+		state.PauseTiming();
+		memcpy(&field[0], &source[(count & 1) * fieldSize], fieldSize);
+		state.ResumeTiming();
+		denoiser.process(&field[0], 0, strength);
+		benchmark::DoNotOptimize(field.data());
+		count++;
+	}
+
+	state.SetLabel(norm == TvNorm::NTSC ? "NTSC" : "PAL");
+	state.SetItemsProcessed(state.iterations());
+	state.SetBytesProcessed(state.iterations() * fieldSize);
+}
+BENCHMARK(BM_Denoise)->Args({(int)TvNorm::NTSC, 50})->Args({(int)TvNorm::PAL, 50})
+		->Args({(int)TvNorm::PAL, USBTV_DENOISE_MAX_STRENGTH});
+
+/**
+ * Change detection of one field.  Arguments are the norm and the pixel format.  Fields
+ * alternate between two noisy copies of a picture, which the detector finds unchanged.
+ */
+static void BM_ChangeDetect(benchmark::State& state) {
+	TvNorm norm = static_cast<TvNorm>(state.range(0));
+	PixelFormat format = static_cast<PixelFormat>(state.range(1));
+	StreamParams params = makeStreamParams(norm, ScanType::PROGRESSIVE);
+	uint16_t width = params.frame.frameWidth;
+	uint16_t height = params.frame.frameHeight;
+	uint32_t fieldSize = (uint32_t)width * height * bytesPerPixel(format);
+
+	std::vector<uint8_t> source(2 * fieldSize);
+	uint32_t noise = 1;
+	for (uint32_t i = 0; i < source.size(); i++) {
+		noise = noise * 1103515245 + 12345;
+		source[i] = (uint8_t)(((i % fieldSize) & 0x7f) + 64 + ((noise >> 16) & 0x7));
+	}
+
+	ChangeDetector detector(width, height, format);
+	uint64_t signature;
+	uint32_t count = 0;
+	for (auto _ : state) {
+		bool changed = detector.process(&source[(count & 1) * fieldSize], 0, 2, &signature);
+		benchmark::DoNotOptimize(changed);
+		benchmark::DoNotOptimize(signature);
+		count++;
+	}
+
+	state.SetLabel(norm == TvNorm::NTSC ? "NTSC" : "PAL");
+	state.SetItemsProcessed(state.iterations());
+}
+BENCHMARK(BM_ChangeDetect)->Args({(int)TvNorm::NTSC, (int)PixelFormat::YUYV})
+		->Args({(int)TvNorm::PAL, (int)PixelFormat::YUYV})
+		->Args({(int)TvNorm::PAL, (int)PixelFormat::Y8});
+
+/**
+ * Luma histogram of one YUYV field, as counted while its packets are copied.  The argument
+ * is the norm.  The picture is noisy, so neighbouring pixels mostly land in different bins.
+ */
+static void BM_LumaHistogram(benchmark::State& state) {
+	TvNorm norm = static_cast<TvNorm>(state.range(0));
+	StreamParams params = makeStreamParams(norm, ScanType::PROGRESSIVE);
+	uint32_t fieldSize = params.frame.bufferSize;
+
+	std::vector<uint8_t> field(fieldSize);
+	uint32_t noise = 1;
+	for (uint32_t i = 0; i < fieldSize; i++) {
+		noise = noise * 1103515245 + 12345;
+		field[i] = (uint8_t)((i & 0x7f) + 64 + ((noise >> 16) & 0x1f));
+	}
+
+	uint32_t histograms[USBTV_LUMA_HISTOGRAMS][USBTV_LUMA_BINS];
+	for (auto _ : state) {
+		memset(histograms, 0, sizeof(histograms));
+		accumulateLumaHistogram(histograms, &field[0], fieldSize / 2);
+		benchmark::DoNotOptimize(histograms);
+	}
+
+	state.SetLabel(norm == TvNorm::NTSC ? "NTSC" : "PAL");
+	state.SetItemsProcessed(state.iterations());
+	state.SetBytesProcessed(state.iterations() * fieldSize);
+}
+BENCHMARK(BM_LumaHistogram)->Arg((int)TvNorm::NTSC)->Arg((int)TvNorm::PAL);
+
+/**
+ * Each thread takes a frame from the pool and immediately returns it.  With more than
+ * one thread the frame locks and the pool mutex are contended, as they are between the
+ * urb thread and the frame consumer.
+ */
+static UsbTvDriver* poolDriver = nullptr;
+
+static void BM_FramePoolFetchClear(benchmark::State& state) {
+	if (state.thread_index() == 0) {
+		poolDriver = UsbTvDriverBench::create((uint16_t)state.range(0));
+		UsbTvDriverBench::prepare(poolDriver, makeStreamParams(TvNorm::NTSC, ScanType::PROGRESSIVE),
+		                          false);
+	}
+
+	for (auto _ : state) {
+		UsbTvFrame* frame = UsbTvDriverBench::fetchFrameFromPool(poolDriver);
+		benchmark::DoNotOptimize(frame);
+		poolDriver->clearFrameLock(frame->poolIndex);
+	}
+
+	state.SetItemsProcessed(state.iterations());
+
+	if (state.thread_index() == 0) {
+		UsbTvDriverBench::release(poolDriver);
+		delete poolDriver;
+		poolDriver = nullptr;
+	}
+}
+BENCHMARK(BM_FramePoolFetchClear)->Arg(BENCH_FRAME_POOL_SIZE)->ThreadRange(1, 4)->UseRealTime();
+
+/**
+ * Frame handoff through the process queue.  Thread 0 enqueues as the urb thread does,
+ * thread 1 blocks on the queue as the frame process thread does.
+ */
+static moodycamel::BlockingConcurrentQueue<UsbTvFrame*>* handoffQueue = nullptr;
+static UsbTvFrame handoffFrame;
+
+static void BM_QueueHandoff(benchmark::State& state) {
+	if (state.thread_index() == 0) {
+		handoffQueue = new moodycamel::BlockingConcurrentQueue<UsbTvFrame*>(
+				(size_t)(BENCH_FRAME_POOL_SIZE - 1));
+	}
+
+	UsbTvFrame* frame = &handoffFrame;
+	for (auto _ : state) {
+		if (state.thread_index() == 0) {
+			while (!handoffQueue->try_enqueue(frame)) {
+				// Queue full, the consumer is behind
+			}
+		} else {
+			handoffQueue->wait_dequeue(frame);
+		}
+	}
+
+	state.SetItemsProcessed(state.iterations());
+
+	if (state.thread_index() == 0) {
+		delete handoffQueue;
+		handoffQueue = nullptr;
+	}
+}
+BENCHMARK(BM_QueueHandoff)->Threads(2)->UseRealTime();
+
+/**
+ * Latency of a single handoff.  Each iteration passes a frame to the other thread and
+ * waits for it to come back, so the time per iteration is two handoffs.
+ */
+static moodycamel::BlockingConcurrentQueue<UsbTvFrame*>* pingQueue = nullptr;
+static moodycamel::BlockingConcurrentQueue<UsbTvFrame*>* pongQueue = nullptr;
+
+static void BM_QueueRoundTrip(benchmark::State& state) {
+	if (state.thread_index() == 0) {
+		pingQueue = new moodycamel::BlockingConcurrentQueue<UsbTvFrame*>(
+				(size_t)(BENCH_FRAME_POOL_SIZE - 1));
+		pongQueue = new moodycamel::BlockingConcurrentQueue<UsbTvFrame*>(
+				(size_t)(BENCH_FRAME_POOL_SIZE - 1));
+	}
+
+	UsbTvFrame* frame = &handoffFrame;
+	for (auto _ : state) {
+		if (state.thread_index() == 0) {
+			pingQueue->enqueue(frame);
+			pongQueue->wait_dequeue(frame);
+		} else {
+			pingQueue->wait_dequeue(frame);
+			pongQueue->enqueue(frame);
+		}
+	}
+
+	if (state.thread_index() == 0) {
+		delete pingQueue;
+		delete pongQueue;
+		pingQueue = nullptr;
+		pongQueue = nullptr;
+	}
+}
+BENCHMARK(BM_QueueRoundTrip)->Threads(2)->UseRealTime();
+
+int main(int argc, char** argv) {
+#if defined(__aarch64__)
+	benchmark::AddCustomContext("target_arch", "arm64");
+#elif defined(__arm__)
+	benchmark::AddCustomContext("target_arch", "arm");
+#elif defined(__x86_64__)
+	benchmark::AddCustomContext("target_arch", "x86_64");
+#elif defined(__i386__)
+	benchmark::AddCustomContext("target_arch", "x86");
+#else
+	benchmark::AddCustomContext("target_arch", "unknown");
+#endif
+
+	benchmark::Initialize(&argc, argv);
+	if (benchmark::ReportUnrecognizedArguments(argc, argv)) {
+		return 1;
+	}
+	benchmark::RunSpecifiedBenchmarks();
+	benchmark::Shutdown();
+	return 0;
+}
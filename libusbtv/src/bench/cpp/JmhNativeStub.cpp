@@ -0,0 +1,34 @@
+// Copyright (C) 2020 Eric Callahan <arksine.code@gmail.com>
+//
+// This file may be distributed under the terms of the GNU GPLv3 license
+//
+// Native layer for the JMH benchmarks (libusbtv-jmh).  Only the methods reachable from
+// the benchmarked classes are provided.  returnFrameToPool does the same work as
+// UsbTvDriver::clearFrameLock, so the measured JNI transition includes a realistic
+// native cost.  DeviceParams' natives are built from the driver sources as they are.
+//
+
+#include <jni.h>
+#include <mutex>
+#include <atomic>
+
+#define STUB_FRAME_POOL_SIZE    32
+
+static std::mutex framePoolMutex;
+static std::atomic<bool> framePoolLocks[STUB_FRAME_POOL_SIZE];
+
+extern "C" {
+
+JNIEXPORT jboolean JNICALL Java_com_arksine_libusbtv_UsbTvFrame_returnFrameToPool(JNIEnv* jenv,
+                                                                              jobject thisObj,
+                                                                              jint poolIndex) {
+	if (poolIndex < 0 || poolIndex >= STUB_FRAME_POOL_SIZE) {
+		return (jboolean) false;
+	}
+
+	std::lock_guard<std::mutex> lock(framePoolMutex);
+	framePoolLocks[poolIndex].store(false, std::memory_order_release);
+	return (jboolean) true;
+}
+
+}
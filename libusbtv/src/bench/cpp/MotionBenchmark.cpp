@@ -0,0 +1,346 @@
+// Copyright (C) 2020 Eric Callahan <arksine.code@gmail.com>
+//
+// This file may be distributed under the terms of the GNU GPLv3 license
+//
+// Speed and quality benchmark of the motion detector.  Fields are synthesized directly, so
+// the position of the moving object is known: a box brighter than a luma ramp by a given
+// contrast bounces across the field for half of each period and is hidden for the rest,
+// with gaussian noise added to every pixel.  Each noise level and contrast is run for the
+// same fields.  Reported per run:
+//  - us/field      Time the detector takes for a field
+//  - recall        Fields with the box visible that raised an event with a region matching
+//                  it, an intersection over union of at least 0.3
+//  - iou           Mean intersection over union of the best region and the box, over the
+//                  fields that matched
+//  - false/kf      Fields with any region per 1000 fields once the box has been hidden for
+//                  longer than the hold time
+//  - false_starts  Motion events started while the box was hidden
+//  - start_lag     Mean fields from the box appearing to the motion event starting
+//  - end_lag       Mean fields from the box disappearing to the motion event ending
+//
+
+#include <algorithm>
+#include <cmath>
+#include <cstdio>
+#include <cstdlib>
+#include <cstring>
+#include <vector>
+#include "MotionDetector.h"
+#include "util.h"
+
+#define BENCH_NOISE_PLANES      7
+#define BENCH_MIN_IOU           0.3
+
+struct MotionBenchOptions {
+	uint32_t    fields;
+	uint8_t     sensitivity;
+	uint16_t    lines;
+	uint64_t    fieldIntervalNs;
+	PixelFormat pixelFormat;
+	uint16_t    boxWidth;
+	uint16_t    boxLines;
+	uint16_t    boxStep;
+	uint32_t    period;
+	bool        csv;
+};
+
+struct MotionBenchResult {
+	float       noise;
+	uint8_t     contrast;
+	double      usPerField;
+	double      recall;
+	double      meanIou;
+	double      falsePerThousand;
+	uint32_t    falseStarts;
+	double      startLag;
+	double      endLag;
+};
+
+// Renders fields of the moving box scene, with noise from a few precomputed planes
+class MotionScene {
+private:
+	const MotionBenchOptions&   _options;
+	uint8_t                     _contrast;
+	std::vector<int8_t>         _noise;
+	std::vector<uint8_t>        _background;
+	uint32_t                    _pixels;
+
+public:
+	MotionScene(const MotionBenchOptions& options, float noise, uint8_t contrast)
+			: _options(options) {
+		_contrast = contrast;
+		_pixels = (uint32_t)USBTV_FRAME_WIDTH * options.lines;
+
+		_background.resize(USBTV_FRAME_WIDTH);
+		for (uint32_t x = 0; x < USBTV_FRAME_WIDTH; x++) {
+			_background[x] = (uint8_t)(16 + (x * 160) / (USBTV_FRAME_WIDTH - 1));
+		}
+
+		// Sum of four uniform values, close to gaussian, scaled to the standard deviation
+		_noise.resize((size_t)BENCH_NOISE_PLANES * _pixels);
+		uint32_t random = 1;
+		for (size_t i = 0; i < _noise.size(); i++) {
+			int32_t sum = 0;
+			for (int j = 0; j < 4; j++) {
+				random ^= random << 13;
+				random ^= random >> 17;
+				random ^= random << 5;
+				sum += (int32_t)(random & 0xff) - 128;
+			}
+			// Four uniform values in [-128, 128) have a standard deviation of about 147.8
+			float value = sum * noise / 147.8f;
+			_noise[i] = (int8_t)std::max(-127.0f, std::min(127.0f, std::round(value)));
+		}
+	}
+
+	bool isVisible(uint32_t field) {
+		// Starts hidden, so the background learned first is the empty scene
+		return ((field + _options.period / 2) % _options.period) < _options.period / 2;
+	}
+
+	uint32_t boxX(uint32_t field) {
+		uint32_t phase = (field + _options.period / 2) % _options.period;
+		uint32_t travel = USBTV_FRAME_WIDTH - _options.boxWidth;
+		uint32_t position = (phase * _options.boxStep) % (2 * travel);
+		return (position <= travel) ? position : 2 * travel - position;
+	}
+
+	uint32_t boxY() {
+		return (_options.lines - _options.boxLines) / 2;
+	}
+
+	void render(uint32_t field, uint8_t* dst) {
+		const int8_t* noise = &_noise[(size_t)(field % BENCH_NOISE_PLANES) * _pixels];
+		bool visible = isVisible(field);
+		uint32_t left = boxX(field);
+		uint32_t top = boxY();
+		uint32_t bpp = bytesPerPixel(_options.pixelFormat);
+
+		for (uint32_t line = 0; line < _options.lines; line++) {
+			bool boxLine = visible && line >= top && line < top + _options.boxLines;
+			for (uint32_t x = 0; x < USBTV_FRAME_WIDTH; x++) {
+				int32_t luma = _background[x];
+				if (boxLine && x >= left && x < left + _options.boxWidth) {
+					luma += _contrast;
+				}
+				luma += noise[line * USBTV_FRAME_WIDTH + x];
+				uint8_t* pixel = dst + (line * USBTV_FRAME_WIDTH + x) * bpp;
+				pixel[0] = (uint8_t)std::max(0, std::min(255, luma));
+				if (bpp == 2) {
+					pixel[1] = 128;
+				}
+			}
+		}
+	}
+};
+
+static double intersectionOverUnion(const MotionRegion& region, uint32_t x, uint32_t y,
+                                    uint32_t width, uint32_t height) {
+	int32_t left = std::max((int32_t)region.x, (int32_t)x);
+	int32_t top = std::max((int32_t)region.y, (int32_t)y);
+	int32_t right = std::min((int32_t)(region.x + region.width), (int32_t)(x + width));
+	int32_t bottom = std::min((int32_t)(region.y + region.height), (int32_t)(y + height));
+	if (right <= left || bottom <= top) {
+		return 0.0;
+	}
+	double intersection = (double)(right - left) * (bottom - top);
+	double unionArea = (double)region.width * region.height + (double)width * height -
+	                   intersection;
+	return intersection / unionArea;
+}
+
+static void runBenchmark(const MotionBenchOptions& options, MotionBenchResult* result) {
+	MotionScene scene(options, result->noise, result->contrast);
+	MotionDetector detector(USBTV_FRAME_WIDTH, options.lines, options.pixelFormat, 1);
+	std::vector<uint8_t> field((size_t)USBTV_FRAME_WIDTH * options.lines *
+	                           bytesPerPixel(options.pixelFormat));
+
+	uint32_t holdFields = (uint32_t)(((uint64_t)USBTV_MOTION_HOLD_MS * 1000000 +
+	                                  options.fieldIntervalNs - 1) / options.fieldIntervalNs);
+	uint64_t processNs = 0;
+	uint32_t visibleFields = 0, matchedFields = 0;
+	double iouSum = 0;
+	uint32_t quietFields = 0, falseFields = 0;
+	uint32_t starts = 0, ends = 0;
+	uint64_t startLagSum = 0, endLagSum = 0;
+	uint32_t changedAt = 0;     // Field the box last appeared or disappeared
+	bool wasVisible = false;
+	result->falseStarts = 0;
+
+	for (uint32_t n = 0; n < options.fields; n++) {
+		bool visible = scene.isVisible(n);
+		if (visible != wasVisible) {
+			changedAt = n;
+			wasVisible = visible;
+		}
+		scene.render(n, &field[0]);
+
+		MotionEvent event;
+		uint64_t startNs = getSteadyTimeNs();
+		bool raised = detector.process(&field[0], (uint8_t)(n & 1), options.sensitivity, n,
+		                               n * options.fieldIntervalNs, &event);
+		processNs += getSteadyTimeNs() - startNs;
+
+		if (raised && event.state == MotionState::START) {
+			if (visible) {
+				starts++;
+				startLagSum += n - changedAt;
+			} else {
+				result->falseStarts++;
+			}
+		} else if (raised && event.state == MotionState::END && !visible) {
+			ends++;
+			endLagSum += n - changedAt;
+		}
+
+		if (visible) {
+			visibleFields++;
+			double best = 0;
+			if (raised && event.state != MotionState::END) {
+				for (uint8_t i = 0; i < event.regionCount; i++) {
+					best = std::max(best, intersectionOverUnion(event.regions[i], scene.boxX(n),
+					                                            scene.boxY(), options.boxWidth,
+					                                            options.boxLines));
+				}
+			}
+			if (best >= BENCH_MIN_IOU) {
+				matchedFields++;
+				iouSum += best;
+			}
+		} else if (n - changedAt > holdFields && n > holdFields) {
+			quietFields++;
+			if (event.regionCount > 0) {
+				falseFields++;
+			}
+		}
+	}
+
+	result->usPerField = processNs / 1e3 / options.fields;
+	result->recall = (visibleFields > 0) ? (double)matchedFields / visibleFields : 0;
+	result->meanIou = (matchedFields > 0) ? iouSum / matchedFields : 0;
+	result->falsePerThousand = (quietFields > 0) ? 1000.0 * falseFields / quietFields : 0;
+	result->startLag = (starts > 0) ? (double)startLagSum / starts : NAN;
+	result->endLag = (ends > 0) ? (double)endLagSum / ends : NAN;
+}
+
+static void printResult(const MotionBenchResult& result, bool csv) {
+	if (csv) {
+		printf("%.1f,%u,%.2f,%.3f,%.3f,%.2f,%u,%.1f,%.1f\n", result.noise, result.contrast,
+		       result.usPerField, result.recall, result.meanIou, result.falsePerThousand,
+		       result.falseStarts, result.startLag, result.endLag);
+	} else {
+		printf("%5.1f %8u %9.2f %7.3f %6.3f %9.2f %12u %9.1f %8.1f\n", result.noise,
+		       result.contrast, result.usPerField, result.recall, result.meanIou,
+		       result.falsePerThousand, result.falseStarts, result.startLag, result.endLag);
+	}
+}
+
+static void printUsage(const char* name) {
+	printf("Usage: %s [options]\n"
+	       "  --fields N          Fields in each run (default 4800)\n"
+	       "  --sensitivity N     Motion detection sensitivity, 1 to %d (default 50)\n"
+	       "  --norm ntsc|pal     Field size and rate (default ntsc)\n"
+	       "  --format FORMAT     yuyv or y8 (default yuyv)\n"
+	       "  --box WxH           Size of the moving box, H in field lines (default 48x24)\n"
+	       "  --box-step N        Pixels the box moves each field (default 4)\n"
+	       "  --period N          Fields in each period, the box moves for the first half\n"
+	       "                      (default 480)\n"
+	       "  --csv               Print machine readable results\n",
+	       name, USBTV_MOTION_MAX_SENSITIVITY);
+}
+
+int main(int argc, char** argv) {
+	MotionBenchOptions options;
+	options.fields = 4800;
+	options.sensitivity = 50;
+	options.lines = 240;
+	options.fieldIntervalNs = 16683333;
+	options.pixelFormat = PixelFormat::YUYV;
+	options.boxWidth = 48;
+	options.boxLines = 24;
+	options.boxStep = 4;
+	options.period = 480;
+	options.csv = false;
+
+	for (int i = 1; i < argc; i++) {
+		const char* arg = argv[i];
+		const char* value = (i + 1 < argc) ? argv[i + 1] : nullptr;
+
+		if (strcmp(arg, "--csv") == 0) {
+			options.csv = true;
+			continue;
+		} else if (strcmp(arg, "--help") == 0) {
+			printUsage(argv[0]);
+			return 0;
+		} else if (value == nullptr) {
+			fprintf(stderr, "Missing value for %s\n", arg);
+			return 1;
+		} else if (strcmp(arg, "--fields") == 0) {
+			options.fields = (uint32_t)atoi(value);
+		} else if (strcmp(arg, "--sensitivity") == 0) {
+			int sensitivity = atoi(value);
+			if (sensitivity < 1 || sensitivity > USBTV_MOTION_MAX_SENSITIVITY) {
+				fprintf(stderr, "Sensitivity must be 1 to %d\n", USBTV_MOTION_MAX_SENSITIVITY);
+				return 1;
+			}
+			options.sensitivity = (uint8_t)sensitivity;
+		} else if (strcmp(arg, "--norm") == 0) {
+			if (strcmp(value, "pal") == 0) {
+				options.lines = 288;
+				options.fieldIntervalNs = 20000000;
+			} else if (strcmp(value, "ntsc") != 0) {
+				fprintf(stderr, "Norm must be ntsc or pal\n");
+				return 1;
+			}
+		} else if (strcmp(arg, "--format") == 0) {
+			if (strcmp(value, "y8") == 0) {
+				options.pixelFormat = PixelFormat::Y8;
+			} else if (strcmp(value, "yuyv") != 0) {
+				fprintf(stderr, "Unknown pixel format %s\n", value);
+				return 1;
+			}
+		} else if (strcmp(arg, "--box") == 0) {
+			unsigned int width, lines;
+			if (sscanf(value, "%ux%u", &width, &lines) != 2 || width == 0 || lines == 0 ||
+			    width >= USBTV_FRAME_WIDTH || lines >= 200) {
+				fprintf(stderr, "Box must be WxH, smaller than the field\n");
+				return 1;
+			}
+			options.boxWidth = (uint16_t)width;
+			options.boxLines = (uint16_t)lines;
+		} else if (strcmp(arg, "--box-step") == 0) {
+			options.boxStep = (uint16_t)atoi(value);
+		} else if (strcmp(arg, "--period") == 0) {
+			options.period = (uint32_t)atoi(value);
+			if (options.period < 2) {
+				fprintf(stderr, "Period must be at least 2 fields\n");
+				return 1;
+			}
+		} else {
+			fprintf(stderr, "Unknown option %s\n", arg);
+			return 1;
+		}
+		i++;
+	}
+
+	if (options.csv) {
+		printf("noise,contrast,us_per_field,recall,mean_iou,false_per_kfield,false_starts,"
+		       "start_lag_fields,end_lag_fields\n");
+	} else {
+		printf("%5s %8s %9s %7s %6s %9s %12s %9s %8s\n", "noise", "contrast", "us/field",
+		       "recall", "iou", "false/kf", "false_starts", "start_lag", "end_lag");
+	}
+
+	const float noiseLevels[] = { 0.0f, 2.0f, 4.0f, 8.0f };
+	const uint8_t contrasts[] = { 16, 32, 64 };
+	for (float noise : noiseLevels) {
+		for (uint8_t contrast : contrasts) {
+			MotionBenchResult result;
+			result.noise = noise;
+			result.contrast = contrast;
+			runBenchmark(options, &result);
+			printResult(result, options.csv);
+		}
+	}
+	return 0;
+}
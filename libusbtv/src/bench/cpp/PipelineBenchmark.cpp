@@ -0,0 +1,1083 @@
+// Copyright (C) 2020 Eric Callahan <arksine.code@gmail.com>
+//
+// This file may be distributed under the terms of the GNU GPLv3 license
+//
+// End to end throughput benchmark.  A SyntheticUsbDevice drives UsbTvDriver through its
+// urb callback for each norm and ScanType, and a native consumer returns frames to the
+// pool as soon as they are delivered.  Reported per run:
+//  - fields/s      Fields the driver consumed.  At maximum speed this is the sustainable rate.
+//  - frames/s      Frames delivered to the consumer
+//  - cpu_us/field  Process CPU time per field, less the time spent generating packets.
+//                  --luma-stats adds counting the luma histogram of each field.
+//  - urb_*         Time spent in the driver's urb callback (packet parsing and copies)
+//  - queue_*       Time from a frame being queued to the consumer receiving it
+//  - sec_*         Secondary stream frames delivered per second and dropped, when enabled.
+//                  --secondary-delay-ms holds each one to stand in for a slow detector.
+//  - ts_dropped    Frames the timeshift writer could not keep up with, when enabled
+//  - rec_MB/s      Sustained rate the video recorder wrote to its file, when enabled.  At
+//                  maximum speed this is the rate storage accepts.
+//  - rec_dropped   Frames the video recorder could not keep up with
+//  - mjpeg_*       Frames per second received by the fastest loopback MJPEG viewer, mean
+//                  image size, and the time from a frame being queued to a viewer having
+//                  read all of its image.  --mjpeg-viewer-delay-ms holds each image the
+//                  first viewer reads, to show a slow viewer does not hold back capture or
+//                  the other viewers.
+//  - share_*       Frames per second received by the fastest frame sharing client, frames
+//                  clients were not sent, and the time from a frame being queued to a client
+//                  acquiring it.  --share-client-delay-ms holds each frame the first client
+//                  acquires, which then skips frames without holding back capture.
+//  - quality       Level the quality governor left the stream at with --governor, and the
+//                  number of times it changed.  --consumer-delay-ms slows the consumer in
+//                  proportion to the size of each frame, to overload it.
+//  - suppressed    Frames not delivered, as unchanged with --change-threshold and
+//                  --suppress-unchanged or without motion with --motion-gate.  Unless
+//                  --pattern moving is given the test pattern is static, the best case of a
+//                  parked camera.
+//  - motion        Motion events started with --motion, which with --pattern moving should
+//                  be one for each period the box moves in
+//  - signal        Times the signal state changed with --signal.  --unplug-period unplugs
+//                  the input for the second half of each period, which should be two
+//                  changes per period.
+//  - idle          Frames not captured or not delivered with --signal-idle while the input
+//                  was unplugged.  cpu_us/field then shows the cost of idling.
+//  - levels        Brightness and contrast adjustments made with --auto-level
+//  - luma          Luma range of the last frame delivered, with --luma-stats or
+//                  --auto-level.  The color bars span 35-180 until auto level stretches
+//                  them towards 16-235, run --realtime so it has time to.
+//
+
+#include <cstdio>
+#include <cstdlib>
+#include <cstring>
+#include <thread>
+#include <vector>
+#include <unistd.h>
+#include <arpa/inet.h>
+#include <netinet/in.h>
+#include <sys/socket.h>
+#include "UsbTvDriver.h"
+#include "SyntheticUsbDevice.h"
+#include "SharedFrameClient.h"
+#include "BenchUtil.h"
+
+struct BenchOptions {
+	double      seconds;
+	bool        realtime;
+	float       lossRate;
+	float       reorderRate;
+	uint32_t    jitterUs;
+	uint8_t     isoTransfers;
+	uint8_t     isoPackets;
+	bool        csv;
+	bool        ntsc;
+	bool        pal;
+	double      minFieldsPerSecond;
+	const char* tracePath;
+	DeinterlaceMode deinterlaceMode;
+	uint8_t         denoiseStrength;
+	uint8_t         changeThreshold;
+	bool            suppressUnchanged;
+	uint8_t         motionSensitivity;
+	bool            motionGate;
+	bool            signal;
+	bool            signalIdle;
+	uint32_t        unplugPeriod;
+	bool            lumaStats;
+	bool            autoLevel;
+	TestPattern     pattern;
+	CropRect        crop;
+	ScaleParams     scale;
+	PixelFormat     pixelFormat;
+	SecondaryStreamParams   secondary;
+	uint32_t                secondaryDelayUs;
+	uint16_t    timeshiftSeconds;
+	const char* timeshiftPath;
+	const char*     recordPath;
+	VideoContainer  recordContainer;
+	RecordPolicy    recordPolicy;
+	uint32_t    mjpegViewers;
+	uint32_t    mjpegViewerDelayUs;
+	uint8_t     mjpegQuality;
+	uint8_t     mjpegMaxFrameRate;
+	uint32_t    shareClients;
+	uint32_t    shareClientDelayUs;
+	uint32_t    consumerDelayUs;
+	bool        governor;
+};
+
+struct BenchResult {
+	TvNorm      norm;
+	ScanType    scanType;
+	bool        started;
+	double      fieldsPerSecond;
+	double      framesPerSecond;
+	double      cpuUsPerField;
+	std::vector<uint64_t> urbNs;
+	std::vector<uint64_t> queueNs;
+	uint32_t    droppedFrames;
+	uint32_t    incompleteFrames;
+	double      secondaryFramesPerSecond;
+	uint32_t    secondaryDroppedFrames;
+	uint32_t    timeshiftDroppedFrames;
+	double      recordMegabytesPerSecond;
+	uint32_t    recordDroppedFrames;
+	double      mjpegFramesPerSecond;
+	double      mjpegKilobytesPerFrame;
+	std::vector<uint64_t> mjpegLatencyNs;
+	double      shareFramesPerSecond;
+	uint32_t    shareDroppedFrames;
+	std::vector<uint64_t> shareLatencyNs;
+	QualityLevel    qualityLevel;
+	uint32_t        qualityChanges;
+	uint32_t        suppressedFrames;
+	uint32_t        motionEvents;
+	uint32_t        signalChanges;
+	uint32_t        idleFrames;
+	uint32_t        levelChanges;
+	uint32_t        lumaMin;
+	uint32_t        lumaMax;
+};
+
+// Returns frames to the pool after an optional delay, recording how long they were queued
+class BenchConsumer : public FrameCallback {
+private:
+	UsbTvDriver*            _driver;
+	std::vector<uint64_t>*  _queueNs;
+	uint32_t                _frames;
+	uint32_t                _delayUs;
+	uint32_t                _delayBytes;
+	uint32_t                _motionStarts;
+	uint32_t                _lumaMin;
+	uint32_t                _lumaMax;
+
+public:
+	// A delay with delayBytes set is for frames of that size, and scales with the frame size
+	BenchConsumer(std::vector<uint64_t>* queueNs, uint32_t delayUs = 0, uint32_t delayBytes = 0) {
+		_driver = nullptr;
+		_queueNs = queueNs;
+		_frames = 0;
+		_delayUs = delayUs;
+		_delayBytes = delayBytes;
+		_motionStarts = 0;
+		_lumaMin = 0;
+		_lumaMax = 0;
+	}
+
+	void setDriver(UsbTvDriver* driver) {
+		_driver = driver;
+	}
+
+	uint32_t getFrameCount() {
+		return _frames;
+	}
+
+	uint32_t getMotionStartCount() {
+		return _motionStarts;
+	}
+
+	uint32_t getLumaMin() {
+		return _lumaMin;
+	}
+
+	uint32_t getLumaMax() {
+		return _lumaMax;
+	}
+
+	void onMotion(const MotionEvent& event) override {
+		if (event.state == MotionState::START) {
+			_motionStarts++;
+		}
+	}
+
+	void invoke(UsbTvFrame* frame) override {
+		_queueNs->push_back(getSteadyTimeNs() - frame->timestampNs);
+		_frames++;
+		if (frame->lumaStats->pixels > 0) {
+			_lumaMin = frame->lumaStats->min;
+			_lumaMax = frame->lumaStats->max;
+		}
+		if (_delayUs > 0) {
+			uint64_t delayUs = _delayUs;
+			if (_delayBytes > 0) {
+				delayUs = delayUs * frame->params->bufferSize / _delayBytes;
+			}
+			std::this_thread::sleep_for(std::chrono::microseconds(delayUs));
+		}
+		_driver->clearFrameLock(frame->poolIndex);
+	}
+};
+
+// Reads the multipart stream of the MJPEG server until it disconnects, recording when each
+// image was read in full relative to the frame's timestamp
+class MjpegViewer {
+private:
+	int         _fd;
+	uint32_t    _delayUs;
+	uint32_t    _frames;
+	uint64_t    _bytes;
+	std::vector<uint64_t>   _latencyNs;
+	std::vector<char>       _buffer;
+	size_t      _length;
+	std::thread*    _thread;
+
+	// Reads until the buffer holds at least count bytes
+	bool fill(size_t count) {
+		if (_buffer.size() < count) {
+			_buffer.resize(count);
+		}
+		while (_length < count) {
+			ssize_t received = recv(_fd, &_buffer[_length], _buffer.size() - _length, 0);
+			if (received <= 0) {
+				return false;
+			}
+			_length += (size_t)received;
+		}
+		return true;
+	}
+
+	// Reads up to the blank line ending a header, returning its length including the line
+	size_t readHeader() {
+		while (true) {
+			_buffer.push_back('\0');
+			char* end = strstr(&_buffer[0], "\r\n\r\n");
+			_buffer.pop_back();
+			if (end != nullptr && (size_t)(end - &_buffer[0]) < _length) {
+				return (size_t)(end - &_buffer[0]) + 4;
+			}
+			if (!fill(_length + 1)) {
+				return 0;
+			}
+		}
+	}
+
+	void consume(size_t count) {
+		memmove(&_buffer[0], &_buffer[count], _length - count);
+		_length -= count;
+	}
+
+	void run() {
+		static const char REQUEST[] = "GET / HTTP/1.0\r\n\r\n";
+		if (send(_fd, REQUEST, sizeof(REQUEST) - 1, MSG_NOSIGNAL) < 0) {
+			return;
+		}
+		size_t length = readHeader();
+		if (length == 0) {
+			return;
+		}
+		consume(length);
+
+		while (true) {
+			length = readHeader();
+			if (length == 0) {
+				return;
+			}
+			_buffer[length - 1] = '\0';
+			const char* sizeField = strstr(&_buffer[0], "Content-Length: ");
+			const char* timeField = strstr(&_buffer[0], "X-Timestamp-Ns: ");
+			if (sizeField == nullptr || timeField == nullptr) {
+				return;
+			}
+			size_t size = strtoul(sizeField + 16, nullptr, 10);
+			uint64_t timestampNs = strtoull(timeField + 16, nullptr, 10);
+			consume(length);
+
+			// Image followed by CRLF
+			if (!fill(size + 2)) {
+				return;
+			}
+			_latencyNs.push_back(getSteadyTimeNs() - timestampNs);
+			_frames++;
+			_bytes += size;
+			consume(size + 2);
+
+			if (_delayUs > 0) {
+				std::this_thread::sleep_for(std::chrono::microseconds(_delayUs));
+			}
+		}
+	}
+
+public:
+	MjpegViewer(uint16_t port, uint32_t delayUs) {
+		_delayUs = delayUs;
+		_frames = 0;
+		_bytes = 0;
+		_length = 0;
+		_buffer.resize(64 * 1024);
+		_thread = nullptr;
+
+		sockaddr_in address;
+		CLEAR(address);
+		address.sin_family = AF_INET;
+		address.sin_port = htons(port);
+		address.sin_addr.s_addr = htonl(INADDR_LOOPBACK);
+		_fd = socket(AF_INET, SOCK_STREAM, 0);
+		if (connect(_fd, (sockaddr*)&address, sizeof(address)) == 0) {
+			_thread = new std::thread(&MjpegViewer::run, this);
+		} else {
+			fprintf(stderr, "Unable to connect to the MJPEG server: %s\n", strerror(errno));
+		}
+	}
+
+	~MjpegViewer() {
+		join();
+		close(_fd);
+	}
+
+	// Stops reading, discarding images still buffered for a slow viewer
+	void join() {
+		shutdown(_fd, SHUT_RDWR);
+		if (_thread != nullptr) {
+			_thread->join();
+			delete _thread;
+			_thread = nullptr;
+		}
+	}
+
+	uint32_t getFrameCount() { return _frames; }
+	uint64_t getByteCount() { return _bytes; }
+	const std::vector<uint64_t>& getLatencies() { return _latencyNs; }
+};
+
+// Acquires shared frames through the socket and a mapping of its own, as a client process
+// would, reading a byte of every page of each frame
+class ShareViewer {
+private:
+	SharedFrameClient   _client;
+	uint32_t            _delayUs;
+	uint32_t            _frames;
+	uint32_t            _checksum;
+	std::vector<uint64_t>   _latencyNs;
+	std::atomic<bool>   _running;
+	std::thread*        _thread;
+
+	void run() {
+		SharedFrame frame;
+		while (_running && _client.isConnected()) {
+			if (!_client.acquire(&frame, 100)) {
+				continue;
+			}
+			_latencyNs.push_back(getSteadyTimeNs() - frame.timestampNs);
+			_frames++;
+			for (uint32_t offset = 0; offset < frame.length; offset += 4096) {
+				_checksum += frame.data[offset];
+			}
+			if (_delayUs > 0) {
+				std::this_thread::sleep_for(std::chrono::microseconds(_delayUs));
+			}
+			_client.release(frame);
+		}
+	}
+
+public:
+	ShareViewer(const char* socketName, uint32_t delayUs) {
+		_delayUs = delayUs;
+		_frames = 0;
+		_checksum = 0;
+		_running = true;
+		_thread = nullptr;
+		if (_client.connect(socketName)) {
+			_thread = new std::thread(&ShareViewer::run, this);
+		}
+	}
+
+	~ShareViewer() {
+		join();
+	}
+
+	void join() {
+		_running = false;
+		if (_thread != nullptr) {
+			_thread->join();
+			delete _thread;
+			_thread = nullptr;
+		}
+	}
+
+	uint32_t getFrameCount() { return _frames; }
+	const std::vector<uint64_t>& getLatencies() { return _latencyNs; }
+};
+
+/**
+ * Applies a quality governor level to the stream parameters, as UsbTv does to its
+ * DeviceParams
+ */
+static StreamParams degradeParams(const StreamParams& params, QualityLevel level) {
+	StreamParams degraded = params;
+	if (level == QualityLevel::FULL) {
+		return degraded;
+	}
+
+	degraded.frame.scanType = ScanType::DISCARD;
+	if (level == QualityLevel::HALF_WIDTH) {
+		uint16_t fullHeight = (params.frame.norm == TvNorm::PAL) ? 576 : 480;
+		uint16_t width = (params.crop.width != 0) ? params.crop.width : (uint16_t)720;
+		uint16_t height = (uint16_t)(((params.crop.height != 0) ? params.crop.height
+		                                                        : fullHeight) / 2);
+		Scaler::computeOutputSize(params.scale, params.frame.norm, width, height, true, &width,
+		                          &height);
+		degraded.scale.width = (uint16_t)(width / 2);
+		degraded.scale.height = height;
+	}
+	return degraded;
+}
+
+static void runBenchmark(const BenchOptions& options, BenchResult* result) {
+	SyntheticStreamConfig config;
+	SyntheticUsbDevice::defaultConfig(&config, result->norm);
+	config.packetRate = options.realtime ? USBTV_PACKET_RATE : 0;
+	config.lossRate = options.lossRate;
+	config.reorderRate = options.reorderRate;
+	config.jitterUs = options.jitterUs;
+	config.pattern = options.pattern;
+	config.unplugPeriod = options.unplugPeriod;
+
+	SyntheticUsbDevice* device = new SyntheticUsbDevice(config);
+	std::vector<uint64_t>* urbNs = &result->urbNs;
+	urbNs->reserve((size_t)(options.seconds * USBTV_PACKET_RATE));
+	result->queueNs.reserve((size_t)(options.seconds * 120));
+	device->setUrbObserver([urbNs](usbdevfs_urb* urb, uint64_t start, uint64_t end) {
+		urbNs->push_back(end - start);
+	});
+
+	BenchConsumer consumer(&result->queueNs, options.consumerDelayUs, 720 * 480 * 2);
+	UsbTvDriver driver(&consumer, device, BENCH_FRAME_POOL_SIZE, USBTV_VIDEO_EP,
+	                   BENCH_ISO_PACKET_SIZE);
+	consumer.setDriver(&driver);
+	driver.setCallback(true);
+
+	std::vector<uint64_t> secondaryQueueNs;
+	secondaryQueueNs.reserve((size_t)(options.seconds * 120));
+	BenchConsumer secondaryConsumer(&secondaryQueueNs, options.secondaryDelayUs);
+	secondaryConsumer.setDriver(&driver);
+	driver.setSecondaryCallback(&secondaryConsumer);
+	driver.useSecondaryCallback(true);
+	if (options.timeshiftSeconds > 0) {
+		driver.startTimeshift(options.timeshiftPath, options.timeshiftSeconds);
+	}
+
+	StreamParams params = makeStreamParams(result->norm, result->scanType);
+	params.isoTransfers = options.isoTransfers;
+	params.isoPacketsPerRequest = options.isoPackets;
+	params.deinterlaceMode = options.deinterlaceMode;
+	params.denoiseStrength = options.denoiseStrength;
+	params.crop = options.crop;
+	params.scale = options.scale;
+	params.frame.pixelFormat = options.pixelFormat;
+	params.secondary = options.secondary;
+
+	// Viewers connect first so every frame delivered is encoded
+	std::vector<MjpegViewer*> viewers;
+	if (options.mjpegViewers > 0) {
+		if (driver.startMjpegServer(0, nullptr, options.mjpegQuality, options.mjpegMaxFrameRate)) {
+			uint16_t port = driver.getMjpegServer()->getPort();
+			for (uint32_t i = 0; i < options.mjpegViewers; i++) {
+				viewers.push_back(new MjpegViewer(port, (i == 0) ? options.mjpegViewerDelayUs : 0));
+			}
+			while (driver.getMjpegServer()->getClientCount() < options.mjpegViewers) {
+				std::this_thread::sleep_for(std::chrono::milliseconds(1));
+			}
+		} else {
+			fprintf(stderr, "Unable to start the MJPEG server\n");
+		}
+	}
+
+	// Sharing clients connect before the pool is allocated, so they are sent it at once
+	std::vector<ShareViewer*> shareViewers;
+	if (options.shareClients > 0) {
+		char socketName[64];
+		snprintf(socketName, sizeof(socketName), "@usbtv_bench_%d", (int)getpid());
+		if (driver.startFrameSharing(socketName, std::vector<uid_t>())) {
+			for (uint32_t i = 0; i < options.shareClients; i++) {
+				shareViewers.push_back(new ShareViewer(socketName,
+				                                       (i == 0) ? options.shareClientDelayUs : 0));
+			}
+			while (driver.getSharedFramePool()->getClientCount() < options.shareClients) {
+				std::this_thread::sleep_for(std::chrono::milliseconds(1));
+			}
+		} else {
+			fprintf(stderr, "Unable to start frame sharing\n");
+		}
+	}
+
+	driver.setQualityGovernor(options.governor);
+	driver.setChangeDetection(options.changeThreshold, options.suppressUnchanged);
+	driver.setMotionDetection(options.motionSensitivity, options.motionGate);
+	driver.setSignalDetection(options.signal, options.signalIdle);
+	driver.setLumaStatistics(options.lumaStats);
+	driver.setAutoLevel(options.autoLevel);
+	uint32_t restartDroppedFrames = 0;
+	uint32_t restartSuppressedFrames = 0;
+
+	uint64_t cpuStart = processCpuTimeNs();
+	uint64_t wallStart = getSteadyTimeNs();
+	result->started = driver.startStreaming(params);
+	if (result->started) {
+		if (options.recordPath != nullptr &&
+		    !driver.startVideoRecording(options.recordPath, options.recordContainer,
+		                                options.recordPolicy, 0)) {
+			fprintf(stderr, "Unable to record to %s\n", options.recordPath);
+		}
+		if (!options.governor) {
+			std::this_thread::sleep_for(std::chrono::duration<double>(options.seconds));
+		}
+
+		// Restart the stream at each level the governor recommends, as UsbTv does
+		uint64_t endNs = wallStart + (uint64_t)(options.seconds * 1e9);
+		QualityLevel applied = QualityLevel::FULL;
+		while (options.governor && getSteadyTimeNs() < endNs) {
+			std::this_thread::sleep_for(std::chrono::milliseconds(100));
+			QualityLevel level = driver.getQualityGovernor()->getLevel();
+			if (level != applied) {
+				restartDroppedFrames += driver.getDroppedFrameCount();
+				restartSuppressedFrames += driver.getSuppressedFrameCount();
+				driver.stopStreaming();
+				applied = level;
+				if (!driver.startStreaming(degradeParams(params, level))) {
+					fprintf(stderr, "Unable to restart the stream\n");
+					break;
+				}
+			}
+		}
+	}
+	driver.stopVideoRecording();
+	driver.stopStreaming();
+	uint64_t wallNs = getSteadyTimeNs() - wallStart;
+	uint64_t cpuNs = processCpuTimeNs() - cpuStart;
+
+	driver.stopMjpegServer();
+	result->shareDroppedFrames = driver.getSharedFramePool()->getDroppedFrameCount();
+	driver.stopFrameSharing();
+	uint32_t maxShareFrames = 0;
+	for (size_t i = 0; i < shareViewers.size(); i++) {
+		ShareViewer* viewer = shareViewers[i];
+		viewer->join();
+		maxShareFrames = std::max(maxShareFrames, viewer->getFrameCount());
+		if (i > 0 || options.shareClientDelayUs == 0 || shareViewers.size() == 1) {
+			const std::vector<uint64_t>& latencies = viewer->getLatencies();
+			result->shareLatencyNs.insert(result->shareLatencyNs.end(), latencies.begin(),
+			                              latencies.end());
+		}
+		delete viewer;
+	}
+	uint32_t mjpegFrames = 0;
+	uint64_t mjpegBytes = 0;
+	uint32_t maxViewerFrames = 0;
+	for (size_t i = 0; i < viewers.size(); i++) {
+		MjpegViewer* viewer = viewers[i];
+		viewer->join();
+		mjpegFrames += viewer->getFrameCount();
+		mjpegBytes += viewer->getByteCount();
+		maxViewerFrames = std::max(maxViewerFrames, viewer->getFrameCount());
+		// Latency of the slowed viewer is mostly its own delay
+		if (i > 0 || options.mjpegViewerDelayUs == 0 || viewers.size() == 1) {
+			const std::vector<uint64_t>& latencies = viewer->getLatencies();
+			result->mjpegLatencyNs.insert(result->mjpegLatencyNs.end(), latencies.begin(),
+			                              latencies.end());
+		}
+		delete viewer;
+	}
+
+	uint32_t fields = device->getFieldCount();
+	uint64_t fillNs = device->getFillTimeNs();
+	double seconds = wallNs / 1e9;
+	result->fieldsPerSecond = fields / seconds;
+	result->framesPerSecond = consumer.getFrameCount() / seconds;
+	result->cpuUsPerField = (fields > 0 && cpuNs > fillNs) ? ((cpuNs - fillNs) / 1e3) / fields : 0;
+	result->droppedFrames = restartDroppedFrames + driver.getDroppedFrameCount();
+	result->incompleteFrames = driver.getIncompleteFrameCount();
+	result->secondaryFramesPerSecond = secondaryConsumer.getFrameCount() / seconds;
+	result->secondaryDroppedFrames = driver.getSecondaryDroppedFrameCount();
+	result->timeshiftDroppedFrames = driver.getTimeshift()->getDroppedFrameCount();
+	result->recordMegabytesPerSecond = driver.getVideoRecorder()->getWriteRate();
+	result->recordDroppedFrames = driver.getVideoRecorder()->getDroppedFrameCount();
+	result->mjpegFramesPerSecond = maxViewerFrames / seconds;
+	result->mjpegKilobytesPerFrame = (mjpegFrames > 0) ? mjpegBytes / 1024.0 / mjpegFrames : 0;
+	result->shareFramesPerSecond = maxShareFrames / seconds;
+	result->qualityLevel = driver.getQualityGovernor()->getLevel();
+	result->qualityChanges = driver.getQualityGovernor()->getChangeCount();
+	result->suppressedFrames = restartSuppressedFrames + driver.getSuppressedFrameCount();
+	result->motionEvents = consumer.getMotionStartCount();
+	result->signalChanges = driver.getSignalMonitor()->getChangeCount();
+	result->idleFrames = driver.getSignalMonitor()->getIdleFrameCount();
+	result->levelChanges = driver.getAutoLevel()->getChangeCount();
+	result->lumaMin = consumer.getLumaMin();
+	result->lumaMax = consumer.getLumaMax();
+}
+
+static const char* qualityName(QualityLevel level) {
+	switch (level) {
+		case QualityLevel::DISCARD:
+			return "discard";
+		case QualityLevel::HALF_WIDTH:
+			return "half";
+		default:
+			return "full";
+	}
+}
+
+static void printResult(BenchResult* result, bool csv) {
+	if (!result->started) {
+		fprintf(stderr, "%s %s: stream failed to start\n", normName(result->norm),
+		        scanTypeName(result->scanType));
+		return;
+	}
+
+	double us = 1e3;
+	double ms = 1e6;
+	if (csv) {
+		printf("%s,%s,%.1f,%.1f,%.1f,%.1f,%.1f,%.1f,%.1f,%.1f,%.1f,%u,%u,%.1f,%u,%u,%.1f,%u,"
+		       "%.1f,%.1f,%.2f,%.2f,%.1f,%u,%.2f,%.2f,%s,%u,%u,%u,%u,%u,%u,%u,%u\n",
+		       normName(result->norm), scanTypeName(result->scanType),
+		       result->fieldsPerSecond, result->framesPerSecond, result->cpuUsPerField,
+		       percentile(result->urbNs, 50) / us, percentile(result->urbNs, 99) / us,
+		       percentile(result->urbNs, 100) / us,
+		       percentile(result->queueNs, 50) / us, percentile(result->queueNs, 99) / us,
+		       percentile(result->queueNs, 100) / us,
+		       result->droppedFrames, result->incompleteFrames,
+		       result->secondaryFramesPerSecond, result->secondaryDroppedFrames,
+		       result->timeshiftDroppedFrames, result->recordMegabytesPerSecond,
+		       result->recordDroppedFrames, result->mjpegFramesPerSecond,
+		       result->mjpegKilobytesPerFrame, percentile(result->mjpegLatencyNs, 50) / ms,
+		       percentile(result->mjpegLatencyNs, 99) / ms, result->shareFramesPerSecond,
+		       result->shareDroppedFrames, percentile(result->shareLatencyNs, 50) / ms,
+		       percentile(result->shareLatencyNs, 99) / ms, qualityName(result->qualityLevel),
+		       result->qualityChanges, result->suppressedFrames, result->motionEvents,
+		       result->signalChanges, result->idleFrames, result->levelChanges,
+		       result->lumaMin, result->lumaMax);
+	} else {
+		printf("%-5s %-12s %9.1f %9.1f %12.1f %9.1f %9.1f %9.1f %10.1f %10.1f %10.1f %8u %10u "
+		       "%8.1f %11u %10u %8.1f %11u %9.1f %8.1f %9.2f %9.2f %9.1f %13u %9.2f %9.2f "
+		       "%-7s %9u %10u %6u %6u %7u %6u %3u-%-3u\n",
+		       normName(result->norm), scanTypeName(result->scanType),
+		       result->fieldsPerSecond, result->framesPerSecond, result->cpuUsPerField,
+		       percentile(result->urbNs, 50) / us, percentile(result->urbNs, 99) / us,
+		       percentile(result->urbNs, 100) / us,
+		       percentile(result->queueNs, 50) / us, percentile(result->queueNs, 99) / us,
+		       percentile(result->queueNs, 100) / us,
+		       result->droppedFrames, result->incompleteFrames,
+		       result->secondaryFramesPerSecond, result->secondaryDroppedFrames,
+		       result->timeshiftDroppedFrames, result->recordMegabytesPerSecond,
+		       result->recordDroppedFrames, result->mjpegFramesPerSecond,
+		       result->mjpegKilobytesPerFrame, percentile(result->mjpegLatencyNs, 50) / ms,
+		       percentile(result->mjpegLatencyNs, 99) / ms, result->shareFramesPerSecond,
+		       result->shareDroppedFrames, percentile(result->shareLatencyNs, 50) / ms,
+		       percentile(result->shareLatencyNs, 99) / ms, qualityName(result->qualityLevel),
+		       result->qualityChanges, result->suppressedFrames, result->motionEvents,
+		       result->signalChanges, result->idleFrames, result->levelChanges,
+		       result->lumaMin, result->lumaMax);
+	}
+}
+
+static void printUsage(const char* name) {
+	printf("Usage: %s [options]\n"
+	       "  --seconds N         Duration of each run (default 5)\n"
+	       "  --realtime          Deliver packets at the device rate instead of maximum speed\n"
+	       "  --norm ntsc|pal     Run a single norm (default both)\n"
+	       "  --loss P            Probability each packet is dropped\n"
+	       "  --reorder P         Probability each packet is swapped with the next\n"
+	       "  --jitter US         Maximum random delay added to each urb\n"
+	       "  --iso-transfers N   Iso urbs in flight (default %d)\n"
+	       "  --iso-packets N     Iso packets per urb (default %d)\n"
+	       "  --csv               Print machine readable results\n"
+	       "  --min-fields N      Exit with an error if any run sustains fewer fields/s\n"
+	       "  --deinterlace MODE  bob, linear, blend or motion (default motion)\n"
+	       "  --denoise N         Temporal noise reduction strength, 0 to 100 (default 0)\n"
+	       "  --change-threshold N\n"
+	       "                      Flag frames whose regions changed by less than N luma\n"
+	       "                      levels, 0 disables change detection (default 0)\n"
+	       "  --suppress-unchanged\n"
+	       "                      Do not deliver frames flagged as unchanged\n"
+	       "  --motion N          Motion detection sensitivity, 1 to 100, 0 disables motion\n"
+	       "                      detection (default 0)\n"
+	       "  --motion-gate       Only deliver frames while there is motion\n"
+	       "  --signal            Detect the input being unplugged or losing sync\n"
+	       "  --signal-idle       Also stop delivering frames while there is no signal\n"
+	       "  --unplug-period N   Unplug the input for the second half of every N fields\n"
+	       "  --luma-stats        Count a luma histogram of every frame\n"
+	       "  --auto-level        Adjust brightness and contrast from the luma histograms\n"
+	       "  --pattern P         bars, ramp or moving, a box crossing a ramp for half of\n"
+	       "                      every %u fields (default bars)\n"
+	       "  --crop X,Y,W,H      Keep only this region of the full frame\n"
+	       "  --format FORMAT     yuyv or y8 (default yuyv)\n"
+	       "  --scale WxH         Scale frames, a zero dimension keeps the aspect ratio\n"
+	       "  --scale-filter F    bilinear, bicubic or lanczos (default bilinear)\n"
+	       "  --square-pixels     Correct the BT.601 pixel aspect ratio when scaling\n"
+	       "  --secondary WxH     Also produce a secondary stream of this size\n"
+	       "  --secondary-policy P\n"
+	       "                      newest or oldest, the secondary frame dropped when its\n"
+	       "                      consumer falls behind (default oldest)\n"
+	       "  --secondary-delay-ms N\n"
+	       "                      Time the secondary consumer holds each frame\n"
+	       "  --timeshift N       Keep the last N seconds of frames in a timeshift ring\n"
+	       "  --timeshift-path P  Map the timeshift ring from a file instead of memory\n"
+	       "  --record PATH       Record delivered frames to PATH, replaced by each run\n"
+	       "  --record-format F   raw, y4m or avi (default raw)\n"
+	       "  --record-policy P   drop or wait, what the recorder does when storage falls\n"
+	       "                      behind (default drop)\n"
+	       "  --mjpeg-viewers N   Serve an MJPEG stream to N loopback viewers\n"
+	       "  --mjpeg-viewer-delay-ms N\n"
+	       "                      Time the first viewer holds each image\n"
+	       "  --mjpeg-quality N   JPEG quality, 1 to 100 (default %d)\n"
+	       "  --mjpeg-max-fps N   Most frames encoded per second, 0 for no limit (default 0)\n"
+	       "  --share-clients N   Share frames with N clients through shared memory\n"
+	       "  --share-client-delay-ms N\n"
+	       "                      Time the first sharing client holds each frame\n"
+	       "  --consumer-delay-ms N\n"
+	       "                      Time the consumer holds a 720x480 YUYV frame, scaled by\n"
+	       "                      the size of each frame\n"
+	       "  --governor          Let the quality governor lower quality under overload\n"
+	       "  --trace PATH        Write a trace of all runs, Perfetto if PATH ends in\n"
+	       "                      .pftrace, otherwise Chrome JSON\n",
+	       name, USBTV_ISOC_TRANSFERS, USBTV_ISOC_PACKETS_PER_REQUEST,
+	       SYNTHETIC_MOTION_PERIOD, USBTV_JPEG_DEFAULT_QUALITY);
+}
+
+int main(int argc, char** argv) {
+	BenchOptions options;
+	options.seconds = 5.0;
+	options.realtime = false;
+	options.lossRate = 0.0f;
+	options.reorderRate = 0.0f;
+	options.jitterUs = 0;
+	options.isoTransfers = USBTV_ISOC_TRANSFERS;
+	options.isoPackets = USBTV_ISOC_PACKETS_PER_REQUEST;
+	options.csv = false;
+	options.ntsc = true;
+	options.pal = true;
+	options.minFieldsPerSecond = 0;
+	options.tracePath = nullptr;
+	options.deinterlaceMode = DeinterlaceMode::MOTION_ADAPTIVE;
+	options.denoiseStrength = 0;
+	options.changeThreshold = 0;
+	options.suppressUnchanged = false;
+	options.motionSensitivity = 0;
+	options.motionGate = false;
+	options.signal = false;
+	options.signalIdle = false;
+	options.unplugPeriod = 0;
+	options.lumaStats = false;
+	options.autoLevel = false;
+	options.pattern = TestPattern::COLOR_BARS;
+	options.crop = {0, 0, 0, 0};
+	options.scale = {0, 0, ScaleFilter::BILINEAR, false};
+	options.pixelFormat = PixelFormat::YUYV;
+	options.secondary = {0, 0, ScaleFilter::BILINEAR, DropPolicy::DROP_OLDEST};
+	options.secondaryDelayUs = 0;
+	options.timeshiftSeconds = 0;
+	options.timeshiftPath = nullptr;
+	options.recordPath = nullptr;
+	options.recordContainer = VideoContainer::RAW;
+	options.recordPolicy = RecordPolicy::DROP;
+	options.mjpegViewers = 0;
+	options.mjpegViewerDelayUs = 0;
+	options.mjpegQuality = USBTV_JPEG_DEFAULT_QUALITY;
+	options.mjpegMaxFrameRate = 0;
+	options.shareClients = 0;
+	options.shareClientDelayUs = 0;
+	options.consumerDelayUs = 0;
+	options.governor = false;
+
+	for (int i = 1; i < argc; i++) {
+		const char* arg = argv[i];
+		const char* value = (i + 1 < argc) ? argv[i + 1] : nullptr;
+		bool needsValue = true;
+
+		if (strcmp(arg, "--realtime") == 0) {
+			options.realtime = true;
+			needsValue = false;
+		} else if (strcmp(arg, "--csv") == 0) {
+			options.csv = true;
+			needsValue = false;
+		} else if (strcmp(arg, "--square-pixels") == 0) {
+			options.scale.squarePixels = true;
+			needsValue = false;
+		} else if (strcmp(arg, "--governor") == 0) {
+			options.governor = true;
+			needsValue = false;
+		} else if (strcmp(arg, "--suppress-unchanged") == 0) {
+			options.suppressUnchanged = true;
+			needsValue = false;
+		} else if (strcmp(arg, "--motion-gate") == 0) {
+			options.motionGate = true;
+			needsValue = false;
+		} else if (strcmp(arg, "--signal") == 0) {
+			options.signal = true;
+			needsValue = false;
+		} else if (strcmp(arg, "--signal-idle") == 0) {
+			options.signal = true;
+			options.signalIdle = true;
+			needsValue = false;
+		} else if (strcmp(arg, "--luma-stats") == 0) {
+			options.lumaStats = true;
+			needsValue = false;
+		} else if (strcmp(arg, "--auto-level") == 0) {
+			options.autoLevel = true;
+			needsValue = false;
+		} else if (strcmp(arg, "--help") == 0) {
+			printUsage(argv[0]);
+			return 0;
+		} else if (value == nullptr) {
+			fprintf(stderr, "Missing value for %s\n", arg);
+			return 1;
+		} else if (strcmp(arg, "--seconds") == 0) {
+			options.seconds = atof(value);
+		} else if (strcmp(arg, "--norm") == 0) {
+			options.ntsc = (strcmp(value, "ntsc") == 0);
+			options.pal = (strcmp(value, "pal") == 0);
+		} else if (strcmp(arg, "--loss") == 0) {
+			options.lossRate = (float)atof(value);
+		} else if (strcmp(arg, "--reorder") == 0) {
+			options.reorderRate = (float)atof(value);
+		} else if (strcmp(arg, "--jitter") == 0) {
+			options.jitterUs = (uint32_t)atoi(value);
+		} else if (strcmp(arg, "--iso-transfers") == 0) {
+			options.isoTransfers = (uint8_t)atoi(value);
+		} else if (strcmp(arg, "--iso-packets") == 0) {
+			options.isoPackets = (uint8_t)atoi(value);
+		} else if (strcmp(arg, "--min-fields") == 0) {
+			options.minFieldsPerSecond = atof(value);
+		} else if (strcmp(arg, "--deinterlace") == 0) {
+			if (strcmp(value, "bob") == 0) {
+				options.deinterlaceMode = DeinterlaceMode::BOB;
+			} else if (strcmp(value, "linear") == 0) {
+				options.deinterlaceMode = DeinterlaceMode::LINEAR;
+			} else if (strcmp(value, "blend") == 0) {
+				options.deinterlaceMode = DeinterlaceMode::BLEND;
+			} else if (strcmp(value, "motion") == 0) {
+				options.deinterlaceMode = DeinterlaceMode::MOTION_ADAPTIVE;
+			} else {
+				fprintf(stderr, "Unknown deinterlace mode %s\n", value);
+				return 1;
+			}
+		} else if (strcmp(arg, "--denoise") == 0) {
+			int strength = atoi(value);
+			if (strength < 0 || strength > USBTV_DENOISE_MAX_STRENGTH) {
+				fprintf(stderr, "Denoise strength must be 0 to %d\n", USBTV_DENOISE_MAX_STRENGTH);
+				return 1;
+			}
+			options.denoiseStrength = (uint8_t)strength;
+		} else if (strcmp(arg, "--change-threshold") == 0) {
+			int threshold = atoi(value);
+			if (threshold < 0 || threshold > 255) {
+				fprintf(stderr, "Change threshold must be 0 to 255\n");
+				return 1;
+			}
+			options.changeThreshold = (uint8_t)threshold;
+		} else if (strcmp(arg, "--motion") == 0) {
+			int sensitivity = atoi(value);
+			if (sensitivity < 0 || sensitivity > USBTV_MOTION_MAX_SENSITIVITY) {
+				fprintf(stderr, "Motion sensitivity must be 0 to %d\n",
+				        USBTV_MOTION_MAX_SENSITIVITY);
+				return 1;
+			}
+			options.motionSensitivity = (uint8_t)sensitivity;
+		} else if (strcmp(arg, "--unplug-period") == 0) {
+			int period = atoi(value);
+			if (period < 0 || period == 1) {
+				fprintf(stderr, "Unplug period must be 0 or at least 2 fields\n");
+				return 1;
+			}
+			options.unplugPeriod = (uint32_t)period;
+		} else if (strcmp(arg, "--pattern") == 0) {
+			if (strcmp(value, "bars") == 0) {
+				options.pattern = TestPattern::COLOR_BARS;
+			} else if (strcmp(value, "ramp") == 0) {
+				options.pattern = TestPattern::LUMA_RAMP;
+			} else if (strcmp(value, "moving") == 0) {
+				options.pattern = TestPattern::MOVING_BOX;
+			} else {
+				fprintf(stderr, "Unknown pattern %s\n", value);
+				return 1;
+			}
+		} else if (strcmp(arg, "--crop") == 0) {
+			unsigned int x, y, width, height;
+			if (sscanf(value, "%u,%u,%u,%u", &x, &y, &width, &height) != 4) {
+				fprintf(stderr, "Crop must be X,Y,W,H\n");
+				return 1;
+			}
+			options.crop = {(uint16_t)x, (uint16_t)y, (uint16_t)width, (uint16_t)height};
+		} else if (strcmp(arg, "--scale") == 0) {
+			unsigned int width, height;
+			if (sscanf(value, "%ux%u", &width, &height) != 2) {
+				fprintf(stderr, "Scale must be WxH\n");
+				return 1;
+			}
+			options.scale.width = (uint16_t)width;
+			options.scale.height = (uint16_t)height;
+		} else if (strcmp(arg, "--scale-filter") == 0) {
+			if (strcmp(value, "bilinear") == 0) {
+				options.scale.filter = ScaleFilter::BILINEAR;
+			} else if (strcmp(value, "bicubic") == 0) {
+				options.scale.filter = ScaleFilter::BICUBIC;
+			} else if (strcmp(value, "lanczos") == 0) {
+				options.scale.filter = ScaleFilter::LANCZOS;
+			} else {
+				fprintf(stderr, "Unknown scale filter %s\n", value);
+				return 1;
+			}
+		} else if (strcmp(arg, "--secondary") == 0) {
+			unsigned int width, height;
+			if (sscanf(value, "%ux%u", &width, &height) != 2) {
+				fprintf(stderr, "Secondary size must be WxH\n");
+				return 1;
+			}
+			options.secondary.width = (uint16_t)width;
+			options.secondary.height = (uint16_t)height;
+		} else if (strcmp(arg, "--secondary-policy") == 0) {
+			if (strcmp(value, "newest") == 0) {
+				options.secondary.dropPolicy = DropPolicy::DROP_NEWEST;
+			} else if (strcmp(value, "oldest") == 0) {
+				options.secondary.dropPolicy = DropPolicy::DROP_OLDEST;
+			} else {
+				fprintf(stderr, "Unknown secondary drop policy %s\n", value);
+				return 1;
+			}
+		} else if (strcmp(arg, "--secondary-delay-ms") == 0) {
+			options.secondaryDelayUs = (uint32_t)(atof(value) * 1000);
+		} else if (strcmp(arg, "--timeshift") == 0) {
+			int seconds = atoi(value);
+			if (seconds < 0 || seconds > USBTV_TIMESHIFT_MAX_SECONDS) {
+				fprintf(stderr, "Timeshift must be 0 to %d seconds\n", USBTV_TIMESHIFT_MAX_SECONDS);
+				return 1;
+			}
+			options.timeshiftSeconds = (uint16_t)seconds;
+		} else if (strcmp(arg, "--timeshift-path") == 0) {
+			options.timeshiftPath = value;
+		} else if (strcmp(arg, "--record") == 0) {
+			options.recordPath = value;
+		} else if (strcmp(arg, "--record-format") == 0) {
+			if (strcmp(value, "raw") == 0) {
+				options.recordContainer = VideoContainer::RAW;
+			} else if (strcmp(value, "y4m") == 0) {
+				options.recordContainer = VideoContainer::Y4M;
+			} else if (strcmp(value, "avi") == 0) {
+				options.recordContainer = VideoContainer::AVI;
+			} else {
+				fprintf(stderr, "Unknown record format %s\n", value);
+				return 1;
+			}
+		} else if (strcmp(arg, "--record-policy") == 0) {
+			if (strcmp(value, "drop") == 0) {
+				options.recordPolicy = RecordPolicy::DROP;
+			} else if (strcmp(value, "wait") == 0) {
+				options.recordPolicy = RecordPolicy::WAIT;
+			} else {
+				fprintf(stderr, "Unknown record policy %s\n", value);
+				return 1;
+			}
+		} else if (strcmp(arg, "--mjpeg-viewers") == 0) {
+			int viewers = atoi(value);
+			if (viewers < 0 || viewers > USBTV_MJPEG_MAX_CLIENTS) {
+				fprintf(stderr, "MJPEG viewers must be 0 to %d\n", USBTV_MJPEG_MAX_CLIENTS);
+				return 1;
+			}
+			options.mjpegViewers = (uint32_t)viewers;
+		} else if (strcmp(arg, "--mjpeg-viewer-delay-ms") == 0) {
+			options.mjpegViewerDelayUs = (uint32_t)(atof(value) * 1000);
+		} else if (strcmp(arg, "--mjpeg-quality") == 0) {
+			int quality = atoi(value);
+			if (quality < 1 || quality > 100) {
+				fprintf(stderr, "MJPEG quality must be 1 to 100\n");
+				return 1;
+			}
+			options.mjpegQuality = (uint8_t)quality;
+		} else if (strcmp(arg, "--mjpeg-max-fps") == 0) {
+			options.mjpegMaxFrameRate = (uint8_t)atoi(value);
+		} else if (strcmp(arg, "--share-clients") == 0) {
+			int clients = atoi(value);
+			if (clients < 0 || clients > USBTV_SHARED_MAX_CLIENTS) {
+				fprintf(stderr, "Sharing clients must be 0 to %d\n", USBTV_SHARED_MAX_CLIENTS);
+				return 1;
+			}
+			options.shareClients = (uint32_t)clients;
+		} else if (strcmp(arg, "--consumer-delay-ms") == 0) {
+			options.consumerDelayUs = (uint32_t)(atof(value) * 1000);
+		} else if (strcmp(arg, "--share-client-delay-ms") == 0) {
+			options.shareClientDelayUs = (uint32_t)(atof(value) * 1000);
+		} else if (strcmp(arg, "--format") == 0) {
+			if (strcmp(value, "yuyv") == 0) {
+				options.pixelFormat = PixelFormat::YUYV;
+			} else if (strcmp(value, "y8") == 0) {
+				options.pixelFormat = PixelFormat::Y8;
+			} else {
+				fprintf(stderr, "Unknown pixel format %s\n", value);
+				return 1;
+			}
+		} else if (strcmp(arg, "--trace") == 0) {
+			options.tracePath = value;
+		} else {
+			fprintf(stderr, "Unknown option %s\n", arg);
+			printUsage(argv[0]);
+			return 1;
+		}
+
+		if (needsValue) {
+			i++;
+		}
+	}
+
+	if (!options.ntsc && !options.pal) {
+		fprintf(stderr, "Norm must be ntsc or pal\n");
+		return 1;
+	}
+
+	if (options.csv) {
+		printf("norm,scan_type,fields_per_s,frames_per_s,cpu_us_per_field,"
+		       "urb_p50_us,urb_p99_us,urb_max_us,queue_p50_us,queue_p99_us,queue_max_us,"
+		       "dropped_frames,incomplete_frames,secondary_frames_per_s,secondary_dropped,"
+		       "timeshift_dropped,record_mb_per_s,record_dropped,mjpeg_frames_per_s,"
+		       "mjpeg_kb_per_frame,mjpeg_latency_p50_ms,mjpeg_latency_p99_ms,share_frames_per_s,"
+		       "share_dropped,share_latency_p50_ms,share_latency_p99_ms,quality_level,"
+		       "quality_changes,suppressed_frames,motion_events,signal_changes,idle_frames,"
+		       "level_changes,luma_min,luma_max\n");
+	} else {
+		printf("%-5s %-12s %9s %9s %12s %9s %9s %9s %10s %10s %10s %8s %10s %8s %11s %10s %8s %11s "
+		       "%9s %8s %9s %9s %9s %13s %9s %9s %-7s %9s %10s %6s %6s %7s %6s %-7s\n",
+		       "norm", "scan", "fields/s", "frames/s", "cpu_us/field", "urb_p50", "urb_p99",
+		       "urb_max", "queue_p50", "queue_p99", "queue_max", "dropped", "incomplete",
+		       "sec_fps", "sec_dropped", "ts_dropped", "rec_MB/s", "rec_dropped", "mjpeg_fps",
+		       "mjpeg_KB", "mjpeg_p50", "mjpeg_p99", "share_fps", "share_dropped", "share_p50",
+		       "share_p99", "quality", "q_changes", "suppressed", "motion", "signal", "idle",
+		       "levels", "luma");
+	}
+
+	if (options.tracePath != nullptr) {
+		Trace::start(TRACE_DEFAULT_EVENTS_PER_THREAD);
+	}
+
+	const TvNorm norms[] = { TvNorm::NTSC, TvNorm::PAL };
+	const ScanType scanTypes[] = { ScanType::PROGRESSIVE, ScanType::DISCARD, ScanType::INTERLEAVED,
+	                               ScanType::DEINTERLACED };
+	int status = 0;
+
+	for (TvNorm norm : norms) {
+		if ((norm == TvNorm::NTSC && !options.ntsc) || (norm == TvNorm::PAL && !options.pal)) {
+			continue;
+		}
+
+		for (ScanType scanType : scanTypes) {
+			BenchResult result;
+			result.norm = norm;
+			result.scanType = scanType;
+			runBenchmark(options, &result);
+			printResult(&result, options.csv);
+			fflush(stdout);
+
+			if (!result.started || result.fieldsPerSecond < options.minFieldsPerSecond) {
+				status = 1;
+			}
+		}
+	}
+
+	if (options.tracePath != nullptr) {
+		Trace::stop();
+		size_t length = strlen(options.tracePath);
+		bool perfetto = length > 8 && strcmp(options.tracePath + length - 8, ".pftrace") == 0;
+		if (!Trace::dump(options.tracePath, perfetto ? TraceFormat::PERFETTO :
+		                                    TraceFormat::CHROME_JSON)) {
+			status = 1;
+		}
+	}
+
+	return status;
+}
@@ -0,0 +1,640 @@
+// Copyright (C) 2020 Eric Callahan <arksine.code@gmail.com>
+//
+// This file may be distributed under the terms of the GNU GPLv3 license
+//
+// Host regression tests for the frame pipeline, run by ctest.  A SyntheticUsbDevice drives
+// UsbTvDriver through its urb callback with a fixed number of fields, and every frame
+// delivered is checked against the test pattern the device generated:
+//  - frame count, ids and contents for each norm and ScanType
+//  - drop and incomplete counts when chosen packets are lost or reordered
+//  - iso auto-tune settling below the configured transfer count, and restoring it after an
+//    underrun
+//  - smoke coverage of the deinterlacer modes, the scaler, the JPEG encoder and the
+//    timeshift
+//
+// Exits with the number of failed tests.
+//
+
+#include <cstdio>
+#include <cstring>
+#include <functional>
+#include <mutex>
+#include <thread>
+#include <vector>
+#include "UsbTvDriver.h"
+#include "SyntheticUsbDevice.h"
+#include "JpegEncoder.h"
+#include "BenchUtil.h"
+
+#define TEST_FIELDS         40
+#define TEST_TIMEOUT_MS     20000
+
+static uint32_t checkFailures = 0;
+
+#define CHECK(condition, ...) do { \
+	if (!(condition)) { \
+		fprintf(stderr, "%s:%d: %s: ", __FILE__, __LINE__, #condition); \
+		fprintf(stderr, __VA_ARGS__); \
+		fputc('\n', stderr); \
+		checkFailures++; \
+	} \
+} while (0)
+
+struct DeliveredFrame {
+	uint32_t    frameId;
+	uint32_t    flags;
+	uint16_t    width;
+	uint16_t    height;
+	uint32_t    mismatchedLines;    // Lines differing from the test pattern, if checked
+};
+
+typedef std::function<uint32_t(const UsbTvFrame*)> FrameChecker;
+
+// Records each frame delivered and returns it to the pool at once
+class TestConsumer : public FrameCallback {
+private:
+	UsbTvDriver*    _driver;
+	FrameChecker    _checker;
+	std::mutex      _mutex;
+	std::vector<DeliveredFrame> _frames;
+
+public:
+	TestConsumer(FrameChecker checker) {
+		_driver = nullptr;
+		_checker = checker;
+	}
+
+	void setDriver(UsbTvDriver* driver) {
+		_driver = driver;
+	}
+
+	void invoke(UsbTvFrame* frame) override {
+		DeliveredFrame delivered;
+		delivered.frameId = frame->frameId;
+		delivered.flags = frame->flags;
+		delivered.width = frame->params->frameWidth;
+		delivered.height = frame->params->frameHeight;
+		delivered.mismatchedLines = _checker ? _checker(frame) : 0;
+		{
+			std::lock_guard<std::mutex> lock(_mutex);
+			_frames.push_back(delivered);
+		}
+		_driver->clearFrameLock(frame->poolIndex);
+	}
+
+	size_t getFrameCount() {
+		std::lock_guard<std::mutex> lock(_mutex);
+		return _frames.size();
+	}
+
+	const std::vector<DeliveredFrame>& getFrames() {
+		return _frames;
+	}
+};
+
+// Packet of the stream, identified by its field from the start of the stream
+struct PacketRef {
+	uint32_t    field;
+	uint16_t    packetNo;
+};
+
+// Loses and reorders chosen packets of the synthetic stream.  Each iso slot holds three
+// whole packets, so a packet may only be swapped with the one after it in the same slot.
+class ScriptedUsbDevice : public SyntheticUsbDevice {
+private:
+	std::vector<PacketRef>  _drops;
+	std::vector<PacketRef>  _swaps;
+	uint32_t                _dropped;
+	uint32_t                _swapped;
+
+	static bool isListed(const std::vector<PacketRef>& list, const uint8_t* packet) {
+		const __be32* header = (const __be32*)packet;
+		uint32_t field = USBTV_FRAME_ID(header) * 2 + (USBTV_ODD(header) ? 0 : 1);
+		uint32_t packetNo = USBTV_PACKET_NO(header);
+		for (const PacketRef& ref : list) {
+			if (ref.field == field && ref.packetNo == packetNo) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+protected:
+	bool fillIsoUrb(usbdevfs_urb* urb) override {
+		bool more = SyntheticUsbDevice::fillIsoUrb(urb);
+		uint8_t* slot = (uint8_t*)urb->buffer;
+		urb->actual_length = 0;
+		for (int i = 0; i < urb->number_of_packets; i++) {
+			uint32_t count = urb->iso_frame_desc[i].actual_length / USBTV_PACKET_SIZE;
+			uint32_t kept = 0;
+			for (uint32_t j = 0; j < count; j++) {
+				uint8_t* packet = slot + j * USBTV_PACKET_SIZE;
+				if (isListed(_drops, packet)) {
+					_dropped++;
+					continue;
+				}
+				if (kept != j) {
+					memmove(slot + kept * USBTV_PACKET_SIZE, packet, USBTV_PACKET_SIZE);
+				}
+				kept++;
+			}
+
+			for (uint32_t j = 0; j + 1 < kept; j++) {
+				uint8_t* packet = slot + j * USBTV_PACKET_SIZE;
+				if (isListed(_swaps, packet)) {
+					uint8_t held[USBTV_PACKET_SIZE];
+					memcpy(held, packet, USBTV_PACKET_SIZE);
+					memcpy(packet, packet + USBTV_PACKET_SIZE, USBTV_PACKET_SIZE);
+					memcpy(packet + USBTV_PACKET_SIZE, held, USBTV_PACKET_SIZE);
+					_swapped++;
+					j++;
+				}
+			}
+
+			urb->iso_frame_desc[i].actual_length = kept * USBTV_PACKET_SIZE;
+			urb->actual_length += kept * USBTV_PACKET_SIZE;
+			slot += urb->iso_frame_desc[i].length;
+		}
+		return more;
+	}
+
+public:
+	ScriptedUsbDevice(const SyntheticStreamConfig& config, const std::vector<PacketRef>& drops,
+	                  const std::vector<PacketRef>& swaps) : SyntheticUsbDevice(config) {
+		_drops = drops;
+		_swaps = swaps;
+		_dropped = 0;
+		_swapped = 0;
+	}
+
+	~ScriptedUsbDevice() override {
+		// fillIsoUrb is overridden, so the urb thread must stop before this is destroyed
+		if (isUrbThreadRunning()) {
+			stopUrbAsyncRead();
+		}
+	}
+
+	uint32_t getDroppedCount() { return _dropped; }
+	uint32_t getSwappedCount() { return _swapped; }
+};
+
+// Stops delivering urbs for a while once a number of fields has been sent, as a host that
+// stalls the urb thread would
+class StallingUsbDevice : public SyntheticUsbDevice {
+private:
+	uint32_t                _stallField;
+	uint32_t                _stallMs;
+	bool                    _stalled;
+	std::function<void()>   _onStall;
+
+protected:
+	bool fillIsoUrb(usbdevfs_urb* urb) override {
+		if (!_stalled && getFieldCount() >= _stallField) {
+			_stalled = true;
+			if (_onStall) {
+				_onStall();
+			}
+			std::this_thread::sleep_for(std::chrono::milliseconds(_stallMs));
+		}
+		return SyntheticUsbDevice::fillIsoUrb(urb);
+	}
+
+public:
+	StallingUsbDevice(const SyntheticStreamConfig& config, uint32_t stallField,
+	                  uint32_t stallMs, std::function<void()> onStall)
+			: SyntheticUsbDevice(config) {
+		_stallField = stallField;
+		_stallMs = stallMs;
+		_stalled = false;
+		_onStall = onStall;
+	}
+
+	~StallingUsbDevice() override {
+		if (isUrbThreadRunning()) {
+			stopUrbAsyncRead();
+		}
+	}
+};
+
+/**
+ * Returns the payload of one field of the test pattern, as the device generates it
+ */
+static std::vector<uint8_t> generateField(TvNorm norm) {
+	SyntheticStreamConfig config;
+	SyntheticUsbDevice::defaultConfig(&config, norm);
+	config.packetRate = 0;
+	SyntheticUsbDevice device(config);
+
+	uint16_t packetsPerField = device.getPacketsPerField();
+	std::vector<uint8_t> packets((size_t)packetsPerField * USBTV_PACKET_SIZE);
+	device.generatePackets(&packets[0], packetsPerField);
+
+	std::vector<uint8_t> field((size_t)packetsPerField * USBTV_PAYLOAD_SIZE);
+	for (uint16_t i = 0; i < packetsPerField; i++) {
+		memcpy(&field[(size_t)i * USBTV_PAYLOAD_SIZE],
+		       &packets[(size_t)i * USBTV_PACKET_SIZE + sizeof(__be32)], USBTV_PAYLOAD_SIZE);
+	}
+	return field;
+}
+
+/**
+ * Compares each line of a full width YUYV frame with the field line it was built from.
+ * Frames holding both fields have two lines for each field line, as both fields of the
+ * test pattern carry the same image.
+ */
+static FrameChecker exactChecker(const std::vector<uint8_t>* field, bool bothFields) {
+	return [field, bothFields](const UsbTvFrame* frame) -> uint32_t {
+		const uint32_t lineSize = (uint32_t)frame->params->frameWidth * 2;
+		const uint8_t* buffer = (const uint8_t*)frame->buffer;
+		uint32_t mismatched = 0;
+		for (uint32_t line = 0; line < frame->params->frameHeight; line++) {
+			uint32_t fieldLine = bothFields ? line / 2 : line;
+			if (memcmp(buffer + line * lineSize, &(*field)[fieldLine * lineSize], lineSize) != 0) {
+				mismatched++;
+			}
+		}
+		return mismatched;
+	};
+}
+
+/**
+ * Checks the luma at the center of each color bar of a scaled frame against the luma of
+ * the bar in the field, which the filters reproduce away from the bar edges
+ */
+static FrameChecker barCenterChecker(const std::vector<uint8_t>* field) {
+	return [field](const UsbTvFrame* frame) -> uint32_t {
+		const uint32_t width = frame->params->frameWidth;
+		const uint8_t* buffer = (const uint8_t*)frame->buffer;
+		const uint32_t bars = 7;
+		uint32_t mismatched = 0;
+		for (uint32_t line = 0; line < frame->params->frameHeight; line++) {
+			const uint8_t* dst = buffer + line * width * 2;
+			for (uint32_t bar = 0; bar < bars; bar++) {
+				uint32_t sourceX = ((2 * bar + 1) * 720) / (2 * bars);
+				uint32_t x = (sourceX * width) / 720;
+				int expected = (*field)[sourceX * 2];
+				int actual = dst[x * 2];
+				if (actual < expected - 2 || actual > expected + 2) {
+					mismatched++;
+					break;
+				}
+			}
+		}
+		return mismatched;
+	};
+}
+
+struct TestRun {
+	std::vector<DeliveredFrame> frames;
+	uint32_t    droppedFrames;
+	uint32_t    incompleteFrames;
+	bool        finished;
+};
+
+/**
+ * Streams until the device has sent every field and the frames queued are delivered.
+ * The driver is destroyed with the device before returning.
+ */
+static void runStream(SyntheticUsbDevice* device, const StreamParams& params,
+                      FrameChecker checker, TestRun* run,
+                      std::function<void(UsbTvDriver*)> prepare = nullptr,
+                      std::function<void(UsbTvDriver*)> inspect = nullptr) {
+	TestConsumer consumer(checker);
+	UsbTvDriver driver(&consumer, device, BENCH_FRAME_POOL_SIZE, USBTV_VIDEO_EP,
+	                   BENCH_ISO_PACKET_SIZE);
+	consumer.setDriver(&driver);
+	driver.setCallback(true);
+	if (prepare) {
+		prepare(&driver);
+	}
+
+	run->finished = false;
+	if (driver.startStreaming(params)) {
+		uint64_t deadlineNs = getSteadyTimeNs() + (uint64_t)TEST_TIMEOUT_MS * 1000000;
+		while (device->isUrbThreadRunning() && getSteadyTimeNs() < deadlineNs) {
+			std::this_thread::sleep_for(std::chrono::milliseconds(5));
+		}
+		run->finished = !device->isUrbThreadRunning();
+
+		// Let the process thread deliver the frames still queued
+		size_t count;
+		do {
+			count = consumer.getFrameCount();
+			std::this_thread::sleep_for(std::chrono::milliseconds(100));
+		} while (consumer.getFrameCount() != count);
+
+		if (inspect) {
+			inspect(&driver);
+		}
+		driver.stopStreaming();
+	}
+
+	run->frames = consumer.getFrames();
+	run->droppedFrames = driver.getDroppedFrameCount();
+	run->incompleteFrames = driver.getIncompleteFrameCount();
+}
+
+static SyntheticUsbDevice* createDevice(TvNorm norm) {
+	SyntheticStreamConfig config;
+	SyntheticUsbDevice::defaultConfig(&config, norm);
+	config.fieldLimit = TEST_FIELDS;
+	return new SyntheticUsbDevice(config);
+}
+
+static uint32_t countMismatchedFrames(const TestRun& run) {
+	uint32_t count = 0;
+	for (const DeliveredFrame& frame : run.frames) {
+		if (frame.mismatchedLines > 0) {
+			count++;
+		}
+	}
+	return count;
+}
+
+/**
+ * Each ScanType delivers every frame of a clean stream, in order and matching the pattern
+ */
+static void testScanTypes() {
+	const TvNorm norms[] = {TvNorm::NTSC, TvNorm::PAL};
+	const ScanType scanTypes[] = {ScanType::PROGRESSIVE, ScanType::DISCARD,
+	                              ScanType::INTERLEAVED, ScanType::DEINTERLACED};
+
+	for (TvNorm norm : norms) {
+		std::vector<uint8_t> field = generateField(norm);
+		for (ScanType scanType : scanTypes) {
+			const char* name = scanTypeName(scanType);
+			StreamParams params = makeStreamParams(norm, scanType);
+			bool bothFields = (scanType == ScanType::INTERLEAVED ||
+			                   scanType == ScanType::DEINTERLACED);
+			bool everyField = (scanType == ScanType::PROGRESSIVE ||
+			                   scanType == ScanType::DEINTERLACED);
+
+			TestRun run;
+			runStream(createDevice(norm), params, exactChecker(&field, bothFields), &run);
+			CHECK(run.finished, "%s %s: stream did not finish", normName(norm), name);
+
+			uint32_t expectedFrames = everyField ? TEST_FIELDS : TEST_FIELDS / 2;
+			CHECK(run.frames.size() == expectedFrames, "%s %s: %zu frames, expected %u",
+			      normName(norm), name, run.frames.size(), expectedFrames);
+			CHECK(run.droppedFrames == 0 && run.incompleteFrames == 0,
+			      "%s %s: %u dropped, %u incomplete", normName(norm), name, run.droppedFrames,
+			      run.incompleteFrames);
+
+			for (size_t i = 0; i < run.frames.size(); i++) {
+				const DeliveredFrame& frame = run.frames[i];
+				uint32_t expectedId = everyField ? (uint32_t)(i / 2) : (uint32_t)i;
+				CHECK(frame.frameId == expectedId, "%s %s: frame %zu has id %u, expected %u",
+				      normName(norm), name, i, frame.frameId, expectedId);
+				CHECK((frame.flags & FRAME_COMPLETE) != 0, "%s %s: frame %zu flags 0x%x",
+				      normName(norm), name, i, frame.flags);
+				CHECK(frame.width == params.frame.frameWidth &&
+				      frame.height == params.frame.frameHeight,
+				      "%s %s: frame %zu is %ux%u", normName(norm), name, i, frame.width,
+				      frame.height);
+			}
+			CHECK(countMismatchedFrames(run) == 0, "%s %s: %u frames differ from the pattern",
+			      normName(norm), name, countMismatchedFrames(run));
+		}
+	}
+}
+
+/**
+ * Lost and reordered packets are counted once each, and only the fields they belong to
+ * are affected
+ */
+static void testLossAndReorder() {
+	std::vector<uint8_t> field = generateField(TvNorm::NTSC);
+	const uint16_t lastPacket = USBTV_NTSC_PACKETS_PER_FIELD - 1;
+
+	// Field 4 loses a packet but completes, incomplete.  Field 9 loses its last packet and
+	// is dropped when field 10 starts.  Field 14 is reordered within the field, which the
+	// driver places by packet number.  Field 21 completes before its second last packet
+	// arrives, incomplete.
+	std::vector<PacketRef> drops = {{4, 100}, {9, lastPacket}};
+	std::vector<PacketRef> swaps = {{14, 199}, {21, (uint16_t)(lastPacket - 1)}};
+
+	SyntheticStreamConfig config;
+	SyntheticUsbDevice::defaultConfig(&config, TvNorm::NTSC);
+	config.fieldLimit = TEST_FIELDS;
+	ScriptedUsbDevice* device = new ScriptedUsbDevice(config, drops, swaps);
+	uint32_t droppedPackets = 0;
+	uint32_t swappedPackets = 0;
+
+	TestRun run;
+	runStream(device, makeStreamParams(TvNorm::NTSC, ScanType::PROGRESSIVE),
+	          exactChecker(&field, false), &run, nullptr, [&](UsbTvDriver*) {
+		droppedPackets = device->getDroppedCount();
+		swappedPackets = device->getSwappedCount();
+	});
+
+	CHECK(run.finished, "stream did not finish");
+	CHECK(droppedPackets == drops.size() && swappedPackets == swaps.size(),
+	      "%u packets lost and %u swapped, expected %zu and %zu", droppedPackets,
+	      swappedPackets, drops.size(), swaps.size());
+	CHECK(run.frames.size() == TEST_FIELDS - 1, "%zu frames, expected %d", run.frames.size(),
+	      TEST_FIELDS - 1);
+	CHECK(run.droppedFrames == 1, "%u dropped, expected 1", run.droppedFrames);
+	CHECK(run.incompleteFrames == 2, "%u incomplete, expected 2", run.incompleteFrames);
+
+	uint32_t expectedField = 0;
+	for (const DeliveredFrame& frame : run.frames) {
+		if (expectedField == 9) {
+			expectedField++;
+		}
+		bool damaged = (expectedField == 4 || expectedField == 21);
+		CHECK(frame.frameId == expectedField / 2, "field %u has id %u", expectedField,
+		      frame.frameId);
+		if (damaged) {
+			CHECK((frame.flags & FRAME_PARTIAL) != 0, "field %u flags 0x%x", expectedField,
+			      frame.flags);
+		} else {
+			CHECK((frame.flags & FRAME_COMPLETE) != 0, "field %u flags 0x%x", expectedField,
+			      frame.flags);
+			CHECK(frame.mismatchedLines == 0, "field %u differs from the pattern in %u lines",
+			      expectedField, frame.mismatchedLines);
+		}
+		expectedField++;
+	}
+}
+
+/**
+ * Auto-tune retires transfers once the stream has been measured, and restores the
+ * configured count when completions later stall for longer than the tuned queue covers
+ */
+static void testIsoAutoTune() {
+	const uint32_t fieldsPerSecond = USBTV_PACKET_RATE / USBTV_NTSC_PACKETS_PER_FIELD;
+	const uint32_t stallField = (USBTV_ISOC_AUTOTUNE_MS + 500) * fieldsPerSecond / 1000;
+	StreamParams params = makeStreamParams(TvNorm::NTSC, ScanType::PROGRESSIVE);
+	params.isoTransfers = USBTV_ISOC_MAX_TRANSFERS;
+	params.isoAutoTune = true;
+
+	SyntheticStreamConfig config;
+	SyntheticUsbDevice::defaultConfig(&config, TvNorm::NTSC);
+	config.fieldLimit = stallField + fieldsPerSecond / 2;
+
+	UsbTvDriver* streaming = nullptr;
+	int settledTransfers = 0;
+	int finalTransfers = 0;
+	// The stall outlasts the 32ms the configured queue covers
+	StallingUsbDevice* device = new StallingUsbDevice(config, stallField, 100, [&]() {
+		settledTransfers = streaming->getIsoTransferCount();
+	});
+
+	TestRun run;
+	runStream(device, params, nullptr, &run, [&](UsbTvDriver* driver) {
+		streaming = driver;
+	}, [&](UsbTvDriver* driver) {
+		finalTransfers = driver->getIsoTransferCount();
+	});
+
+	CHECK(run.finished, "stream did not finish");
+	CHECK(settledTransfers > 0 && settledTransfers < USBTV_ISOC_MAX_TRANSFERS,
+	      "settled on %d transfers", settledTransfers);
+	CHECK(finalTransfers == USBTV_ISOC_MAX_TRANSFERS, "%d transfers after the stall",
+	      finalTransfers);
+}
+
+/**
+ * Every deinterlacer mode reproduces a picture whose fields are the same
+ */
+static void testDeinterlaceModes() {
+	const DeinterlaceMode modes[] = {DeinterlaceMode::BOB, DeinterlaceMode::LINEAR,
+	                                 DeinterlaceMode::BLEND, DeinterlaceMode::MOTION_ADAPTIVE};
+	std::vector<uint8_t> field = generateField(TvNorm::NTSC);
+
+	for (DeinterlaceMode mode : modes) {
+		StreamParams params = makeStreamParams(TvNorm::NTSC, ScanType::DEINTERLACED);
+		params.deinterlaceMode = mode;
+
+		TestRun run;
+		runStream(createDevice(TvNorm::NTSC), params, exactChecker(&field, true), &run);
+		CHECK(run.frames.size() == TEST_FIELDS, "%s: %zu frames", deinterlaceModeName(mode),
+		      run.frames.size());
+		CHECK(countMismatchedFrames(run) == 0, "%s: %u frames differ from the pattern",
+		      deinterlaceModeName(mode), countMismatchedFrames(run));
+	}
+}
+
+/**
+ * Scaled frames have the size the driver reports for DeviceParams, and keep the bars
+ */
+static void testScaler() {
+	const ScaleFilter filters[] = {ScaleFilter::BILINEAR, ScaleFilter::BICUBIC,
+	                               ScaleFilter::LANCZOS};
+	std::vector<uint8_t> field = generateField(TvNorm::NTSC);
+
+	for (ScaleFilter filter : filters) {
+		StreamParams params = makeStreamParams(TvNorm::NTSC, ScanType::INTERLEAVED);
+		params.scale = {320, 0, filter, false};
+		FrameGeometry geometry = UsbTvDriver::resolveGeometry(params);
+
+		TestRun run;
+		runStream(createDevice(TvNorm::NTSC), params, barCenterChecker(&field), &run);
+		CHECK(run.frames.size() == TEST_FIELDS / 2, "%s: %zu frames", scaleFilterName(filter),
+		      run.frames.size());
+		for (const DeliveredFrame& frame : run.frames) {
+			CHECK(frame.width == geometry.frameWidth && frame.height == geometry.frameHeight,
+			      "%s: frame is %ux%u, expected %ux%u", scaleFilterName(filter), frame.width,
+			      frame.height, geometry.frameWidth, geometry.frameHeight);
+		}
+		CHECK(countMismatchedFrames(run) == 0, "%s: %u frames differ from the bars",
+		      scaleFilterName(filter), countMismatchedFrames(run));
+	}
+}
+
+/**
+ * The encoder produces a complete JPEG image of a frame
+ */
+static void testJpegEncoder() {
+	std::vector<uint8_t> field = generateField(TvNorm::NTSC);
+	const uint16_t width = 720;
+	const uint16_t height = 240;
+	JpegEncoder encoder(PixelFormat::YUYV, width, height, 80, 2);
+
+	std::vector<uint8_t> jpeg;
+	uint32_t size = encoder.encode(&field[0], &jpeg);
+	CHECK(size > 0 && size <= jpeg.size(), "encoded %u bytes", size);
+	if (size >= 4) {
+		CHECK(jpeg[0] == 0xff && jpeg[1] == 0xd8, "missing start of image marker");
+		CHECK(jpeg[size - 2] == 0xff && jpeg[size - 1] == 0xd9, "missing end of image marker");
+	}
+	CHECK(size < (uint32_t)width * height * 2 / 4, "%u bytes is not compressed", size);
+}
+
+/**
+ * The timeshift holds the newest frames delivered, and reads them back unchanged
+ */
+static void testTimeshift() {
+	std::vector<uint8_t> field = generateField(TvNorm::NTSC);
+	StreamParams params = makeStreamParams(TvNorm::NTSC, ScanType::INTERLEAVED);
+	TimeshiftRange range;
+	TimeshiftEntry entry;
+	FrameParams heldParams = {};
+	std::vector<uint8_t> frame;
+	bool held = false;
+	bool read = false;
+
+	TestRun run;
+	runStream(createDevice(TvNorm::NTSC), params, nullptr, &run, [](UsbTvDriver* driver) {
+		CHECK(driver->startTimeshift(nullptr, 2), "unable to start the timeshift");
+	}, [&](UsbTvDriver* driver) {
+		Timeshift* timeshift = driver->getTimeshift();
+		held = timeshift->getRange(&range) && timeshift->getFrameParams(&heldParams);
+		frame.resize(timeshift->getFrameSize());
+		read = held && timeshift->read(range.newest, &frame[0], (uint32_t)frame.size(), &entry);
+	});
+
+	CHECK(held, "the timeshift holds no frames");
+	CHECK(read, "unable to read the newest frame");
+	if (!held || !read) {
+		return;
+	}
+	CHECK(heldParams.frameWidth == params.frame.frameWidth &&
+	      heldParams.frameHeight == params.frame.frameHeight &&
+	      heldParams.scanType == params.frame.scanType &&
+	      heldParams.bufferSize == frame.size(),
+	      "holds %ux%u frames of %u bytes", heldParams.frameWidth, heldParams.frameHeight,
+	      heldParams.bufferSize);
+	CHECK(range.newest - range.oldest + 1 == run.frames.size(),
+	      "holds %llu frames, %zu were delivered",
+	      (unsigned long long)(range.newest - range.oldest + 1), run.frames.size());
+	CHECK(!run.frames.empty() && entry.frameId == run.frames.back().frameId,
+	      "newest frame has id %u", entry.frameId);
+
+	UsbTvFrame readFrame;
+	readFrame.buffer = &frame[0];
+	readFrame.params = &params.frame;
+	CHECK(exactChecker(&field, true)(&readFrame) == 0, "frame read differs from the pattern");
+}
+
+struct TestCase {
+	const char* name;
+	void (*run)();
+};
+
+int main(int argc, char** argv) {
+	const TestCase tests[] = {
+			{"scan_types", testScanTypes},
+			{"loss_and_reorder", testLossAndReorder},
+			{"iso_auto_tune", testIsoAutoTune},
+			{"deinterlace_modes", testDeinterlaceModes},
+			{"scaler", testScaler},
+			{"jpeg_encoder", testJpegEncoder},
+			{"timeshift", testTimeshift},
+	};
+
+	int failed = 0;
+	for (const TestCase& test : tests) {
+		if (argc > 1 && strcmp(argv[1], test.name) != 0) {
+			continue;
+		}
+		uint32_t before = checkFailures;
+		test.run();
+		bool passed = (checkFailures == before);
+		printf("%s %s\n", passed ? "PASS" : "FAIL", test.name);
+		if (!passed) {
+			failed++;
+		}
+	}
+	return failed;
+}
@@ -3,10 +3,23 @@ LOCAL_PATH := $(call my-dir)
 include $(CLEAR_VARS)
 
 LOCAL_MODULE    := usbtv
-LOCAL_SRC_FILES := usbtv.cpp UsbTvDriver.cpp AndroidUsbDevice.cpp
+LOCAL_SRC_FILES := usbtv.cpp deviceparams.cpp UsbTvDriver.cpp AndroidUsbDevice.cpp \
+				   Tracer.cpp WorkerPool.cpp Deinterlacer.cpp Denoiser.cpp \
+				   PixelKernels.cpp Scaler.cpp Timeshift.cpp \
+				   VideoRecorder.cpp JpegEncoder.cpp MjpegServer.cpp \
+				   SharedFramePool.cpp SharedFrameClient.cpp QualityGovernor.cpp \
+				   ChangeDetector.cpp MotionDetector.cpp \
+				   SignalMonitor.cpp ColorControls.cpp AutoLevel.cpp
 LOCAL_CLANG := true
 
 LOCAL_CFLAGS := -std=c++11 -Wall -Werror
+
+# Recording of the raw transfers received, for replay by the host benchmarks
+ifeq ($(USBTV_URB_RECORDING),true)
+LOCAL_SRC_FILES += UrbRecorder.cpp
+LOCAL_CFLAGS += -DUSBTV_URB_RECORDING
+endif
+
 LOCAL_ARM_MODE := arm
 
 LOCAL_LDLIBS := -llog \
@@ -4,7 +4,11 @@
 
 #include "AndroidUsbDevice.h"
 #include "util.h"
+#include "Tracer.h"
 #include <cstdlib>
+#include <cerrno>
+#include <chrono>
+#include <sys/mman.h>
 #include <linux/version.h>
 
 #define PROFILE_VIDEO_URB
@@ -17,6 +21,9 @@ AndroidUsbDevice::AndroidUsbDevice(int fd) {
 	_isoUrbsSubmitted = 0;
 	_bulkUrbsSubmitted = 0;
 	_urbThreadRunning = false;
+#if defined(USBTV_URB_RECORDING)
+	_recorder = nullptr;
+#endif
 	checkCapabilities();
 }
 
@@ -25,11 +32,16 @@ AndroidUsbDevice::~AndroidUsbDevice() {
 		stopUrbAsyncRead();
 	}
 
+	stopRecording();
 	freeBulkUrbs();
 	freeIsoUrbs();
 }
 
 /**
+ *  Kernel versions >= 4.6.0 allow usbfs buffers to be allocated by mmap'ing the device file
+ *  descriptor.  These buffers are DMA capable and shared with user space, so the kernel does
+ *  not need to copy transfer data between its own buffer and ours.
+ *
  *  Kernel versions >= 3.6.0 support Scatter-Gather techniques for bulk transfers using buffers
  *  larger than 16KB as long as the host controller supports it.  This function checks to
  *  the kernel version to see if it is supported.  If not, Bulk Continuation must be used
@@ -45,6 +57,8 @@ void AndroidUsbDevice::checkCapabilities() {
 	if (ret == 0) {
 		_scatterGatherEnabled = (caps & USBDEVFS_CAP_BULK_SCATTER_GATHER) > 0;
 		LOGD("Scatter-Gather enabled status: %s", _scatterGatherEnabled ? "true" : "false");
+		_mmapEnabled = (caps & USBDEVFS_CAP_MMAP) > 0;
+		LOGD("Usbfs mmap enabled status: %s", _mmapEnabled ? "true" : "false");
 		if (!_scatterGatherEnabled) {
 			bool bulkContEnabled = (caps & USBDEVFS_CAP_BULK_CONTINUATION) > 0;
 			if (!bulkContEnabled) {
@@ -54,6 +68,7 @@ void AndroidUsbDevice::checkCapabilities() {
 	} else {
 		LOGD("Device capability query failed");
 		_scatterGatherEnabled = false;
+		_mmapEnabled = false;
 	}
 }
 
@@ -324,6 +339,7 @@ bool AndroidUsbDevice::submitUrb(usbdevfs_urb *urb) {
 		return false;
 	}
 
+	((UsbDevice::UrbContext*)urb->usercontext)->submitted = true;
 	return true;
 
 }
@@ -365,9 +381,10 @@ bool AndroidUsbDevice::submitBulkUrb(uint8_t endpoint, uint32_t bufferSize,
 		uint32_t urbCount = 0;
 		size_t urbSize = sizeof(usbdevfs_urb);
 		usbdevfs_urb* mainUrb = (usbdevfs_urb*)calloc(1, urbSize);
-		mainUrb->buffer = malloc(bufferSize);
 
 		UsbDevice::ContinuousBulkContext* bulkContext = new UsbDevice::ContinuousBulkContext;
+		mainUrb->buffer = allocateBuffer(bufferSize, &bulkContext->mappedBuffer);
+		mainUrb->buffer_length = bufferSize;
 
 		mainUrb->usercontext = bulkContext;
 		mainUrb->type = USBDEVFS_URB_TYPE_BULK;
@@ -391,7 +408,7 @@ bool AndroidUsbDevice::submitBulkUrb(uint8_t endpoint, uint32_t bufferSize,
 
 		uint8_t* curBuf;
 		for (uint8_t i = 0; i < urbCount; i ++) {
-			curBuf = (uint8_t*)mainUrb->buffer + (urbCount * MAX_USBFS_BULK_SIZE);
+			curBuf = (uint8_t*)mainUrb->buffer + (i * MAX_USBFS_BULK_SIZE);
 			usbdevfs_urb* urb = (usbdevfs_urb*) calloc(1, urbSize);
 			urb->type = USBDEVFS_URB_TYPE_BULK;
 			urb->endpoint = endpoint;
@@ -551,6 +568,10 @@ bool AndroidUsbDevice::discardIsoUrbs() {
 	bool success = true;
 
 	for (int i = 0; i < _isoUrbPool.size(); i++) {
+		// Urbs retired by the driver (ie. after iso auto-tune) are not owned by usbdevfs
+		if (!((UsbDevice::UrbContext*)_isoUrbPool[i]->usercontext)->submitted) {
+			continue;
+		}
 
 		ret = ioctl(_fileDescriptor, USBDEVFS_DISCARDURB, _isoUrbPool[i]);
 
@@ -635,7 +656,8 @@ usbdevfs_urb* AndroidUsbDevice::allocateUrb(uint32_t urbSize, uint32_t bufferSiz
 		return nullptr;
 	}
 
-	urb->buffer = malloc(bufferSize);
+	bool mapped;
+	urb->buffer = allocateBuffer(bufferSize, &mapped);
 	if (urb->buffer == nullptr) {
 		free(urb);
 		return nullptr;
@@ -650,14 +672,50 @@ usbdevfs_urb* AndroidUsbDevice::allocateUrb(uint32_t urbSize, uint32_t bufferSiz
 	ctx->callback = callback;
 	urb->usercontext = ctx;
 	ctx->contBulkUrb = nullptr;
+	ctx->mappedBuffer = mapped;
 
 	return urb;
 }
 
+/**
+ * Allocates a transfer buffer.  If the kernel supports it the buffer is mmap'd from usbfs,
+ * allowing the kernel to DMA directly into it.  Otherwise, or if the kernel refuses the
+ * mapping (ie. the usbfs memory limit is reached), it falls back to malloc.
+ *
+ * @param bufferSize    The size of the buffer to allocate
+ * @param mapped        Set to true if the returned buffer was mmap'd
+ * @return  The allocated buffer, or NULL on failure
+ */
+void* AndroidUsbDevice::allocateBuffer(uint32_t bufferSize, bool *mapped) {
+	*mapped = false;
+
+	if (_mmapEnabled) {
+		void* buffer = mmap(nullptr, bufferSize, PROT_READ | PROT_WRITE, MAP_SHARED,
+		                    _fileDescriptor, 0);
+		if (buffer != MAP_FAILED) {
+			*mapped = true;
+			return buffer;
+		}
+		LOGD("Usbfs mmap of %d bytes failed, errno %d.  Falling back to malloc",
+		     bufferSize, errno);
+	}
+
+	return malloc(bufferSize);
+}
+
+void AndroidUsbDevice::freeBuffer(void *buffer, uint32_t bufferSize, bool mapped) {
+	if (mapped) {
+		munmap(buffer, bufferSize);
+	} else {
+		free(buffer);
+	}
+}
+
 void AndroidUsbDevice::deleteUrb(usbdevfs_urb *urb) {
 	if (urb != nullptr) {
-		delete (UsbDevice::UrbContext*) urb->usercontext;
-		free(urb->buffer);
+		UsbDevice::UrbContext* ctx = (UsbDevice::UrbContext*) urb->usercontext;
+		freeBuffer(urb->buffer, (uint32_t)urb->buffer_length, ctx->mappedBuffer);
+		delete ctx;
 		free(urb);
 	}
 }
@@ -675,7 +733,7 @@ void AndroidUsbDevice::deleteContinuousBulkUrb(usbdevfs_urb *continousUrb) {
 	free(context->subUrbs);
 
 	// delete the buffer and continuous urb
-	free(continousUrb->buffer);
+	freeBuffer(continousUrb->buffer, (uint32_t)continousUrb->buffer_length, context->mappedBuffer);
 	free(continousUrb);
 
 	// delete the main urb context;
@@ -759,6 +817,47 @@ void AndroidUsbDevice::stopUrbAsyncRead() {
 	_urbMutex.unlock();
 }
 
+/**
+ * Starts recording completed iso urbs to a file.  Recording may be started and stopped
+ * while streaming.  Only built with USBTV_URB_RECORDING, it is left out of release builds.
+ *
+ * @param path      Path of the recording to create
+ * @param maxBytes  Maximum size of the recording
+ * @return true if recording started
+ */
+bool AndroidUsbDevice::startRecording(const char *path, uint64_t maxBytes) {
+#if defined(USBTV_URB_RECORDING)
+	std::lock_guard<std::mutex> lock(_recorderMutex);
+	if (_recorder != nullptr) {
+		LOGE("Urb recording already in progress");
+		return false;
+	}
+
+	UrbRecorder* recorder = new UrbRecorder;
+	if (!recorder->open(path, maxBytes)) {
+		delete recorder;
+		return false;
+	}
+
+	_recorder = recorder;
+	return true;
+#else
+	LOGE("Urb recording is not built into this library");
+	return false;
+#endif
+}
+
+/**
+ * Stops recording and closes the recording file
+ */
+void AndroidUsbDevice::stopRecording() {
+#if defined(USBTV_URB_RECORDING)
+	std::lock_guard<std::mutex> lock(_recorderMutex);
+	UrbRecorder* recorder = _recorder.exchange(nullptr);
+	delete recorder;
+#endif
+}
+
 /**
  * Synchronous iso read.  The user can choose to return immediately, or block until
  * a request is received.  The request is checked against the user context to be sure
@@ -796,6 +895,8 @@ void AndroidUsbDevice::reapUrbAsync() {
 	uint32_t urbCount = 0;
 #endif
 
+	TRACE_THREAD_NAME("usbtv_reap");
+
 	while (_urbThreadRunning) {
 
 		usbdevfs_urb *urb = nullptr;
@@ -809,6 +910,20 @@ void AndroidUsbDevice::reapUrbAsync() {
 #endif
 
 				UsbDevice::UrbContext* context = (UsbDevice::UrbContext*)urb->usercontext;
+				context->submitted = false;
+				TRACE_SCOPE(URB_REAP, context->poolIndex);
+
+#if defined(USBTV_URB_RECORDING)
+				// The recorder lock is only taken while recording, and is never contended
+				// except when recording stops
+				if (_recorder != nullptr && urb->type == USBDEVFS_URB_TYPE_ISO) {
+					std::lock_guard<std::mutex> lock(_recorderMutex);
+					UrbRecorder* recorder = _recorder;
+					if (recorder != nullptr) {
+						recorder->append(urb, getSteadyTimeNs());
+					}
+				}
+#endif
 				// Execute the callback
 				if (context->contBulkUrb == nullptr) {
 					context->callback(urb);
@@ -7,50 +7,33 @@
 
 #include <sys/ioctl.h>
 #include <cstdint>
-#include <linux/usbdevice_fs.h>
-#include <linux/usb/ch9.h>
 #include <vector>
 #include <thread>
 #include <mutex>
-#include <functional>
+#include <atomic>
+#include "UsbTransport.h"
+#if defined(USBTV_URB_RECORDING)
+#include "UrbRecorder.h"
+#endif
 
 
 #define MAX_USBFS_BULK_RETRIES 5
 #define MAX_USBFS_BULK_SIZE 16384
 
-typedef std::function<void(usbdevfs_urb*)> UrbCallback;
-
-class AndroidUsbDevice;
-
-// TODO: I can add some data to the UrbContext for transfers that are bulk-continuation, then
-// send the last transfer
-namespace UsbDevice {
-	// Context used for the primary continuous bulk transfer.  It contains indices for
-	// the subtransfers used to actually fetch the data
-
-	// TODO: Should I add poolIndex to the below as well?
-	struct ContinuousBulkContext {
-		uint8_t                 subUrbCount;
-		usbdevfs_urb**          subUrbs;
-	};
-
-	struct UrbContext {
-		AndroidUsbDevice*       usbDevice;
-		UrbCallback             callback;
-		uint8_t                 poolIndex;
-		usbdevfs_urb*           contBulkUrb = nullptr;      // used only for continuous URBs
-		bool                    isLast      = true;        // used only for continuous URBs
-	};
-}
+// Added in kernel 4.6, older NDK headers do not define it
+#ifndef USBDEVFS_CAP_MMAP
+#define USBDEVFS_CAP_MMAP 0x20
+#endif
 
 
 // TODO: I should probably add a member to keep device status.  If I recieve -ESHUTDOWN or
 // another unrecoverable event I shouldn't perform any type of USB transaction
-class AndroidUsbDevice {
+class AndroidUsbDevice : public UsbTransport {
 private:
 
 	int     _fileDescriptor;
 	bool    _scatterGatherEnabled;
+	bool    _mmapEnabled;
 
 	uint8_t                     _isoUrbsSubmitted;
 	uint8_t                     _bulkUrbsSubmitted;
@@ -60,6 +43,10 @@ private:
 	std::vector<usbdevfs_urb*>  _isoUrbPool;
 	std::vector<usbdevfs_urb*>  _bulkUrbPool;
 
+#if defined(USBTV_URB_RECORDING)
+	std::atomic<UrbRecorder*>   _recorder;
+	std::mutex                  _recorderMutex;
+#endif
 
 	void checkCapabilities();
 	void reapUrbAsync();
@@ -71,6 +58,8 @@ private:
 	bool submitUrb(usbdevfs_urb *urb);
 
 	usbdevfs_urb* allocateUrb(uint32_t urbSize, uint32_t bufferSize, UrbCallback callback);
+	void* allocateBuffer(uint32_t bufferSize, bool* mapped);
+	void freeBuffer(void* buffer, uint32_t bufferSize, bool mapped);
 
 	void deleteUrb(usbdevfs_urb* urb);
 	void deleteContinuousBulkUrb(usbdevfs_urb* continousUrb);
@@ -82,37 +71,39 @@ public:
 
 
 	AndroidUsbDevice(int fd);
-	~AndroidUsbDevice();
+	~AndroidUsbDevice() override;
 
 	int getFileDescriptor() {
 		return _fileDescriptor;
 	}
 
-	bool isUrbThreadRunning() {
+	bool isUrbThreadRunning() override {
 		return _urbThreadRunning;
 	}
 
-	bool setInterface(unsigned int interface, unsigned int altSetting);
+	bool setInterface(unsigned int interface, unsigned int altSetting) override;
 	bool controlTransfer(uint8_t requestType, uint8_t request, uint16_t value,
 	                     uint16_t index, void* buffer, uint16_t length,
-	                     uint32_t timeout);
+	                     uint32_t timeout) override;
 
 	int bulkTransfer(uint8_t endpoint, unsigned int length,
 	                 unsigned int timeout, void* data);
 
 	bool initIsoUrbs(uint8_t numTransfers, uint8_t endpoint, uint32_t packetLength,
-	                 uint8_t numberOfPackets, UrbCallback callback);
+	                 uint8_t numberOfPackets, UrbCallback callback) override;
 
 
-	bool submitBulkUrb(uint8_t endpoint, uint32_t bufferSize, UrbCallback callback);
+	bool submitBulkUrb(uint8_t endpoint, uint32_t bufferSize, UrbCallback callback) override;
 	bool killUrb(usbdevfs_urb *urb);
 
-	bool resubmitUrb(usbdevfs_urb *urb);
+	bool resubmitUrb(usbdevfs_urb *urb) override;
 
-	bool discardIsoUrbs();
-	bool discardBulkUrbs();
-	bool startUrbAsyncRead();
-	void stopUrbAsyncRead();
+	bool discardIsoUrbs() override;
+	bool discardBulkUrbs() override;
+	bool startUrbAsyncRead() override;
+	void stopUrbAsyncRead() override;
+	bool startRecording(const char* path, uint64_t maxBytes) override;
+	void stopRecording() override;
 	usbdevfs_urb* isoReadSync(bool wait);
 };
 
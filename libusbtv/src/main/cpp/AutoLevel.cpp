@@ -0,0 +1,233 @@
+// Copyright (C) 2020 Eric Callahan <arksine.code@gmail.com>
+//
+// This file may be distributed under the terms of the GNU GPLv3 license
+
+#include <cstdlib>
+#include "AutoLevel.h"
+#include "util.h"
+
+AutoLevel::AutoLevel() {
+	_enabled = false;
+	_resetPending = false;
+	_changes = 0;
+	_usb = nullptr;
+	_controls = nullptr;
+	_thread = nullptr;
+	_running = false;
+	_brightness = 0;
+	_contrast = 0;
+	_requested = 0;
+	_applied = 0;
+	_settleFrames = 0;
+	_seenApplied = 0;
+	clearWindow(0);
+}
+
+AutoLevel::~AutoLevel() {
+	stop();
+}
+
+/**
+ * Starts adjusting the levels.  Adjustments continue from the current brightness and
+ * contrast.
+ *
+ * @param usb       Connection to write the levels with
+ * @param controls  Shadow of the color controls
+ * @return true if running
+ */
+bool AutoLevel::start(UsbTransport *usb, ColorControls *controls) {
+	if (_thread != nullptr) {
+		return true;
+	}
+
+	_usb = usb;
+	_controls = controls;
+	_running = true;
+	_thread = new std::thread(&AutoLevel::threadLoop, this);
+	_resetPending = true;
+	_enabled = true;
+	return true;
+}
+
+/**
+ * Stops adjusting the levels, which keep their last values
+ */
+void AutoLevel::stop() {
+	_enabled = false;
+	if (_thread == nullptr) {
+		return;
+	}
+
+	{
+		std::lock_guard<std::mutex> lock(_requestMutex);
+		_running = false;
+	}
+	_requestCondition.notify_one();
+	_thread->join();
+	delete _thread;
+	_thread = nullptr;
+	LOGD("Auto level stopped, %d adjustments", _changes.load());
+}
+
+void AutoLevel::clearWindow(uint64_t nowNs) {
+	memset(_window, 0, sizeof(_window));
+	_windowStartNs = nowNs;
+	_windowFrames = 0;
+}
+
+/**
+ * Called on the urb thread for each frame with luma statistics
+ *
+ * @param stats     The frame's statistics
+ * @param nowNs     Steady clock time the frame was completed
+ */
+void AutoLevel::onFrame(const LumaStats *stats, uint64_t nowNs) {
+	if (!_enabled.load(std::memory_order_relaxed)) {
+		return;
+	}
+
+	if (_resetPending.exchange(false)) {
+		{
+			std::lock_guard<std::mutex> lock(_requestMutex);
+			_requested = _applied.load(std::memory_order_acquire);
+		}
+		_seenApplied = _requested;
+		_settleFrames = 0;
+		clearWindow(nowNs);
+	}
+
+	uint32_t applied = _applied.load(std::memory_order_acquire);
+	if (applied != _requested) {
+		// An adjustment is in flight
+		return;
+	}
+	if (applied != _seenApplied) {
+		_seenApplied = applied;
+		_settleFrames = USBTV_AUTOLEVEL_SETTLE_FRAMES;
+	}
+	if (_settleFrames > 0) {
+		// The frame may have been captured before the adjustment took effect
+		_settleFrames--;
+		clearWindow(nowNs);
+		return;
+	}
+
+	if (stats->pixels == 0) {
+		return;
+	}
+	for (uint32_t bin = 0; bin < USBTV_LUMA_BINS; bin++) {
+		_window[bin] += stats->histogram[bin];
+	}
+	_windowFrames++;
+
+	if (nowNs - _windowStartNs >= (uint64_t)USBTV_AUTOLEVEL_INTERVAL_MS * 1000000) {
+		judgeWindow();
+		clearWindow(nowNs);
+	}
+}
+
+static int clampStep(float step) {
+	if (step > USBTV_AUTOLEVEL_MAX_STEP) {
+		return USBTV_AUTOLEVEL_MAX_STEP;
+	} else if (step < -USBTV_AUTOLEVEL_MAX_STEP) {
+		return -USBTV_AUTOLEVEL_MAX_STEP;
+	}
+	return (int)step;
+}
+
+static int clampControl(ColorControl control, int value) {
+	const ColorControlRange& range = COLOR_CONTROL_RANGES[(int)control];
+	return (value < range.min) ? range.min : ((value > range.max) ? range.max : value);
+}
+
+void AutoLevel::judgeWindow() {
+	uint64_t total = 0;
+	for (uint32_t bin = 0; bin < USBTV_LUMA_BINS; bin++) {
+		total += _window[bin];
+	}
+	if (total == 0) {
+		return;
+	}
+
+	uint64_t clip = total * USBTV_AUTOLEVEL_CLIP_PERCENT / 100;
+	uint64_t count = 0;
+	int low = 0;
+	while (low < USBTV_LUMA_BINS - 1 && (count += _window[low]) <= clip) {
+		low++;
+	}
+	count = 0;
+	int high = USBTV_LUMA_BINS - 1;
+	while (high > low && (count += _window[high]) <= clip) {
+		high--;
+	}
+
+	if (high - low < USBTV_AUTOLEVEL_MIN_SPREAD) {
+		return;
+	}
+	if (abs(low - USBTV_AUTOLEVEL_BLACK) <= USBTV_AUTOLEVEL_DEADBAND &&
+	    abs(high - USBTV_AUTOLEVEL_WHITE) <= USBTV_AUTOLEVEL_DEADBAND) {
+		return;
+	}
+
+	int brightness = _controls->get(ColorControl::BRIGHTNESS);
+	int contrast = _controls->get(ColorControl::CONTRAST);
+	if (contrast == 0) {
+		return;
+	}
+
+	// Contrast scales the levels about mid grey
+	float gain = (float)(USBTV_AUTOLEVEL_WHITE - USBTV_AUTOLEVEL_BLACK) / (float)(high - low);
+	int newContrast = clampControl(ColorControl::CONTRAST,
+	                               contrast + clampStep(contrast * (gain - 1.0f) / 2));
+
+	float middle = 128.0f + ((low + high) / 2.0f - 128.0f) * newContrast / contrast;
+	float error = (USBTV_AUTOLEVEL_BLACK + USBTV_AUTOLEVEL_WHITE) / 2.0f - middle;
+	int newBrightness = clampControl(ColorControl::BRIGHTNESS,
+	                                 brightness + clampStep(error *
+	                                 USBTV_AUTOLEVEL_BRIGHTNESS_PER_LEVEL / 2));
+
+	if (newBrightness != brightness || newContrast != contrast) {
+		LOGD("Auto level: luma %d-%d over %d frames, brightness %d -> %d, contrast %d -> %d",
+		     low, high, _windowFrames, brightness, newBrightness, contrast, newContrast);
+		post(newBrightness, newContrast);
+	}
+}
+
+/**
+ * Hands new levels to the auto level thread.  The mutex is only held by the thread while it
+ * takes a request, never across a transfer.
+ */
+void AutoLevel::post(int brightness, int contrast) {
+	{
+		std::lock_guard<std::mutex> lock(_requestMutex);
+		_brightness = brightness;
+		_contrast = contrast;
+		_requested++;
+	}
+	_requestCondition.notify_one();
+}
+
+void AutoLevel::threadLoop() {
+	while (true) {
+		int brightness;
+		int contrast;
+		uint32_t request;
+		{
+			std::unique_lock<std::mutex> lock(_requestMutex);
+			_requestCondition.wait(lock, [this] {
+				return _requested != _applied.load(std::memory_order_relaxed) || !_running;
+			});
+			if (!_running) {
+				break;
+			}
+			brightness = _brightness;
+			contrast = _contrast;
+			request = _requested;
+		}
+
+		if (_controls->setLevels(_usb, brightness, contrast)) {
+			_changes++;
+		}
+		_applied.store(request, std::memory_order_release);
+	}
+}
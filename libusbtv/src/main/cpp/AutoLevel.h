@@ -0,0 +1,91 @@
+// Copyright (C) 2020 Eric Callahan <arksine.code@gmail.com>
+//
+// This file may be distributed under the terms of the GNU GPLv3 license
+//
+// Closed loop auto level.  The urb thread adds the luma histogram of each frame captured to a
+// window, and every USBTV_AUTOLEVEL_INTERVAL_MS judges it.  The window's darkest and
+// brightest USBTV_AUTOLEVEL_CLIP_PERCENT of pixels are set aside, and the levels between
+// are moved towards the video range, USBTV_AUTOLEVEL_BLACK to USBTV_AUTOLEVEL_WHITE:
+//
+//  - contrast is scaled by the ratio of the spread wanted to the spread found
+//  - brightness moves the middle of the levels, as they would be at the new contrast, to the
+//    middle of the video range, at an estimated USBTV_AUTOLEVEL_BRIGHTNESS_PER_LEVEL
+//
+// Each adjustment only goes half way and is limited to USBTV_AUTOLEVEL_MAX_STEP, as the
+// device's response is not known exactly.  Nothing changes while both ends are within
+// USBTV_AUTOLEVEL_DEADBAND, or when the picture is too flat to judge.
+//
+// The urb thread only posts the new levels.  The control transfer is made on the auto
+// level's own thread, and frames captured before it completes are left out of the next
+// window, so there is at most one adjustment in flight.
+//
+
+#ifndef USBTV007_ANDROID_AUTOLEVEL_H
+#define USBTV007_ANDROID_AUTOLEVEL_H
+
+#include <atomic>
+#include <condition_variable>
+#include <cstdint>
+#include <mutex>
+#include <thread>
+#include "usbtv_definitions.h"
+#include "ColorControls.h"
+
+#define USBTV_AUTOLEVEL_INTERVAL_MS             250
+#define USBTV_AUTOLEVEL_SETTLE_FRAMES           2       // Left out after an adjustment
+#define USBTV_AUTOLEVEL_CLIP_PERCENT            1
+#define USBTV_AUTOLEVEL_BLACK                   16
+#define USBTV_AUTOLEVEL_WHITE                   235
+#define USBTV_AUTOLEVEL_DEADBAND                6       // Luma levels
+#define USBTV_AUTOLEVEL_MIN_SPREAD              24      // Luma levels, flatter is left alone
+#define USBTV_AUTOLEVEL_BRIGHTNESS_PER_LEVEL    4
+#define USBTV_AUTOLEVEL_MAX_STEP                64      // Brightness or contrast steps
+
+class AutoLevel {
+private:
+	std::atomic<bool>       _enabled;
+	std::atomic<bool>       _resetPending;
+	std::atomic<uint32_t>   _changes;
+	UsbTransport*           _usb;
+	ColorControls*          _controls;
+
+	// Levels posted by the urb thread for the auto level thread to write.  The request
+	// count is only advanced by the urb thread and the applied count by the auto level
+	// thread, they differ while an adjustment is in flight.
+	std::mutex              _requestMutex;
+	std::condition_variable _requestCondition;
+	std::thread*            _thread;
+	bool                    _running;
+	int                     _brightness;
+	int                     _contrast;
+	uint32_t                _requested;
+	std::atomic<uint32_t>   _applied;
+
+	// Only used on the urb thread
+	uint32_t    _window[USBTV_LUMA_BINS];
+	uint64_t    _windowStartNs;
+	uint32_t    _windowFrames;
+	uint32_t    _settleFrames;
+	uint32_t    _seenApplied;
+
+	void clearWindow(uint64_t nowNs);
+	void judgeWindow();
+	void post(int brightness, int contrast);
+	void threadLoop();
+
+public:
+	AutoLevel();
+	~AutoLevel();
+
+	bool start(UsbTransport* usb, ColorControls* controls);
+	void stop();
+	bool isEnabled() { return _enabled.load(std::memory_order_relaxed); }
+	void restart() { _resetPending = true; }
+
+	void onFrame(const LumaStats* stats, uint64_t nowNs);
+
+	uint32_t getChangeCount() { return _changes.load(std::memory_order_relaxed); }
+};
+
+
+#endif //USBTV007_ANDROID_AUTOLEVEL_H
@@ -0,0 +1,105 @@
+// Copyright (C) 2020 Eric Callahan <arksine.code@gmail.com>
+//
+// This file may be distributed under the terms of the GNU GPLv3 license
+
+#include "ChangeDetector.h"
+#include "PixelKernels.h"
+#include <cstring>
+
+#define FNV_OFFSET_BASIS    0xcbf29ce484222325ULL
+#define FNV_PRIME           0x100000001b3ULL
+
+/**
+ * @param width         Width of the frames compared, in pixels
+ * @param height        Lines in the frames compared, ie. in one field when fields are compared
+ * @param pixelFormat   Format of the frames compared
+ */
+ChangeDetector::ChangeDetector(uint16_t width, uint16_t height, PixelFormat pixelFormat) {
+	_width = width;
+	_height = height;
+	_pixelFormat = pixelFormat;
+
+	for (uint32_t col = 0; col <= USBTV_CHANGE_COLUMNS; col++) {
+		_columnStart[col] = (uint16_t)((uint32_t)width * col / USBTV_CHANGE_COLUMNS);
+	}
+	for (uint32_t row = 0; row <= USBTV_CHANGE_ROWS; row++) {
+		_rowStart[row] = (uint16_t)((uint32_t)height * row / USBTV_CHANGE_ROWS);
+	}
+
+	for (uint32_t row = 0; row < USBTV_CHANGE_ROWS; row++) {
+		uint32_t lines = 0;
+		for (uint32_t line = _rowStart[row]; line < _rowStart[row + 1]; line++) {
+			if (line % USBTV_CHANGE_LINE_STEP == 0) {
+				lines++;
+			}
+		}
+		for (uint32_t col = 0; col < USBTV_CHANGE_COLUMNS; col++) {
+			_cellSamples[row * USBTV_CHANGE_COLUMNS + col] =
+					lines * (uint32_t)(_columnStart[col + 1] - _columnStart[col]);
+		}
+	}
+
+	reset();
+}
+
+/**
+ * Forgets the previous frames, the next frame of each slot is reported as changed
+ */
+void ChangeDetector::reset() {
+	memset(_meansValid, 0, sizeof(_meansValid));
+}
+
+/**
+ * Compares a frame with the last changed frame of the same slot
+ *
+ * @param buffer    The frame
+ * @param slot      History slot, ie. the field parity
+ * @param threshold Largest change in a cell's mean luma that is ignored
+ * @param signature Set to the frame's signature
+ * @return true if the frame changed, or there is no previous frame to compare with
+ */
+bool ChangeDetector::process(const uint8_t *buffer, uint8_t slot, uint8_t threshold,
+                             uint64_t *signature) {
+	uint32_t sums[USBTV_CHANGE_CELLS];
+	memset(sums, 0, sizeof(sums));
+
+	uint32_t bpp = bytesPerPixel(_pixelFormat);
+	uint32_t stride = (uint32_t)_width * bpp;
+	for (uint32_t row = 0; row < USBTV_CHANGE_ROWS; row++) {
+		uint32_t* rowSums = sums + row * USBTV_CHANGE_COLUMNS;
+		uint32_t first = (_rowStart[row] + USBTV_CHANGE_LINE_STEP - 1) / USBTV_CHANGE_LINE_STEP *
+		                 USBTV_CHANGE_LINE_STEP;
+		for (uint32_t line = first; line < _rowStart[row + 1]; line += USBTV_CHANGE_LINE_STEP) {
+			const uint8_t* src = buffer + line * stride;
+			for (uint32_t col = 0; col < USBTV_CHANGE_COLUMNS; col++) {
+				uint32_t pixels = (uint32_t)(_columnStart[col + 1] - _columnStart[col]);
+				if (_pixelFormat == PixelFormat::Y8) {
+					rowSums[col] += sumBytes(src + _columnStart[col], pixels);
+				} else {
+					rowSums[col] += sumLumaYuyv(src + _columnStart[col] * 2, pixels);
+				}
+			}
+		}
+	}
+
+	uint8_t means[USBTV_CHANGE_CELLS];
+	bool changed = !_meansValid[slot];
+	uint64_t hash = FNV_OFFSET_BASIS;
+	for (uint32_t i = 0; i < USBTV_CHANGE_CELLS; i++) {
+		uint32_t samples = _cellSamples[i];
+		means[i] = (uint8_t)((samples > 0) ? (sums[i] + samples / 2) / samples : 0);
+		int diff = (int)means[i] - (int)_means[slot][i];
+		if (diff > threshold || diff < -threshold) {
+			changed = true;
+		}
+		hash = (hash ^ means[i]) * FNV_PRIME;
+	}
+
+	// Unchanged frames are not kept, so a slow drift is still caught once it adds up
+	if (changed) {
+		memcpy(_means[slot], means, sizeof(means));
+	}
+	_meansValid[slot] = true;
+	*signature = hash;
+	return changed;
+}
@@ -0,0 +1,48 @@
+// Copyright (C) 2020 Eric Callahan <arksine.code@gmail.com>
+//
+// This file may be distributed under the terms of the GNU GPLv3 license
+//
+// Detects frames that repeat the previous frame, such as a parked camera or a no-signal
+// screen.  The frame is divided into a grid of cells and the mean luma of each cell is
+// taken from every USBTV_CHANGE_LINE_STEP line.  A frame is unchanged when no cell mean
+// moved by more than the threshold since the last changed frame of the same slot, so fields
+// of each parity are only compared with each other.  Averaging a cell hides sensor noise that
+// a per pixel comparison would report as change.
+//
+// The signature is a hash of the cell means, equal signatures mean the frames look alike
+// to the detector.  Both are cheap next to the stages that follow.
+//
+
+#ifndef USBTV007_ANDROID_CHANGEDETECTOR_H
+#define USBTV007_ANDROID_CHANGEDETECTOR_H
+
+#include <cstdint>
+#include "usbtv_definitions.h"
+
+#define USBTV_CHANGE_COLUMNS        16
+#define USBTV_CHANGE_ROWS           8
+#define USBTV_CHANGE_CELLS          (USBTV_CHANGE_COLUMNS * USBTV_CHANGE_ROWS)
+#define USBTV_CHANGE_LINE_STEP      4
+#define USBTV_CHANGE_SLOTS          2
+#define USBTV_CHANGE_KEEPALIVE_MS   1000    // Longest gap between frames delivered while suppressing
+
+class ChangeDetector {
+private:
+	uint16_t    _width;
+	uint16_t    _height;
+	PixelFormat _pixelFormat;
+	uint16_t    _columnStart[USBTV_CHANGE_COLUMNS + 1];
+	uint16_t    _rowStart[USBTV_CHANGE_ROWS + 1];
+	uint32_t    _cellSamples[USBTV_CHANGE_CELLS];
+	uint8_t     _means[USBTV_CHANGE_SLOTS][USBTV_CHANGE_CELLS];
+	bool        _meansValid[USBTV_CHANGE_SLOTS];
+
+public:
+	ChangeDetector(uint16_t width, uint16_t height, PixelFormat pixelFormat);
+
+	void reset();
+	bool process(const uint8_t* buffer, uint8_t slot, uint8_t threshold, uint64_t* signature);
+};
+
+
+#endif //USBTV007_ANDROID_CHANGEDETECTOR_H
@@ -0,0 +1,126 @@
+// Copyright (C) 2020 Eric Callahan <arksine.code@gmail.com>
+//
+// This file may be distributed under the terms of the GNU GPLv3 license
+
+#include <linux/usb/ch9.h>
+#include "ColorControls.h"
+#include "util.h"
+
+ColorControls::ColorControls() {
+	for (int i = 0; i < USBTV_COLOR_CONTROLS; i++) {
+		_values[i] = COLOR_CONTROL_RANGES[i].defaultValue;
+	}
+}
+
+/**
+ * Returns true if the control exists and the value is within its range
+ */
+bool ColorControls::isValid(int control, int value) {
+	if (control < 0 || control >= USBTV_COLOR_CONTROLS) {
+		return false;
+	}
+	return value >= COLOR_CONTROL_RANGES[control].min &&
+	       value <= COLOR_CONTROL_RANGES[control].max;
+}
+
+/**
+ * Sets a control in the shadow and writes it to the device
+ *
+ * @param usb       Connection to the device, NULL to only set the shadow
+ * @param control   The control to set
+ * @param value     A value within the control's range
+ * @return true if the value was valid and written
+ */
+bool ColorControls::set(UsbTransport *usb, ColorControl control, int value) {
+	if (!isValid((int)control, value)) {
+		LOGI("Invalid value %d for color control %d", value, (int)control);
+		return false;
+	}
+
+	std::lock_guard<std::mutex> lock(_writeMutex);
+	_values[(int)control] = (int16_t)value;
+	return (usb == nullptr) || write(usb, control);
+}
+
+/**
+ * Sets brightness and contrast with a single write, as they share registers
+ */
+bool ColorControls::setLevels(UsbTransport *usb, int brightness, int contrast) {
+	if (!isValid((int)ColorControl::BRIGHTNESS, brightness) ||
+	    !isValid((int)ColorControl::CONTRAST, contrast)) {
+		return false;
+	}
+
+	std::lock_guard<std::mutex> lock(_writeMutex);
+	_values[(int)ColorControl::BRIGHTNESS] = (int16_t)brightness;
+	_values[(int)ColorControl::CONTRAST] = (int16_t)contrast;
+	return (usb == nullptr) || write(usb, ColorControl::BRIGHTNESS);
+}
+
+/**
+ * Writes every control from the shadow, after the device's registers were reinitialized
+ */
+bool ColorControls::apply(UsbTransport *usb) {
+	std::lock_guard<std::mutex> lock(_writeMutex);
+	return write(usb, ColorControl::BRIGHTNESS) &&
+	       write(usb, ColorControl::SATURATION) &&
+	       write(usb, ColorControl::HUE) &&
+	       write(usb, ColorControl::SHARPNESS);
+}
+
+/**
+ * Encodes a control's registers from the shadow and writes them.  Must be called with
+ * _writeMutex held.
+ */
+bool ColorControls::write(UsbTransport *usb, ColorControl control) {
+	uint8_t data[3];
+	uint16_t index;
+	uint16_t size;
+
+	switch (control) {
+		case ColorControl::BRIGHTNESS:
+		case ColorControl::CONTRAST: {
+			int brightness = get(ColorControl::BRIGHTNESS);
+			int contrast = get(ColorControl::CONTRAST);
+			index = USBTV_LEVELS_REG;
+			data[0] = (uint8_t)(((contrast >> 4) & 0xf0) | ((brightness >> 8) & 0x0f));
+			data[1] = (uint8_t)(contrast & 0xff);
+			data[2] = (uint8_t)(brightness & 0xff);
+			size = 3;
+			break;
+		}
+		case ColorControl::SATURATION: {
+			int saturation = get(ColorControl::SATURATION);
+			index = USBTV_SATURATION_REG;
+			data[0] = (uint8_t)(saturation >> 8);
+			data[1] = (uint8_t)(saturation & 0xff);
+			size = 2;
+			break;
+		}
+		case ColorControl::HUE: {
+			int hue = get(ColorControl::HUE);
+			int magnitude = (hue > 0) ? hue : -hue;
+			index = USBTV_HUE_REG;
+			data[0] = (uint8_t)(((hue > 0) ? 0x92 : 0x82) + (magnitude >> 8));
+			data[1] = (uint8_t)(magnitude & 0xff);
+			size = 2;
+			break;
+		}
+		case ColorControl::SHARPNESS:
+			index = USBTV_SHARPNESS_REG;
+			data[0] = 0;
+			data[1] = (uint8_t)get(ColorControl::SHARPNESS);
+			size = 2;
+			break;
+		default:
+			return false;
+	}
+
+	if (!usb->controlTransfer(USB_DIR_OUT | USB_TYPE_VENDOR | USB_RECIP_DEVICE,
+	                          USBTV_CONTROL_REG, 0, index, data, size,
+	                          USBTV_COLOR_CONTROL_TIMEOUT_MS)) {
+		LOGI("Unable to write color control %d", (int)control);
+		return false;
+	}
+	return true;
+}
@@ -0,0 +1,77 @@
+// Copyright (C) 2020 Eric Callahan <arksine.code@gmail.com>
+//
+// This file may be distributed under the terms of the GNU GPLv3 license
+//
+// The USBTV007 color controls, programmed as the Linux usbtv driver does.  Every value is
+// kept in a shadow, so reading a control never goes to the device.  Values are written when
+// set, and again whenever streaming starts or the input changes, as VIDEO_INIT and the input
+// registers overwrite them.  Brightness and contrast share three interleaved registers,
+// which are written together from the shadow rather than read back and merged:
+//
+//  - 0x0244    Contrast bits 8-11 in the high nibble, brightness bits 8-11 in the low
+//  - 0x0245    Contrast bits 0-7
+//  - 0x0246    Brightness bits 0-7
+//
+// Saturation is 16 bits at 0x0242, hue a sign and magnitude at 0x0240 and sharpness the
+// second byte at 0x0239.  The defaults are the values VIDEO_INIT and the input registers
+// leave programmed, so the shadow is right before any control has been set.
+//
+
+#ifndef USBTV007_ANDROID_COLORCONTROLS_H
+#define USBTV007_ANDROID_COLORCONTROLS_H
+
+#include <atomic>
+#include <cstdint>
+#include <mutex>
+#include "usbtv_definitions.h"
+#include "UsbTransport.h"
+
+#define USBTV_COLOR_CONTROLS            5
+#define USBTV_COLOR_CONTROL_TIMEOUT_MS  500
+
+#define USBTV_HUE_REG                   (USBTV_BASE + 0x0240)
+#define USBTV_SATURATION_REG            (USBTV_BASE + 0x0242)
+#define USBTV_LEVELS_REG                (USBTV_BASE + 0x0244)   // Brightness and contrast
+#define USBTV_SHARPNESS_REG             (USBTV_BASE + 0x0239)
+
+struct ColorControlRange {
+	int16_t     min;
+	int16_t     max;
+	int16_t     defaultValue;
+};
+
+// Indexed by ColorControl
+static const ColorControlRange COLOR_CONTROL_RANGES[USBTV_COLOR_CONTROLS] = {
+		{ 0, 0x3ff, 0x200 },        // BRIGHTNESS
+		{ 0, 0x3ff, 0x190 },        // CONTRAST
+		{ 0, 0x3ff, 0x280 },        // SATURATION
+		{ -0xdff, 0xdff, 0 },       // HUE
+		{ 0, 0xff, 0x60 }           // SHARPNESS
+};
+
+class ColorControls {
+private:
+	std::atomic<int16_t>    _values[USBTV_COLOR_CONTROLS];
+
+	// Held for each write, which may come from the Java handler thread or the auto level
+	// thread.  Never taken on the urb or process threads.
+	std::mutex              _writeMutex;
+
+	bool write(UsbTransport* usb, ColorControl control);
+
+public:
+	ColorControls();
+
+	static bool isValid(int control, int value);
+
+	bool set(UsbTransport* usb, ColorControl control, int value);
+	bool setLevels(UsbTransport* usb, int brightness, int contrast);
+	bool apply(UsbTransport* usb);
+
+	int get(ColorControl control) {
+		return _values[(int)control].load(std::memory_order_relaxed);
+	}
+};
+
+
+#endif //USBTV007_ANDROID_COLORCONTROLS_H
@@ -0,0 +1,252 @@
+// Copyright (C) 2020 Eric Callahan <arksine.code@gmail.com>
+//
+// This file may be distributed under the terms of the GNU GPLv3 license
+
+#include "Deinterlacer.h"
+#include <cstring>
+
+#if defined(__ARM_NEON) || defined(__ARM_NEON__)
+#include <arm_neon.h>
+#define DEINTERLACE_NEON
+#elif defined(__SSE2__)
+#include <emmintrin.h>
+#define DEINTERLACE_SSE2
+#endif
+
+/*
+ * Row kernels.  Each operates on every byte of a line independently, so YUYV luma and
+ * chroma and Y8 frames are treated alike.  Averages round up, matching vrhadd and pavgb.
+ */
+
+static inline uint8_t avgByte(uint8_t a, uint8_t b) {
+	return (uint8_t)((a + b + 1) >> 1);
+}
+
+static inline uint8_t absDiffByte(uint8_t a, uint8_t b) {
+	return (uint8_t)((a > b) ? a - b : b - a);
+}
+
+// dst = avg(a, b)
+static void averageRow(uint8_t* dst, const uint8_t* a, const uint8_t* b, uint32_t size) {
+	uint32_t i = 0;
+#if defined(DEINTERLACE_NEON)
+	for (; i + 16 <= size; i += 16) {
+		vst1q_u8(dst + i, vrhaddq_u8(vld1q_u8(a + i), vld1q_u8(b + i)));
+	}
+#elif defined(DEINTERLACE_SSE2)
+	for (; i + 16 <= size; i += 16) {
+		__m128i va = _mm_loadu_si128((const __m128i*)(a + i));
+		__m128i vb = _mm_loadu_si128((const __m128i*)(b + i));
+		_mm_storeu_si128((__m128i*)(dst + i), _mm_avg_epu8(va, vb));
+	}
+#endif
+	for (; i < size; i++) {
+		dst[i] = avgByte(a[i], b[i]);
+	}
+}
+
+// dst = avg(center, avg(above, below)), approximately (above + 2 * center + below) / 4
+static void blendRow(uint8_t* dst, const uint8_t* center, const uint8_t* above,
+                     const uint8_t* below, uint32_t size) {
+	uint32_t i = 0;
+#if defined(DEINTERLACE_NEON)
+	for (; i + 16 <= size; i += 16) {
+		uint8x16_t outer = vrhaddq_u8(vld1q_u8(above + i), vld1q_u8(below + i));
+		vst1q_u8(dst + i, vrhaddq_u8(vld1q_u8(center + i), outer));
+	}
+#elif defined(DEINTERLACE_SSE2)
+	for (; i + 16 <= size; i += 16) {
+		__m128i outer = _mm_avg_epu8(_mm_loadu_si128((const __m128i*)(above + i)),
+		                             _mm_loadu_si128((const __m128i*)(below + i)));
+		__m128i vc = _mm_loadu_si128((const __m128i*)(center + i));
+		_mm_storeu_si128((__m128i*)(dst + i), _mm_avg_epu8(vc, outer));
+	}
+#endif
+	for (; i < size; i++) {
+		dst[i] = avgByte(center[i], avgByte(above[i], below[i]));
+	}
+}
+
+/*
+ * Motion adaptive interpolation of a missing line.  The spatial prediction (average of the
+ * lines above and below) is clamped to within `motion` of the temporal prediction (the same
+ * line in the previous field).  Motion is the change in the lines above and below since the
+ * field two back.  Still areas therefore weave the previous field, moving areas fall back to
+ * the spatial prediction.
+ */
+static void motionRow(uint8_t* dst, const uint8_t* above, const uint8_t* below,
+                      const uint8_t* temporal, const uint8_t* prevAbove,
+                      const uint8_t* prevBelow, uint32_t size) {
+	uint32_t i = 0;
+#if defined(DEINTERLACE_NEON)
+	for (; i + 16 <= size; i += 16) {
+		uint8x16_t va = vld1q_u8(above + i);
+		uint8x16_t vb = vld1q_u8(below + i);
+		uint8x16_t vt = vld1q_u8(temporal + i);
+		uint8x16_t motion = vmaxq_u8(vabdq_u8(va, vld1q_u8(prevAbove + i)),
+		                             vabdq_u8(vb, vld1q_u8(prevBelow + i)));
+		uint8x16_t spatial = vrhaddq_u8(va, vb);
+		uint8x16_t lo = vqsubq_u8(vt, motion);
+		uint8x16_t hi = vqaddq_u8(vt, motion);
+		vst1q_u8(dst + i, vminq_u8(vmaxq_u8(spatial, lo), hi));
+	}
+#elif defined(DEINTERLACE_SSE2)
+	for (; i + 16 <= size; i += 16) {
+		__m128i va = _mm_loadu_si128((const __m128i*)(above + i));
+		__m128i vb = _mm_loadu_si128((const __m128i*)(below + i));
+		__m128i vt = _mm_loadu_si128((const __m128i*)(temporal + i));
+		__m128i pa = _mm_loadu_si128((const __m128i*)(prevAbove + i));
+		__m128i pb = _mm_loadu_si128((const __m128i*)(prevBelow + i));
+		__m128i diffAbove = _mm_or_si128(_mm_subs_epu8(va, pa), _mm_subs_epu8(pa, va));
+		__m128i diffBelow = _mm_or_si128(_mm_subs_epu8(vb, pb), _mm_subs_epu8(pb, vb));
+		__m128i motion = _mm_max_epu8(diffAbove, diffBelow);
+		__m128i spatial = _mm_avg_epu8(va, vb);
+		__m128i lo = _mm_subs_epu8(vt, motion);
+		__m128i hi = _mm_adds_epu8(vt, motion);
+		_mm_storeu_si128((__m128i*)(dst + i), _mm_min_epu8(_mm_max_epu8(spatial, lo), hi));
+	}
+#endif
+	for (; i < size; i++) {
+		uint8_t motion = absDiffByte(above[i], prevAbove[i]);
+		uint8_t motionBelow = absDiffByte(below[i], prevBelow[i]);
+		if (motionBelow > motion) {
+			motion = motionBelow;
+		}
+		int spatial = avgByte(above[i], below[i]);
+		int lo = temporal[i] - motion;
+		int hi = temporal[i] + motion;
+		dst[i] = (uint8_t)((spatial < lo) ? lo : (spatial > hi) ? hi : spatial);
+	}
+}
+
+/**
+ * @param mode          Deinterlacing method
+ * @param lineSize      Bytes in each line of the output frame
+ * @param frameHeight   Height of the output frame, each field is half this height
+ * @param threadCount   Worker threads used in addition to the thread calling process()
+ */
+Deinterlacer::Deinterlacer(DeinterlaceMode mode, uint32_t lineSize, uint16_t frameHeight,
+                           uint8_t threadCount) {
+	_mode = mode;
+	_lineSize = lineSize;
+	_frameHeight = frameHeight;
+	_workers = new WorkerPool(threadCount, "usbtv_deint");
+
+	// Two stripes per thread evens out threads that are descheduled part way through
+	_stripeCount = ((uint32_t)_workers->getThreadCount() + 1) * 2;
+
+	_activeMode = mode;
+	_field = nullptr;
+	_prevField = nullptr;
+	_prevField2 = nullptr;
+	_parity = 0;
+	_dst = nullptr;
+}
+
+Deinterlacer::~Deinterlacer() {
+	delete _workers;
+}
+
+/**
+ * Writes a full height frame built from a field and the fields before it.  Modes that need
+ * field history fall back to LINEAR until it is available.
+ *
+ * @param field         The field just received
+ * @param topField      True if field holds the even (top) lines of the frame
+ * @param prevField     The previous field, which must have the opposite parity. May be NULL.
+ * @param prevField2    The field before prevField, with the same parity as field.  May be NULL.
+ * @param dst           Output frame
+ */
+void Deinterlacer::process(const uint8_t *field, bool topField, const uint8_t *prevField,
+                           const uint8_t *prevField2, uint8_t *dst) {
+	_field = field;
+	_prevField = prevField;
+	_prevField2 = prevField2;
+	_parity = topField ? 0 : 1;
+	_dst = dst;
+
+	_activeMode = _mode;
+	if ((_mode == DeinterlaceMode::BLEND && prevField == nullptr) ||
+	    (_mode == DeinterlaceMode::MOTION_ADAPTIVE &&
+	     (prevField == nullptr || prevField2 == nullptr))) {
+		_activeMode = DeinterlaceMode::LINEAR;
+	}
+
+	_workers->run(_stripeCount, [this](uint32_t stripe) {
+		processStripe(stripe);
+	});
+}
+
+void Deinterlacer::processStripe(uint32_t stripe) {
+	uint32_t linesPerStripe = (_frameHeight + _stripeCount - 1) / _stripeCount;
+	uint32_t start = stripe * linesPerStripe;
+	uint32_t end = start + linesPerStripe;
+	if (end > _frameHeight) {
+		end = _frameHeight;
+	}
+
+	for (uint32_t line = start; line < end; line++) {
+		processLine(line);
+	}
+}
+
+/**
+ * Returns frame line `line` from a field of the given parity.  Lines outside the frame
+ * are mirrored back inside it, which preserves their parity.
+ */
+const uint8_t* Deinterlacer::fieldLine(const uint8_t *field, uint32_t parity, int line) {
+	if (line < 0) {
+		line = -line;
+	} else if (line >= _frameHeight) {
+		line = 2 * (_frameHeight - 1) - line;
+	}
+	return field + (uint32_t)((line - (int)parity) / 2) * _lineSize;
+}
+
+void Deinterlacer::processLine(uint32_t line) {
+	uint8_t* dst = _dst + line * _lineSize;
+	int y = (int)line;
+	uint32_t prevParity = _parity ^ 1;
+
+	if (_activeMode == DeinterlaceMode::BLEND) {
+		// Every line is filtered from the woven frame
+		const uint8_t* center;
+		const uint8_t* above;
+		const uint8_t* below;
+		if ((line & 1) == _parity) {
+			center = fieldLine(_field, _parity, y);
+			above = fieldLine(_prevField, prevParity, y - 1);
+			below = fieldLine(_prevField, prevParity, y + 1);
+		} else {
+			center = fieldLine(_prevField, prevParity, y);
+			above = fieldLine(_field, _parity, y - 1);
+			below = fieldLine(_field, _parity, y + 1);
+		}
+		blendRow(dst, center, above, below, _lineSize);
+		return;
+	}
+
+	if ((line & 1) == _parity) {
+		memcpy(dst, fieldLine(_field, _parity, y), _lineSize);
+		return;
+	}
+
+	const uint8_t* above = fieldLine(_field, _parity, y - 1);
+	const uint8_t* below = fieldLine(_field, _parity, y + 1);
+
+	switch (_activeMode) {
+		case DeinterlaceMode::BOB:
+			memcpy(dst, above, _lineSize);
+			break;
+		case DeinterlaceMode::LINEAR:
+			averageRow(dst, above, below, _lineSize);
+			break;
+		case DeinterlaceMode::MOTION_ADAPTIVE:
+			motionRow(dst, above, below, fieldLine(_prevField, prevParity, y),
+			          fieldLine(_prevField2, _parity, y - 1),
+			          fieldLine(_prevField2, _parity, y + 1), _lineSize);
+			break;
+		case DeinterlaceMode::BLEND:
+			break;
+	}
+}
@@ -0,0 +1,67 @@
+// Copyright (C) 2020 Eric Callahan <arksine.code@gmail.com>
+//
+// This file may be distributed under the terms of the GNU GPLv3 license
+//
+// Builds a full height frame from each field.  Fields are half height images, top
+// (odd) fields supply the even lines of a frame and bottom (even) fields the odd lines.
+// The missing lines are rebuilt according to DeinterlaceMode:
+//  - BOB               Each field line is doubled
+//  - LINEAR            Missing lines are the average of the lines above and below
+//  - BLEND             The field is woven with the previous field, then each line is blended
+//                      with its neighbours (1 2 1 vertical filter), trading combing for ghosting
+//  - MOTION_ADAPTIVE   Missing lines are taken from the previous field where the picture is
+//                      still and interpolated where it moves.  Motion is measured against the
+//                      field two fields back, which has the same parity.
+//
+// Rows are processed in stripes on a WorkerPool, using NEON or SSE2 where available.
+//
+
+#ifndef USBTV007_ANDROID_DEINTERLACER_H
+#define USBTV007_ANDROID_DEINTERLACER_H
+
+#include <cstdint>
+#include "usbtv_definitions.h"
+#include "WorkerPool.h"
+
+// The frame pool is extended while deinterlacing.  The previous two fields are held as
+// history, and output frames are reserved at the end of the pool so that the input side
+// can never take the frame the deinterlacer needs to make progress.
+#define USBTV_DEINTERLACE_HISTORY_FRAMES    2
+#define USBTV_DEINTERLACE_OUTPUT_FRAMES     2
+#define USBTV_DEINTERLACE_MAX_THREADS   4
+
+class Deinterlacer {
+private:
+	DeinterlaceMode _mode;
+	uint32_t        _lineSize;          // Bytes per line
+	uint16_t        _frameHeight;       // Lines in the output frame
+	WorkerPool*     _workers;
+	uint32_t        _stripeCount;
+
+	// State of the field being processed, read by the stripe jobs
+	DeinterlaceMode _activeMode;
+	const uint8_t*  _field;
+	const uint8_t*  _prevField;
+	const uint8_t*  _prevField2;
+	uint32_t        _parity;            // 0 for a top field, 1 for a bottom field
+	uint8_t*        _dst;
+
+	void processStripe(uint32_t stripe);
+	void processLine(uint32_t line);
+	const uint8_t* fieldLine(const uint8_t* field, uint32_t parity, int line);
+
+public:
+	Deinterlacer(DeinterlaceMode mode, uint32_t lineSize, uint16_t frameHeight,
+	             uint8_t threadCount);
+	~Deinterlacer();
+
+	DeinterlaceMode getMode() {
+		return _mode;
+	}
+
+	void process(const uint8_t* field, bool topField, const uint8_t* prevField,
+	             const uint8_t* prevField2, uint8_t* dst);
+};
+
+
+#endif //USBTV007_ANDROID_DEINTERLACER_H
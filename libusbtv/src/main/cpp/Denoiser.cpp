@@ -0,0 +1,135 @@
+// Copyright (C) 2020 Eric Callahan <arksine.code@gmail.com>
+//
+// This file may be distributed under the terms of the GNU GPLv3 license
+
+#include "Denoiser.h"
+#include <cstring>
+
+#if defined(__ARM_NEON) || defined(__ARM_NEON__)
+#include <arm_neon.h>
+#define DENOISE_NEON
+#elif defined(__SSE2__)
+#include <emmintrin.h>
+#define DENOISE_SSE2
+#endif
+
+// Weight of the current frame, out of 128, at full strength
+#define DENOISE_MIN_ALPHA       16
+// Largest difference treated as noise at zero and at full strength
+#define DENOISE_MIN_THRESHOLD   2
+#define DENOISE_MAX_THRESHOLD   32
+
+/*
+ * Filters size bytes of cur against prev, writing the result to both.  alpha is the weight
+ * of cur out of 128.  Differences above threshold pass cur through.  The rounding matches
+ * vrshrq_n_s16 so every path produces identical output.
+ */
+static void filterRow(uint8_t* cur, uint8_t* prev, uint32_t size, int16_t alpha,
+                      uint8_t threshold) {
+	uint32_t i = 0;
+#if defined(DENOISE_NEON)
+	uint8x16_t vthreshold = vdupq_n_u8(threshold);
+	for (; i + 16 <= size; i += 16) {
+		uint8x16_t c = vld1q_u8(cur + i);
+		uint8x16_t p = vld1q_u8(prev + i);
+		int16x8_t dlo = vreinterpretq_s16_u16(vsubl_u8(vget_low_u8(c), vget_low_u8(p)));
+		int16x8_t dhi = vreinterpretq_s16_u16(vsubl_u8(vget_high_u8(c), vget_high_u8(p)));
+		int16x8_t plo = vreinterpretq_s16_u16(vmovl_u8(vget_low_u8(p)));
+		int16x8_t phi = vreinterpretq_s16_u16(vmovl_u8(vget_high_u8(p)));
+		int16x8_t olo = vaddq_s16(plo, vrshrq_n_s16(vmulq_n_s16(dlo, alpha), 7));
+		int16x8_t ohi = vaddq_s16(phi, vrshrq_n_s16(vmulq_n_s16(dhi, alpha), 7));
+		uint8x16_t filtered = vcombine_u8(vqmovun_s16(olo), vqmovun_s16(ohi));
+		uint8x16_t moving = vcgtq_u8(vabdq_u8(c, p), vthreshold);
+		uint8x16_t out = vbslq_u8(moving, c, filtered);
+		vst1q_u8(cur + i, out);
+		vst1q_u8(prev + i, out);
+	}
+#elif defined(DENOISE_SSE2)
+	__m128i zero = _mm_setzero_si128();
+	__m128i valpha = _mm_set1_epi16(alpha);
+	__m128i round = _mm_set1_epi16(64);
+	__m128i vthreshold = _mm_set1_epi8((char)threshold);
+	for (; i + 16 <= size; i += 16) {
+		__m128i c = _mm_loadu_si128((const __m128i*)(cur + i));
+		__m128i p = _mm_loadu_si128((const __m128i*)(prev + i));
+		__m128i plo = _mm_unpacklo_epi8(p, zero);
+		__m128i phi = _mm_unpackhi_epi8(p, zero);
+		__m128i dlo = _mm_sub_epi16(_mm_unpacklo_epi8(c, zero), plo);
+		__m128i dhi = _mm_sub_epi16(_mm_unpackhi_epi8(c, zero), phi);
+		dlo = _mm_srai_epi16(_mm_add_epi16(_mm_mullo_epi16(dlo, valpha), round), 7);
+		dhi = _mm_srai_epi16(_mm_add_epi16(_mm_mullo_epi16(dhi, valpha), round), 7);
+		__m128i filtered = _mm_packus_epi16(_mm_add_epi16(plo, dlo), _mm_add_epi16(phi, dhi));
+		__m128i diff = _mm_or_si128(_mm_subs_epu8(c, p), _mm_subs_epu8(p, c));
+		__m128i still = _mm_cmpeq_epi8(_mm_subs_epu8(diff, vthreshold), zero);
+		__m128i out = _mm_or_si128(_mm_and_si128(still, filtered), _mm_andnot_si128(still, c));
+		_mm_storeu_si128((__m128i*)(cur + i), out);
+		_mm_storeu_si128((__m128i*)(prev + i), out);
+	}
+#endif
+	for (; i < size; i++) {
+		int diff = (int)cur[i] - (int)prev[i];
+		uint8_t out;
+		if (diff > threshold || diff < -threshold) {
+			out = cur[i];
+		} else {
+			out = (uint8_t)(prev[i] + ((diff * alpha + 64) >> 7));
+		}
+		cur[i] = out;
+		prev[i] = out;
+	}
+}
+
+/**
+ * @param bufferSize    Size in bytes of each buffer passed to process()
+ */
+Denoiser::Denoiser(uint32_t bufferSize) {
+	_bufferSize = bufferSize;
+	for (int i = 0; i < USBTV_DENOISE_SLOTS; i++) {
+		_history[i] = new uint8_t[bufferSize];
+		_historyValid[i] = false;
+	}
+}
+
+Denoiser::~Denoiser() {
+	for (int i = 0; i < USBTV_DENOISE_SLOTS; i++) {
+		delete [] _history[i];
+	}
+}
+
+/**
+ * Discards history.  The next buffer in each slot is passed through unfiltered.
+ */
+void Denoiser::reset() {
+	for (int i = 0; i < USBTV_DENOISE_SLOTS; i++) {
+		_historyValid[i] = false;
+	}
+}
+
+/**
+ * Filters a buffer in place.
+ *
+ * @param buffer    Frame data, getBufferSize() bytes
+ * @param slot      History to filter against, ie. the field parity
+ * @param strength  1 to USBTV_DENOISE_MAX_STRENGTH
+ */
+void Denoiser::process(uint8_t *buffer, uint8_t slot, uint8_t strength) {
+	if (slot >= USBTV_DENOISE_SLOTS) {
+		slot = 0;
+	}
+	if (strength > USBTV_DENOISE_MAX_STRENGTH) {
+		strength = USBTV_DENOISE_MAX_STRENGTH;
+	}
+
+	if (!_historyValid[slot]) {
+		memcpy(_history[slot], buffer, _bufferSize);
+		_historyValid[slot] = true;
+		return;
+	}
+
+	int16_t alpha = (int16_t)(128 - ((128 - DENOISE_MIN_ALPHA) * strength) /
+	                                USBTV_DENOISE_MAX_STRENGTH);
+	uint8_t threshold = (uint8_t)(DENOISE_MIN_THRESHOLD +
+	                              ((DENOISE_MAX_THRESHOLD - DENOISE_MIN_THRESHOLD) * strength) /
+	                              USBTV_DENOISE_MAX_STRENGTH);
+	filterRow(buffer, _history[slot], _bufferSize, alpha, threshold);
+}
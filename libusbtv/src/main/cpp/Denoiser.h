@@ -0,0 +1,45 @@
+// Copyright (C) 2020 Eric Callahan <arksine.code@gmail.com>
+//
+// This file may be distributed under the terms of the GNU GPLv3 license
+//
+// Temporal noise reduction for YUYV or Y8 frames.  Each byte is blended recursively with the
+// previous output at the same position:
+//
+//      out = prev + (cur - prev) * alpha
+//
+// Bytes that differ from the previous output by more than a threshold are treated as
+// motion and passed through unfiltered, which keeps moving edges from smearing.  There is
+// no motion compensation.  Strength scales both alpha and the threshold.
+//
+// History is kept per slot so that fields of each parity are only blended with fields
+// of the same parity.
+//
+
+#ifndef USBTV007_ANDROID_DENOISER_H
+#define USBTV007_ANDROID_DENOISER_H
+
+#include <cstdint>
+
+#define USBTV_DENOISE_MAX_STRENGTH  100
+#define USBTV_DENOISE_SLOTS         2
+
+class Denoiser {
+private:
+	uint32_t    _bufferSize;
+	uint8_t*    _history[USBTV_DENOISE_SLOTS];
+	bool        _historyValid[USBTV_DENOISE_SLOTS];
+
+public:
+	Denoiser(uint32_t bufferSize);
+	~Denoiser();
+
+	uint32_t getBufferSize() {
+		return _bufferSize;
+	}
+
+	void reset();
+	void process(uint8_t* buffer, uint8_t slot, uint8_t strength);
+};
+
+
+#endif //USBTV007_ANDROID_DENOISER_H
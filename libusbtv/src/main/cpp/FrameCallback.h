@@ -0,0 +1,30 @@
+// Copyright (C) 2020 Eric Callahan <arksine.code@gmail.com>
+//
+// This file may be distributed under the terms of the GNU GPLv3 license
+//
+// Receiver for frames completed by UsbTvDriver.  JavaCallback delivers them to Java,
+// native consumers (benchmarks) implement invoke directly.
+//
+
+#ifndef USBTV007_ANDROID_FRAMECALLBACK_H
+#define USBTV007_ANDROID_FRAMECALLBACK_H
+
+#include "usbtv_definitions.h"
+#include "MotionDetector.h"
+
+class FrameCallback {
+public:
+	virtual ~FrameCallback() {}
+
+	// Called on the frame process thread before the first frame and after the last
+	virtual void attachThread() {}
+	virtual void detachThread() {}
+
+	// The frame remains locked until the consumer calls UsbTvDriver::clearFrameLock
+	virtual void invoke(UsbTvFrame* frame) = 0;
+
+	// Called on the frame process thread for each motion event, before the frame is invoked
+	virtual void onMotion(const MotionEvent& event) {}
+};
+
+#endif //USBTV007_ANDROID_FRAMECALLBACK_H
@@ -28,10 +28,32 @@ private:
 	jfieldID _fidNorm;
 	jfieldID _fidScanType;
 	jfieldID _fidInputSelection;
+	jfieldID _fidIsoTransferCount;
+	jfieldID _fidIsoPacketsPerRequest;
+	jfieldID _fidIsoAutoTune;
+	jfieldID _fidDeinterlaceMode;
+	jfieldID _fidPixelFormat;
+	jfieldID _fidDenoiseStrength;
+	jfieldID _fidCropX;
+	jfieldID _fidCropY;
+	jfieldID _fidCropWidth;
+	jfieldID _fidCropHeight;
+	jfieldID _fidScaleWidth;
+	jfieldID _fidScaleHeight;
+	jfieldID _fidScaleFilter;
+	jfieldID _fidSquarePixels;
+	jfieldID _fidSecondaryWidth;
+	jfieldID _fidSecondaryHeight;
+	jfieldID _fidSecondaryFilter;
+	jfieldID _fidSecondaryDropPolicy;
 
 	jmethodID _midNormOrdinal;
 	jmethodID _midScanTypeOrdinal;
 	jmethodID _midInputSelectionOrdinal;
+	jmethodID _midDeinterlaceModeOrdinal;
+	jmethodID _midPixelFormatOrdinal;
+	jmethodID _midScaleFilterOrdinal;
+	jmethodID _midDropPolicyOrdinal;
 
 public:
 	DeviceParamsHelper(JNIEnv* env) {
@@ -39,6 +61,10 @@ public:
 		jclass normCls = env->FindClass("com/arksine/libusbtv/UsbTv$TvNorm");
 		jclass scanTypeCls = env->FindClass("com/arksine/libusbtv/UsbTv$ScanType");
 		jclass inputCls = env->FindClass("com/arksine/libusbtv/UsbTv$TvNorm");
+		jclass deinterlaceCls = env->FindClass("com/arksine/libusbtv/UsbTv$DeinterlaceMode");
+		jclass pixelFormatCls = env->FindClass("com/arksine/libusbtv/UsbTv$PixelFormat");
+		jclass scaleFilterCls = env->FindClass("com/arksine/libusbtv/UsbTv$ScaleFilter");
+		jclass dropPolicyCls = env->FindClass("com/arksine/libusbtv/UsbTv$DropPolicy");
 
 		_fidFileDescriptor = env->GetFieldID(paramsCls, "mFileDescriptor", "I");
 		_fidVideoEndpoint = env->GetFieldID(paramsCls, "mVideoEndpoint", "I");
@@ -54,15 +80,46 @@ public:
 		_fidNorm = env->GetFieldID(paramsCls, "mNorm", "com/arksine/libusbtv/UsbTv$TvNorm");
 		_fidScanType = env->GetFieldID(paramsCls, "mScanType", "com/arksine/libusbtv/UsbTv$ScanType");
 		_fidInputSelection = env->GetFieldID(paramsCls, "mInput", "com/arksine/libusbtv/UsbTv$InputSelection");
+		_fidIsoTransferCount = env->GetFieldID(paramsCls, "mIsoTransferCount", "I");
+		_fidIsoPacketsPerRequest = env->GetFieldID(paramsCls, "mIsoPacketsPerRequest", "I");
+		_fidIsoAutoTune = env->GetFieldID(paramsCls, "mIsoAutoTune", "Z");
+		_fidDeinterlaceMode = env->GetFieldID(paramsCls, "mDeinterlaceMode",
+		                                      "Lcom/arksine/libusbtv/UsbTv$DeinterlaceMode;");
+		_fidDenoiseStrength = env->GetFieldID(paramsCls, "mDenoiseStrength", "I");
+		_fidPixelFormat = env->GetFieldID(paramsCls, "mPixelFormat",
+		                                  "Lcom/arksine/libusbtv/UsbTv$PixelFormat;");
+		_fidCropX = env->GetFieldID(paramsCls, "mCropX", "I");
+		_fidCropY = env->GetFieldID(paramsCls, "mCropY", "I");
+		_fidCropWidth = env->GetFieldID(paramsCls, "mCropWidth", "I");
+		_fidCropHeight = env->GetFieldID(paramsCls, "mCropHeight", "I");
+		_fidScaleWidth = env->GetFieldID(paramsCls, "mScaleWidth", "I");
+		_fidScaleHeight = env->GetFieldID(paramsCls, "mScaleHeight", "I");
+		_fidScaleFilter = env->GetFieldID(paramsCls, "mScaleFilter",
+		                                  "Lcom/arksine/libusbtv/UsbTv$ScaleFilter;");
+		_fidSquarePixels = env->GetFieldID(paramsCls, "mSquarePixels", "Z");
+		_fidSecondaryWidth = env->GetFieldID(paramsCls, "mSecondaryWidth", "I");
+		_fidSecondaryHeight = env->GetFieldID(paramsCls, "mSecondaryHeight", "I");
+		_fidSecondaryFilter = env->GetFieldID(paramsCls, "mSecondaryFilter",
+		                                      "Lcom/arksine/libusbtv/UsbTv$ScaleFilter;");
+		_fidSecondaryDropPolicy = env->GetFieldID(paramsCls, "mSecondaryDropPolicy",
+		                                          "Lcom/arksine/libusbtv/UsbTv$DropPolicy;");
 
 		_midNormOrdinal = env->GetMethodID(normCls, "ordinal", "()I");
 		_midScanTypeOrdinal = env->GetMethodID(scanTypeCls, "ordinal", "()I");
 		_midInputSelectionOrdinal = env->GetMethodID(inputCls, "ordinal", "()I");
+		_midDeinterlaceModeOrdinal = env->GetMethodID(deinterlaceCls, "ordinal", "()I");
+		_midPixelFormatOrdinal = env->GetMethodID(pixelFormatCls, "ordinal", "()I");
+		_midScaleFilterOrdinal = env->GetMethodID(scaleFilterCls, "ordinal", "()I");
+		_midDropPolicyOrdinal = env->GetMethodID(dropPolicyCls, "ordinal", "()I");
 
 		env->DeleteLocalRef(paramsCls);
 		env->DeleteLocalRef(normCls);
 		env->DeleteLocalRef(scanTypeCls);
 		env->DeleteLocalRef(inputCls);
+		env->DeleteLocalRef(deinterlaceCls);
+		env->DeleteLocalRef(pixelFormatCls);
+		env->DeleteLocalRef(scaleFilterCls);
+		env->DeleteLocalRef(dropPolicyCls);
 	}
 
 	int getFileDescriptor(JNIEnv* env, jobject params) {
@@ -108,6 +165,58 @@ public:
 		return (int) env->GetIntField(params, _fidFrameSizeInBytes);
 	}
 
+	int getIsoTransferCount(JNIEnv* env, jobject params) {
+		return (int) env->GetIntField(params, _fidIsoTransferCount);
+	}
+
+	int getIsoPacketsPerRequest(JNIEnv* env, jobject params) {
+		return (int) env->GetIntField(params, _fidIsoPacketsPerRequest);
+	}
+
+	bool isIsoAutoTuneEnabled(JNIEnv* env, jobject params) {
+		return (bool) env->GetBooleanField(params, _fidIsoAutoTune);
+	}
+
+	int getDenoiseStrength(JNIEnv* env, jobject params) {
+		return (int) env->GetIntField(params, _fidDenoiseStrength);
+	}
+
+	int getCropX(JNIEnv* env, jobject params) {
+		return (int) env->GetIntField(params, _fidCropX);
+	}
+
+	int getCropY(JNIEnv* env, jobject params) {
+		return (int) env->GetIntField(params, _fidCropY);
+	}
+
+	int getCropWidth(JNIEnv* env, jobject params) {
+		return (int) env->GetIntField(params, _fidCropWidth);
+	}
+
+	int getCropHeight(JNIEnv* env, jobject params) {
+		return (int) env->GetIntField(params, _fidCropHeight);
+	}
+
+	int getScaleWidth(JNIEnv* env, jobject params) {
+		return (int) env->GetIntField(params, _fidScaleWidth);
+	}
+
+	int getScaleHeight(JNIEnv* env, jobject params) {
+		return (int) env->GetIntField(params, _fidScaleHeight);
+	}
+
+	bool isSquarePixelsEnabled(JNIEnv* env, jobject params) {
+		return (bool) env->GetBooleanField(params, _fidSquarePixels);
+	}
+
+	int getSecondaryWidth(JNIEnv* env, jobject params) {
+		return (int) env->GetIntField(params, _fidSecondaryWidth);
+	}
+
+	int getSecondaryHeight(JNIEnv* env, jobject params) {
+		return (int) env->GetIntField(params, _fidSecondaryHeight);
+	}
+
 	int getNormOrdinal(JNIEnv* env, jobject params) {
 		jobject normObj = env->GetObjectField(params, _fidNorm);
 		int ord = (int) env->CallIntMethod(normObj, _midNormOrdinal);
@@ -129,6 +238,41 @@ public:
 		return ord;
 	}
 
+	int getDeinterlaceModeOrdinal(JNIEnv* env, jobject params) {
+		jobject modeObj = env->GetObjectField(params, _fidDeinterlaceMode);
+		int ord = (int) env->CallIntMethod(modeObj, _midDeinterlaceModeOrdinal);
+		env->DeleteLocalRef(modeObj);
+		return ord;
+	}
+
+	int getPixelFormatOrdinal(JNIEnv* env, jobject params) {
+		jobject formatObj = env->GetObjectField(params, _fidPixelFormat);
+		int ord = (int) env->CallIntMethod(formatObj, _midPixelFormatOrdinal);
+		env->DeleteLocalRef(formatObj);
+		return ord;
+	}
+
+	int getScaleFilterOrdinal(JNIEnv* env, jobject params) {
+		jobject filterObj = env->GetObjectField(params, _fidScaleFilter);
+		int ord = (int) env->CallIntMethod(filterObj, _midScaleFilterOrdinal);
+		env->DeleteLocalRef(filterObj);
+		return ord;
+	}
+
+	int getSecondaryFilterOrdinal(JNIEnv* env, jobject params) {
+		jobject filterObj = env->GetObjectField(params, _fidSecondaryFilter);
+		int ord = (int) env->CallIntMethod(filterObj, _midScaleFilterOrdinal);
+		env->DeleteLocalRef(filterObj);
+		return ord;
+	}
+
+	int getSecondaryDropPolicyOrdinal(JNIEnv* env, jobject params) {
+		jobject policyObj = env->GetObjectField(params, _fidSecondaryDropPolicy);
+		int ord = (int) env->CallIntMethod(policyObj, _midDropPolicyOrdinal);
+		env->DeleteLocalRef(policyObj);
+		return ord;
+	}
+
 };
 
 
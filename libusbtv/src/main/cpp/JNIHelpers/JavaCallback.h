@@ -9,11 +9,9 @@
 #include <string>
 #include "../util.h"
 #include "../usbtv_definitions.h"
+#include "../FrameCallback.h"
 
-// TODO: I should make the base of this abstract, then inherit from it, requiring the
-// child to implement invoke.  Also, the second method (_getBufMethod) should be in the
-// child.
-class JavaCallback {
+class JavaCallback : public FrameCallback {
 private:
 	JavaVM*     _javaVm;
 	std::string _functionName;
@@ -23,6 +21,10 @@ private:
 	jclass      _methodClass;
 	jobject     _methodParent;
 	bool        _threadAttached;
+	std::string _motionFunctionName;
+	std::string _motionFunctionSignature;
+	jmethodID   _motionMethod;
+	jintArray   _motionRegions;     // Reused for every motion event
 
 	bool setEnv() {
 		jint ret = _javaVm->GetEnv((void**)&_env, JNI_VERSION_1_6);
@@ -49,6 +51,8 @@ public:
 	JavaCallback(JavaVM* jvm, jobject parent, std::string funcName, std::string funcSignature) {
 		_javaVm = jvm;
 		_threadAttached = false;
+		_motionMethod = nullptr;
+		_motionRegions = nullptr;
 		_functionName = funcName;
 		_functionSignature = funcSignature;
 		if(setEnv()) {
@@ -59,36 +63,75 @@ public:
 
 
 	}
-	~JavaCallback() {
+	~JavaCallback() override {
 		if(setEnv()) {
 			_env->DeleteGlobalRef(_methodClass);
 			_env->DeleteGlobalRef(_methodParent);
 		}
 	}
 
-	void attachThread() {
+	/**
+	 * Also delivers motion events to a method of the parent, taking the MotionState, the
+	 * frame id, the timestamp, the region count and an int array of x, y, width and height
+	 * for each region
+	 */
+	void setMotionFunction(std::string funcName, std::string funcSignature) {
+		_motionFunctionName = funcName;
+		_motionFunctionSignature = funcSignature;
+	}
+
+	void attachThread() override {
 		_threadAttached = setEnv();
 
 		if (_threadAttached) {
 			LOGD("Thread successfully attached");
 			_cbMethod = _env->GetMethodID(_methodClass, _functionName.c_str(),
 			                              _functionSignature.c_str());
+			if (!_motionFunctionName.empty()) {
+				_motionMethod = _env->GetMethodID(_methodClass, _motionFunctionName.c_str(),
+				                                  _motionFunctionSignature.c_str());
+				jintArray regions = _env->NewIntArray(4 * USBTV_MOTION_MAX_REGIONS);
+				_motionRegions = (jintArray) _env->NewGlobalRef(regions);
+				_env->DeleteLocalRef(regions);
+			}
 		} else {
 			LOGD("Unable to attach thread");
 		}
 	}
 
-	void detachThread() {
+	void detachThread() override {
 		if (_threadAttached) {
+			if (_motionRegions != nullptr) {
+				_env->DeleteGlobalRef(_motionRegions);
+				_motionRegions = nullptr;
+				_motionMethod = nullptr;
+			}
 			_javaVm->DetachCurrentThread();
 			_threadAttached = false;
 		}
 	}
 
-	void invoke(UsbTvFrame* frame) {
+	void invoke(UsbTvFrame* frame) override {
 		if (_threadAttached) {
 			_env->CallVoidMethod(_methodParent, _cbMethod, frame->javaFrame,
-			                     (jint) frame->frameId, (jint) frame->flags);
+			                     (jint) frame->frameId, (jint) frame->flags,
+			                     (jlong) frame->signature);
+		}
+	}
+
+	void onMotion(const MotionEvent& event) override {
+		if (_threadAttached && _motionMethod != nullptr) {
+			jint regions[4 * USBTV_MOTION_MAX_REGIONS];
+			for (uint8_t i = 0; i < event.regionCount; i++) {
+				regions[4 * i] = event.regions[i].x;
+				regions[4 * i + 1] = event.regions[i].y;
+				regions[4 * i + 2] = event.regions[i].width;
+				regions[4 * i + 3] = event.regions[i].height;
+			}
+			_env->SetIntArrayRegion(_motionRegions, 0, 4 * event.regionCount, regions);
+			_env->CallVoidMethod(_methodParent, _motionMethod, (jint) event.state,
+			                     (jint) event.frameId, (jlong) event.timestampNs,
+			                     (jint) event.regionCount, _motionRegions);
 		}
 	}
 };
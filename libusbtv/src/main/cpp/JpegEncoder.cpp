@@ -0,0 +1,633 @@
+// Copyright (C) 2020 Eric Callahan <arksine.code@gmail.com>
+//
+// This file may be distributed under the terms of the GNU GPLv3 license
+
+#include "JpegEncoder.h"
+#include "PixelKernels.h"
+#include "util.h"
+#include <cstdlib>
+
+#if defined(__ARM_NEON) || defined(__ARM_NEON__)
+#include <arm_neon.h>
+#define JPEG_NEON
+#elif defined(__SSE2__)
+#include <emmintrin.h>
+#define JPEG_SSE2
+#endif
+
+// Largest entropy coded MCU: four blocks of 64 codes, each up to 16 bits of Huffman code
+// and 11 bits of value, doubled for byte stuffing, plus a restart marker
+#define JPEG_MCU_MAX_BYTES  2048
+
+// AAN multipliers in 2.14 fixed point
+#define FIX_0_382683433     6270
+#define FIX_0_541196100     8867
+#define FIX_0_707106781     11585
+#define FIX_1_306562965     21407
+
+static const uint8_t ZIGZAG[64] = {
+	0, 1, 8, 16, 9, 2, 3, 10, 17, 24, 32, 25, 18, 11, 4, 5,
+	12, 19, 26, 33, 40, 48, 41, 34, 27, 20, 13, 6, 7, 14, 21, 28,
+	35, 42, 49, 56, 57, 50, 43, 36, 29, 22, 15, 23, 30, 37, 44, 51,
+	58, 59, 52, 45, 38, 31, 39, 46, 53, 60, 61, 54, 47, 55, 62, 63
+};
+
+// ITU T.81 Annex K quantization tables, natural order
+static const uint8_t LUMA_QUANT[64] = {
+	16, 11, 10, 16, 24, 40, 51, 61,
+	12, 12, 14, 19, 26, 58, 60, 55,
+	14, 13, 16, 24, 40, 57, 69, 56,
+	14, 17, 22, 29, 51, 87, 80, 62,
+	18, 22, 37, 56, 68, 109, 103, 77,
+	24, 35, 55, 64, 81, 104, 113, 92,
+	49, 64, 78, 87, 103, 121, 120, 101,
+	72, 92, 95, 98, 112, 100, 103, 99
+};
+
+static const uint8_t CHROMA_QUANT[64] = {
+	17, 18, 24, 47, 99, 99, 99, 99,
+	18, 21, 26, 66, 99, 99, 99, 99,
+	24, 26, 56, 99, 99, 99, 99, 99,
+	47, 66, 99, 99, 99, 99, 99, 99,
+	99, 99, 99, 99, 99, 99, 99, 99,
+	99, 99, 99, 99, 99, 99, 99, 99,
+	99, 99, 99, 99, 99, 99, 99, 99,
+	99, 99, 99, 99, 99, 99, 99, 99
+};
+
+// Annex K Huffman tables, code counts per length from 1 to 16 followed by the symbols
+static const uint8_t DC_LUMA_BITS[16] = {0, 1, 5, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0, 0, 0};
+static const uint8_t DC_CHROMA_BITS[16] = {0, 3, 1, 1, 1, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0};
+static const uint8_t DC_VALUES[12] = {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11};
+
+static const uint8_t AC_LUMA_BITS[16] = {0, 2, 1, 3, 3, 2, 4, 3, 5, 5, 4, 4, 0, 0, 1, 0x7d};
+static const uint8_t AC_LUMA_VALUES[162] = {
+	0x01, 0x02, 0x03, 0x00, 0x04, 0x11, 0x05, 0x12, 0x21, 0x31, 0x41, 0x06, 0x13, 0x51, 0x61, 0x07,
+	0x22, 0x71, 0x14, 0x32, 0x81, 0x91, 0xa1, 0x08, 0x23, 0x42, 0xb1, 0xc1, 0x15, 0x52, 0xd1, 0xf0,
+	0x24, 0x33, 0x62, 0x72, 0x82, 0x09, 0x0a, 0x16, 0x17, 0x18, 0x19, 0x1a, 0x25, 0x26, 0x27, 0x28,
+	0x29, 0x2a, 0x34, 0x35, 0x36, 0x37, 0x38, 0x39, 0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48, 0x49,
+	0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69,
+	0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79, 0x7a, 0x83, 0x84, 0x85, 0x86, 0x87, 0x88, 0x89,
+	0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5, 0xa6, 0xa7,
+	0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3, 0xc4, 0xc5,
+	0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda, 0xe1, 0xe2,
+	0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea, 0xf1, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8,
+	0xf9, 0xfa
+};
+
+static const uint8_t AC_CHROMA_BITS[16] = {0, 2, 1, 2, 4, 4, 3, 4, 7, 5, 4, 4, 0, 1, 2, 0x77};
+static const uint8_t AC_CHROMA_VALUES[162] = {
+	0x00, 0x01, 0x02, 0x03, 0x11, 0x04, 0x05, 0x21, 0x31, 0x06, 0x12, 0x41, 0x51, 0x07, 0x61, 0x71,
+	0x13, 0x22, 0x32, 0x81, 0x08, 0x14, 0x42, 0x91, 0xa1, 0xb1, 0xc1, 0x09, 0x23, 0x33, 0x52, 0xf0,
+	0x15, 0x62, 0x72, 0xd1, 0x0a, 0x16, 0x24, 0x34, 0xe1, 0x25, 0xf1, 0x17, 0x18, 0x19, 0x1a, 0x26,
+	0x27, 0x28, 0x29, 0x2a, 0x35, 0x36, 0x37, 0x38, 0x39, 0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48,
+	0x49, 0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68,
+	0x69, 0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79, 0x7a, 0x82, 0x83, 0x84, 0x85, 0x86, 0x87,
+	0x88, 0x89, 0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5,
+	0xa6, 0xa7, 0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3,
+	0xc4, 0xc5, 0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda,
+	0xe2, 0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8,
+	0xf9, 0xfa
+};
+
+// Output scale of the AAN DCT for each frequency, cos(k * pi / 16) * sqrt(2)
+static const double AAN_SCALE[8] = {
+	1.0, 1.387039845, 1.306562965, 1.175875602, 1.0, 0.785694958, 0.541196100, 0.275899379
+};
+
+// Arithmetic for the DCT, on one sample or on eight samples in 16 bit lanes.  Vector
+// multiplies pre-shift the sample so the high half of the product is in range.
+static inline int32_t dctAdd(int32_t a, int32_t b) { return a + b; }
+static inline int32_t dctSub(int32_t a, int32_t b) { return a - b; }
+static inline int32_t dctMul(int32_t a, int16_t c) { return (a * c) >> 14; }
+
+#if defined(JPEG_NEON)
+typedef int16x8_t DctVector;
+static inline DctVector dctAdd(DctVector a, DctVector b) { return vaddq_s16(a, b); }
+static inline DctVector dctSub(DctVector a, DctVector b) { return vsubq_s16(a, b); }
+static inline DctVector dctMul(DctVector a, int16_t c) {
+	return vqdmulhq_s16(vshlq_n_s16(a, 1), vdupq_n_s16(c));
+}
+#elif defined(JPEG_SSE2)
+typedef __m128i DctVector;
+static inline DctVector dctAdd(DctVector a, DctVector b) { return _mm_add_epi16(a, b); }
+static inline DctVector dctSub(DctVector a, DctVector b) { return _mm_sub_epi16(a, b); }
+static inline DctVector dctMul(DctVector a, int16_t c) {
+	return _mm_mulhi_epi16(_mm_slli_epi16(a, 2), _mm_set1_epi16(c));
+}
+#endif
+
+/**
+ * One dimensional AAN DCT of eight samples, in place.  Outputs are scaled by AAN_SCALE.
+ */
+template<typename T>
+static inline void fdct8(T* d) {
+	T tmp0 = dctAdd(d[0], d[7]);
+	T tmp7 = dctSub(d[0], d[7]);
+	T tmp1 = dctAdd(d[1], d[6]);
+	T tmp6 = dctSub(d[1], d[6]);
+	T tmp2 = dctAdd(d[2], d[5]);
+	T tmp5 = dctSub(d[2], d[5]);
+	T tmp3 = dctAdd(d[3], d[4]);
+	T tmp4 = dctSub(d[3], d[4]);
+
+	// Even part
+	T tmp10 = dctAdd(tmp0, tmp3);
+	T tmp13 = dctSub(tmp0, tmp3);
+	T tmp11 = dctAdd(tmp1, tmp2);
+	T tmp12 = dctSub(tmp1, tmp2);
+	d[0] = dctAdd(tmp10, tmp11);
+	d[4] = dctSub(tmp10, tmp11);
+	T z1 = dctMul(dctAdd(tmp12, tmp13), FIX_0_707106781);
+	d[2] = dctAdd(tmp13, z1);
+	d[6] = dctSub(tmp13, z1);
+
+	// Odd part
+	tmp10 = dctAdd(tmp4, tmp5);
+	tmp11 = dctAdd(tmp5, tmp6);
+	tmp12 = dctAdd(tmp6, tmp7);
+	T z5 = dctMul(dctSub(tmp10, tmp12), FIX_0_382683433);
+	T z2 = dctAdd(dctMul(tmp10, FIX_0_541196100), z5);
+	T z4 = dctAdd(dctMul(tmp12, FIX_1_306562965), z5);
+	T z3 = dctMul(tmp11, FIX_0_707106781);
+	T z11 = dctAdd(tmp7, z3);
+	T z13 = dctSub(tmp7, z3);
+	d[5] = dctAdd(z13, z2);
+	d[3] = dctSub(z13, z2);
+	d[1] = dctAdd(z11, z4);
+	d[7] = dctSub(z11, z4);
+}
+
+#if defined(JPEG_NEON)
+static inline void transpose8x8(DctVector* r) {
+	int16x8x2_t t01 = vtrnq_s16(r[0], r[1]);
+	int16x8x2_t t23 = vtrnq_s16(r[2], r[3]);
+	int16x8x2_t t45 = vtrnq_s16(r[4], r[5]);
+	int16x8x2_t t67 = vtrnq_s16(r[6], r[7]);
+	int32x4x2_t u02 = vtrnq_s32(vreinterpretq_s32_s16(t01.val[0]), vreinterpretq_s32_s16(t23.val[0]));
+	int32x4x2_t u13 = vtrnq_s32(vreinterpretq_s32_s16(t01.val[1]), vreinterpretq_s32_s16(t23.val[1]));
+	int32x4x2_t u46 = vtrnq_s32(vreinterpretq_s32_s16(t45.val[0]), vreinterpretq_s32_s16(t67.val[0]));
+	int32x4x2_t u57 = vtrnq_s32(vreinterpretq_s32_s16(t45.val[1]), vreinterpretq_s32_s16(t67.val[1]));
+	r[0] = vreinterpretq_s16_s32(vcombine_s32(vget_low_s32(u02.val[0]), vget_low_s32(u46.val[0])));
+	r[1] = vreinterpretq_s16_s32(vcombine_s32(vget_low_s32(u13.val[0]), vget_low_s32(u57.val[0])));
+	r[2] = vreinterpretq_s16_s32(vcombine_s32(vget_low_s32(u02.val[1]), vget_low_s32(u46.val[1])));
+	r[3] = vreinterpretq_s16_s32(vcombine_s32(vget_low_s32(u13.val[1]), vget_low_s32(u57.val[1])));
+	r[4] = vreinterpretq_s16_s32(vcombine_s32(vget_high_s32(u02.val[0]), vget_high_s32(u46.val[0])));
+	r[5] = vreinterpretq_s16_s32(vcombine_s32(vget_high_s32(u13.val[0]), vget_high_s32(u57.val[0])));
+	r[6] = vreinterpretq_s16_s32(vcombine_s32(vget_high_s32(u02.val[1]), vget_high_s32(u46.val[1])));
+	r[7] = vreinterpretq_s16_s32(vcombine_s32(vget_high_s32(u13.val[1]), vget_high_s32(u57.val[1])));
+}
+#elif defined(JPEG_SSE2)
+static inline void transpose8x8(DctVector* r) {
+	__m128i a0 = _mm_unpacklo_epi16(r[0], r[1]);
+	__m128i a1 = _mm_unpackhi_epi16(r[0], r[1]);
+	__m128i a2 = _mm_unpacklo_epi16(r[2], r[3]);
+	__m128i a3 = _mm_unpackhi_epi16(r[2], r[3]);
+	__m128i a4 = _mm_unpacklo_epi16(r[4], r[5]);
+	__m128i a5 = _mm_unpackhi_epi16(r[4], r[5]);
+	__m128i a6 = _mm_unpacklo_epi16(r[6], r[7]);
+	__m128i a7 = _mm_unpackhi_epi16(r[6], r[7]);
+	__m128i b0 = _mm_unpacklo_epi32(a0, a2);
+	__m128i b1 = _mm_unpackhi_epi32(a0, a2);
+	__m128i b2 = _mm_unpacklo_epi32(a1, a3);
+	__m128i b3 = _mm_unpackhi_epi32(a1, a3);
+	__m128i b4 = _mm_unpacklo_epi32(a4, a6);
+	__m128i b5 = _mm_unpackhi_epi32(a4, a6);
+	__m128i b6 = _mm_unpacklo_epi32(a5, a7);
+	__m128i b7 = _mm_unpackhi_epi32(a5, a7);
+	r[0] = _mm_unpacklo_epi64(b0, b4);
+	r[1] = _mm_unpackhi_epi64(b0, b4);
+	r[2] = _mm_unpacklo_epi64(b1, b5);
+	r[3] = _mm_unpackhi_epi64(b1, b5);
+	r[4] = _mm_unpacklo_epi64(b2, b6);
+	r[5] = _mm_unpackhi_epi64(b2, b6);
+	r[6] = _mm_unpacklo_epi64(b3, b7);
+	r[7] = _mm_unpackhi_epi64(b3, b7);
+}
+#endif
+
+/**
+ * Level shifts and transforms an 8x8 block of samples
+ *
+ * @param src       Top left sample of the block
+ * @param stride    Bytes between lines
+ * @param out       Receives the coefficients in natural order, scaled by 8 and AAN_SCALE
+ */
+static void forwardDct(const uint8_t* src, uint32_t stride, int16_t* out) {
+#if defined(JPEG_NEON) || defined(JPEG_SSE2)
+	DctVector rows[8];
+	for (int i = 0; i < 8; i++) {
+#if defined(JPEG_NEON)
+		uint16x8_t line = vmovl_u8(vld1_u8(src + i * stride));
+		rows[i] = vsubq_s16(vreinterpretq_s16_u16(line), vdupq_n_s16(128));
+#else
+		__m128i line = _mm_loadl_epi64((const __m128i*)(src + i * stride));
+		line = _mm_unpacklo_epi8(line, _mm_setzero_si128());
+		rows[i] = _mm_sub_epi16(line, _mm_set1_epi16(128));
+#endif
+	}
+
+	// Columns, then rows of the transposed block
+	fdct8(rows);
+	transpose8x8(rows);
+	fdct8(rows);
+	transpose8x8(rows);
+
+	for (int i = 0; i < 8; i++) {
+#if defined(JPEG_NEON)
+		vst1q_s16(out + i * 8, rows[i]);
+#else
+		_mm_storeu_si128((__m128i*)(out + i * 8), rows[i]);
+#endif
+	}
+#else
+	int32_t block[64];
+	int32_t d[8];
+	for (int i = 0; i < 8; i++) {
+		for (int j = 0; j < 8; j++) {
+			block[i * 8 + j] = (int32_t)src[i * stride + j] - 128;
+		}
+	}
+	for (int j = 0; j < 8; j++) {
+		for (int i = 0; i < 8; i++) {
+			d[i] = block[i * 8 + j];
+		}
+		fdct8(d);
+		for (int i = 0; i < 8; i++) {
+			block[i * 8 + j] = d[i];
+		}
+	}
+	for (int i = 0; i < 8; i++) {
+		fdct8(block + i * 8);
+		for (int j = 0; j < 8; j++) {
+			out[i * 8 + j] = (int16_t)block[i * 8 + j];
+		}
+	}
+#endif
+}
+
+static inline uint32_t bitLength(uint32_t value) {
+	return (value == 0) ? 0 : 32 - (uint32_t)__builtin_clz(value);
+}
+
+static inline void putMarker(std::vector<uint8_t>* out, uint8_t marker, uint16_t length) {
+	out->push_back(0xFF);
+	out->push_back(marker);
+	out->push_back((uint8_t)(length >> 8));
+	out->push_back((uint8_t)length);
+}
+
+/**
+ * @param quality       1 to 100, scaling the standard quantization tables as libjpeg does
+ * @param threadCount   Worker threads in addition to the thread calling encode()
+ */
+JpegEncoder::JpegEncoder(PixelFormat format, uint16_t width, uint16_t height, uint8_t quality,
+                         uint8_t threadCount) {
+	_format = format;
+	_width = width;
+	_height = height;
+	_mcuWidth = (format == PixelFormat::YUYV) ? 16 : 8;
+	_mcuColumns = (width + _mcuWidth - 1) / _mcuWidth;
+	_mcuRows = (height + 7) / 8;
+	_planeWidth = _mcuColumns * _mcuWidth;
+
+	if (quality < 1) {
+		quality = 1;
+	} else if (quality > 100) {
+		quality = 100;
+	}
+	uint32_t scale = (quality < 50) ? 5000u / quality : 200u - quality * 2u;
+	uint8_t quantTables[2][64];
+	for (int i = 0; i < 64; i++) {
+		const uint8_t* base[2] = {LUMA_QUANT, CHROMA_QUANT};
+		for (int t = 0; t < 2; t++) {
+			uint32_t value = (base[t][i] * scale + 50) / 100;
+			value = (value < 1) ? 1 : ((value > 255) ? 255 : value);
+			quantTables[t][i] = (uint8_t)value;
+
+			double divisor = value * AAN_SCALE[i / 8] * AAN_SCALE[i % 8] * 8.0;
+			_reciprocals[t][i] = (uint16_t)(32768.0 / divisor + 0.5);
+		}
+	}
+
+	buildHuffmanTable(&_dcTables[0], DC_LUMA_BITS, DC_VALUES);
+	buildHuffmanTable(&_dcTables[1], DC_CHROMA_BITS, DC_VALUES);
+	buildHuffmanTable(&_acTables[0], AC_LUMA_BITS, AC_LUMA_VALUES);
+	buildHuffmanTable(&_acTables[1], AC_CHROMA_BITS, AC_CHROMA_VALUES);
+	buildHeader(quantTables);
+
+	_workers = new WorkerPool(threadCount, "usbtv_jpeg");
+	_stripeCount = ((uint32_t)_workers->getThreadCount() + 1) * 2;
+	if (_stripeCount > _mcuRows) {
+		_stripeCount = _mcuRows;
+	}
+
+	// Planar copies of eight lines, chroma planes at half width
+	uint32_t planeSize = _planeWidth * 8;
+	if (format == PixelFormat::YUYV) {
+		planeSize *= 2;
+	}
+	uint32_t rowsPerStripe = (_mcuRows + _stripeCount - 1) / _stripeCount;
+	_stripes.resize(_stripeCount);
+	for (Stripe& stripe : _stripes) {
+		stripe.data.resize((size_t)rowsPerStripe * _mcuColumns * 128 + JPEG_MCU_MAX_BYTES);
+		stripe.length = 0;
+		stripe.bits = 0;
+		stripe.bitCount = 0;
+		stripe.planes.resize(planeSize);
+	}
+	_src = nullptr;
+}
+
+JpegEncoder::~JpegEncoder() {
+	delete _workers;
+}
+
+/**
+ * Encodes a frame
+ *
+ * @param src   Frame of the size and format the encoder was created for
+ * @param jpeg  Replaced with the JFIF image
+ * @return Size of the image in bytes
+ */
+uint32_t JpegEncoder::encode(const uint8_t *src, std::vector<uint8_t> *jpeg) {
+	_src = src;
+	_workers->run(_stripeCount, [this](uint32_t stripe) {
+		encodeStripe(stripe);
+	});
+	_src = nullptr;
+
+	size_t size = _header.size() + 2;
+	for (const Stripe& stripe : _stripes) {
+		size += stripe.length;
+	}
+	jpeg->resize(size);
+
+	uint8_t* dst = &(*jpeg)[0];
+	memcpy(dst, &_header[0], _header.size());
+	dst += _header.size();
+	for (const Stripe& stripe : _stripes) {
+		memcpy(dst, &stripe.data[0], stripe.length);
+		dst += stripe.length;
+	}
+	dst[0] = 0xFF;      // EOI
+	dst[1] = 0xD9;
+	return (uint32_t)size;
+}
+
+/**
+ * Assigns canonical Huffman codes to the symbols of a table
+ */
+void JpegEncoder::buildHuffmanTable(HuffmanTable *table, const uint8_t *bits,
+                                    const uint8_t *values) {
+	memset(table, 0, sizeof(HuffmanTable));
+	uint32_t code = 0;
+	uint32_t index = 0;
+	for (uint32_t length = 1; length <= 16; length++) {
+		for (uint32_t i = 0; i < bits[length - 1]; i++) {
+			table->code[values[index]] = (uint16_t)code;
+			table->size[values[index]] = (uint8_t)length;
+			index++;
+			code++;
+		}
+		code <<= 1;
+	}
+}
+
+/**
+ * Builds the markers preceding the entropy coded data: JFIF, quantization and Huffman
+ * tables, the frame header, the restart interval and the scan header
+ */
+void JpegEncoder::buildHeader(const uint8_t quantTables[2][64]) {
+	std::vector<uint8_t>& h = _header;
+	bool color = (_format == PixelFormat::YUYV);
+	uint8_t components = color ? 3 : 1;
+	uint8_t tables = color ? 2 : 1;
+
+	h.push_back(0xFF);
+	h.push_back(0xD8);
+
+	static const uint8_t JFIF[] = {'J', 'F', 'I', 'F', 0, 1, 1, 0, 0, 1, 0, 1, 0, 0};
+	putMarker(&h, 0xE0, 2 + sizeof(JFIF));
+	h.insert(h.end(), JFIF, JFIF + sizeof(JFIF));
+
+	putMarker(&h, 0xDB, (uint16_t)(2 + 65 * tables));
+	for (uint8_t t = 0; t < tables; t++) {
+		h.push_back(t);
+		for (int k = 0; k < 64; k++) {
+			h.push_back(quantTables[t][ZIGZAG[k]]);
+		}
+	}
+
+	putMarker(&h, 0xC0, (uint16_t)(8 + 3 * components));
+	h.push_back(8);
+	h.push_back((uint8_t)(_height >> 8));
+	h.push_back((uint8_t)_height);
+	h.push_back((uint8_t)(_width >> 8));
+	h.push_back((uint8_t)_width);
+	h.push_back(components);
+	for (uint8_t c = 0; c < components; c++) {
+		h.push_back((uint8_t)(c + 1));
+		h.push_back((c == 0 && color) ? 0x21 : 0x11);      // Luma is sampled 2x1 with color
+		h.push_back((c == 0) ? 0 : 1);
+	}
+
+	const uint8_t* bits[4] = {DC_LUMA_BITS, AC_LUMA_BITS, DC_CHROMA_BITS, AC_CHROMA_BITS};
+	const uint8_t* values[4] = {DC_VALUES, AC_LUMA_VALUES, DC_VALUES, AC_CHROMA_VALUES};
+	const uint8_t classes[4] = {0x00, 0x10, 0x01, 0x11};
+	uint32_t length = 2;
+	for (uint8_t i = 0; i < tables * 2; i++) {
+		length += 17;
+		for (int k = 0; k < 16; k++) {
+			length += bits[i][k];
+		}
+	}
+	putMarker(&h, 0xC4, (uint16_t)length);
+	for (uint8_t i = 0; i < tables * 2; i++) {
+		uint32_t count = 0;
+		h.push_back(classes[i]);
+		for (int k = 0; k < 16; k++) {
+			h.push_back(bits[i][k]);
+			count += bits[i][k];
+		}
+		h.insert(h.end(), values[i], values[i] + count);
+	}
+
+	putMarker(&h, 0xDD, 4);
+	h.push_back((uint8_t)(_mcuColumns >> 8));
+	h.push_back((uint8_t)_mcuColumns);
+
+	putMarker(&h, 0xDA, (uint16_t)(6 + 2 * components));
+	h.push_back(components);
+	for (uint8_t c = 0; c < components; c++) {
+		h.push_back((uint8_t)(c + 1));
+		h.push_back((c == 0) ? 0x00 : 0x11);
+	}
+	h.push_back(0);         // Spectral selection 0 to 63, no successive approximation
+	h.push_back(63);
+	h.push_back(0);
+}
+
+/**
+ * Entropy codes a stripe of MCU rows, each as its own restart interval
+ */
+void JpegEncoder::encodeStripe(uint32_t stripe) {
+	Stripe* s = &_stripes[stripe];
+	s->length = 0;
+	s->bits = 0;
+	s->bitCount = 0;
+
+	uint32_t rowsPerStripe = (_mcuRows + _stripeCount - 1) / _stripeCount;
+	uint32_t start = stripe * rowsPerStripe;
+	uint32_t end = start + rowsPerStripe;
+	if (end > _mcuRows) {
+		end = _mcuRows;
+	}
+
+	uint8_t* luma = &s->planes[0];
+	uint8_t* cb = luma + _planeWidth * 8;
+	uint8_t* cr = cb + _planeWidth / 2 * 8;
+	for (uint32_t row = start; row < end; row++) {
+		loadRows(row, luma);
+
+		int32_t lastDc[3] = {0, 0, 0};
+		for (uint32_t column = 0; column < _mcuColumns; column++) {
+			if (s->data.size() - s->length < JPEG_MCU_MAX_BYTES) {
+				s->data.resize(s->data.size() * 2);
+			}
+
+			if (_format == PixelFormat::YUYV) {
+				encodeBlock(s, luma + column * 16, _planeWidth, 0, &lastDc[0]);
+				encodeBlock(s, luma + column * 16 + 8, _planeWidth, 0, &lastDc[0]);
+				encodeBlock(s, cb + column * 8, _planeWidth / 2, 1, &lastDc[1]);
+				encodeBlock(s, cr + column * 8, _planeWidth / 2, 1, &lastDc[2]);
+			} else {
+				encodeBlock(s, luma + column * 8, _planeWidth, 0, &lastDc[0]);
+			}
+		}
+
+		flushBits(s);
+		if (row + 1 < _mcuRows) {
+			s->data[s->length++] = 0xFF;
+			s->data[s->length++] = (uint8_t)(0xD0 + (row & 7));
+		}
+	}
+}
+
+/**
+ * Copies the eight lines of an MCU row to planes padded to whole MCUs.  Lines and samples
+ * past the edge of the frame repeat the last ones.
+ */
+void JpegEncoder::loadRows(uint32_t mcuRow, uint8_t *planes) {
+	bool color = (_format == PixelFormat::YUYV);
+	uint32_t lineSize = color ? _width * 2u : _width;
+	uint32_t chromaWidth = _planeWidth / 2;
+	uint8_t* cb = planes + _planeWidth * 8;
+	uint8_t* cr = cb + chromaWidth * 8;
+
+	for (uint32_t i = 0; i < 8; i++) {
+		uint32_t line = mcuRow * 8 + i;
+		if (line >= _height) {
+			line = _height - 1u;
+		}
+		const uint8_t* src = _src + (size_t)line * lineSize;
+		uint8_t* luma = planes + i * _planeWidth;
+
+		if (color) {
+			uint8_t* u = cb + i * chromaWidth;
+			uint8_t* v = cr + i * chromaWidth;
+			splitPlanes(luma, u, v, src, _width);
+			memset(u + _width / 2, u[_width / 2 - 1], chromaWidth - _width / 2);
+			memset(v + _width / 2, v[_width / 2 - 1], chromaWidth - _width / 2);
+		} else {
+			memcpy(luma, src, _width);
+		}
+		memset(luma + _width, luma[_width - 1], _planeWidth - _width);
+	}
+}
+
+/**
+ * Transforms, quantizes and Huffman codes one block
+ *
+ * @param table     0 for luma, 1 for chroma
+ * @param lastDc    DC value of the previous block of the component, updated
+ */
+void JpegEncoder::encodeBlock(Stripe *stripe, const uint8_t *src, uint32_t stride,
+                              uint32_t table, int32_t *lastDc) {
+	int16_t coefficients[64];
+	forwardDct(src, stride, coefficients);
+
+	const uint16_t* reciprocals = _reciprocals[table];
+	int32_t quantized[64];
+	for (int k = 0; k < 64; k++) {
+		uint32_t natural = ZIGZAG[k];
+		int32_t value = coefficients[natural];
+		int32_t magnitude = (((value < 0) ? -value : value) * reciprocals[natural] + 16384) >> 15;
+		// Baseline allows 10 bit AC values
+		if (magnitude > 1023) {
+			magnitude = 1023;
+		}
+		quantized[k] = (value < 0) ? -magnitude : magnitude;
+	}
+
+	const HuffmanTable& dc = _dcTables[table];
+	const HuffmanTable& ac = _acTables[table];
+
+	int32_t diff = quantized[0] - *lastDc;
+	*lastDc = quantized[0];
+	uint32_t magnitude = (uint32_t)((diff < 0) ? -diff : diff);
+	uint32_t length = bitLength(magnitude);
+	putBits(stripe, dc.code[length], dc.size[length]);
+	if (length > 0) {
+		putBits(stripe, (uint32_t)(diff < 0 ? diff - 1 : diff) & ((1u << length) - 1), length);
+	}
+
+	uint32_t run = 0;
+	for (int k = 1; k < 64; k++) {
+		int32_t value = quantized[k];
+		if (value == 0) {
+			run++;
+			continue;
+		}
+		while (run > 15) {
+			putBits(stripe, ac.code[0xF0], ac.size[0xF0]);
+			run -= 16;
+		}
+		magnitude = (uint32_t)((value < 0) ? -value : value);
+		length = bitLength(magnitude);
+		uint32_t symbol = (run << 4) | length;
+		putBits(stripe, ac.code[symbol], ac.size[symbol]);
+		putBits(stripe, (uint32_t)(value < 0 ? value - 1 : value) & ((1u << length) - 1), length);
+		run = 0;
+	}
+	if (run > 0) {
+		putBits(stripe, ac.code[0x00], ac.size[0x00]);     // End of block
+	}
+}
+
+/**
+ * Appends bits to the stripe's entropy coded data, stuffing a zero after each 0xFF byte
+ */
+void JpegEncoder::putBits(Stripe *stripe, uint32_t bits, uint32_t count) {
+	stripe->bits = (stripe->bits << count) | bits;
+	stripe->bitCount += count;
+	while (stripe->bitCount >= 8) {
+		stripe->bitCount -= 8;
+		uint8_t byte = (uint8_t)(stripe->bits >> stripe->bitCount);
+		stripe->data[stripe->length++] = byte;
+		if (byte == 0xFF) {
+			stripe->data[stripe->length++] = 0;
+		}
+	}
+}
+
+/**
+ * Pads the last byte of an interval with one bits
+ */
+void JpegEncoder::flushBits(Stripe *stripe) {
+	if (stripe->bitCount > 0) {
+		uint32_t pad = 8 - stripe->bitCount;
+		putBits(stripe, (1u << pad) - 1, pad);
+	}
+	stripe->bits = 0;
+}
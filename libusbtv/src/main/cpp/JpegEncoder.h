@@ -0,0 +1,86 @@
+// Copyright (C) 2020 Eric Callahan <arksine.code@gmail.com>
+//
+// This file may be distributed under the terms of the GNU GPLv3 license
+//
+// Baseline JPEG encoder for YUYV and Y8 frames.  YUYV is already 4:2:2, so frames are coded
+// as YCbCr with 16x8 MCUs and no chroma resampling, Y8 frames as greyscale.  The standard
+// Huffman tables are used, so no statistics pass is needed.
+//
+// The forward DCT is the AAN algorithm in 16 bit fixed point, transforming all eight
+// columns (then rows) of a block at once with NEON or SSE2 where available.  Its output
+// scale factors are folded into the quantization reciprocals.
+//
+// Every MCU row is a restart interval, so rows are entropy coded independently in stripes
+// on a WorkerPool and the stripes are joined with their restart markers in order.
+//
+
+#ifndef USBTV007_ANDROID_JPEGENCODER_H
+#define USBTV007_ANDROID_JPEGENCODER_H
+
+#include <cstdint>
+#include <vector>
+#include "usbtv_definitions.h"
+#include "WorkerPool.h"
+
+#define USBTV_JPEG_MAX_THREADS      4
+#define USBTV_JPEG_DEFAULT_QUALITY  75
+
+class JpegEncoder {
+private:
+	struct HuffmanTable {
+		uint16_t    code[256];
+		uint8_t     size[256];
+	};
+
+	// Entropy coded output of a stripe of MCU rows, and its planar copy of the rows
+	struct Stripe {
+		std::vector<uint8_t>    data;
+		uint32_t                length;
+		uint64_t                bits;
+		uint32_t                bitCount;
+		std::vector<uint8_t>    planes;
+	};
+
+	PixelFormat _format;
+	uint16_t    _width;
+	uint16_t    _height;
+	uint32_t    _mcuWidth;
+	uint32_t    _mcuColumns;
+	uint32_t    _mcuRows;
+	uint32_t    _planeWidth;        // Luma samples per padded line
+
+	std::vector<uint8_t>    _header;
+	uint16_t        _reciprocals[2][64];    // Luma and chroma, Q15, natural order
+	HuffmanTable    _dcTables[2];
+	HuffmanTable    _acTables[2];
+
+	WorkerPool*         _workers;
+	uint32_t            _stripeCount;
+	std::vector<Stripe> _stripes;
+
+	// Frame being encoded, read by the stripe jobs
+	const uint8_t*  _src;
+
+	static void buildHuffmanTable(HuffmanTable* table, const uint8_t* bits, const uint8_t* values);
+	void buildHeader(const uint8_t quantTables[2][64]);
+	void encodeStripe(uint32_t stripe);
+	void loadRows(uint32_t mcuRow, uint8_t* planes);
+	void encodeBlock(Stripe* stripe, const uint8_t* src, uint32_t stride, uint32_t table,
+	                 int32_t* lastDc);
+	static void putBits(Stripe* stripe, uint32_t bits, uint32_t count);
+	static void flushBits(Stripe* stripe);
+
+public:
+	JpegEncoder(PixelFormat format, uint16_t width, uint16_t height, uint8_t quality,
+	            uint8_t threadCount);
+	~JpegEncoder();
+
+	uint32_t encode(const uint8_t* src, std::vector<uint8_t>* jpeg);
+
+	uint16_t getWidth() { return _width; }
+	uint16_t getHeight() { return _height; }
+	PixelFormat getFormat() { return _format; }
+};
+
+
+#endif //USBTV007_ANDROID_JPEGENCODER_H
@@ -0,0 +1,479 @@
+// Copyright (C) 2020 Eric Callahan <arksine.code@gmail.com>
+//
+// This file may be distributed under the terms of the GNU GPLv3 license
+
+#include "MjpegServer.h"
+#include "Tracer.h"
+#include "util.h"
+#include <cerrno>
+#include <cstddef>
+#include <cstdio>
+#include <fcntl.h>
+#include <poll.h>
+#include <unistd.h>
+#include <arpa/inet.h>
+#include <netinet/in.h>
+#include <netinet/tcp.h>
+#include <sys/socket.h>
+
+#define MJPEG_POLL_MS           200
+#define MJPEG_REQUEST_TIMEOUT_S 2
+#define MJPEG_SEND_TIMEOUT_S    10
+#define MJPEG_SNAPSHOT_WAIT_MS  2000
+#define MJPEG_FRAME_WAIT_MS     1000
+
+// Limits the images queued in the kernel for a slow viewer, so it is sent recent frames
+// rather than a backlog
+#define MJPEG_SEND_BUFFER_SIZE  (128 * 1024)
+
+MjpegServer::MjpegServer() {
+	_running = false;
+	_quality = USBTV_JPEG_DEFAULT_QUALITY;
+	_minIntervalNs = 0;
+	_listenFd = -1;
+	_port = 0;
+	_acceptThread = nullptr;
+	_encoderThread = nullptr;
+	_writeSlot = 0;
+	_readySlot = 1;
+	_encodeSlot = 2;
+	_frameReady = false;
+	_lastStagedNs = 0;
+	_encoder = nullptr;
+	_clientCount = 0;
+	_encodedFrames = 0;
+	_replacedFrames = 0;
+	_encodeTimeNs = 0;
+}
+
+MjpegServer::~MjpegServer() {
+	stop();
+}
+
+/**
+ * Starts listening for viewers
+ *
+ * @param port          TCP port, or 0 for any free port (see getPort())
+ * @param accessToken   NULL to only accept viewers on loopback.  Otherwise the server listens
+ *                      on all interfaces, and requests must carry this token.
+ * @param quality       JPEG quality, 1 to 100
+ * @param maxFrameRate  Most frames encoded per second, 0 to encode every frame the encoder
+ *                      keeps up with
+ * @return true if the server is listening
+ */
+bool MjpegServer::start(uint16_t port, const char* accessToken, uint8_t quality,
+                        uint8_t maxFrameRate) {
+	if (_running) {
+		LOGE("MJPEG server is already running");
+		return false;
+	}
+
+	bool allowRemote = (accessToken != nullptr);
+	if (allowRemote && strlen(accessToken) < USBTV_MJPEG_MIN_TOKEN_LENGTH) {
+		LOGE("MJPEG server access token must be at least %d characters",
+		     USBTV_MJPEG_MIN_TOKEN_LENGTH);
+		return false;
+	}
+
+	_listenFd = socket(AF_INET, SOCK_STREAM | SOCK_CLOEXEC, 0);
+	if (_listenFd < 0) {
+		LOGE("Unable to create MJPEG server socket: %s", strerror(errno));
+		return false;
+	}
+
+	int enable = 1;
+	setsockopt(_listenFd, SOL_SOCKET, SO_REUSEADDR, &enable, sizeof(enable));
+	sockaddr_in address;
+	CLEAR(address);
+	address.sin_family = AF_INET;
+	address.sin_port = htons(port);
+	address.sin_addr.s_addr = htonl(allowRemote ? INADDR_ANY : INADDR_LOOPBACK);
+	socklen_t length = sizeof(address);
+	if (bind(_listenFd, (sockaddr*)&address, sizeof(address)) != 0 ||
+	    listen(_listenFd, USBTV_MJPEG_MAX_CLIENTS) != 0 ||
+	    getsockname(_listenFd, (sockaddr*)&address, &length) != 0) {
+		LOGE("Unable to listen on port %d: %s", port, strerror(errno));
+		::close(_listenFd);
+		_listenFd = -1;
+		return false;
+	}
+	_port = ntohs(address.sin_port);
+	_accessToken = allowRemote ? accessToken : "";
+
+	_quality = quality;
+	// Allow for jitter in capture times, so a limit equal to the capture rate drops nothing
+	_minIntervalNs = (maxFrameRate > 0) ? 900000000ULL / maxFrameRate : 0;
+	{
+		std::lock_guard<std::mutex> lock(_stagingMutex);
+		_writeSlot = 0;
+		_readySlot = 1;
+		_encodeSlot = 2;
+		_frameReady = false;
+		_lastStagedNs = 0;
+	}
+	_encodedFrames = 0;
+	_replacedFrames = 0;
+	_encodeTimeNs = 0;
+
+	_running = true;
+	_encoderThread = new std::thread(&MjpegServer::encoderLoop, this);
+	_acceptThread = new std::thread(&MjpegServer::acceptLoop, this);
+
+	if (allowRemote) {
+		LOGI("MJPEG server listening on 0.0.0.0:%d.  The stream is unencrypted and can be "
+		     "watched by anyone on the network who learns the token.", _port);
+	} else {
+		LOGD("MJPEG server listening on 127.0.0.1:%d", _port);
+	}
+	return true;
+}
+
+/**
+ * Disconnects every viewer and stops the server
+ */
+void MjpegServer::stop() {
+	if (!_running.exchange(false)) {
+		return;
+	}
+
+	// Waiters check _running while holding their mutex
+	{
+		std::lock_guard<std::mutex> lock(_stagingMutex);
+		_stagingCondition.notify_all();
+	}
+	{
+		std::lock_guard<std::mutex> lock(_frameMutex);
+		_frameCondition.notify_all();
+	}
+
+	shutdown(_listenFd, SHUT_RDWR);
+	_acceptThread->join();
+	delete _acceptThread;
+	_acceptThread = nullptr;
+	::close(_listenFd);
+	_listenFd = -1;
+
+	reapClients(true);
+
+	_encoderThread->join();
+	delete _encoderThread;
+	_encoderThread = nullptr;
+	delete _encoder;
+	_encoder = nullptr;
+	_latest.reset();
+
+	LOGD("MJPEG server stopped.  Frames encoded: %d, Frames replaced: %d, Encode time: %.2f ms",
+	     _encodedFrames, _replacedFrames, getAverageEncodeMs());
+}
+
+/**
+ * Stages a copy of a delivered frame for the encoder.  Called from the frame process
+ * thread, this only waits for the encoder to swap buffers.  Frames are not staged while no
+ * viewer is connected, or faster than the maximum frame rate.
+ *
+ * @return true if the frame was staged
+ */
+bool MjpegServer::submit(const UsbTvFrame *frame) {
+	if (!_running || _clientCount == 0) {
+		return false;
+	}
+	if (_minIntervalNs > 0 && frame->timestampNs - _lastStagedNs < _minIntervalNs) {
+		return false;
+	}
+	_lastStagedNs = frame->timestampNs;
+
+	// Only this thread changes _writeSlot
+	StagedFrame& staged = _staged[_writeSlot];
+	{
+		TRACE_SCOPE(MJPEG_STAGE, frame->frameId);
+		staged.data.resize(frame->params->bufferSize);
+		memcpy(&staged.data[0], frame->buffer, frame->params->bufferSize);
+	}
+	staged.params = *frame->params;
+	staged.frameId = frame->frameId;
+	staged.timestampNs = frame->timestampNs;
+
+	{
+		std::lock_guard<std::mutex> lock(_stagingMutex);
+		if (_frameReady) {
+			_replacedFrames++;
+		}
+		std::swap(_writeSlot, _readySlot);
+		_frameReady = true;
+	}
+	_stagingCondition.notify_one();
+	return true;
+}
+
+/**
+ * Encodes the newest staged frame and publishes it to the client threads, until stopped
+ */
+void MjpegServer::encoderLoop() {
+	TRACE_THREAD_NAME("usbtv_mjpeg_encode");
+
+	while (true) {
+		{
+			std::unique_lock<std::mutex> lock(_stagingMutex);
+			_stagingCondition.wait(lock, [this] { return _frameReady || !_running; });
+			if (!_running) {
+				break;
+			}
+			std::swap(_readySlot, _encodeSlot);
+			_frameReady = false;
+		}
+
+		const StagedFrame& staged = _staged[_encodeSlot];
+		const FrameParams& params = staged.params;
+		if (_encoder == nullptr || _encoder->getWidth() != params.frameWidth ||
+		    _encoder->getHeight() != params.frameHeight ||
+		    _encoder->getFormat() != params.pixelFormat) {
+			delete _encoder;
+			_encoder = new JpegEncoder(params.pixelFormat, params.frameWidth, params.frameHeight,
+			                           _quality,
+			                           WorkerPool::defaultThreadCount(USBTV_JPEG_MAX_THREADS));
+		}
+
+		std::shared_ptr<EncodedFrame> encoded = std::make_shared<EncodedFrame>();
+		uint64_t startNs = getSteadyTimeNs();
+		{
+			TRACE_SCOPE(JPEG_ENCODE, staged.frameId);
+			_encoder->encode(&staged.data[0], &encoded->jpeg);
+		}
+		_encodeTimeNs += getSteadyTimeNs() - startNs;
+		_encodedFrames++;
+		encoded->sequence = _encodedFrames;
+		encoded->frameId = staged.frameId;
+		encoded->timestampNs = staged.timestampNs;
+
+		{
+			std::lock_guard<std::mutex> lock(_frameMutex);
+			_latest = encoded;
+		}
+		_frameCondition.notify_all();
+	}
+}
+
+/**
+ * Accepts viewers, each served by its own thread, and reaps those that disconnected
+ */
+void MjpegServer::acceptLoop() {
+	TRACE_THREAD_NAME("usbtv_mjpeg_accept");
+
+	while (_running) {
+		pollfd listener = {_listenFd, POLLIN, 0};
+		int ready = poll(&listener, 1, MJPEG_POLL_MS);
+		reapClients(false);
+		if (ready <= 0 || !_running) {
+			continue;
+		}
+
+		int fd = accept(_listenFd, nullptr, nullptr);
+		if (fd < 0) {
+			continue;
+		}
+		fcntl(fd, F_SETFD, FD_CLOEXEC);
+
+		if (_clientCount >= USBTV_MJPEG_MAX_CLIENTS) {
+			static const char BUSY[] = "HTTP/1.0 503 Service Unavailable\r\n"
+			                           "Connection: close\r\n\r\n";
+			sendAll(fd, BUSY, sizeof(BUSY) - 1);
+			::close(fd);
+			continue;
+		}
+
+		int enable = 1;
+		setsockopt(fd, IPPROTO_TCP, TCP_NODELAY, &enable, sizeof(enable));
+		int bufferSize = MJPEG_SEND_BUFFER_SIZE;
+		setsockopt(fd, SOL_SOCKET, SO_SNDBUF, &bufferSize, sizeof(bufferSize));
+		timeval timeout = {MJPEG_REQUEST_TIMEOUT_S, 0};
+		setsockopt(fd, SOL_SOCKET, SO_RCVTIMEO, &timeout, sizeof(timeout));
+		timeout.tv_sec = MJPEG_SEND_TIMEOUT_S;
+		setsockopt(fd, SOL_SOCKET, SO_SNDTIMEO, &timeout, sizeof(timeout));
+
+		Client* client = new Client();
+		client->fd = fd;
+		client->finished = false;
+		std::lock_guard<std::mutex> lock(_clientMutex);
+		_clientCount++;
+		client->thread = new std::thread(&MjpegServer::clientLoop, this, client);
+		_clients.push_back(client);
+	}
+}
+
+/**
+ * Returns true if no token is needed or the request line carries it.  The comparison takes
+ * the same time wherever the token differs.
+ */
+bool MjpegServer::isAuthorized(const char* request) {
+	if (_accessToken.empty()) {
+		return true;
+	}
+
+	const char* target = request + 4;
+	const char* end = strpbrk(target, " \r\n");
+	const char* query = strchr(target, '?');
+	if (end == nullptr || query == nullptr || query > end) {
+		return false;
+	}
+	for (const char* param = query + 1; param < end; ) {
+		const char* paramEnd = strchr(param, '&');
+		if (paramEnd == nullptr || paramEnd > end) {
+			paramEnd = end;
+		}
+		if (paramEnd - param == (ptrdiff_t)(6 + _accessToken.size()) &&
+		    strncmp(param, "token=", 6) == 0) {
+			uint8_t difference = 0;
+			for (size_t i = 0; i < _accessToken.size(); i++) {
+				difference |= (uint8_t)(param[6 + i] ^ _accessToken[i]);
+			}
+			return difference == 0;
+		}
+		param = paramEnd + 1;
+	}
+	return false;
+}
+
+/**
+ * Reads a viewer's request and sends it either the latest frame or the stream
+ */
+void MjpegServer::clientLoop(Client *client) {
+	TRACE_THREAD_NAME("usbtv_mjpeg_client");
+
+	// Only the request line matters, the rest of the request is ignored
+	char request[1024];
+	size_t received = 0;
+	while (received < sizeof(request) - 1) {
+		ssize_t count = recv(client->fd, request + received, sizeof(request) - 1 - received, 0);
+		if (count <= 0) {
+			break;
+		}
+		received += (size_t)count;
+		request[received] = '\0';
+		if (strstr(request, "\r\n\r\n") != nullptr || strstr(request, "\n\n") != nullptr) {
+			break;
+		}
+	}
+	request[received] = '\0';
+
+	char header[256];
+	if (strncmp(request, "GET ", 4) != 0) {
+		static const char BAD_REQUEST[] = "HTTP/1.0 405 Method Not Allowed\r\n"
+		                                  "Connection: close\r\n\r\n";
+		sendAll(client->fd, BAD_REQUEST, sizeof(BAD_REQUEST) - 1);
+	} else if (!isAuthorized(request)) {
+		static const char FORBIDDEN[] = "HTTP/1.0 403 Forbidden\r\n"
+		                                "Connection: close\r\n\r\n";
+		sendAll(client->fd, FORBIDDEN, sizeof(FORBIDDEN) - 1);
+	} else if (strncmp(request + 4, "/snapshot", 9) == 0) {
+		std::shared_ptr<const EncodedFrame> frame = waitForFrame(0, MJPEG_SNAPSHOT_WAIT_MS);
+		if (frame == nullptr) {
+			static const char UNAVAILABLE[] = "HTTP/1.0 503 Service Unavailable\r\n"
+			                                  "Connection: close\r\n\r\n";
+			sendAll(client->fd, UNAVAILABLE, sizeof(UNAVAILABLE) - 1);
+		} else {
+			int length = snprintf(header, sizeof(header),
+			                      "HTTP/1.0 200 OK\r\nContent-Type: image/jpeg\r\n"
+			                      "Content-Length: %u\r\nCache-Control: no-cache\r\n"
+			                      "Connection: close\r\n\r\n", (uint32_t)frame->jpeg.size());
+			if (sendAll(client->fd, header, (size_t)length)) {
+				sendAll(client->fd, &frame->jpeg[0], frame->jpeg.size());
+			}
+		}
+	} else {
+		static const char STREAM[] = "HTTP/1.0 200 OK\r\n"
+		                             "Content-Type: multipart/x-mixed-replace; boundary="
+		                             USBTV_MJPEG_BOUNDARY "\r\n"
+		                             "Cache-Control: no-cache\r\nConnection: close\r\n\r\n";
+		bool connected = sendAll(client->fd, STREAM, sizeof(STREAM) - 1);
+		uint64_t lastSequence = 0;
+		while (connected && _running) {
+			std::shared_ptr<const EncodedFrame> frame = waitForFrame(lastSequence,
+			                                                         MJPEG_FRAME_WAIT_MS);
+			if (frame == nullptr) {
+				continue;
+			}
+
+			TRACE_SCOPE(MJPEG_SEND, (uint32_t)frame->jpeg.size());
+			int length = snprintf(header, sizeof(header),
+			                      "--" USBTV_MJPEG_BOUNDARY "\r\nContent-Type: image/jpeg\r\n"
+			                      "Content-Length: %u\r\nX-Frame-Id: %u\r\n"
+			                      "X-Timestamp-Ns: %llu\r\n\r\n", (uint32_t)frame->jpeg.size(),
+			                      frame->frameId, (unsigned long long)frame->timestampNs);
+			connected = sendAll(client->fd, header, (size_t)length) &&
+			            sendAll(client->fd, &frame->jpeg[0], frame->jpeg.size()) &&
+			            sendAll(client->fd, "\r\n", 2);
+			lastSequence = frame->sequence;
+		}
+	}
+
+	// The socket is closed once the thread is joined
+	_clientCount--;
+	std::lock_guard<std::mutex> lock(_clientMutex);
+	client->finished = true;
+}
+
+/**
+ * Joins the threads of viewers that disconnected, or with all set, disconnects and joins
+ * every viewer
+ */
+void MjpegServer::reapClients(bool all) {
+	std::list<Client*> finished;
+	{
+		std::lock_guard<std::mutex> lock(_clientMutex);
+		for (auto it = _clients.begin(); it != _clients.end();) {
+			Client* client = *it;
+			if (all || client->finished) {
+				if (all) {
+					shutdown(client->fd, SHUT_RDWR);
+				}
+				finished.push_back(client);
+				it = _clients.erase(it);
+			} else {
+				++it;
+			}
+		}
+	}
+
+	for (Client* client : finished) {
+		client->thread->join();
+		delete client->thread;
+		::close(client->fd);
+		delete client;
+	}
+}
+
+/**
+ * Waits for an encoded frame newer than the one last sent
+ *
+ * @return The latest frame, or NULL on timeout or once the server is stopped
+ */
+std::shared_ptr<const MjpegServer::EncodedFrame> MjpegServer::waitForFrame(uint64_t lastSequence,
+                                                                           uint32_t timeoutMs) {
+	std::unique_lock<std::mutex> lock(_frameMutex);
+	bool ready = _frameCondition.wait_for(lock, std::chrono::milliseconds(timeoutMs), [&] {
+		return !_running || (_latest != nullptr && _latest->sequence != lastSequence);
+	});
+	if (!ready || !_running) {
+		return nullptr;
+	}
+	return _latest;
+}
+
+/**
+ * Sends all of a buffer, without raising SIGPIPE if the viewer has gone
+ */
+bool MjpegServer::sendAll(int fd, const void *data, size_t length) {
+	const uint8_t* bytes = (const uint8_t*)data;
+	while (length > 0) {
+		ssize_t sent = send(fd, bytes, length, MSG_NOSIGNAL);
+		if (sent < 0) {
+			if (errno == EINTR) {
+				continue;
+			}
+			return false;
+		}
+		bytes += sent;
+		length -= (size_t)sent;
+	}
+	return true;
+}
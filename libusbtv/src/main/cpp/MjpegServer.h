@@ -0,0 +1,127 @@
+// Copyright (C) 2020 Eric Callahan <arksine.code@gmail.com>
+//
+// This file may be distributed under the terms of the GNU GPLv3 license
+//
+// Serves delivered frames as an MJPEG stream over HTTP, for viewing from a browser or
+// player on the local network.  GET / (or any path) returns a multipart/x-mixed-replace
+// stream, GET /snapshot.jpg the latest frame alone.
+//
+// The frame process thread only copies a frame into a triple buffer, so it never waits for
+// the encoder.  An encoder thread compresses the newest staged frame with a JpegEncoder,
+// frames staged while it is busy are replaced rather than queued, and publishes the image
+// as the latest frame.  Each client is served by its own thread that always sends the
+// latest frame and skips any it missed, so a slow viewer only lowers its own frame rate.
+// Frames are not encoded while no client is connected.
+//
+// By default only viewers on the device itself are accepted.  Given an access token the
+// server listens on every interface and only answers requests carrying it as the token
+// query parameter, eg. GET /?token=<token>.  The stream is plain HTTP, so the token and the
+// video are visible to anyone on the network.
+//
+
+#ifndef USBTV007_ANDROID_MJPEGSERVER_H
+#define USBTV007_ANDROID_MJPEGSERVER_H
+
+#include <atomic>
+#include <condition_variable>
+#include <cstdint>
+#include <list>
+#include <memory>
+#include <mutex>
+#include <string>
+#include <thread>
+#include <vector>
+#include "usbtv_definitions.h"
+#include "JpegEncoder.h"
+
+#define USBTV_MJPEG_MAX_CLIENTS     8
+#define USBTV_MJPEG_BOUNDARY        "usbtvframe"
+#define USBTV_MJPEG_MIN_TOKEN_LENGTH    16
+
+class MjpegServer {
+private:
+	struct StagedFrame {
+		std::vector<uint8_t>    data;
+		FrameParams             params;
+		uint32_t                frameId;
+		uint64_t                timestampNs;
+	};
+
+	struct EncodedFrame {
+		std::vector<uint8_t>    jpeg;
+		uint64_t                sequence;
+		uint32_t                frameId;
+		uint64_t                timestampNs;
+	};
+
+	struct Client {
+		int             fd;
+		std::thread*    thread;
+		bool            finished;
+	};
+
+	std::atomic<bool>   _running;
+	uint8_t             _quality;
+	uint64_t            _minIntervalNs;
+	int                 _listenFd;
+	uint16_t            _port;
+	std::string         _accessToken;       // Empty when only loopback is accepted
+	std::thread*        _acceptThread;
+	std::thread*        _encoderThread;
+
+	// Triple buffer.  The process thread fills _staged[_writeSlot], then swaps it with the
+	// ready slot.  The encoder swaps the ready slot with _encodeSlot.
+	std::mutex              _stagingMutex;
+	std::condition_variable _stagingCondition;
+	StagedFrame             _staged[3];
+	int                     _writeSlot;
+	int                     _readySlot;
+	int                     _encodeSlot;
+	bool                    _frameReady;
+	uint64_t                _lastStagedNs;
+
+	// Latest encoded frame, shared by the client threads
+	std::mutex              _frameMutex;
+	std::condition_variable _frameCondition;
+	std::shared_ptr<const EncodedFrame> _latest;
+	JpegEncoder*            _encoder;
+
+	std::mutex              _clientMutex;
+	std::list<Client*>      _clients;
+	std::atomic<uint32_t>   _clientCount;
+
+	uint32_t                _encodedFrames;
+	uint32_t                _replacedFrames;
+	uint64_t                _encodeTimeNs;
+
+	void acceptLoop();
+	void encoderLoop();
+	void clientLoop(Client* client);
+	void reapClients(bool all);
+	bool isAuthorized(const char* request);
+	std::shared_ptr<const EncodedFrame> waitForFrame(uint64_t lastSequence, uint32_t timeoutMs);
+	static bool sendAll(int fd, const void* data, size_t length);
+
+public:
+	MjpegServer();
+	~MjpegServer();
+
+	bool start(uint16_t port, const char* accessToken, uint8_t quality, uint8_t maxFrameRate);
+	void stop();
+	bool submit(const UsbTvFrame* frame);
+
+	bool isRunning() {
+		return _running;
+	}
+
+	uint16_t getPort() { return _port; }
+	uint32_t getClientCount() { return _clientCount; }
+	uint32_t getEncodedFrameCount() { return _encodedFrames; }
+	uint32_t getReplacedFrameCount() { return _replacedFrames; }
+	double getAverageEncodeMs() {
+		return (_encodedFrames > 0) ? _encodeTimeNs / 1e6 / _encodedFrames : 0.0;
+	}
+};
+
+
+#endif //USBTV007_ANDROID_MJPEGSERVER_H
@@ -0,0 +1,266 @@
+// Copyright (C) 2020 Eric Callahan <arksine.code@gmail.com>
+//
+// This file may be distributed under the terms of the GNU GPLv3 license
+
+#include "MotionDetector.h"
+#include "PixelKernels.h"
+#include <cstring>
+
+// Threshold in luma levels at the highest and lowest sensitivity
+#define MOTION_MIN_THRESHOLD    1
+#define MOTION_MAX_THRESHOLD    31
+// Background and deviation adapt by 1/2^n of the difference each frame
+#define MOTION_STILL_SHIFT      5
+#define MOTION_INITIAL_DEVIATION    (2 << 8)
+#define MOTION_MAX_DEVIATION        (16 << 8)
+
+/**
+ * @param width         Width of the frames processed, in pixels
+ * @param height        Lines in the frames processed
+ * @param pixelFormat   Format of the frames processed
+ * @param lineScale     Lines of the captured frame each processed line stands for, ie. 2
+ *                      when fields of an interlaced frame are processed
+ */
+MotionDetector::MotionDetector(uint16_t width, uint16_t height, PixelFormat pixelFormat,
+                               uint8_t lineScale) {
+	_columns = (uint16_t)((width + USBTV_MOTION_BLOCK_WIDTH - 1) / USBTV_MOTION_BLOCK_WIDTH);
+	_rows = (uint16_t)((height + USBTV_MOTION_BLOCK_LINES - 1) / USBTV_MOTION_BLOCK_LINES);
+	_blockCount = (uint32_t)_columns * _rows;
+	_pixelFormat = pixelFormat;
+	_stride = (uint32_t)width * bytesPerPixel(pixelFormat);
+	_lineScale = lineScale;
+
+	_columnStart = new uint16_t[_columns + 1];
+	for (uint32_t col = 0; col < _columns; col++) {
+		_columnStart[col] = (uint16_t)(col * USBTV_MOTION_BLOCK_WIDTH);
+	}
+	_columnStart[_columns] = width;
+	_rowStart = new uint16_t[_rows + 1];
+	for (uint32_t row = 0; row < _rows; row++) {
+		_rowStart[row] = (uint16_t)(row * USBTV_MOTION_BLOCK_LINES);
+	}
+	_rowStart[_rows] = height;
+
+	_blockSamples = new uint32_t[_blockCount];
+	for (uint32_t row = 0; row < _rows; row++) {
+		uint32_t lines = (uint32_t)(_rowStart[row + 1] - _rowStart[row] +
+		                            USBTV_MOTION_LINE_STEP - 1) / USBTV_MOTION_LINE_STEP;
+		for (uint32_t col = 0; col < _columns; col++) {
+			_blockSamples[row * _columns + col] =
+					lines * (uint32_t)(_columnStart[col + 1] - _columnStart[col]);
+		}
+	}
+
+	_means = new uint16_t[_blockCount];
+	for (uint8_t slot = 0; slot < USBTV_MOTION_SLOTS; slot++) {
+		_background[slot] = new uint16_t[_blockCount];
+		_deviation[slot] = new uint16_t[_blockCount];
+		_activeFrames[slot] = new uint8_t[_blockCount];
+	}
+	_active = new uint8_t[_blockCount];
+	_fillStack = new uint16_t[_blockCount];
+
+	reset();
+}
+
+MotionDetector::~MotionDetector() {
+	delete[] _columnStart;
+	delete[] _rowStart;
+	delete[] _blockSamples;
+	delete[] _means;
+	for (uint8_t slot = 0; slot < USBTV_MOTION_SLOTS; slot++) {
+		delete[] _background[slot];
+		delete[] _deviation[slot];
+		delete[] _activeFrames[slot];
+	}
+	delete[] _active;
+	delete[] _fillStack;
+}
+
+/**
+ * Forgets the backgrounds and any motion in progress, without raising an END event
+ */
+void MotionDetector::reset() {
+	memset(_backgroundValid, 0, sizeof(_backgroundValid));
+	_moving = false;
+	_movingFields = 0;
+	_lastMotionNs = 0;
+}
+
+/**
+ * Looks for motion in a frame
+ *
+ * @param buffer        The frame
+ * @param slot          Background slot, ie. the field parity
+ * @param sensitivity   From 1 to USBTV_MOTION_MAX_SENSITIVITY
+ * @param frameId       Id of the frame, copied to the event
+ * @param timestampNs   Steady clock time of the frame
+ * @param event         Filled in when the frame raises an event
+ * @return true if an event was raised
+ */
+bool MotionDetector::process(const uint8_t *buffer, uint8_t slot, uint8_t sensitivity,
+                             uint32_t frameId, uint64_t timestampNs, MotionEvent *event) {
+	measureBlocks(buffer);
+
+	uint16_t* background = _background[slot];
+	uint16_t* deviation = _deviation[slot];
+	uint8_t* activeFrames = _activeFrames[slot];
+	uint8_t regionCount = 0;
+	if (!_backgroundValid[slot]) {
+		memcpy(background, _means, _blockCount * sizeof(uint16_t));
+		for (uint32_t i = 0; i < _blockCount; i++) {
+			deviation[i] = MOTION_INITIAL_DEVIATION;
+		}
+		memset(activeFrames, 0, _blockCount);
+		_backgroundValid[slot] = true;
+	} else {
+		if (sensitivity > USBTV_MOTION_MAX_SENSITIVITY) {
+			sensitivity = USBTV_MOTION_MAX_SENSITIVITY;
+		}
+		int32_t threshold = (MOTION_MIN_THRESHOLD + (USBTV_MOTION_MAX_SENSITIVITY - sensitivity) *
+		                     (MOTION_MAX_THRESHOLD - MOTION_MIN_THRESHOLD) /
+		                     USBTV_MOTION_MAX_SENSITIVITY) << 8;
+
+		for (uint32_t i = 0; i < _blockCount; i++) {
+			int32_t diff = (int32_t)_means[i] - (int32_t)background[i];
+			int32_t distance = (diff < 0) ? -diff : diff;
+			bool active = distance > threshold + 3 * (int32_t)deviation[i];
+			_active[i] = (uint8_t)active;
+			if (active) {
+				if (++activeFrames[i] >= USBTV_MOTION_ABSORB_FRAMES) {
+					// Still for too long to be motion
+					background[i] = _means[i];
+					activeFrames[i] = 0;
+					_active[i] = 0;
+				}
+			} else {
+				activeFrames[i] = 0;
+				background[i] = (uint16_t)((int32_t)background[i] + (diff >> MOTION_STILL_SHIFT));
+				int32_t dev = (int32_t)deviation[i] +
+				              ((distance - (int32_t)deviation[i]) >> MOTION_STILL_SHIFT);
+				deviation[i] = (uint16_t)((dev < MOTION_MAX_DEVIATION) ? dev : MOTION_MAX_DEVIATION);
+			}
+		}
+		regionCount = findRegions(event->regions);
+	}
+
+	event->frameId = frameId;
+	event->timestampNs = timestampNs;
+	event->regionCount = regionCount;
+	if (regionCount > 0) {
+		_movingFields++;
+		_lastMotionNs = timestampNs;
+		if (_moving) {
+			event->state = MotionState::UPDATE;
+			return true;
+		} else if (_movingFields >= USBTV_MOTION_START_FIELDS) {
+			_moving = true;
+			event->state = MotionState::START;
+			return true;
+		}
+	} else {
+		_movingFields = 0;
+		if (_moving && timestampNs - _lastMotionNs >= (uint64_t)USBTV_MOTION_HOLD_MS * 1000000) {
+			_moving = false;
+			event->state = MotionState::END;
+			return true;
+		}
+	}
+	return false;
+}
+
+/**
+ * Computes the mean luma of each block into _means
+ */
+void MotionDetector::measureBlocks(const uint8_t *buffer) {
+	for (uint32_t row = 0; row < _rows; row++) {
+		uint32_t sums[(USBTV_FRAME_WIDTH + USBTV_MOTION_BLOCK_WIDTH - 1) / USBTV_MOTION_BLOCK_WIDTH];
+		memset(sums, 0, _columns * sizeof(uint32_t));
+		for (uint32_t line = _rowStart[row]; line < _rowStart[row + 1];
+		     line += USBTV_MOTION_LINE_STEP) {
+			const uint8_t* src = buffer + line * _stride;
+			for (uint32_t col = 0; col < _columns; col++) {
+				uint32_t pixels = (uint32_t)(_columnStart[col + 1] - _columnStart[col]);
+				if (_pixelFormat == PixelFormat::Y8) {
+					sums[col] += sumBytes(src + _columnStart[col], pixels);
+				} else {
+					sums[col] += sumLumaYuyv(src + _columnStart[col] * 2, pixels);
+				}
+			}
+		}
+
+		uint16_t* means = _means + row * _columns;
+		const uint32_t* samples = _blockSamples + row * _columns;
+		for (uint32_t col = 0; col < _columns; col++) {
+			means[col] = (uint16_t)(((sums[col] << 8) + samples[col] / 2) / samples[col]);
+		}
+	}
+}
+
+/**
+ * Groups the active blocks into 8-connected regions, clearing them from _active
+ *
+ * @param regions   Filled in with the largest regions, largest first
+ * @return The number of regions filled in
+ */
+uint8_t MotionDetector::findRegions(MotionRegion *regions) {
+	uint8_t count = 0;
+	for (uint32_t start = 0; start < _blockCount; start++) {
+		if (!_active[start]) {
+			continue;
+		}
+
+		uint32_t minCol = _columns, maxCol = 0, minRow = _rows, maxRow = 0;
+		uint32_t blocks = 0;
+		uint32_t depth = 0;
+		_active[start] = 0;
+		_fillStack[depth++] = (uint16_t)start;
+		while (depth > 0) {
+			uint32_t block = _fillStack[--depth];
+			uint32_t row = block / _columns;
+			uint32_t col = block % _columns;
+			blocks++;
+			minCol = (col < minCol) ? col : minCol;
+			maxCol = (col > maxCol) ? col : maxCol;
+			minRow = (row < minRow) ? row : minRow;
+			maxRow = (row > maxRow) ? row : maxRow;
+
+			for (uint32_t r = (row > 0) ? row - 1 : 0; r <= row + 1 && r < _rows; r++) {
+				for (uint32_t c = (col > 0) ? col - 1 : 0; c <= col + 1 && c < _columns; c++) {
+					uint32_t neighbour = r * _columns + c;
+					if (_active[neighbour]) {
+						_active[neighbour] = 0;
+						_fillStack[depth++] = (uint16_t)neighbour;
+					}
+				}
+			}
+		}
+
+		if (blocks < USBTV_MOTION_MIN_BLOCKS) {
+			continue;
+		}
+
+		// Keep the largest regions, in order
+		uint32_t pos = count;
+		while (pos > 0 && regions[pos - 1].blocks < blocks) {
+			pos--;
+		}
+		if (pos >= USBTV_MOTION_MAX_REGIONS) {
+			continue;
+		}
+		uint32_t last = (count < USBTV_MOTION_MAX_REGIONS) ? count : USBTV_MOTION_MAX_REGIONS - 1;
+		for (uint32_t i = last; i > pos; i--) {
+			regions[i] = regions[i - 1];
+		}
+		MotionRegion& region = regions[pos];
+		region.x = _columnStart[minCol];
+		region.width = (uint16_t)(_columnStart[maxCol + 1] - _columnStart[minCol]);
+		region.y = (uint16_t)(_rowStart[minRow] * _lineScale);
+		region.height = (uint16_t)((_rowStart[maxRow + 1] - _rowStart[minRow]) * _lineScale);
+		region.blocks = (uint16_t)((blocks < UINT16_MAX) ? blocks : UINT16_MAX);
+		if (count < USBTV_MOTION_MAX_REGIONS) {
+			count++;
+		}
+	}
+	return count;
+}
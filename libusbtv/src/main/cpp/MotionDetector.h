@@ -0,0 +1,107 @@
+// Copyright (C) 2020 Eric Callahan <arksine.code@gmail.com>
+//
+// This file may be distributed under the terms of the GNU GPLv3 license
+//
+// Detects motion on a low resolution luma grid.  Each frame is reduced to the mean luma of
+// blocks USBTV_MOTION_BLOCK_WIDTH pixels by USBTV_MOTION_BLOCK_LINES lines, sampled from
+// every USBTV_MOTION_LINE_STEP line.  Each block keeps a background, a running average of
+// its mean, and a running average of how far its mean strays from the background while
+// still.  A block is active when it differs from its background by the threshold set by the
+// sensitivity plus three times that deviation, so a noisy picture needs more to trigger.
+//
+// Active blocks are grouped into 8-connected regions, and regions smaller than
+// USBTV_MOTION_MIN_BLOCKS are ignored as noise.  Motion starts after
+// USBTV_MOTION_START_FIELDS frames in a row have a region, and ends once none has been seen
+// for USBTV_MOTION_HOLD_MS.  The background of an active block is not updated, but a block
+// that stays active for USBTV_MOTION_ABSORB_FRAMES frames of its slot takes its current
+// mean as the background, so an object that stops moving, or the ghost of one that was
+// present when detection started, becomes part of the background.
+//
+// Backgrounds are kept per slot so that fields of each parity are only compared with
+// fields of the same parity.
+//
+
+#ifndef USBTV007_ANDROID_MOTIONDETECTOR_H
+#define USBTV007_ANDROID_MOTIONDETECTOR_H
+
+#include <cstdint>
+#include "usbtv_definitions.h"
+
+#define USBTV_MOTION_BLOCK_WIDTH        16
+#define USBTV_MOTION_BLOCK_LINES        8
+#define USBTV_MOTION_LINE_STEP          2
+#define USBTV_MOTION_SLOTS              2
+#define USBTV_MOTION_MAX_SENSITIVITY    100
+#define USBTV_MOTION_MAX_REGIONS        4       // Largest regions reported in an event
+#define USBTV_MOTION_MIN_BLOCKS         2
+#define USBTV_MOTION_START_FIELDS       2
+#define USBTV_MOTION_HOLD_MS            500
+#define USBTV_MOTION_ABSORB_FRAMES      60
+
+enum struct MotionState : uint8_t {
+	START,      // Motion was detected after none
+	UPDATE,     // Motion continues in this frame
+	END         // No motion has been detected for USBTV_MOTION_HOLD_MS
+};
+
+// Bounding box of a region, in pixels of the captured frame before scaling
+struct MotionRegion {
+	uint16_t    x;
+	uint16_t    y;
+	uint16_t    width;
+	uint16_t    height;
+	uint16_t    blocks;     // Active blocks in the region
+};
+
+struct MotionEvent {
+	MotionState     state;
+	uint32_t        frameId;
+	uint64_t        timestampNs;
+	uint8_t         regionCount;    // Regions found in the frame, 0 for END
+	MotionRegion    regions[USBTV_MOTION_MAX_REGIONS];     // Largest first
+};
+
+class MotionDetector {
+private:
+	uint16_t    _columns;
+	uint16_t    _rows;
+	uint32_t    _blockCount;
+	PixelFormat _pixelFormat;
+	uint32_t    _stride;
+	uint8_t     _lineScale;
+	uint16_t*   _columnStart;
+	uint16_t*   _rowStart;
+	uint32_t*   _blockSamples;
+
+	// Luma levels in 8.8 fixed point
+	uint16_t*   _means;
+	uint16_t*   _background[USBTV_MOTION_SLOTS];
+	uint16_t*   _deviation[USBTV_MOTION_SLOTS];
+	uint8_t*    _activeFrames[USBTV_MOTION_SLOTS];     // Frames each block has been active
+	bool        _backgroundValid[USBTV_MOTION_SLOTS];
+
+	uint8_t*    _active;
+	uint16_t*   _fillStack;
+
+	bool        _moving;
+	uint32_t    _movingFields;
+	uint64_t    _lastMotionNs;
+
+	void measureBlocks(const uint8_t* buffer);
+	uint8_t findRegions(MotionRegion* regions);
+
+public:
+	MotionDetector(uint16_t width, uint16_t height, PixelFormat pixelFormat, uint8_t lineScale);
+	~MotionDetector();
+
+	void reset();
+	bool process(const uint8_t* buffer, uint8_t slot, uint8_t sensitivity, uint32_t frameId,
+	             uint64_t timestampNs, MotionEvent* event);
+
+	bool isMoving() {
+		return _moving;
+	}
+};
+
+
+#endif //USBTV007_ANDROID_MOTIONDETECTOR_H
@@ -0,0 +1,182 @@
+// Copyright (C) 2020 Eric Callahan <arksine.code@gmail.com>
+//
+// This file may be distributed under the terms of the GNU GPLv3 license
+
+#include "PixelKernels.h"
+
+#if defined(__ARM_NEON) || defined(__ARM_NEON__)
+#include <arm_neon.h>
+#define PIXEL_NEON
+#elif defined(__SSE2__)
+#include <emmintrin.h>
+#define PIXEL_SSE2
+#endif
+
+/**
+ * Copies the Y samples of packed YUYV data to a planar grey buffer
+ *
+ * @param dst       Receives one byte per pixel
+ * @param yuyv      Two bytes per pixel, luma in the even bytes
+ * @param pixels    Number of pixels to convert
+ */
+void extractLuma(uint8_t *dst, const uint8_t *yuyv, uint32_t pixels) {
+	uint32_t i = 0;
+#if defined(PIXEL_NEON)
+	for (; i + 16 <= pixels; i += 16) {
+		uint8x16x2_t samples = vld2q_u8(yuyv + 2 * i);
+		vst1q_u8(dst + i, samples.val[0]);
+	}
+#elif defined(PIXEL_SSE2)
+	__m128i mask = _mm_set1_epi16(0x00ff);
+	for (; i + 16 <= pixels; i += 16) {
+		__m128i lo = _mm_and_si128(_mm_loadu_si128((const __m128i*)(yuyv + 2 * i)), mask);
+		__m128i hi = _mm_and_si128(_mm_loadu_si128((const __m128i*)(yuyv + 2 * i + 16)), mask);
+		_mm_storeu_si128((__m128i*)(dst + i), _mm_packus_epi16(lo, hi));
+	}
+#endif
+	for (; i < pixels; i++) {
+		dst[i] = yuyv[2 * i];
+	}
+}
+
+/**
+ * Splits packed YUYV data into planar 4:2:2
+ *
+ * @param y         Receives one byte per pixel
+ * @param u         Receives one byte per pixel pair
+ * @param v         Receives one byte per pixel pair
+ * @param yuyv      Two bytes per pixel
+ * @param pixels    Number of pixels to convert, which must be even
+ */
+void splitPlanes(uint8_t *y, uint8_t *u, uint8_t *v, const uint8_t *yuyv, uint32_t pixels) {
+	uint32_t i = 0;
+#if defined(PIXEL_NEON)
+	for (; i + 32 <= pixels; i += 32) {
+		uint8x16x4_t samples = vld4q_u8(yuyv + 2 * i);
+		uint8x16x2_t luma;
+		luma.val[0] = samples.val[0];
+		luma.val[1] = samples.val[2];
+		vst2q_u8(y + i, luma);
+		vst1q_u8(u + i / 2, samples.val[1]);
+		vst1q_u8(v + i / 2, samples.val[3]);
+	}
+#elif defined(PIXEL_SSE2)
+	__m128i mask = _mm_set1_epi16(0x00ff);
+	for (; i + 32 <= pixels; i += 32) {
+		const __m128i* src = (const __m128i*)(yuyv + 2 * i);
+		__m128i in0 = _mm_loadu_si128(src);
+		__m128i in1 = _mm_loadu_si128(src + 1);
+		__m128i in2 = _mm_loadu_si128(src + 2);
+		__m128i in3 = _mm_loadu_si128(src + 3);
+		_mm_storeu_si128((__m128i*)(y + i), _mm_packus_epi16(_mm_and_si128(in0, mask),
+		                                                     _mm_and_si128(in1, mask)));
+		_mm_storeu_si128((__m128i*)(y + i + 16), _mm_packus_epi16(_mm_and_si128(in2, mask),
+		                                                          _mm_and_si128(in3, mask)));
+
+		// UVUV... then split
+		__m128i chroma0 = _mm_packus_epi16(_mm_srli_epi16(in0, 8), _mm_srli_epi16(in1, 8));
+		__m128i chroma1 = _mm_packus_epi16(_mm_srli_epi16(in2, 8), _mm_srli_epi16(in3, 8));
+		_mm_storeu_si128((__m128i*)(u + i / 2), _mm_packus_epi16(_mm_and_si128(chroma0, mask),
+		                                                         _mm_and_si128(chroma1, mask)));
+		_mm_storeu_si128((__m128i*)(v + i / 2), _mm_packus_epi16(_mm_srli_epi16(chroma0, 8),
+		                                                         _mm_srli_epi16(chroma1, 8)));
+	}
+#endif
+	for (; i + 2 <= pixels; i += 2) {
+		y[i] = yuyv[2 * i];
+		u[i / 2] = yuyv[2 * i + 1];
+		y[i + 1] = yuyv[2 * i + 2];
+		v[i / 2] = yuyv[2 * i + 3];
+	}
+}
+
+/**
+ * Sums the Y samples of packed YUYV data
+ *
+ * @param yuyv      Two bytes per pixel, luma in the even bytes
+ * @param pixels    Number of pixels to sum, at most 2^24
+ */
+uint32_t sumLumaYuyv(const uint8_t *yuyv, uint32_t pixels) {
+	uint32_t i = 0;
+	uint32_t sum = 0;
+#if defined(PIXEL_NEON)
+	uint32x4_t acc = vdupq_n_u32(0);
+	for (; i + 16 <= pixels; i += 16) {
+		uint8x16x2_t samples = vld2q_u8(yuyv + 2 * i);
+		acc = vpadalq_u16(acc, vpaddlq_u8(samples.val[0]));
+	}
+	uint64x2_t total = vpaddlq_u32(acc);
+	sum = (uint32_t)(vgetq_lane_u64(total, 0) + vgetq_lane_u64(total, 1));
+#elif defined(PIXEL_SSE2)
+	// Masking the chroma bytes leaves SAD against zero summing the luma
+	__m128i mask = _mm_set1_epi16(0x00ff);
+	__m128i zero = _mm_setzero_si128();
+	__m128i acc = zero;
+	for (; i + 16 <= pixels; i += 16) {
+		__m128i lo = _mm_and_si128(_mm_loadu_si128((const __m128i*)(yuyv + 2 * i)), mask);
+		__m128i hi = _mm_and_si128(_mm_loadu_si128((const __m128i*)(yuyv + 2 * i + 16)), mask);
+		acc = _mm_add_epi64(acc, _mm_sad_epu8(lo, zero));
+		acc = _mm_add_epi64(acc, _mm_sad_epu8(hi, zero));
+	}
+	sum = (uint32_t)(_mm_cvtsi128_si32(acc) + _mm_cvtsi128_si32(_mm_srli_si128(acc, 8)));
+#endif
+	for (; i < pixels; i++) {
+		sum += yuyv[2 * i];
+	}
+	return sum;
+}
+
+/**
+ * Sums a run of bytes, ie. the samples of a Y8 line
+ *
+ * @param data      Bytes to sum
+ * @param count     Number of bytes, at most 2^24
+ */
+uint32_t sumBytes(const uint8_t *data, uint32_t count) {
+	uint32_t i = 0;
+	uint32_t sum = 0;
+#if defined(PIXEL_NEON)
+	uint32x4_t acc = vdupq_n_u32(0);
+	for (; i + 16 <= count; i += 16) {
+		acc = vpadalq_u16(acc, vpaddlq_u8(vld1q_u8(data + i)));
+	}
+	uint64x2_t total = vpaddlq_u32(acc);
+	sum = (uint32_t)(vgetq_lane_u64(total, 0) + vgetq_lane_u64(total, 1));
+#elif defined(PIXEL_SSE2)
+	__m128i zero = _mm_setzero_si128();
+	__m128i acc = zero;
+	for (; i + 16 <= count; i += 16) {
+		acc = _mm_add_epi64(acc, _mm_sad_epu8(_mm_loadu_si128((const __m128i*)(data + i)), zero));
+	}
+	sum = (uint32_t)(_mm_cvtsi128_si32(acc) + _mm_cvtsi128_si32(_mm_srli_si128(acc, 8)));
+#endif
+	for (; i < count; i++) {
+		sum += data[i];
+	}
+	return sum;
+}
+
+/**
+ * Counts the luma of YUYV pixels into USBTV_LUMA_HISTOGRAMS tables, which are summed once a
+ * frame is complete.  Neither NEON nor SSE2 can scatter, so the counting is scalar.  Spreading
+ * consecutive pixels over several tables keeps runs of equal luma, common in flat pictures,
+ * from waiting on the store to the same counter.
+ *
+ * @param histograms    USBTV_LUMA_HISTOGRAMS tables of 256 counters
+ * @param yuyv          Two bytes per pixel, luma in the even bytes
+ * @param pixels        Number of pixels to count
+ */
+void accumulateLumaHistogram(uint32_t (*histograms)[256], const uint8_t *yuyv, uint32_t pixels) {
+	static_assert(USBTV_LUMA_HISTOGRAMS == 4, "The loop below fills four tables");
+	uint32_t i = 0;
+	for (; i + USBTV_LUMA_HISTOGRAMS <= pixels; i += USBTV_LUMA_HISTOGRAMS) {
+		const uint8_t* src = yuyv + 2 * i;
+		histograms[0][src[0]]++;
+		histograms[1][src[2]]++;
+		histograms[2][src[4]]++;
+		histograms[3][src[6]]++;
+	}
+	for (; i < pixels; i++) {
+		histograms[0][yuyv[2 * i]]++;
+	}
+}
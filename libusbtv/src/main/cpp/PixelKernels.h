@@ -0,0 +1,23 @@
+// Copyright (C) 2020 Eric Callahan <arksine.code@gmail.com>
+//
+// This file may be distributed under the terms of the GNU GPLv3 license
+//
+// Pixel conversions used while packets are scattered into frames and while frames are
+// recorded, luma sums used to detect unchanged frames and motion, and luma histograms.
+// NEON or SSE2 is used where the compiler targets it.
+//
+
+#ifndef USBTV007_ANDROID_PIXELKERNELS_H
+#define USBTV007_ANDROID_PIXELKERNELS_H
+
+#include <cstdint>
+
+#define USBTV_LUMA_HISTOGRAMS   4       // Tables accumulateLumaHistogram spreads pixels over
+
+void extractLuma(uint8_t* dst, const uint8_t* yuyv, uint32_t pixels);
+void splitPlanes(uint8_t* y, uint8_t* u, uint8_t* v, const uint8_t* yuyv, uint32_t pixels);
+uint32_t sumLumaYuyv(const uint8_t* yuyv, uint32_t pixels);
+uint32_t sumBytes(const uint8_t* data, uint32_t count);
+void accumulateLumaHistogram(uint32_t (*histograms)[256], const uint8_t* yuyv, uint32_t pixels);
+
+#endif //USBTV007_ANDROID_PIXELKERNELS_H
@@ -0,0 +1,141 @@
+// Copyright (C) 2020 Eric Callahan <arksine.code@gmail.com>
+//
+// This file may be distributed under the terms of the GNU GPLv3 license
+
+#include "QualityGovernor.h"
+#include "util.h"
+
+QualityGovernor::QualityGovernor() {
+	_enabled = false;
+	_level = (uint8_t)QualityLevel::FULL;
+	_changes = 0;
+	_fieldIntervalNs = 16683333;
+	_overloadedWindows = 0;
+	_idleWindows = 0;
+	_settleWindows = 0;
+	_recoverWindows = USBTV_GOVERNOR_RECOVER_WINDOWS;
+	_steppedUp = false;
+	clearWindow(0);
+}
+
+/**
+ * Enables or disables the governor.  Disabling it returns the recommendation to FULL, and
+ * enabling it starts over from FULL.
+ */
+void QualityGovernor::setEnabled(bool enabled) {
+	_enabled = enabled;
+	_level = (uint8_t)QualityLevel::FULL;
+	_recoverWindows = USBTV_GOVERNOR_RECOVER_WINDOWS;
+	_steppedUp = false;
+}
+
+/**
+ * Starts a new window when streaming (re)starts.  The level and the recovery backoff are
+ * kept, as a restart is usually the previous recommendation being applied.
+ *
+ * @param fieldIntervalNs   Time between fields of the stream's norm
+ */
+void QualityGovernor::restart(uint64_t fieldIntervalNs) {
+	_fieldIntervalNs = fieldIntervalNs;
+	_overloadedWindows = 0;
+	_idleWindows = 0;
+	_settleWindows = 0;
+	clearWindow(0);
+}
+
+/**
+ * Called on the urb thread for each field completed
+ *
+ * @param queueDepth    Frames waiting in the process queue when the field was completed
+ * @param queueCapacity Frames the process queue holds
+ * @param poolWaitNs    Time spent waiting for a free frame to capture the next field into
+ * @param dropped       The field was dropped because the process queue was full
+ */
+void QualityGovernor::onField(uint32_t queueDepth, uint32_t queueCapacity, uint64_t poolWaitNs,
+                              bool dropped) {
+	if (!_enabled) {
+		return;
+	}
+
+	uint64_t nowNs = getSteadyTimeNs();
+	if (_windowStartNs == 0) {
+		clearWindow(nowNs);
+	}
+
+	_fields++;
+	_waitNs += poolWaitNs;
+	_depthSum += queueDepth;
+	_capacitySum += queueCapacity;
+	if (queueDepth > 0) {
+		_busyFields++;
+	}
+	if (dropped) {
+		_dropped++;
+	}
+
+	if (nowNs - _windowStartNs >= (uint64_t)USBTV_GOVERNOR_WINDOW_MS * 1000000) {
+		judgeWindow();
+		clearWindow(nowNs);
+	}
+}
+
+void QualityGovernor::clearWindow(uint64_t nowNs) {
+	_windowStartNs = nowNs;
+	_fields = 0;
+	_dropped = 0;
+	_waitNs = 0;
+	_depthSum = 0;
+	_capacitySum = 0;
+	_busyFields = 0;
+}
+
+void QualityGovernor::judgeWindow() {
+	if (_settleWindows > 0) {
+		_settleWindows--;
+		return;
+	}
+
+	uint64_t meanWaitNs = _waitNs / _fields;
+	bool overloaded = (_dropped > 0 || meanWaitNs > _fieldIntervalNs / 4 ||
+	                   _depthSum * 2 >= _capacitySum);
+	bool idle = (_dropped == 0 && meanWaitNs < _fieldIntervalNs / 20 &&
+	             _busyFields * 10 < _fields);
+
+	uint8_t level = _level.load(std::memory_order_relaxed);
+	if (overloaded) {
+		_idleWindows = 0;
+		if (++_overloadedWindows >= USBTV_GOVERNOR_OVERLOAD_WINDOWS &&
+		    level < (uint8_t)QualityLevel::HALF_WIDTH) {
+			// The level stepped up to could not be sustained, wait longer next time
+			if (_steppedUp && _recoverWindows < USBTV_GOVERNOR_MAX_RECOVER_WINDOWS) {
+				_recoverWindows *= 2;
+			}
+			_steppedUp = false;
+			setLevel(level + 1);
+		}
+	} else if (idle) {
+		_overloadedWindows = 0;
+		if (++_idleWindows >= _recoverWindows) {
+			if (level > (uint8_t)QualityLevel::FULL) {
+				_steppedUp = true;
+				setLevel(level - 1);
+			} else {
+				// Full quality is sustained, forget the backoff
+				_steppedUp = false;
+				_recoverWindows = USBTV_GOVERNOR_RECOVER_WINDOWS;
+			}
+		}
+	} else {
+		_overloadedWindows = 0;
+		_idleWindows = 0;
+	}
+}
+
+void QualityGovernor::setLevel(uint8_t level) {
+	LOGI("Quality governor level %d -> %d", _level.load(std::memory_order_relaxed), level);
+	_level = level;
+	_changes++;
+	_overloadedWindows = 0;
+	_idleWindows = 0;
+	_settleWindows = USBTV_GOVERNOR_SETTLE_WINDOWS;
+}
@@ -0,0 +1,79 @@
+// Copyright (C) 2020 Eric Callahan <arksine.code@gmail.com>
+//
+// This file may be distributed under the terms of the GNU GPLv3 license
+//
+// Recommends a lower quality when the consumer cannot keep up with capture.  The urb thread
+// reports each field it completes with the depth of the process queue, the time it waited
+// for a free frame, and whether the field was dropped.  At the end of each window the
+// window is judged:
+//
+//  - overloaded if fields were dropped, the mean pool wait exceeds a quarter of the field
+//    interval, or the queue was half full on average
+//  - idle if no field was dropped, the mean pool wait is under 5% of the field interval and
+//    the queue was nearly always empty
+//
+// After USBTV_GOVERNOR_OVERLOAD_WINDOWS overloaded windows in a row the level steps down,
+// after enough idle windows in a row it steps back up.  The idle windows needed double each
+// time a step up is followed by a step down, so a load that only fits the lower level does
+// not oscillate.  The governor only recommends, the owner of the stream applies the level
+// and restarts it.
+//
+
+#ifndef USBTV007_ANDROID_QUALITYGOVERNOR_H
+#define USBTV007_ANDROID_QUALITYGOVERNOR_H
+
+#include <atomic>
+#include <cstdint>
+
+#define USBTV_GOVERNOR_WINDOW_MS            1000
+#define USBTV_GOVERNOR_OVERLOAD_WINDOWS     2
+#define USBTV_GOVERNOR_RECOVER_WINDOWS      5
+#define USBTV_GOVERNOR_MAX_RECOVER_WINDOWS  80
+#define USBTV_GOVERNOR_SETTLE_WINDOWS       1   // Ignored after a change, while it is applied
+
+enum struct QualityLevel : uint8_t {
+	FULL = 0,           // As configured
+	DISCARD = 1,        // One field of each frame, at half the frame rate
+	HALF_WIDTH = 2      // Also scaled to half width
+};
+
+class QualityGovernor {
+private:
+	std::atomic<bool>       _enabled;
+	std::atomic<uint8_t>    _level;
+	std::atomic<uint32_t>   _changes;
+
+	// Only used on the urb thread
+	uint64_t    _fieldIntervalNs;
+	uint64_t    _windowStartNs;
+	uint32_t    _fields;
+	uint32_t    _dropped;
+	uint64_t    _waitNs;
+	uint64_t    _depthSum;
+	uint64_t    _capacitySum;
+	uint32_t    _busyFields;        // Fields that found the queue not empty
+	uint32_t    _overloadedWindows;
+	uint32_t    _idleWindows;
+	uint32_t    _settleWindows;
+	uint32_t    _recoverWindows;
+	bool        _steppedUp;         // The last change was a step up
+
+	void clearWindow(uint64_t nowNs);
+	void judgeWindow();
+	void setLevel(uint8_t level);
+
+public:
+	QualityGovernor();
+
+	void setEnabled(bool enabled);
+	bool isEnabled() { return _enabled; }
+	void restart(uint64_t fieldIntervalNs);
+
+	void onField(uint32_t queueDepth, uint32_t queueCapacity, uint64_t poolWaitNs, bool dropped);
+
+	QualityLevel getLevel() { return (QualityLevel)_level.load(std::memory_order_relaxed); }
+	uint32_t getChangeCount() { return _changes; }
+};
+
+
+#endif //USBTV007_ANDROID_QUALITYGOVERNOR_H
@@ -0,0 +1,259 @@
+// Copyright (C) 2020 Eric Callahan <arksine.code@gmail.com>
+//
+// This file may be distributed under the terms of the GNU GPLv3 license
+
+#include "ReplayUsbDevice.h"
+#include "usbtv_definitions.h"
+#include "util.h"
+#include <fcntl.h>
+#include <unistd.h>
+#include <sys/mman.h>
+#include <sys/stat.h>
+
+/**
+ * Maps a recorded packet stream for replay.  If the file cannot be mapped the device
+ * is not open and initIsoUrbs will fail.
+ *
+ * @param path          Path to a file of raw 1024 byte USBTV007 packets, or a urb recording
+ * @param packetRate    Packets delivered per second.  USBTV_PACKET_RATE replays in real time,
+ *                      0 replays as fast as the driver returns urbs.  Urb recordings are
+ *                      replayed using their captured timestamps if this is non-zero.
+ * @param loop          If true the stream restarts when the end of the file is reached,
+ *                      otherwise the urb thread exits
+ */
+ReplayUsbDevice::ReplayUsbDevice(const char *path, uint32_t packetRate, bool loop) {
+	_stream = nullptr;
+	_mapSize = 0;
+	_streamSize = 0;
+	_streamOffset = 0;
+	_packetRate = packetRate;
+	_loop = loop;
+	_paced = (packetRate > 0);
+	_recording = false;
+	_chunkSize = 0;
+	_record = nullptr;
+	_recordPacket = 0;
+	_recordPayload = nullptr;
+	_firstTimestampNs = 0;
+	_loopBaseNs = 0;
+	_packetsReplayed = 0;
+
+	int fd = open(path, O_RDONLY);
+	if (fd < 0) {
+		LOGE("Unable to open replay file %s", path);
+		return;
+	}
+
+	struct stat st;
+	if (fstat(fd, &st) != 0 || st.st_size < (off_t)sizeof(UrbRecordFileHeader)) {
+		LOGE("Replay file %s is empty", path);
+		close(fd);
+		return;
+	}
+
+	size_t size = (size_t)st.st_size;
+	void* stream = mmap(nullptr, size, PROT_READ, MAP_PRIVATE, fd, 0);
+	close(fd);
+	if (stream == MAP_FAILED) {
+		LOGE("Unable to map replay file %s", path);
+		return;
+	}
+
+	const UrbRecordFileHeader* header = (const UrbRecordFileHeader*)stream;
+	if (memcmp(header->magic, URB_RECORD_MAGIC, sizeof(header->magic)) == 0) {
+		if (header->version != URB_RECORD_VERSION || header->chunkSize == 0) {
+			LOGE("Unsupported urb recording version %d", header->version);
+			munmap(stream, size);
+			return;
+		}
+		_recording = true;
+		_chunkSize = header->chunkSize;
+		_streamSize = size;
+	} else {
+		// Only whole packets are replayed
+		_streamSize = (size / USBTV_PACKET_SIZE) * USBTV_PACKET_SIZE;
+		if (_streamSize == 0) {
+			LOGE("Replay file %s does not contain a complete packet", path);
+			munmap(stream, size);
+			return;
+		}
+	}
+
+	_stream = (const uint8_t*)stream;
+	_mapSize = size;
+
+	if (_recording) {
+		const UrbRecord* first = findRecord(sizeof(UrbRecordFileHeader));
+		_firstTimestampNs = (first != nullptr) ? first->timestampNs : 0;
+		LOGD("Urb recording mapped, %d bytes", (int)size);
+	} else {
+		LOGD("Replay file mapped, %d packets", (int)(_streamSize / USBTV_PACKET_SIZE));
+	}
+}
+
+ReplayUsbDevice::~ReplayUsbDevice() {
+	// The urb thread reads the mapped stream, stop it before unmapping
+	if (isUrbThreadRunning()) {
+		stopUrbAsyncRead();
+	}
+
+	if (_stream != nullptr) {
+		munmap((void*)_stream, _mapSize);
+		_stream = nullptr;
+	}
+}
+
+bool ReplayUsbDevice::fillIsoUrb(usbdevfs_urb *urb) {
+	return _recording ? fillIsoUrbFromRecording(urb) : fillIsoUrbFromPackets(urb);
+}
+
+/**
+ * Copies the next packets in the stream into each iso packet slot of the urb.  A slot
+ * receives as many whole USBTV packets as fit in its length, mirroring what the device
+ * sends in a single microframe.
+ *
+ * @param urb   The urb to fill
+ * @return false if the end of the stream was reached and looping is disabled
+ */
+bool ReplayUsbDevice::fillIsoUrbFromPackets(usbdevfs_urb *urb) {
+	uint8_t* buffer = (uint8_t*)urb->buffer;
+	bool more = true;
+
+	for (int i = 0; i < urb->number_of_packets; i++) {
+		uint32_t count = urb->iso_frame_desc[i].length / USBTV_PACKET_SIZE;
+		uint32_t copied = 0;
+
+		while (copied < count && more) {
+			if (_streamOffset >= _streamSize) {
+				if (_loop) {
+					_streamOffset = 0;
+				} else {
+					more = false;
+					break;
+				}
+			}
+			memcpy(buffer + (copied * USBTV_PACKET_SIZE), _stream + _streamOffset,
+			       USBTV_PACKET_SIZE);
+			_streamOffset += USBTV_PACKET_SIZE;
+			copied++;
+		}
+
+		urb->iso_frame_desc[i].actual_length = copied * USBTV_PACKET_SIZE;
+		urb->iso_frame_desc[i].status = 0;
+		urb->actual_length += copied * USBTV_PACKET_SIZE;
+		_packetsReplayed += copied;
+		buffer += urb->iso_frame_desc[i].length;
+	}
+
+	if (_packetRate > 0) {
+		_streamTimeNs = (_packetsReplayed * 1000000000ULL) / _packetRate;
+	}
+
+	return more;
+}
+
+/**
+ * Copies iso packets from the recording into each packet slot of the urb, along with
+ * their captured status.  Recorded urbs are split or joined as needed if the urb geometry
+ * differs from the recording, packets larger than a slot are truncated.
+ *
+ * @param urb   The urb to fill
+ * @return false if the end of the recording was reached and looping is disabled
+ */
+bool ReplayUsbDevice::fillIsoUrbFromRecording(usbdevfs_urb *urb) {
+	uint8_t* buffer = (uint8_t*)urb->buffer;
+	bool more = true;
+
+	for (int i = 0; i < urb->number_of_packets; i++) {
+		if (_record == nullptr || _recordPacket >= _record->numberOfPackets) {
+			if (!advanceRecord()) {
+				more = false;
+				break;
+			}
+		}
+
+		const usbdevfs_iso_packet_desc* desc = (const usbdevfs_iso_packet_desc*)(_record + 1) +
+		                                       _recordPacket;
+		uint32_t length = desc->actual_length;
+		if (length > urb->iso_frame_desc[i].length) {
+			length = urb->iso_frame_desc[i].length;
+		}
+
+		memcpy(buffer, _recordPayload, length);
+		urb->iso_frame_desc[i].actual_length = length;
+		urb->iso_frame_desc[i].status = desc->status;
+		urb->actual_length += length;
+		if (_record->status != 0) {
+			urb->status = _record->status;
+		}
+
+		_recordPayload += desc->actual_length;
+		_recordPacket++;
+		_packetsReplayed += length / USBTV_PACKET_SIZE;
+		buffer += urb->iso_frame_desc[i].length;
+	}
+
+	return more;
+}
+
+/**
+ * Returns the first record at or after offset, skipping the unused tail of chunks and
+ * records without packets.
+ *
+ * @return The record, or NULL if there are no more complete records
+ */
+const UrbRecord* ReplayUsbDevice::findRecord(size_t offset) {
+	while (offset + sizeof(UrbRecord) <= _streamSize) {
+		size_t chunkEnd = (offset / _chunkSize + 1) * _chunkSize;
+		const UrbRecord* record = (const UrbRecord*)(_stream + offset);
+
+		if (offset + sizeof(UrbRecord) > chunkEnd || record->recordSize == 0) {
+			offset = chunkEnd;
+			continue;
+		}
+
+		if (offset + record->recordSize > _streamSize) {
+			// Truncated record, the recording was not closed cleanly
+			break;
+		}
+		if (record->numberOfPackets == 0) {
+			// Nothing to replay
+			offset += record->recordSize;
+			continue;
+		}
+		return record;
+	}
+
+	return nullptr;
+}
+
+/**
+ * Moves to the next record in the recording, restarting it when looping
+ */
+bool ReplayUsbDevice::advanceRecord() {
+	size_t offset = sizeof(UrbRecordFileHeader);
+	if (_record != nullptr) {
+		offset = ((const uint8_t*)_record - _stream) + _record->recordSize;
+	}
+
+	const UrbRecord* record = findRecord(offset);
+	if (record == nullptr) {
+		if (!_loop || _record == nullptr) {
+			return false;
+		}
+
+		// Leave a millisecond between the end of the recording and its restart
+		_loopBaseNs = _streamTimeNs + 1000000;
+		record = findRecord(sizeof(UrbRecordFileHeader));
+		if (record == nullptr) {
+			return false;
+		}
+	}
+
+	_record = record;
+	_recordPacket = 0;
+	_recordPayload = (const uint8_t*)(record + 1) +
+	                 record->numberOfPackets * sizeof(usbdevfs_iso_packet_desc);
+	_streamTimeNs = _loopBaseNs + (record->timestampNs - _firstTimestampNs);
+	return true;
+}
@@ -0,0 +1,69 @@
+// Copyright (C) 2020 Eric Callahan <arksine.code@gmail.com>
+//
+// This file may be distributed under the terms of the GNU GPLv3 license
+//
+// A UsbTransport that replays a USBTV007 packet stream from a file rather than reading
+// from a device.  Two formats are accepted:
+//  - A sequence of raw 1024 byte packets exactly as the device sends them (header word
+//    followed by the payload).
+//  - A urb recording written by UrbRecorder.  Iso packet statuses, lengths and timing are
+//    reproduced as they were captured.
+//
+
+#ifndef USBTV007_ANDROID_REPLAYUSBDEVICE_H
+#define USBTV007_ANDROID_REPLAYUSBDEVICE_H
+
+#include <cstddef>
+#include "SimulatedUsbDevice.h"
+#include "UrbRecorder.h"
+
+class ReplayUsbDevice : public SimulatedUsbDevice {
+private:
+	const uint8_t*  _stream;            // Memory mapped packet stream
+	size_t          _mapSize;
+	size_t          _streamSize;
+	size_t          _streamOffset;
+	uint32_t        _packetRate;        // Packets per second, 0 replays at maximum speed
+	bool            _loop;
+
+	// Urb recording replay
+	bool                _recording;
+	uint32_t            _chunkSize;
+	const UrbRecord*    _record;        // Record currently being replayed
+	uint32_t            _recordPacket;  // Next iso packet within _record
+	const uint8_t*      _recordPayload; // Payload of the next iso packet
+	uint64_t            _firstTimestampNs;
+	uint64_t            _loopBaseNs;
+
+	uint64_t        _packetsReplayed;
+
+	bool fillIsoUrbFromPackets(usbdevfs_urb* urb);
+	bool fillIsoUrbFromRecording(usbdevfs_urb* urb);
+	const UrbRecord* findRecord(size_t offset);
+	bool advanceRecord();
+
+protected:
+	bool fillIsoUrb(usbdevfs_urb* urb) override;
+	bool isStreamReady() override {
+		return _stream != nullptr;
+	}
+
+public:
+	ReplayUsbDevice(const char* path, uint32_t packetRate, bool loop);
+	~ReplayUsbDevice() override;
+
+	bool isOpen() {
+		return _stream != nullptr;
+	}
+
+	bool isUrbRecording() {
+		return _recording;
+	}
+
+	uint64_t getPacketsReplayed() {
+		return _packetsReplayed;
+	}
+};
+
+
+#endif //USBTV007_ANDROID_REPLAYUSBDEVICE_H
@@ -0,0 +1,540 @@
+// Copyright (C) 2020 Eric Callahan <arksine.code@gmail.com>
+//
+// This file may be distributed under the terms of the GNU GPLv3 license
+
+#include "Scaler.h"
+#include <algorithm>
+#include <cmath>
+#include <cstring>
+
+#if defined(__ARM_NEON) || defined(__ARM_NEON__)
+#include <arm_neon.h>
+#define SCALER_NEON
+#elif defined(__SSE2__)
+#include <emmintrin.h>
+#define SCALER_SSE2
+#endif
+
+#ifndef M_PI
+#define M_PI    3.14159265358979323846
+#endif
+
+// Filter weights are 2.14 fixed point
+#define SCALE_BITS      14
+#define SCALE_ONE       (1 << SCALE_BITS)
+#define SCALE_ROUND     (1 << (SCALE_BITS - 1))
+
+#define SCALER_HORIZONTAL_COST  4
+
+static inline uint8_t clampByte(int32_t value) {
+	return (uint8_t)((value < 0) ? 0 : (value > 255) ? 255 : value);
+}
+
+static double sinc(double x) {
+	if (x == 0.0) {
+		return 1.0;
+	}
+	x *= M_PI;
+	return sin(x) / x;
+}
+
+static double filterRadius(ScaleFilter filter) {
+	switch (filter) {
+		case ScaleFilter::BICUBIC:
+			return 2.0;
+		case ScaleFilter::LANCZOS:
+			return 3.0;
+		case ScaleFilter::BILINEAR:
+		default:
+			return 1.0;
+	}
+}
+
+// Kernel value at distance x, in units of the source sample spacing
+static double filterWeight(ScaleFilter filter, double x) {
+	x = fabs(x);
+	switch (filter) {
+		case ScaleFilter::BICUBIC: {
+			// Catmull-Rom, a = -0.5
+			const double a = -0.5;
+			if (x < 1.0) {
+				return ((a + 2.0) * x - (a + 3.0)) * x * x + 1.0;
+			} else if (x < 2.0) {
+				return ((a * x - 5.0 * a) * x + 8.0 * a) * x - 4.0 * a;
+			}
+			return 0.0;
+		}
+		case ScaleFilter::LANCZOS:
+			return (x < 3.0) ? sinc(x) * sinc(x / 3.0) : 0.0;
+		case ScaleFilter::BILINEAR:
+		default:
+			return (x < 1.0) ? 1.0 - x : 0.0;
+	}
+}
+
+/*
+ * Horizontal filter of one plane.  dst[x] is the weighted sum of the bank's taps starting at
+ * src[start[x]].  Weights are read in blocks of 8, so src must be readable for bank.stride
+ * bytes past its last sample.  SIMD paths filter four outputs at a time.
+ */
+static void filterRow(uint8_t* dst, const uint8_t* src, const uint32_t* start,
+                      const int16_t* coeffs, uint32_t stride, uint32_t taps, uint32_t count) {
+	uint32_t x = 0;
+#if defined(SCALER_NEON)
+	for (; x + 4 <= count; x += 4) {
+		int32x2_t pairs[4];
+		for (uint32_t j = 0; j < 4; j++) {
+			const uint8_t* s = src + start[x + j];
+			const int16_t* c = coeffs + (x + j) * stride;
+			int32x4_t acc = vdupq_n_s32(0);
+			for (uint32_t k = 0; k < stride; k += 8) {
+				int16x8_t p = vreinterpretq_s16_u16(vmovl_u8(vld1_u8(s + k)));
+				int16x8_t w = vld1q_s16(c + k);
+				acc = vmlal_s16(acc, vget_low_s16(p), vget_low_s16(w));
+				acc = vmlal_s16(acc, vget_high_s16(p), vget_high_s16(w));
+			}
+			pairs[j] = vpadd_s32(vget_low_s32(acc), vget_high_s32(acc));
+		}
+		int32x4_t sums = vcombine_s32(vpadd_s32(pairs[0], pairs[1]),
+		                              vpadd_s32(pairs[2], pairs[3]));
+		sums = vaddq_s32(sums, vdupq_n_s32(SCALE_ROUND));
+		int16x4_t narrow = vqshrn_n_s32(sums, SCALE_BITS);
+		uint8_t out[8];
+		vst1_u8(out, vqmovun_s16(vcombine_s16(narrow, narrow)));
+		memcpy(dst + x, out, 4);
+	}
+#elif defined(SCALER_SSE2)
+	__m128i zero = _mm_setzero_si128();
+	__m128i round = _mm_set1_epi32(SCALE_ROUND);
+	for (; x + 4 <= count; x += 4) {
+		__m128i acc[4];
+		for (uint32_t j = 0; j < 4; j++) {
+			const uint8_t* s = src + start[x + j];
+			const int16_t* c = coeffs + (x + j) * stride;
+			acc[j] = zero;
+			for (uint32_t k = 0; k < stride; k += 8) {
+				__m128i p = _mm_unpacklo_epi8(_mm_loadl_epi64((const __m128i*)(s + k)), zero);
+				__m128i w = _mm_loadu_si128((const __m128i*)(c + k));
+				acc[j] = _mm_add_epi32(acc[j], _mm_madd_epi16(p, w));
+			}
+		}
+		// Transpose and add so lane j holds the sum of acc[j]
+		__m128i t0 = _mm_add_epi32(_mm_unpacklo_epi32(acc[0], acc[1]),
+		                           _mm_unpackhi_epi32(acc[0], acc[1]));
+		__m128i t1 = _mm_add_epi32(_mm_unpacklo_epi32(acc[2], acc[3]),
+		                           _mm_unpackhi_epi32(acc[2], acc[3]));
+		__m128i sums = _mm_add_epi32(_mm_unpacklo_epi64(t0, t1), _mm_unpackhi_epi64(t0, t1));
+		sums = _mm_srai_epi32(_mm_add_epi32(sums, round), SCALE_BITS);
+		__m128i packed = _mm_packs_epi32(sums, sums);
+		int32_t out = _mm_cvtsi128_si32(_mm_packus_epi16(packed, packed));
+		memcpy(dst + x, &out, 4);
+	}
+#endif
+	for (; x < count; x++) {
+		const uint8_t* s = src + start[x];
+		const int16_t* c = coeffs + x * stride;
+		int32_t acc = SCALE_ROUND;
+		for (uint32_t k = 0; k < taps; k++) {
+			acc += c[k] * s[k];
+		}
+		dst[x] = clampByte(acc >> SCALE_BITS);
+	}
+}
+
+/*
+ * Vertical filter of one output line.  Every byte of the line is the weighted sum of the
+ * bytes at the same position in `taps` consecutive source lines starting at src.
+ */
+static void filterColumns(uint8_t* dst, const uint8_t* src, uint32_t stride,
+                          const int16_t* coeffs, uint32_t taps, uint32_t size) {
+	uint32_t i = 0;
+#if defined(SCALER_NEON)
+	for (; i + 16 <= size; i += 16) {
+		int32x4_t acc0 = vdupq_n_s32(SCALE_ROUND);
+		int32x4_t acc1 = acc0;
+		int32x4_t acc2 = acc0;
+		int32x4_t acc3 = acc0;
+		for (uint32_t k = 0; k < taps; k++) {
+			uint8x16_t p = vld1q_u8(src + k * stride + i);
+			int16x8_t lo = vreinterpretq_s16_u16(vmovl_u8(vget_low_u8(p)));
+			int16x8_t hi = vreinterpretq_s16_u16(vmovl_u8(vget_high_u8(p)));
+			acc0 = vmlal_n_s16(acc0, vget_low_s16(lo), coeffs[k]);
+			acc1 = vmlal_n_s16(acc1, vget_high_s16(lo), coeffs[k]);
+			acc2 = vmlal_n_s16(acc2, vget_low_s16(hi), coeffs[k]);
+			acc3 = vmlal_n_s16(acc3, vget_high_s16(hi), coeffs[k]);
+		}
+		int16x8_t lo = vcombine_s16(vqshrn_n_s32(acc0, SCALE_BITS),
+		                            vqshrn_n_s32(acc1, SCALE_BITS));
+		int16x8_t hi = vcombine_s16(vqshrn_n_s32(acc2, SCALE_BITS),
+		                            vqshrn_n_s32(acc3, SCALE_BITS));
+		vst1q_u8(dst + i, vcombine_u8(vqmovun_s16(lo), vqmovun_s16(hi)));
+	}
+#elif defined(SCALER_SSE2)
+	__m128i zero = _mm_setzero_si128();
+	__m128i round = _mm_set1_epi32(SCALE_ROUND);
+	for (; i + 16 <= size; i += 16) {
+		__m128i acc0 = round;
+		__m128i acc1 = round;
+		__m128i acc2 = round;
+		__m128i acc3 = round;
+		// Lines are taken in pairs so each multiply-add combines two taps
+		for (uint32_t k = 0; k < taps; k += 2) {
+			uint32_t next = (k + 1 < taps) ? k + 1 : k;
+			int16_t nextCoeff = (k + 1 < taps) ? coeffs[k + 1] : (int16_t)0;
+			__m128i c = _mm_set1_epi32((int32_t)(((uint32_t)(uint16_t)nextCoeff << 16) |
+			                                     (uint16_t)coeffs[k]));
+			__m128i a = _mm_loadu_si128((const __m128i*)(src + k * stride + i));
+			__m128i b = _mm_loadu_si128((const __m128i*)(src + next * stride + i));
+			__m128i alo = _mm_unpacklo_epi8(a, zero);
+			__m128i ahi = _mm_unpackhi_epi8(a, zero);
+			__m128i blo = _mm_unpacklo_epi8(b, zero);
+			__m128i bhi = _mm_unpackhi_epi8(b, zero);
+			acc0 = _mm_add_epi32(acc0, _mm_madd_epi16(_mm_unpacklo_epi16(alo, blo), c));
+			acc1 = _mm_add_epi32(acc1, _mm_madd_epi16(_mm_unpackhi_epi16(alo, blo), c));
+			acc2 = _mm_add_epi32(acc2, _mm_madd_epi16(_mm_unpacklo_epi16(ahi, bhi), c));
+			acc3 = _mm_add_epi32(acc3, _mm_madd_epi16(_mm_unpackhi_epi16(ahi, bhi), c));
+		}
+		__m128i lo = _mm_packs_epi32(_mm_srai_epi32(acc0, SCALE_BITS),
+		                             _mm_srai_epi32(acc1, SCALE_BITS));
+		__m128i hi = _mm_packs_epi32(_mm_srai_epi32(acc2, SCALE_BITS),
+		                             _mm_srai_epi32(acc3, SCALE_BITS));
+		_mm_storeu_si128((__m128i*)(dst + i), _mm_packus_epi16(lo, hi));
+	}
+#endif
+	for (; i < size; i++) {
+		int32_t acc = SCALE_ROUND;
+		for (uint32_t k = 0; k < taps; k++) {
+			acc += coeffs[k] * src[k * stride + i];
+		}
+		dst[i] = clampByte(acc >> SCALE_BITS);
+	}
+}
+
+/**
+ * @param format        Pixel format of both frames
+ * @param srcWidth      Source width in pixels, even for YUYV
+ * @param srcHeight     Source height in lines
+ * @param dstWidth      Output width in pixels, even for YUYV
+ * @param dstHeight     Output height in lines
+ * @param filter        Resampling kernel
+ * @param threadCount   Worker threads used in addition to the thread calling process()
+ */
+Scaler::Scaler(PixelFormat format, uint16_t srcWidth, uint16_t srcHeight, uint16_t dstWidth,
+               uint16_t dstHeight, ScaleFilter filter, uint8_t threadCount) {
+	_format = format;
+	_srcWidth = srcWidth;
+	_srcHeight = srcHeight;
+	_dstWidth = dstWidth;
+	_dstHeight = dstHeight;
+	_srcLineSize = (uint32_t)srcWidth * bytesPerPixel(format);
+	_dstLineSize = (uint32_t)dstWidth * bytesPerPixel(format);
+	_scaleHorizontal = (srcWidth != dstWidth);
+	_scaleVertical = (srcHeight != dstHeight);
+
+	if (_scaleHorizontal) {
+		buildFilterBank(&_lumaBank, srcWidth, dstWidth, filter, 0.5);
+		// Chroma is sited with the even luma samples
+		_chromaBank.stride = 0;
+		if (format == PixelFormat::YUYV) {
+			buildFilterBank(&_chromaBank, srcWidth / 2u, dstWidth / 2u, filter, 0.25);
+		}
+	}
+	if (_scaleVertical) {
+		buildFilterBank(&_verticalBank, srcHeight, dstHeight, filter, 0.5);
+	}
+
+	// A horizontal tap costs about as much as SCALER_HORIZONTAL_COST vertical ones, as the
+	// vertical pass filters a vector of bytes with each multiply
+	_verticalFirst = false;
+	_intermediate = nullptr;
+	if (_scaleHorizontal && _scaleVertical) {
+		uint64_t horizontalWork = (uint64_t)_dstLineSize * _lumaBank.taps * SCALER_HORIZONTAL_COST;
+		uint64_t verticalTaps = _verticalBank.taps;
+		uint64_t horizontalFirst = srcHeight * horizontalWork +
+		                           (uint64_t)dstHeight * _dstLineSize * verticalTaps;
+		uint64_t verticalFirst = (uint64_t)dstHeight * _srcLineSize * verticalTaps +
+		                         dstHeight * horizontalWork;
+		_verticalFirst = (verticalFirst < horizontalFirst);
+		_intermediate = _verticalFirst ? new uint8_t[(uint32_t)dstHeight * _srcLineSize]
+		                               : new uint8_t[(uint32_t)srcHeight * _dstLineSize];
+	}
+
+	_workers = new WorkerPool(threadCount, "usbtv_scale");
+	_stripeCount = ((uint32_t)_workers->getThreadCount() + 1) * 2;
+
+	// Planar source lines padded for the filter's block reads, then planar output lines
+	_scratchSize = 0;
+	if (_scaleHorizontal) {
+		_scratchSize = srcWidth + _lumaBank.stride + dstWidth;
+		if (format == PixelFormat::YUYV) {
+			_scratchSize += 2u * (srcWidth / 2u + _chromaBank.stride) + dstWidth;
+		}
+	}
+	_scratch.assign((size_t)_stripeCount * _scratchSize, 0);
+	_src = nullptr;
+	_dst = nullptr;
+}
+
+Scaler::~Scaler() {
+	delete _workers;
+	delete [] _intermediate;
+}
+
+/**
+ * Computes the weights mapping srcSize samples to dstSize samples.  Output sample i is
+ * centred on source position (i + phase) * scale - phase, so a phase of 0.5 aligns the
+ * outer edges of the first and last samples.  Weights falling outside the source are folded
+ * onto the edge samples, and taps that are zero for every output sample are dropped.
+ */
+void Scaler::buildFilterBank(FilterBank *bank, uint32_t srcSize, uint32_t dstSize,
+                             ScaleFilter filter, double phase) {
+	double scale = (double)srcSize / dstSize;
+	double stretch = (scale > 1.0) ? scale : 1.0;
+	double support = filterRadius(filter) * stretch;
+
+	uint32_t maxTaps = (uint32_t)ceil(support) * 2 + 1;
+	if (maxTaps > srcSize) {
+		maxTaps = srcSize;
+	}
+	std::vector<int16_t> wide((size_t)dstSize * maxTaps, 0);
+	std::vector<int32_t> wideStart(dstSize);
+	std::vector<double> weights(maxTaps);
+	uint32_t taps = 1;
+
+	for (uint32_t i = 0; i < dstSize; i++) {
+		double center = (i + phase) * scale - phase;
+		int left = (int)ceil(center - support);
+		int right = (int)floor(center + support);
+		int first = left;
+		if (first > (int)(srcSize - maxTaps)) {
+			first = (int)(srcSize - maxTaps);
+		}
+		if (first < 0) {
+			first = 0;
+		}
+
+		std::fill(weights.begin(), weights.end(), 0.0);
+		double total = 0.0;
+		for (int j = left; j <= right; j++) {
+			double weight = filterWeight(filter, (j - center) / stretch);
+			int index = (j < 0) ? 0 : (j >= (int)srcSize) ? (int)srcSize - 1 : j;
+			weights[index - first] += weight;
+			total += weight;
+		}
+
+		// Normalize, then give the rounding error to the largest weight so every output
+		// sample sums to exactly one
+		int16_t* coeffs = &wide[(size_t)i * maxTaps];
+		int32_t sum = 0;
+		uint32_t largest = 0;
+		for (uint32_t k = 0; k < maxTaps; k++) {
+			coeffs[k] = (int16_t)lround(weights[k] / total * SCALE_ONE);
+			sum += coeffs[k];
+			if (coeffs[k] > coeffs[largest]) {
+				largest = k;
+			}
+		}
+		coeffs[largest] = (int16_t)(coeffs[largest] + (SCALE_ONE - sum));
+
+		// Trim zero weights from both ends
+		uint32_t low = 0;
+		uint32_t high = maxTaps - 1;
+		while (low < largest && coeffs[low] == 0) {
+			low++;
+		}
+		while (high > largest && coeffs[high] == 0) {
+			high--;
+		}
+		if (low > 0) {
+			memmove(coeffs, coeffs + low, (high - low + 1) * sizeof(int16_t));
+			memset(coeffs + (high - low + 1), 0, low * sizeof(int16_t));
+		}
+		wideStart[i] = first + (int32_t)low;
+		if (high - low + 1 > taps) {
+			taps = high - low + 1;
+		}
+	}
+
+	bank->taps = taps;
+	bank->stride = (taps + 7) & ~7u;
+	bank->start.resize(dstSize);
+	bank->coeffs.assign((size_t)dstSize * bank->stride, 0);
+	for (uint32_t i = 0; i < dstSize; i++) {
+		// Windows running past the end of the source are moved back, shifting the weights
+		int32_t start = wideStart[i];
+		uint32_t shift = 0;
+		if (start + (int32_t)taps > (int32_t)srcSize) {
+			shift = (uint32_t)(start + (int32_t)taps - (int32_t)srcSize);
+			start -= (int32_t)shift;
+		}
+		for (uint32_t k = 0; k + shift < taps; k++) {
+			bank->coeffs[(size_t)i * bank->stride + k + shift] = wide[(size_t)i * maxTaps + k];
+		}
+		bank->start[i] = (uint32_t)start;
+	}
+}
+
+/**
+ * Resizes a frame.
+ *
+ * @param src   Source frame, srcHeight lines of srcWidth pixels
+ * @param dst   Output frame, dstHeight lines of dstWidth pixels
+ */
+void Scaler::process(const uint8_t *src, uint8_t *dst) {
+	_src = src;
+	_dst = dst;
+
+	if (_verticalFirst) {
+		_workers->run(_stripeCount, [this](uint32_t stripe) {
+			verticalStripe(stripe);
+		});
+		_workers->run(_stripeCount, [this](uint32_t stripe) {
+			horizontalStripe(stripe);
+		});
+		return;
+	}
+
+	if (_scaleHorizontal) {
+		_workers->run(_stripeCount, [this](uint32_t stripe) {
+			horizontalStripe(stripe);
+		});
+	}
+	if (_scaleVertical) {
+		_workers->run(_stripeCount, [this](uint32_t stripe) {
+			verticalStripe(stripe);
+		});
+	}
+	if (!_scaleHorizontal && !_scaleVertical) {
+		memcpy(dst, src, (size_t)_srcHeight * _srcLineSize);
+	}
+}
+
+void Scaler::stripeBounds(uint32_t stripe, uint32_t lines, uint32_t *start, uint32_t *end) {
+	uint32_t linesPerStripe = (lines + _stripeCount - 1) / _stripeCount;
+	*start = stripe * linesPerStripe;
+	*end = *start + linesPerStripe;
+	if (*start > lines) {
+		*start = lines;
+	}
+	if (*end > lines) {
+		*end = lines;
+	}
+}
+
+void Scaler::horizontalStripe(uint32_t stripe) {
+	// Vertically scaled lines when the vertical pass runs first
+	uint32_t start;
+	uint32_t end;
+	stripeBounds(stripe, _verticalFirst ? _dstHeight : _srcHeight, &start, &end);
+	const uint8_t* in = _verticalFirst ? _intermediate : _src;
+	uint8_t* out = (_scaleVertical && !_verticalFirst) ? _intermediate : _dst;
+
+	// Each stripe filters planar copies of its lines in its own scratch area
+	uint8_t* scratch = &_scratch[stripe * _scratchSize];
+	uint32_t srcChroma = _srcWidth / 2u;
+	uint32_t dstChroma = _dstWidth / 2u;
+	uint8_t* srcY = scratch;
+	uint8_t* srcU = srcY + _srcWidth + _lumaBank.stride;
+	uint8_t* srcV = srcU + srcChroma + _chromaBank.stride;
+	uint8_t* dstY = srcV + srcChroma + _chromaBank.stride;
+	uint8_t* dstU = dstY + _dstWidth;
+	uint8_t* dstV = dstU + dstChroma;
+
+	for (uint32_t line = start; line < end; line++) {
+		const uint8_t* src = in + line * _srcLineSize;
+		uint8_t* dst = out + line * _dstLineSize;
+		if (_format == PixelFormat::Y8) {
+			memcpy(srcY, src, _srcWidth);
+			filterRow(dst, srcY, _lumaBank.start.data(), _lumaBank.coeffs.data(),
+			          _lumaBank.stride, _lumaBank.taps, _dstWidth);
+			continue;
+		}
+
+		for (uint32_t i = 0; i < srcChroma; i++) {
+			srcY[2 * i] = src[4 * i];
+			srcU[i] = src[4 * i + 1];
+			srcY[2 * i + 1] = src[4 * i + 2];
+			srcV[i] = src[4 * i + 3];
+		}
+		filterRow(dstY, srcY, _lumaBank.start.data(), _lumaBank.coeffs.data(),
+		          _lumaBank.stride, _lumaBank.taps, _dstWidth);
+		filterRow(dstU, srcU, _chromaBank.start.data(), _chromaBank.coeffs.data(),
+		          _chromaBank.stride, _chromaBank.taps, dstChroma);
+		filterRow(dstV, srcV, _chromaBank.start.data(), _chromaBank.coeffs.data(),
+		          _chromaBank.stride, _chromaBank.taps, dstChroma);
+		for (uint32_t i = 0; i < dstChroma; i++) {
+			dst[4 * i] = dstY[2 * i];
+			dst[4 * i + 1] = dstU[i];
+			dst[4 * i + 2] = dstY[2 * i + 1];
+			dst[4 * i + 3] = dstV[i];
+		}
+	}
+}
+
+void Scaler::verticalStripe(uint32_t stripe) {
+	uint32_t start;
+	uint32_t end;
+	stripeBounds(stripe, _dstHeight, &start, &end);
+
+	// Lines are the source width when this pass runs first, otherwise the output width
+	const uint8_t* in = (_scaleHorizontal && !_verticalFirst) ? _intermediate : _src;
+	uint8_t* out = _verticalFirst ? _intermediate : _dst;
+	uint32_t lineSize = _verticalFirst ? _srcLineSize : _dstLineSize;
+	uint32_t taps = _verticalBank.taps;
+
+	for (uint32_t line = start; line < end; line++) {
+		filterColumns(out + line * lineSize, in + _verticalBank.start[line] * lineSize,
+		              lineSize, &_verticalBank.coeffs[(size_t)line * _verticalBank.stride],
+		              taps, lineSize);
+	}
+}
+
+/**
+ * Resolves the scaler output size for a source frame.  See ScaleParams.
+ *
+ * @param singleField   True if each source line is one line of a field, in which case
+ *                      the source has half the display height when correcting pixel aspect
+ */
+void Scaler::computeOutputSize(const ScaleParams &params, TvNorm norm, uint16_t srcWidth,
+                               uint16_t srcHeight, bool singleField, uint16_t *width,
+                               uint16_t *height) {
+	// Display aspect ratio of the source, aspectWidth : aspectHeight
+	uint64_t aspectWidth = srcWidth;
+	uint64_t aspectHeight = srcHeight;
+	if (params.squarePixels) {
+		// BT.601 pixel aspect ratios of 13.5 MHz sampled video
+		aspectWidth *= (norm == TvNorm::PAL) ? 12 : 10;
+		aspectHeight *= singleField ? 22 : 11;
+	}
+
+	uint64_t w = params.width;
+	uint64_t h = params.height;
+	if (w == 0 && h == 0) {
+		if (!params.squarePixels) {
+			*width = srcWidth;
+			*height = srcHeight;
+			return;
+		}
+		h = srcHeight;
+	}
+	if (w == 0) {
+		w = (h * aspectWidth + aspectHeight / 2) / aspectHeight;
+	} else if (h == 0) {
+		h = (w * aspectHeight + aspectWidth / 2) / aspectWidth;
+	}
+
+	// Whole YUYV macropixels
+	w = (w + 1) & ~(uint64_t)1;
+	if (w < 2) {
+		w = 2;
+	} else if (w > USBTV_SCALE_MAX_WIDTH) {
+		w = USBTV_SCALE_MAX_WIDTH;
+	}
+	if (h < 2) {
+		h = 2;
+	} else if (h > USBTV_SCALE_MAX_HEIGHT) {
+		h = USBTV_SCALE_MAX_HEIGHT;
+	}
+	*width = (uint16_t)w;
+	*height = (uint16_t)h;
+}
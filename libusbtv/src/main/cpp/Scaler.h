@@ -0,0 +1,88 @@
+// Copyright (C) 2020 Eric Callahan <arksine.code@gmail.com>
+//
+// This file may be distributed under the terms of the GNU GPLv3 license
+//
+// Resizes YUYV or Y8 frames with a separable polyphase filter.  Each output sample is a
+// weighted sum of the nearest source samples, with weights taken from a ScaleFilter kernel
+// and precomputed per output row and column.  When downscaling the kernel is stretched by
+// the scale factor so that thumbnails do not alias.
+//
+// Lines are resized horizontally and columns vertically, through an intermediate buffer when
+// both change.  The horizontal pass splits YUYV lines into planes and resizes chroma at half
+// the horizontal resolution, keeping the chroma samples sited with the even luma samples.
+// The vertical pass treats every byte alike and is much cheaper per sample, so it runs first
+// when that leaves the horizontal pass fewer lines to filter, ie. for thumbnails.  Both
+// passes use NEON or SSE2 where available and run in stripes on a WorkerPool.
+//
+
+#ifndef USBTV007_ANDROID_SCALER_H
+#define USBTV007_ANDROID_SCALER_H
+
+#include <cstdint>
+#include <vector>
+#include "usbtv_definitions.h"
+#include "WorkerPool.h"
+
+// Scaled frames are written to output frames reserved at the end of the frame pool
+#define USBTV_SCALER_OUTPUT_FRAMES  2
+#define USBTV_SCALER_MAX_THREADS    4
+#define USBTV_SCALE_MAX_WIDTH       1920
+#define USBTV_SCALE_MAX_HEIGHT      1080
+
+class Scaler {
+private:
+	// Weights for one dimension.  Output sample i is the sum of `taps` source samples
+	// starting at start[i], weighted by coeffs[i * stride] onward in 2.14 fixed point.  The
+	// stride is taps rounded up to a multiple of 8, the extra weights are zero.
+	struct FilterBank {
+		uint32_t                taps;
+		uint32_t                stride;
+		std::vector<uint32_t>   start;
+		std::vector<int16_t>    coeffs;
+	};
+
+	PixelFormat _format;
+	uint16_t    _srcWidth;
+	uint16_t    _srcHeight;
+	uint16_t    _dstWidth;
+	uint16_t    _dstHeight;
+	uint32_t    _srcLineSize;
+	uint32_t    _dstLineSize;
+	bool        _scaleHorizontal;
+	bool        _scaleVertical;
+	bool        _verticalFirst;     // Pass order when scaling both dimensions
+
+	FilterBank  _lumaBank;          // Horizontal, Y8 or YUYV luma
+	FilterBank  _chromaBank;        // Horizontal, YUYV chroma
+	FilterBank  _verticalBank;
+
+	uint8_t*    _intermediate;      // Output of the first pass
+	WorkerPool* _workers;
+	uint32_t    _stripeCount;
+	std::vector<uint8_t>    _scratch;   // Planar lines for the horizontal pass, per stripe
+	uint32_t                _scratchSize;
+
+	// Frame being processed, read by the stripe jobs
+	const uint8_t*  _src;
+	uint8_t*        _dst;
+
+	static void buildFilterBank(FilterBank* bank, uint32_t srcSize, uint32_t dstSize,
+	                            ScaleFilter filter, double phase);
+	void stripeBounds(uint32_t stripe, uint32_t lines, uint32_t* start, uint32_t* end);
+	void horizontalStripe(uint32_t stripe);
+	void verticalStripe(uint32_t stripe);
+
+public:
+	Scaler(PixelFormat format, uint16_t srcWidth, uint16_t srcHeight, uint16_t dstWidth,
+	       uint16_t dstHeight, ScaleFilter filter, uint8_t threadCount);
+	~Scaler();
+
+	void process(const uint8_t* src, uint8_t* dst);
+
+	static void computeOutputSize(const ScaleParams& params, TvNorm norm, uint16_t srcWidth,
+	                              uint16_t srcHeight, bool singleField, uint16_t* width,
+	                              uint16_t* height);
+};
+
+
+#endif //USBTV007_ANDROID_SCALER_H
@@ -0,0 +1,196 @@
+// Copyright (C) 2020 Eric Callahan <arksine.code@gmail.com>
+//
+// This file may be distributed under the terms of the GNU GPLv3 license
+
+#include "SharedFrameClient.h"
+#include "util.h"
+#include <cerrno>
+#include <poll.h>
+#include <unistd.h>
+#include <sys/mman.h>
+
+SharedFrameClient::SharedFrameClient() {
+	_fd = -1;
+	_clientBit = 0;
+	_generation = 0;
+	_frames = nullptr;
+	_regionSize = 0;
+	_control = nullptr;
+	_controlSize = 0;
+}
+
+SharedFrameClient::~SharedFrameClient() {
+	disconnect();
+}
+
+/**
+ * Connects to a driver sharing its frames
+ *
+ * @param socketName    Name the driver started frame sharing with
+ * @return true if connected
+ */
+bool SharedFrameClient::connect(const char *socketName) {
+	disconnect();
+
+	sockaddr_un address;
+	socklen_t length = sharedSocketAddress(socketName, &address);
+	if (length == 0) {
+		return false;
+	}
+	_fd = socket(AF_UNIX, SOCK_SEQPACKET | SOCK_CLOEXEC, 0);
+	if (_fd < 0) {
+		return false;
+	}
+	if (::connect(_fd, (sockaddr*)&address, length) != 0) {
+		LOGE("Unable to connect to %s: %s", socketName, strerror(errno));
+		close(_fd);
+		_fd = -1;
+		return false;
+	}
+	return true;
+}
+
+/**
+ * Disconnects, which releases every frame still held
+ */
+void SharedFrameClient::disconnect() {
+	unmapPool();
+	if (_fd >= 0) {
+		close(_fd);
+		_fd = -1;
+	}
+}
+
+/**
+ * Waits for the next frame shared
+ *
+ * @param frame     Filled in with the frame, which must be passed to release() once read
+ * @param timeoutMs Time to wait, or -1 to wait until a frame arrives or the driver
+ *                  disconnects
+ * @return true if a frame was acquired, false on timeout or disconnection
+ */
+bool SharedFrameClient::acquire(SharedFrame *frame, int timeoutMs) {
+	uint64_t deadlineNs = getSteadyTimeNs() + (uint64_t)timeoutMs * 1000000;
+	while (_fd >= 0) {
+		int remainingMs = timeoutMs;
+		if (timeoutMs > 0) {
+			uint64_t nowNs = getSteadyTimeNs();
+			remainingMs = (nowNs < deadlineNs) ? (int)((deadlineNs - nowNs) / 1000000) : 0;
+		}
+
+		SharedFrameMessage message;
+		if (!receive(&message, remainingMs)) {
+			return false;
+		}
+
+		if (message.type == (uint32_t)SharedMessageType::FRAME) {
+			if (_frames == nullptr || message.generation != _generation ||
+			    message.slot >= _control->slotCount ||
+			    message.offset + message.length > _regionSize) {
+				continue;
+			}
+			frame->data = _frames + message.offset;
+			frame->length = message.length;
+			frame->width = message.width;
+			frame->height = message.height;
+			frame->pixelFormat = (PixelFormat)message.pixelFormat;
+			frame->slot = message.slot;
+			frame->frameId = message.frameId;
+			frame->generation = message.generation;
+			frame->timestampNs = message.timestampNs;
+			return true;
+		} else if (message.type == (uint32_t)SharedMessageType::RESET) {
+			unmapPool();
+		}
+	}
+	return false;
+}
+
+/**
+ * Returns a frame to the driver.  The frame's data must not be read afterwards.
+ */
+void SharedFrameClient::release(const SharedFrame &frame) {
+	if (_control != nullptr && frame.generation == _generation) {
+		_control->holders[frame.slot].fetch_and(~_clientBit, std::memory_order_release);
+	}
+}
+
+/**
+ * Receives the next message, mapping the regions a POOL message carries
+ *
+ * @return false on timeout or disconnection
+ */
+bool SharedFrameClient::receive(SharedFrameMessage *message, int timeoutMs) {
+	pollfd server = {_fd, POLLIN, 0};
+	int ready;
+	do {
+		ready = poll(&server, 1, timeoutMs);
+	} while (ready < 0 && errno == EINTR);
+	if (ready <= 0) {
+		return false;
+	}
+
+	iovec data = {message, sizeof(SharedFrameMessage)};
+	char control[CMSG_SPACE(2 * sizeof(int))];
+	msghdr header;
+	CLEAR(header);
+	header.msg_iov = &data;
+	header.msg_iovlen = 1;
+	header.msg_control = control;
+	header.msg_controllen = sizeof(control);
+
+	ssize_t received = recvmsg(_fd, &header, MSG_CMSG_CLOEXEC);
+	if (received != (ssize_t)sizeof(SharedFrameMessage)) {
+		disconnect();
+		return false;
+	}
+
+	int fds[2] = {-1, -1};
+	for (cmsghdr* rights = CMSG_FIRSTHDR(&header); rights != nullptr;
+	     rights = CMSG_NXTHDR(&header, rights)) {
+		if (rights->cmsg_level == SOL_SOCKET && rights->cmsg_type == SCM_RIGHTS &&
+		    rights->cmsg_len == CMSG_LEN(2 * sizeof(int))) {
+			memcpy(fds, CMSG_DATA(rights), sizeof(fds));
+		}
+	}
+
+	if (message->type == (uint32_t)SharedMessageType::POOL && fds[0] >= 0) {
+		unmapPool();
+		void* frames = mmap(nullptr, message->regionSize, PROT_READ, MAP_SHARED, fds[0], 0);
+		void* control = mmap(nullptr, message->controlSize, PROT_READ | PROT_WRITE, MAP_SHARED,
+		                     fds[1], 0);
+		if (frames != MAP_FAILED && control != MAP_FAILED &&
+		    ((SharedPoolControl*)control)->magic == USBTV_SHARED_MAGIC &&
+		    ((SharedPoolControl*)control)->version == USBTV_SHARED_VERSION) {
+			_frames = (const uint8_t*)frames;
+			_regionSize = message->regionSize;
+			_control = (SharedPoolControl*)control;
+			_controlSize = message->controlSize;
+			_clientBit = 1u << message->clientIndex;
+			_generation = message->generation;
+		} else {
+			LOGE("Unable to map the shared frame pool: %s", strerror(errno));
+			if (frames != MAP_FAILED) {
+				munmap(frames, message->regionSize);
+			}
+			if (control != MAP_FAILED) {
+				munmap(control, message->controlSize);
+			}
+		}
+	}
+	for (int fd : fds) {
+		if (fd >= 0) {
+			close(fd);
+		}
+	}
+	return true;
+}
+
+void SharedFrameClient::unmapPool() {
+	if (_frames != nullptr) {
+		munmap((void*)_frames, _regionSize);
+		munmap(_control, _controlSize);
+		_frames = nullptr;
+		_control = nullptr;
+	}
+}
@@ -0,0 +1,60 @@
+// Copyright (C) 2020 Eric Callahan <arksine.code@gmail.com>
+//
+// This file may be distributed under the terms of the GNU GPLv3 license
+//
+// Receives frames shared by a SharedFramePool in another process.  Frames are read in place
+// from a read-only mapping of the driver's frame pool, and each one acquired must be
+// released so the driver can reuse it.  A client may hold USBTV_SHARED_CLIENT_FRAMES frames
+// at once, frames delivered while it holds that many are skipped.
+//
+// When streaming stops or the pipeline is rebuilt the pool is replaced.  Frames still held
+// from the old pool are unmapped by the next call to acquire() that receives the new one,
+// so they should be released first.
+//
+
+#ifndef USBTV007_ANDROID_SHAREDFRAMECLIENT_H
+#define USBTV007_ANDROID_SHAREDFRAMECLIENT_H
+
+#include <cstdint>
+#include "SharedFramePool.h"
+
+struct SharedFrame {
+	const uint8_t*  data;
+	uint32_t        length;
+	uint16_t        width;
+	uint16_t        height;
+	PixelFormat     pixelFormat;
+	uint32_t        slot;
+	uint32_t        frameId;
+	uint32_t        generation;
+	uint64_t        timestampNs;
+};
+
+class SharedFrameClient {
+private:
+	int                 _fd;
+	uint32_t            _clientBit;
+	uint32_t            _generation;
+	const uint8_t*      _frames;
+	size_t              _regionSize;
+	SharedPoolControl*  _control;
+	size_t              _controlSize;
+
+	bool receive(SharedFrameMessage* message, int timeoutMs);
+	void unmapPool();
+
+public:
+	SharedFrameClient();
+	~SharedFrameClient();
+
+	bool connect(const char* socketName);
+	void disconnect();
+
+	bool acquire(SharedFrame* frame, int timeoutMs);
+	void release(const SharedFrame& frame);
+
+	bool isConnected() { return _fd >= 0; }
+};
+
+
+#endif //USBTV007_ANDROID_SHAREDFRAMECLIENT_H
@@ -0,0 +1,614 @@
+// Copyright (C) 2020 Eric Callahan <arksine.code@gmail.com>
+//
+// This file may be distributed under the terms of the GNU GPLv3 license
+
+#include "SharedFramePool.h"
+#include "Tracer.h"
+#include "util.h"
+#include <cerrno>
+#include <cstddef>
+#include <cstdio>
+#include <fcntl.h>
+#include <poll.h>
+#include <unistd.h>
+#include <sys/mman.h>
+#include <sys/syscall.h>
+
+#if defined(__ANDROID__)
+#include <sys/ioctl.h>
+#include <linux/ashmem.h>
+#endif
+
+#define SHARED_POLL_MS      200
+#define SHARED_PAGE_SIZE    4096
+
+// Older headers lack the memfd and sealing definitions
+#ifndef MFD_CLOEXEC
+#define MFD_CLOEXEC         0x0001U
+#endif
+#ifndef MFD_ALLOW_SEALING
+#define MFD_ALLOW_SEALING   0x0002U
+#endif
+#ifndef F_ADD_SEALS
+#define F_ADD_SEALS         1033
+#endif
+#ifndef F_SEAL_SHRINK
+#define F_SEAL_SHRINK       0x0002
+#endif
+#ifndef F_SEAL_GROW
+#define F_SEAL_GROW         0x0004
+#endif
+#ifndef F_SEAL_FUTURE_WRITE
+#define F_SEAL_FUTURE_WRITE 0x0010
+#endif
+
+static inline size_t pageAlign(size_t size) {
+	return (size + SHARED_PAGE_SIZE - 1) & ~((size_t)SHARED_PAGE_SIZE - 1);
+}
+
+/**
+ * Creates an ashmem region, only available on Android
+ *
+ * @return The region's descriptor, or -1 on failure
+ */
+static int createAshmem(const char* name, size_t size) {
+#if defined(__ANDROID__)
+	int fd = open("/dev/ashmem", O_RDWR | O_CLOEXEC);
+	if (fd >= 0 && (ioctl(fd, ASHMEM_SET_NAME, name) != 0 ||
+	                ioctl(fd, ASHMEM_SET_SIZE, size) != 0)) {
+		close(fd);
+		fd = -1;
+	}
+	return fd;
+#else
+	return -1;
+#endif
+}
+
+/**
+ * Creates an anonymous shared memory region, a memfd where the kernel supports it, otherwise
+ * ashmem on Android
+ *
+ * @return The region's descriptor, or -1 on failure
+ */
+static int createSharedMemory(const char* name, size_t size) {
+	int fd = -1;
+#if defined(__NR_memfd_create)
+	fd = (int)syscall(__NR_memfd_create, name, MFD_CLOEXEC | MFD_ALLOW_SEALING);
+	if (fd >= 0) {
+		if (ftruncate(fd, (off_t)size) != 0) {
+			close(fd);
+			return -1;
+		}
+		// Clients must not be able to resize the region under the driver
+		fcntl(fd, F_ADD_SEALS, F_SEAL_SHRINK | F_SEAL_GROW);
+		return fd;
+	}
+#endif
+	return createAshmem(name, size);
+}
+
+/**
+ * Creates the frame region and the driver's writable mapping of it.  The descriptor returned
+ * may be passed to clients, as it refuses every later writable mapping:
+ *
+ *  - a memfd is sealed with F_SEAL_FUTURE_WRITE (Linux 5.1).  Without the seal a client could
+ *    reopen the memfd through /proc/self/fd read-write, so an unsealed memfd is never used.
+ *  - ashmem has its protection mask lowered to PROT_READ.
+ *
+ * @param frames    Set to the driver's mapping
+ * @return The region's descriptor, or -1 if no read-only region can be created
+ */
+static int createFrameRegion(size_t size, uint8_t** frames) {
+	*frames = nullptr;
+#if defined(__NR_memfd_create)
+	int fd = (int)syscall(__NR_memfd_create, "usbtv_frames", MFD_CLOEXEC | MFD_ALLOW_SEALING);
+	if (fd >= 0) {
+		void* mapping = MAP_FAILED;
+		if (ftruncate(fd, (off_t)size) == 0 &&
+		    fcntl(fd, F_ADD_SEALS, F_SEAL_SHRINK | F_SEAL_GROW) == 0) {
+			mapping = mmap(nullptr, size, PROT_READ | PROT_WRITE, MAP_SHARED, fd, 0);
+		}
+		if (mapping != MAP_FAILED && fcntl(fd, F_ADD_SEALS, F_SEAL_FUTURE_WRITE) == 0) {
+			*frames = (uint8_t*)mapping;
+			return fd;
+		}
+		if (mapping != MAP_FAILED) {
+			munmap(mapping, size);
+		}
+		close(fd);
+	}
+#endif
+	int ashmem = createAshmem("usbtv_frames", size);
+	if (ashmem < 0) {
+		LOGE("Unable to create a read-only shared frame region");
+		return -1;
+	}
+#if defined(__ANDROID__)
+	void* mapping = mmap(nullptr, size, PROT_READ | PROT_WRITE, MAP_SHARED, ashmem, 0);
+	if (mapping != MAP_FAILED && ioctl(ashmem, ASHMEM_SET_PROT_MASK, PROT_READ) == 0) {
+		*frames = (uint8_t*)mapping;
+		return ashmem;
+	}
+	if (mapping != MAP_FAILED) {
+		munmap(mapping, size);
+	}
+#endif
+	LOGE("Unable to restrict the shared frames to read-only access");
+	close(ashmem);
+	return -1;
+}
+
+socklen_t sharedSocketAddress(const char *name, sockaddr_un *address) {
+	CLEAR(*address);
+	address->sun_family = AF_UNIX;
+	size_t length = strlen(name);
+	if (length == 0 || length >= sizeof(address->sun_path)) {
+		return 0;
+	}
+	memcpy(address->sun_path, name, length);
+	if (name[0] == '@') {
+		// Abstract names are not terminated, the length delimits them
+		address->sun_path[0] = '\0';
+		return (socklen_t)(offsetof(sockaddr_un, sun_path) + length);
+	}
+	return (socklen_t)(offsetof(sockaddr_un, sun_path) + length + 1);
+}
+
+SharedFramePool::SharedFramePool() {
+	_running = false;
+	_listenFd = -1;
+	_socketPath[0] = '\0';
+	_thread = nullptr;
+	for (int& client : _clients) {
+		client = -1;
+	}
+	_clientCount = 0;
+	_frameFd = -1;
+	_controlFd = -1;
+	_frames = nullptr;
+	_regionSize = 0;
+	_control = nullptr;
+	_controlSize = 0;
+	_generation = 0;
+	_publishedFrames = 0;
+	_droppedFrames = 0;
+}
+
+SharedFramePool::~SharedFramePool() {
+	stop();
+	freeRegion();
+}
+
+/**
+ * Starts accepting clients.  The frame pool is only shared once it is next allocated, ie.
+ * when streaming starts.
+ *
+ * @param socketName    Path of the socket, or a name in the abstract namespace prefixed
+ *                      with '@'
+ * @param allowedUids   Uids of other apps allowed to connect, besides the app's own
+ * @return true if the socket is listening
+ */
+bool SharedFramePool::start(const char *socketName, const std::vector<uid_t>& allowedUids) {
+	if (_running) {
+		LOGE("Frame sharing is already started");
+		return false;
+	}
+
+	sockaddr_un address;
+	socklen_t length = sharedSocketAddress(socketName, &address);
+	if (length == 0) {
+		LOGE("Invalid frame sharing socket name");
+		return false;
+	}
+
+	_listenFd = socket(AF_UNIX, SOCK_SEQPACKET | SOCK_CLOEXEC, 0);
+	if (_listenFd < 0) {
+		LOGE("Unable to create frame sharing socket: %s", strerror(errno));
+		return false;
+	}
+	if (address.sun_path[0] != '\0') {
+		unlink(address.sun_path);
+	}
+	if (bind(_listenFd, (sockaddr*)&address, length) != 0 ||
+	    listen(_listenFd, USBTV_SHARED_MAX_CLIENTS) != 0) {
+		LOGE("Unable to listen on %s: %s", socketName, strerror(errno));
+		close(_listenFd);
+		_listenFd = -1;
+		return false;
+	}
+	strcpy(_socketPath, address.sun_path);
+	_allowedUids = allowedUids;
+
+	_publishedFrames = 0;
+	_droppedFrames = 0;
+	_running = true;
+	_thread = new std::thread(&SharedFramePool::serverLoop, this);
+	LOGD("Sharing frames on %s", socketName);
+	return true;
+}
+
+/**
+ * Disconnects every client and stops accepting them.  Frames they held are released, the
+ * region itself remains until the frame pool is freed.
+ */
+void SharedFramePool::stop() {
+	if (!_running.exchange(false)) {
+		return;
+	}
+
+	_thread->join();
+	delete _thread;
+	_thread = nullptr;
+	close(_listenFd);
+	_listenFd = -1;
+	if (_socketPath[0] != '\0') {
+		unlink(_socketPath);
+		_socketPath[0] = '\0';
+	}
+
+	std::lock_guard<std::mutex> lock(_mutex);
+	for (uint32_t index = 0; index < USBTV_SHARED_MAX_CLIENTS; index++) {
+		if (_clients[index] >= 0) {
+			close(_clients[index]);
+			_clients[index] = -1;
+		}
+	}
+	_clientCount = 0;
+	if (_control != nullptr) {
+		for (uint32_t slot = 0; slot < _control->slotCount; slot++) {
+			_control->holders[slot].store(0, std::memory_order_release);
+		}
+	}
+
+	LOGD("Frame sharing stopped.  Frames published: %d, Notifications dropped: %d",
+	     _publishedFrames, _droppedFrames);
+}
+
+/**
+ * Allocates the frame pool's buffers in a new shared region and sends it to the clients
+ *
+ * @param bufferSizes   Size of each frame of the pool, in pool order
+ * @return true if the region was created, otherwise the pool must be allocated privately
+ */
+bool SharedFramePool::allocate(const std::vector<uint32_t> &bufferSizes) {
+	std::lock_guard<std::mutex> lock(_mutex);
+	if (_frames != nullptr || bufferSizes.empty() || bufferSizes.size() > USBTV_SHARED_MAX_SLOTS) {
+		return false;
+	}
+
+	// Page aligned frames, so the region may be mapped and read in place
+	_offsets.clear();
+	size_t regionSize = 0;
+	for (uint32_t size : bufferSizes) {
+		_offsets.push_back(regionSize);
+		regionSize += pageAlign(size);
+	}
+	size_t controlSize = pageAlign(sizeof(SharedPoolControl));
+
+	_frameFd = createFrameRegion(regionSize, &_frames);
+	_controlFd = createSharedMemory("usbtv_control", controlSize);
+	if (_controlFd >= 0) {
+		void* control = mmap(nullptr, controlSize, PROT_READ | PROT_WRITE, MAP_SHARED,
+		                     _controlFd, 0);
+		_control = (control != MAP_FAILED) ? (SharedPoolControl*)control : nullptr;
+	}
+
+	if (_frames == nullptr || _control == nullptr) {
+		LOGE("Unable to allocate the shared frame pool: %s", strerror(errno));
+		if (_frames != nullptr) {
+			munmap(_frames, regionSize);
+			_frames = nullptr;
+		}
+		if (_control != nullptr) {
+			munmap(_control, controlSize);
+			_control = nullptr;
+		}
+		if (_frameFd >= 0) {
+			close(_frameFd);
+			_frameFd = -1;
+		}
+		if (_controlFd >= 0) {
+			close(_controlFd);
+			_controlFd = -1;
+		}
+		return false;
+	}
+	_regionSize = regionSize;
+	_controlSize = controlSize;
+
+	// New regions are zero filled, so no slot is held
+	_generation++;
+	_control->magic = USBTV_SHARED_MAGIC;
+	_control->version = USBTV_SHARED_VERSION;
+	_control->generation = _generation;
+	_control->slotCount = (uint32_t)bufferSizes.size();
+
+	for (uint32_t index = 0; index < USBTV_SHARED_MAX_CLIENTS; index++) {
+		if (_clients[index] >= 0 && !sendPool(index)) {
+			// The server thread removes it
+			shutdown(_clients[index], SHUT_RDWR);
+		}
+	}
+
+	LOGD("Shared frame pool allocated, %d frames in %zu KB", _control->slotCount,
+	     regionSize / 1024);
+	return true;
+}
+
+/**
+ * Unmaps the shared region once the frame pool is freed.  Clients keep their own mappings,
+ * so frames they still read remain valid for them.
+ */
+void SharedFramePool::freeRegion() {
+	std::lock_guard<std::mutex> lock(_mutex);
+	if (_frames == nullptr) {
+		return;
+	}
+
+	sendReset();
+	munmap(_frames, _regionSize);
+	munmap(_control, _controlSize);
+	close(_frameFd);
+	close(_controlFd);
+	_frames = nullptr;
+	_control = nullptr;
+	_frameFd = -1;
+	_controlFd = -1;
+	_offsets.clear();
+}
+
+/**
+ * Announces a delivered frame to the clients that can take it.  Called from the frame
+ * process thread, so it never waits: a frame is skipped rather than published if a
+ * client is being added or removed.
+ */
+void SharedFramePool::publish(const UsbTvFrame *frame) {
+	if (_clientCount == 0 || _frames == nullptr) {
+		return;
+	}
+	if (!_mutex.try_lock()) {
+		_droppedFrames += _clientCount;
+		TRACE_INSTANT(SHARED_DROPPED, frame->frameId);
+		return;
+	}
+
+	TRACE_SCOPE(SHARED_PUBLISH, frame->frameId);
+
+	// Count the slots held, in total and by each client
+	uint32_t clientHeld[USBTV_SHARED_MAX_CLIENTS] = {0};
+	uint32_t heldSlots = 0;
+	for (uint32_t slot = 0; slot < _control->slotCount; slot++) {
+		uint32_t holders = _control->holders[slot].load(std::memory_order_relaxed);
+		if (holders != 0) {
+			heldSlots++;
+			for (uint32_t index = 0; index < USBTV_SHARED_MAX_CLIENTS; index++) {
+				clientHeld[index] += (holders >> index) & 1;
+			}
+		}
+	}
+
+	uint32_t mask = 0;
+	if (heldSlots < USBTV_SHARED_EXTRA_FRAMES) {
+		for (uint32_t index = 0; index < USBTV_SHARED_MAX_CLIENTS; index++) {
+			if (_clients[index] >= 0 && clientHeld[index] < USBTV_SHARED_CLIENT_FRAMES) {
+				mask |= 1u << index;
+			}
+		}
+	}
+
+	SharedFrameMessage message;
+	CLEAR(message);
+	message.type = (uint32_t)SharedMessageType::FRAME;
+	message.generation = _generation;
+	message.slot = frame->poolIndex;
+	message.frameId = frame->frameId;
+	message.timestampNs = frame->timestampNs;
+	message.offset = _offsets[frame->poolIndex];
+	message.length = frame->params->bufferSize;
+	message.width = frame->params->frameWidth;
+	message.height = frame->params->frameHeight;
+	message.pixelFormat = (uint8_t)frame->params->pixelFormat;
+
+	// Held before any client can be told of it, so a fast client's release is not lost
+	std::atomic<uint32_t>& holders = _control->holders[frame->poolIndex];
+	holders.fetch_or(mask, std::memory_order_acq_rel);
+
+	bool published = false;
+	for (uint32_t index = 0; index < USBTV_SHARED_MAX_CLIENTS; index++) {
+		if (_clients[index] < 0) {
+			continue;
+		}
+		uint32_t bit = 1u << index;
+		if ((mask & bit) != 0 && sendMessage(_clients[index], message, nullptr, 0)) {
+			published = true;
+		} else {
+			holders.fetch_and(~bit, std::memory_order_acq_rel);
+			_droppedFrames++;
+		}
+	}
+	if (published) {
+		_publishedFrames++;
+	} else {
+		TRACE_INSTANT(SHARED_DROPPED, frame->frameId);
+	}
+	_mutex.unlock();
+}
+
+/**
+ * Accepts clients and removes those that disconnect, until stopped
+ */
+void SharedFramePool::serverLoop() {
+	TRACE_THREAD_NAME("usbtv_share");
+
+	pollfd fds[USBTV_SHARED_MAX_CLIENTS + 1];
+	uint32_t indices[USBTV_SHARED_MAX_CLIENTS + 1];
+	while (_running) {
+		nfds_t count = 1;
+		fds[0] = {_listenFd, POLLIN, 0};
+		{
+			std::lock_guard<std::mutex> lock(_mutex);
+			for (uint32_t index = 0; index < USBTV_SHARED_MAX_CLIENTS; index++) {
+				if (_clients[index] >= 0) {
+					fds[count] = {_clients[index], POLLIN, 0};
+					indices[count] = index;
+					count++;
+				}
+			}
+		}
+
+		if (poll(fds, count, SHARED_POLL_MS) <= 0) {
+			continue;
+		}
+
+		// Clients send nothing, anything but data is a hangup
+		for (nfds_t i = 1; i < count; i++) {
+			if (fds[i].revents == 0) {
+				continue;
+			}
+			char discard[sizeof(SharedFrameMessage)];
+			if ((fds[i].revents & POLLIN) == 0 ||
+			    recv(fds[i].fd, discard, sizeof(discard), MSG_DONTWAIT) <= 0) {
+				removeClient(indices[i]);
+			}
+		}
+		if ((fds[0].revents & POLLIN) != 0) {
+			acceptClient();
+		}
+	}
+}
+
+/**
+ * Returns true if the process connected on a socket runs as the app's uid or an allowed uid
+ */
+bool SharedFramePool::isAllowedPeer(int fd) {
+	ucred credentials;
+	socklen_t length = sizeof(credentials);
+	if (getsockopt(fd, SOL_SOCKET, SO_PEERCRED, &credentials, &length) != 0) {
+		LOGE("Unable to read frame sharing client credentials: %s", strerror(errno));
+		return false;
+	}
+
+	if (credentials.uid == getuid()) {
+		return true;
+	}
+	for (uid_t uid : _allowedUids) {
+		if (credentials.uid == uid) {
+			return true;
+		}
+	}
+	LOGE("Frame sharing client refused, uid %u (pid %d) is not allowed",
+	     (unsigned)credentials.uid, (int)credentials.pid);
+	return false;
+}
+
+void SharedFramePool::acceptClient() {
+	int fd = accept(_listenFd, nullptr, nullptr);
+	if (fd < 0) {
+		return;
+	}
+	fcntl(fd, F_SETFD, FD_CLOEXEC);
+
+	if (!isAllowedPeer(fd)) {
+		close(fd);
+		return;
+	}
+
+	std::lock_guard<std::mutex> lock(_mutex);
+	for (uint32_t index = 0; index < USBTV_SHARED_MAX_CLIENTS; index++) {
+		if (_clients[index] < 0) {
+			_clients[index] = fd;
+			_clientCount++;
+			if (_frames != nullptr && !sendPool(index)) {
+				shutdown(fd, SHUT_RDWR);
+			}
+			LOGD("Frame sharing client %d connected", index);
+			return;
+		}
+	}
+
+	LOGE("Frame sharing client refused, %d clients are connected", USBTV_SHARED_MAX_CLIENTS);
+	close(fd);
+}
+
+/**
+ * Closes a client's socket and releases the frames it held
+ */
+void SharedFramePool::removeClient(uint32_t index) {
+	std::lock_guard<std::mutex> lock(_mutex);
+	if (_clients[index] < 0) {
+		return;
+	}
+	close(_clients[index]);
+	_clients[index] = -1;
+	_clientCount--;
+	if (_control != nullptr) {
+		for (uint32_t slot = 0; slot < _control->slotCount; slot++) {
+			_control->holders[slot].fetch_and(~(1u << index), std::memory_order_acq_rel);
+		}
+	}
+	LOGD("Frame sharing client %d disconnected", index);
+}
+
+/**
+ * Sends the current region to a client.  Called with the mutex held.
+ */
+bool SharedFramePool::sendPool(uint32_t index) {
+	SharedFrameMessage message;
+	CLEAR(message);
+	message.type = (uint32_t)SharedMessageType::POOL;
+	message.generation = _generation;
+	message.clientIndex = (uint8_t)index;
+	message.slotCount = (uint16_t)_control->slotCount;
+	message.regionSize = _regionSize;
+	message.controlSize = _controlSize;
+	int fds[2] = {_frameFd, _controlFd};
+	return sendMessage(_clients[index], message, fds, 2);
+}
+
+/**
+ * Tells every client the region is being freed.  Called with the mutex held.
+ */
+void SharedFramePool::sendReset() {
+	SharedFrameMessage message;
+	CLEAR(message);
+	message.type = (uint32_t)SharedMessageType::RESET;
+	message.generation = _generation;
+	for (uint32_t index = 0; index < USBTV_SHARED_MAX_CLIENTS; index++) {
+		if (_clients[index] >= 0 && !sendMessage(_clients[index], message, nullptr, 0)) {
+			shutdown(_clients[index], SHUT_RDWR);
+		}
+	}
+}
+
+/**
+ * Sends a message without waiting, optionally passing descriptors with it
+ *
+ * @return false if the client's socket is full or closed
+ */
+bool SharedFramePool::sendMessage(int fd, const SharedFrameMessage &message, const int *fds,
+                                  int fdCount) {
+	iovec data = {(void*)&message, sizeof(message)};
+	msghdr header;
+	CLEAR(header);
+	header.msg_iov = &data;
+	header.msg_iovlen = 1;
+
+	char control[CMSG_SPACE(2 * sizeof(int))];
+	if (fdCount > 0) {
+		CLEAR(control);
+		header.msg_control = control;
+		header.msg_controllen = CMSG_SPACE(fdCount * sizeof(int));
+		cmsghdr* rights = CMSG_FIRSTHDR(&header);
+		rights->cmsg_level = SOL_SOCKET;
+		rights->cmsg_type = SCM_RIGHTS;
+		rights->cmsg_len = CMSG_LEN(fdCount * sizeof(int));
+		memcpy(CMSG_DATA(rights), fds, fdCount * sizeof(int));
+	}
+
+	ssize_t sent;
+	do {
+		sent = sendmsg(fd, &header, MSG_DONTWAIT | MSG_NOSIGNAL);
+	} while (sent < 0 && errno == EINTR);
+	return sent == (ssize_t)sizeof(message);
+}
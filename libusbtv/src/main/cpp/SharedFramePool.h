@@ -0,0 +1,148 @@
+// Copyright (C) 2020 Eric Callahan <arksine.code@gmail.com>
+//
+// This file may be distributed under the terms of the GNU GPLv3 license
+//
+// Shares delivered frames with other processes without copying them.  While sharing is
+// started the driver allocates its frame pool in a memfd (or ashmem) region, and each frame
+// delivered is announced to the connected clients over a SOCK_SEQPACKET Unix domain socket.
+//
+// Protocol:
+//  - A client connects to the socket.  Whenever a pool is allocated, and on connecting
+//    while one is, it is sent a POOL message carrying two file descriptors (SCM_RIGHTS):
+//    the frame region, which only maps read-only, and the control region, mapped read-write.
+//  - Each FRAME message names a slot of the pool.  Before it is sent the client's bit is set
+//    in the slot's holders word in the control region, and the slot is not reused until
+//    every holder has cleared its bit (see SharedFrameClient::release()).
+//  - RESET is sent when the pool is freed.  Frames from it must no longer be read.
+//
+// A client holding too many frames, or not reading its notifications, is skipped for the
+// frames it cannot take, so it only drops frames itself and never stalls capture.  The pool
+// gets USBTV_SHARED_EXTRA_FRAMES spare frames in the region frames are delivered from, and
+// clients may hold no more than that between them.
+//
+// Only clients running as the app's own uid, or one of the uids allowed when sharing is
+// started, are accepted.  An abstract name can be connected to by any process, the peer's
+// credentials are what keep other apps out.
+//
+
+#ifndef USBTV007_ANDROID_SHAREDFRAMEPOOL_H
+#define USBTV007_ANDROID_SHAREDFRAMEPOOL_H
+
+#include <atomic>
+#include <cstdint>
+#include <mutex>
+#include <thread>
+#include <vector>
+#include <sys/socket.h>
+#include <sys/un.h>
+#include "usbtv_definitions.h"
+
+#define USBTV_SHARED_MAX_CLIENTS    8
+#define USBTV_SHARED_MAX_SLOTS      USBTV_MAX_FRAME_POOL
+#define USBTV_SHARED_EXTRA_FRAMES   4       // Frames clients may hold between them
+#define USBTV_SHARED_CLIENT_FRAMES  2       // Frames a single client may hold
+#define USBTV_SHARED_MAGIC          0x56545355  // "USTV"
+#define USBTV_SHARED_VERSION        1
+
+static_assert(ATOMIC_INT_LOCK_FREE == 2, "Shared holders must be lock free across processes");
+
+enum struct SharedMessageType : uint32_t {
+	POOL = 0,
+	FRAME = 1,
+	RESET = 2
+};
+
+// Every message on the socket is one of these
+struct SharedFrameMessage {
+	uint32_t    type;           // SharedMessageType
+	uint32_t    generation;     // Increments with each pool allocated
+	uint32_t    slot;           // FRAME: index of the frame in the pool
+	uint32_t    frameId;
+	uint64_t    timestampNs;    // Steady clock time the frame was queued for processing
+	uint64_t    offset;         // FRAME: offset of the frame in the frame region
+	uint32_t    length;         // FRAME: bytes of frame data
+	uint16_t    width;
+	uint16_t    height;
+	uint8_t     pixelFormat;    // PixelFormat
+	uint8_t     clientIndex;    // POOL: the client's bit in the holders words
+	uint16_t    slotCount;      // POOL
+	uint32_t    reserved;
+	uint64_t    regionSize;     // POOL: sizes to map of the frame and control regions
+	uint64_t    controlSize;
+};
+
+// Start of the control region
+struct SharedPoolControl {
+	uint32_t    magic;
+	uint32_t    version;
+	uint32_t    generation;
+	uint32_t    slotCount;
+	std::atomic<uint32_t>   holders[USBTV_SHARED_MAX_SLOTS];    // Bit n set while client n
+	                                                            // holds the slot
+};
+
+// Fills in the address of a socket name, a leading '@' selecting the abstract namespace.
+// Returns the address length, or 0 if the name does not fit.
+socklen_t sharedSocketAddress(const char* name, sockaddr_un* address);
+
+class SharedFramePool {
+private:
+	std::atomic<bool>   _running;
+	int                 _listenFd;
+	char                _socketPath[sizeof(sockaddr_un::sun_path)];    // Unlinked on stop
+	std::thread*        _thread;
+	std::vector<uid_t>  _allowedUids;       // Besides the app's own
+
+	// Guards the clients and the regions.  The process thread only tries to lock it.
+	std::mutex          _mutex;
+	int                 _clients[USBTV_SHARED_MAX_CLIENTS];
+	std::atomic<uint32_t>   _clientCount;
+
+	int                 _frameFd;           // Only maps read-only, see createFrameRegion()
+	int                 _controlFd;
+	uint8_t*            _frames;
+	size_t              _regionSize;
+	SharedPoolControl*  _control;
+	size_t              _controlSize;
+	uint32_t            _generation;
+	std::vector<uint64_t>   _offsets;
+
+	uint32_t            _publishedFrames;
+	uint32_t            _droppedFrames;
+
+	void serverLoop();
+	bool isAllowedPeer(int fd);
+	void acceptClient();
+	void removeClient(uint32_t index);
+	bool sendPool(uint32_t index);
+	void sendReset();
+	static bool sendMessage(int fd, const SharedFrameMessage& message, const int* fds,
+	                        int fdCount);
+
+public:
+	SharedFramePool();
+	~SharedFramePool();
+
+	bool start(const char* socketName, const std::vector<uid_t>& allowedUids);
+	void stop();
+
+	bool allocate(const std::vector<uint32_t>& bufferSizes);
+	void freeRegion();
+	void publish(const UsbTvFrame* frame);
+
+	bool isRunning() { return _running; }
+	bool isAllocated() { return _frames != nullptr; }
+	uint8_t* getBuffer(uint16_t slot) { return _frames + _offsets[slot]; }
+
+	// Checked by the driver before reusing a frame
+	bool isHeld(uint16_t slot) {
+		return _control->holders[slot].load(std::memory_order_acquire) != 0;
+	}
+
+	uint32_t getClientCount() { return _clientCount; }
+	uint32_t getPublishedFrameCount() { return _publishedFrames; }
+	uint32_t getDroppedFrameCount() { return _droppedFrames; }
+};
+
+
+#endif //USBTV007_ANDROID_SHAREDFRAMEPOOL_H
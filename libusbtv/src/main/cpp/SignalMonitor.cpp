@@ -0,0 +1,208 @@
+// Copyright (C) 2020 Eric Callahan <arksine.code@gmail.com>
+//
+// This file may be distributed under the terms of the GNU GPLv3 license
+
+#include "SignalMonitor.h"
+#include "util.h"
+#include "Tracer.h"
+
+SignalMonitor::SignalMonitor() {
+	_enabled = false;
+	_idle = false;
+	_resetPending = false;
+	_state = (uint8_t)SignalState::PRESENT;
+	_changes = 0;
+	_idleFrames = 0;
+	clear(0);
+}
+
+/**
+ * Enables or disables the monitor.  Either starts over with the signal present.
+ *
+ * @param enabled   Watch the stream for the signal
+ * @param idle      Stop delivering frames while the signal is not present
+ */
+void SignalMonitor::setEnabled(bool enabled, bool idle) {
+	_enabled = enabled;
+	_idle = idle;
+	_state = (uint8_t)SignalState::PRESENT;
+	_resetPending = true;
+}
+
+/**
+ * Starts over with the signal present when streaming (re)starts.  The urb thread clears its
+ * measurements the next time it reports.
+ */
+void SignalMonitor::restart() {
+	_state = (uint8_t)SignalState::PRESENT;
+	_idleFrames = 0;
+	_resetPending = true;
+}
+
+void SignalMonitor::clear(uint64_t nowNs) {
+	_badPackets = 0;
+	_anomalies = 0;
+	_lastOdd = false;
+	_fieldSeen = false;
+	_lastFieldNs = nowNs;
+	_syncLost = false;
+	_blankSinceNs = 0;
+	_pictureFrames = 0;
+	_blank = false;
+	_lastProbeNs = 0;
+}
+
+/**
+ * Called on the urb thread once the last packet of a field has been received
+ *
+ * @param isOdd             The field's parity
+ * @param packetsDone       Packets of the field received
+ * @param packetsPerField   Packets of a whole field
+ */
+void SignalMonitor::onField(bool isOdd, uint32_t packetsDone, uint32_t packetsPerField) {
+	if (!_enabled.load(std::memory_order_relaxed)) {
+		return;
+	}
+
+	uint32_t limit = packetsPerField / 8;
+	bool anomalous = (packetsDone + limit < packetsPerField || _badPackets > limit ||
+	                  (_fieldSeen && isOdd == _lastOdd));
+	_badPackets = 0;
+	_lastOdd = isOdd;
+	_fieldSeen = true;
+	_lastFieldNs = getSteadyTimeNs();
+
+	_anomalies = (_anomalies << 1) | (anomalous ? 1 : 0);
+	uint32_t count = (uint32_t)__builtin_popcount(
+			_anomalies & ((1ull << USBTV_SIGNAL_SYNC_WINDOW) - 1));
+	if (!_syncLost && count >= USBTV_SIGNAL_SYNC_ANOMALIES) {
+		_syncLost = true;
+	} else if (_syncLost && count <= USBTV_SIGNAL_SYNC_RECOVER) {
+		_syncLost = false;
+	}
+	judge();
+}
+
+/**
+ * Called on the urb thread for each frame completed, whether or not it is queued
+ *
+ * @param frame     The frame
+ * @param params    Size and format of the frame
+ * @param captured  The frame's payload was captured, false if it was skipped while idle
+ */
+void SignalMonitor::onFrame(const UsbTvFrame *frame, const FrameParams &params,
+                            bool captured) {
+	if (!_enabled.load(std::memory_order_relaxed) || !captured) {
+		return;
+	}
+
+	bool blank;
+	{
+		TRACE_SCOPE(SIGNAL_CHECK, frame->frameId);
+		blank = isBlankFrame((const uint8_t*)frame->buffer, params);
+	}
+	if (blank) {
+		if (_blankSinceNs == 0) {
+			_blankSinceNs = frame->timestampNs;
+		}
+		_pictureFrames = 0;
+		if (frame->timestampNs - _blankSinceNs >= (uint64_t)USBTV_SIGNAL_LOST_MS * 1000000) {
+			_blank = true;
+		}
+	} else {
+		_blankSinceNs = 0;
+		if (++_pictureFrames >= USBTV_SIGNAL_RECOVER_FRAMES) {
+			_blank = false;
+		}
+	}
+	judge();
+}
+
+/**
+ * Called on the urb thread after each urb, so sync is lost when fields stop completing
+ */
+void SignalMonitor::onUrb() {
+	if (!_enabled.load(std::memory_order_relaxed)) {
+		return;
+	}
+
+	uint64_t nowNs = getSteadyTimeNs();
+	if (_resetPending.exchange(false)) {
+		clear(nowNs);
+		return;
+	}
+
+	if (!_syncLost && nowNs - _lastFieldNs >= (uint64_t)USBTV_SIGNAL_FIELD_TIMEOUT_MS * 1000000) {
+		_syncLost = true;
+		// The next fields are judged afresh
+		_anomalies = ~0u;
+		judge();
+	}
+}
+
+/**
+ * Called on the urb thread as a frame starts while idle
+ *
+ * @return true if the frame should be captured to look for the signal
+ */
+bool SignalMonitor::shouldProbe() {
+	uint64_t nowNs = getSteadyTimeNs();
+	if (nowNs - _lastProbeNs >= (uint64_t)USBTV_SIGNAL_PROBE_MS * 1000000) {
+		_lastProbeNs = nowNs;
+		return true;
+	}
+	return false;
+}
+
+/**
+ * Samples luma, and chroma for YUYV, on a sparse grid
+ *
+ * @return true if the standard deviation of each is under USBTV_SIGNAL_BLANK_DEVIATION
+ */
+bool SignalMonitor::isBlankFrame(const uint8_t *buffer, const FrameParams &params) {
+	uint32_t bpp = bytesPerPixel(params.pixelFormat);
+	uint32_t stride = (uint32_t)params.frameWidth * bpp;
+	uint64_t sum[3] = {0, 0, 0};
+	uint64_t sumSq[3] = {0, 0, 0};
+	uint64_t samples = 0;
+
+	for (uint32_t line = 0; line < params.frameHeight; line += USBTV_SIGNAL_SAMPLE_STEP) {
+		const uint8_t* src = buffer + line * stride;
+		for (uint32_t x = 0; x + 1 < params.frameWidth; x += USBTV_SIGNAL_SAMPLE_STEP) {
+			const uint8_t* pixel = src + x * bpp;
+			sum[0] += pixel[0];
+			sumSq[0] += (uint32_t)pixel[0] * pixel[0];
+			if (bpp == 2) {
+				// x is even, so the pixel starts a Y U Y V macropixel
+				sum[1] += pixel[1];
+				sumSq[1] += (uint32_t)pixel[1] * pixel[1];
+				sum[2] += pixel[3];
+				sumSq[2] += (uint32_t)pixel[3] * pixel[3];
+			}
+			samples++;
+		}
+	}
+
+	// n * sum(x^2) - sum(x)^2 = n^2 * variance
+	uint64_t limit = (uint64_t)USBTV_SIGNAL_BLANK_DEVIATION * USBTV_SIGNAL_BLANK_DEVIATION *
+	                 samples * samples;
+	uint32_t planes = (bpp == 2) ? 3 : 1;
+	for (uint32_t i = 0; i < planes; i++) {
+		if (samples * sumSq[i] - sum[i] * sum[i] >= limit) {
+			return false;
+		}
+	}
+	return true;
+}
+
+void SignalMonitor::judge() {
+	SignalState state = _syncLost ? SignalState::SYNC_LOST :
+	                    (_blank ? SignalState::NO_SIGNAL : SignalState::PRESENT);
+	uint8_t last = _state.load(std::memory_order_relaxed);
+	if ((uint8_t)state != last) {
+		LOGI("Signal state %d -> %d", last, (int)state);
+		TRACE_INSTANT(SIGNAL_CHANGE, (uint32_t)state);
+		_state = (uint8_t)state;
+		_changes++;
+	}
+}
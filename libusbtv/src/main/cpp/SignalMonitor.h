@@ -0,0 +1,109 @@
+// Copyright (C) 2020 Eric Callahan <arksine.code@gmail.com>
+//
+// This file may be distributed under the terms of the GNU GPLv3 license
+//
+// Tells whether the source is sending a picture.  Without an input the USBTV007 keeps
+// streaming fields with good headers but a flat blue or black picture, and with an unstable
+// input its fields come with bad headers, out of order or incomplete.  Both are watched on
+// the urb thread:
+//
+//  - Sync.  Each field is anomalous if more than an eighth of its packets were missing, if
+//    as many packets with a bad header or packet number arrived since the last field, or if
+//    it had the parity of the field before it.  Sync is lost when
+//    USBTV_SIGNAL_SYNC_ANOMALIES of the last USBTV_SIGNAL_SYNC_WINDOW fields were anomalous,
+//    or no field has completed for USBTV_SIGNAL_FIELD_TIMEOUT_MS, and is back once only
+//    USBTV_SIGNAL_SYNC_RECOVER of them were.
+//  - Picture.  Luma and chroma are sampled every USBTV_SIGNAL_SAMPLE_STEP pixels of every
+//    USBTV_SIGNAL_SAMPLE_STEP line of each frame.  A frame is blank when the standard
+//    deviation of each is under USBTV_SIGNAL_BLANK_DEVIATION.  The signal is lost once frames
+//    have been blank for USBTV_SIGNAL_LOST_MS, and is back after
+//    USBTV_SIGNAL_RECOVER_FRAMES frames in a row that are not.
+//
+// A picture that really is flat, ie. a lens cap, also reads as no signal.  While the signal
+// is not present the driver may stop delivering frames, only capturing one every
+// USBTV_SIGNAL_PROBE_MS to see it return.  The monitor only reports the state, the owner of
+// the stream polls it.
+//
+
+#ifndef USBTV007_ANDROID_SIGNALMONITOR_H
+#define USBTV007_ANDROID_SIGNALMONITOR_H
+
+#include <atomic>
+#include <cstdint>
+#include "usbtv_definitions.h"
+
+#define USBTV_SIGNAL_SAMPLE_STEP        8
+#define USBTV_SIGNAL_BLANK_DEVIATION    2       // Luma levels
+#define USBTV_SIGNAL_LOST_MS            500
+#define USBTV_SIGNAL_RECOVER_FRAMES     2
+#define USBTV_SIGNAL_SYNC_WINDOW        16      // Fields, at most 32
+#define USBTV_SIGNAL_SYNC_ANOMALIES     8
+#define USBTV_SIGNAL_SYNC_RECOVER       2
+#define USBTV_SIGNAL_FIELD_TIMEOUT_MS   200
+#define USBTV_SIGNAL_PROBE_MS           100
+
+enum struct SignalState : uint8_t {
+	PRESENT = 0,
+	NO_SIGNAL = 1,      // Fields arrive, but with a blank picture
+	SYNC_LOST = 2       // Fields arrive damaged or not at all
+};
+
+class SignalMonitor {
+private:
+	std::atomic<bool>       _enabled;
+	std::atomic<bool>       _idle;
+	std::atomic<bool>       _resetPending;
+	std::atomic<uint8_t>    _state;
+	std::atomic<uint32_t>   _changes;
+	std::atomic<uint32_t>   _idleFrames;
+
+	// Only used on the urb thread
+	uint32_t    _badPackets;        // Since the last field
+	uint32_t    _anomalies;         // One bit for each recent field, newest lowest
+	bool        _lastOdd;
+	bool        _fieldSeen;
+	uint64_t    _lastFieldNs;
+	bool        _syncLost;
+	uint64_t    _blankSinceNs;      // Start of the current run of blank frames, 0 if none
+	uint32_t    _pictureFrames;     // Frames in a row that were not blank
+	bool        _blank;
+	uint64_t    _lastProbeNs;
+
+	void clear(uint64_t nowNs);
+	bool isBlankFrame(const uint8_t* buffer, const FrameParams& params);
+	void judge();
+
+public:
+	SignalMonitor();
+
+	void setEnabled(bool enabled, bool idle);
+	bool isEnabled() { return _enabled.load(std::memory_order_relaxed); }
+	void restart();
+
+	// Called on the urb thread
+	void onBadPacket() { _badPackets++; }
+	void onField(bool isOdd, uint32_t packetsDone, uint32_t packetsPerField);
+	void onFrame(const UsbTvFrame* frame, const FrameParams& params, bool captured);
+	void onUrb();
+	bool shouldProbe();
+
+	/**
+	 * Returns true if frames should not be delivered, only probed, as the signal is not
+	 * present and idling was requested
+	 */
+	bool isIdle() {
+		return _idle.load(std::memory_order_relaxed) &&
+		       _state.load(std::memory_order_relaxed) != (uint8_t)SignalState::PRESENT;
+	}
+
+	void countIdleFrame() {
+		_idleFrames.fetch_add(1, std::memory_order_relaxed);
+	}
+
+	SignalState getState() { return (SignalState)_state.load(std::memory_order_relaxed); }
+	uint32_t getChangeCount() { return _changes.load(std::memory_order_relaxed); }
+	uint32_t getIdleFrameCount() { return _idleFrames.load(std::memory_order_relaxed); }
+};
+
+
+#endif //USBTV007_ANDROID_SIGNALMONITOR_H
@@ -0,0 +1,299 @@
+// Copyright (C) 2020 Eric Callahan <arksine.code@gmail.com>
+//
+// This file may be distributed under the terms of the GNU GPLv3 license
+
+#include "SimulatedUsbDevice.h"
+#include "util.h"
+#include "Tracer.h"
+#include <cstdlib>
+#include <chrono>
+
+SimulatedUsbDevice::SimulatedUsbDevice() {
+	_urbThreadRunning = false;
+	_urbThread = nullptr;
+	_fillTimeNs = 0;
+	_paced = false;
+	_streamTimeNs = 0;
+	_urbDelayNs = 0;
+}
+
+/**
+ * Subclasses must stop the urb thread in their own destructor, as it calls fillIsoUrb
+ */
+SimulatedUsbDevice::~SimulatedUsbDevice() {
+	// The thread is still joined when the stream ended by itself
+	if (_urbThread != nullptr) {
+		stopUrbAsyncRead();
+	}
+
+	freeBulkUrbs();
+	freeIsoUrbs();
+}
+
+bool SimulatedUsbDevice::setInterface(unsigned int interface, unsigned int altSetting) {
+	return true;
+}
+
+/**
+ * Control transfers are accepted without effect.  Buffers for device to host transfers
+ * are zeroed so callers never read uninitialized data.
+ */
+bool SimulatedUsbDevice::controlTransfer(uint8_t requestType, uint8_t request, uint16_t value,
+                                         uint16_t index, void *buffer, uint16_t length,
+                                         uint32_t timeout) {
+	if ((requestType & USB_DIR_IN) == USB_DIR_IN && buffer != nullptr) {
+		memset(buffer, 0, length);
+	}
+	return true;
+}
+
+/**
+ * Allocates the requested number of isochronous urbs and queues them for completion.
+ */
+bool SimulatedUsbDevice::initIsoUrbs(uint8_t numTransfers, uint8_t endpoint,
+                                     uint32_t packetLength, uint8_t numberOfPackets,
+                                     UrbCallback callback) {
+	if (!isStreamReady()) {
+		LOGE("Simulated stream not ready, cannot initialize urbs");
+		return false;
+	}
+
+	std::lock_guard<std::mutex> lock(_urbMutex);
+	_pendingIsoUrbs.clear();
+	freeIsoUrbs();
+
+	uint32_t urbSize = sizeof(usbdevfs_urb) + (numberOfPackets * sizeof(usbdevfs_iso_packet_desc));
+	uint32_t isoBufferSize = packetLength * numberOfPackets;
+
+	for (int i = 0; i < numTransfers; i++) {
+		usbdevfs_urb* urb = allocateUrb(urbSize, isoBufferSize, callback);
+		if (urb == nullptr) {
+			_pendingIsoUrbs.clear();
+			freeIsoUrbs();
+			return false;
+		}
+
+		urb->type = USBDEVFS_URB_TYPE_ISO;
+		urb->endpoint = endpoint;
+		urb->flags = USBDEVFS_URB_ISO_ASAP;
+		urb->number_of_packets = numberOfPackets;
+
+		UsbDevice::UrbContext* context = (UsbDevice::UrbContext*)urb->usercontext;
+		context->poolIndex = (uint8_t)i;
+		context->submitted = true;
+
+		for (int j = 0; j < numberOfPackets; j++) {
+			urb->iso_frame_desc[j].length = packetLength;
+		}
+
+		_isoUrbPool.push_back(urb);
+		_pendingIsoUrbs.push_back(urb);
+	}
+
+	_urbCondition.notify_one();
+	return true;
+}
+
+/**
+ * Bulk urbs are tracked so they can be freed, but there is no bulk data so they
+ * never complete.
+ */
+bool SimulatedUsbDevice::submitBulkUrb(uint8_t endpoint, uint32_t bufferSize,
+                                       UrbCallback callback) {
+	std::lock_guard<std::mutex> lock(_urbMutex);
+	usbdevfs_urb* urb = allocateUrb(sizeof(usbdevfs_urb), bufferSize, callback);
+	if (urb == nullptr) {
+		return false;
+	}
+
+	urb->type = USBDEVFS_URB_TYPE_BULK;
+	urb->endpoint = endpoint;
+	UsbDevice::UrbContext* context = (UsbDevice::UrbContext*)urb->usercontext;
+	context->poolIndex = (uint8_t)_bulkUrbPool.size();
+	context->submitted = true;
+	_bulkUrbPool.push_back(urb);
+	return true;
+}
+
+bool SimulatedUsbDevice::resubmitUrb(usbdevfs_urb *urb) {
+	if (urb == nullptr) {
+		return false;
+	}
+
+	urb->status = 0;
+	urb->actual_length = 0;
+	urb->error_count = 0;
+
+	UsbDevice::UrbContext* context = (UsbDevice::UrbContext*)urb->usercontext;
+	context->submitted = true;
+
+	if (urb->type == USBDEVFS_URB_TYPE_ISO) {
+		for (int i = 0; i < urb->number_of_packets; i++) {
+			urb->iso_frame_desc[i].actual_length = 0;
+			urb->iso_frame_desc[i].status = 0;
+		}
+
+		std::lock_guard<std::mutex> lock(_urbMutex);
+		_pendingIsoUrbs.push_back(urb);
+		_urbCondition.notify_one();
+	}
+
+	return true;
+}
+
+bool SimulatedUsbDevice::discardIsoUrbs() {
+	std::lock_guard<std::mutex> lock(_urbMutex);
+	for (usbdevfs_urb* urb : _pendingIsoUrbs) {
+		((UsbDevice::UrbContext*)urb->usercontext)->submitted = false;
+	}
+	_pendingIsoUrbs.clear();
+	return true;
+}
+
+bool SimulatedUsbDevice::discardBulkUrbs() {
+	std::lock_guard<std::mutex> lock(_urbMutex);
+	for (usbdevfs_urb* urb : _bulkUrbPool) {
+		((UsbDevice::UrbContext*)urb->usercontext)->submitted = false;
+	}
+	return true;
+}
+
+/**
+ * Starts the urb thread
+ */
+bool SimulatedUsbDevice::startUrbAsyncRead() {
+	std::lock_guard<std::mutex> lock(_urbMutex);
+	if (_urbThread != nullptr || !isStreamReady()) {
+		return false;
+	}
+
+	_urbThreadRunning = true;
+	_urbThread = new std::thread(&SimulatedUsbDevice::simulateUrbAsync, this);
+	return true;
+}
+
+/**
+ * Stops the urb thread and discards pending urbs
+ */
+void SimulatedUsbDevice::stopUrbAsyncRead() {
+	std::thread* thread;
+	{
+		std::lock_guard<std::mutex> lock(_urbMutex);
+		thread = _urbThread;
+		_urbThread = nullptr;
+		_urbThreadRunning = false;
+	}
+	_urbCondition.notify_all();
+
+	if (thread != nullptr) {
+		thread->join();
+		delete thread;
+	}
+	discardIsoUrbs();
+}
+
+/**
+ * Function bound to the urbThread.  Fills submitted urbs and hands them to their
+ * callback, pacing delivery by stream time when enabled.
+ */
+void SimulatedUsbDevice::simulateUrbAsync() {
+	std::chrono::steady_clock::time_point startTime;
+	uint64_t startStreamTimeNs = 0;
+	bool firstUrb = true;
+
+	TRACE_THREAD_NAME("usbtv_urb");
+
+	while (_urbThreadRunning) {
+		usbdevfs_urb* urb;
+		{
+			std::unique_lock<std::mutex> lock(_urbMutex);
+			_urbCondition.wait(lock, [this] {
+				return !_pendingIsoUrbs.empty() || !_urbThreadRunning;
+			});
+			if (!_urbThreadRunning) {
+				break;
+			}
+			urb = _pendingIsoUrbs.front();
+			_pendingIsoUrbs.pop_front();
+		}
+
+		UsbDevice::UrbContext* context = (UsbDevice::UrbContext*)urb->usercontext;
+		context->submitted = false;
+
+		_urbDelayNs = 0;
+		uint64_t fillStart = getSteadyTimeNs();
+		bool more = fillIsoUrb(urb);
+		_fillTimeNs += getSteadyTimeNs() - fillStart;
+
+		if (_paced) {
+			// Hold the urb until the stream time it would have arrived from the device
+			if (firstUrb) {
+				startTime = std::chrono::steady_clock::now();
+				startStreamTimeNs = _streamTimeNs;
+				firstUrb = false;
+			}
+			std::this_thread::sleep_until(startTime + std::chrono::nanoseconds(
+					_streamTimeNs - startStreamTimeNs + _urbDelayNs));
+		} else if (_urbDelayNs > 0) {
+			std::this_thread::sleep_for(std::chrono::nanoseconds(_urbDelayNs));
+		}
+
+		TRACE_SCOPE(URB_REAP, context->poolIndex);
+		if (_urbObserver) {
+			uint64_t callbackStart = getSteadyTimeNs();
+			context->callback(urb);
+			_urbObserver(urb, callbackStart, getSteadyTimeNs());
+		} else {
+			context->callback(urb);
+		}
+
+		if (!more) {
+			LOGI("End of simulated stream reached");
+			_urbThreadRunning = false;
+		}
+	}
+}
+
+usbdevfs_urb* SimulatedUsbDevice::allocateUrb(uint32_t urbSize, uint32_t bufferSize,
+                                              UrbCallback callback) {
+	usbdevfs_urb* urb = (usbdevfs_urb *) calloc(1, urbSize);
+	if (urb == nullptr) {
+		return nullptr;
+	}
+
+	urb->buffer = malloc(bufferSize);
+	if (urb->buffer == nullptr) {
+		free(urb);
+		return nullptr;
+	}
+	urb->buffer_length = bufferSize;
+
+	UsbDevice::UrbContext* ctx = new UsbDevice::UrbContext;
+	ctx->usbDevice = this;
+	ctx->callback = callback;
+	urb->usercontext = ctx;
+
+	return urb;
+}
+
+void SimulatedUsbDevice::deleteUrb(usbdevfs_urb *urb) {
+	if (urb != nullptr) {
+		delete (UsbDevice::UrbContext*) urb->usercontext;
+		free(urb->buffer);
+		free(urb);
+	}
+}
+
+void SimulatedUsbDevice::freeIsoUrbs() {
+	for (usbdevfs_urb* urb : _isoUrbPool) {
+		deleteUrb(urb);
+	}
+	_isoUrbPool.clear();
+}
+
+void SimulatedUsbDevice::freeBulkUrbs() {
+	for (usbdevfs_urb* urb : _bulkUrbPool) {
+		deleteUrb(urb);
+	}
+	_bulkUrbPool.clear();
+}
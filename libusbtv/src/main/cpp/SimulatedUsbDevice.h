@@ -0,0 +1,91 @@
+// Copyright (C) 2020 Eric Callahan <arksine.code@gmail.com>
+//
+// This file may be distributed under the terms of the GNU GPLv3 license
+//
+// Base for transports that produce iso data without a device (ReplayUsbDevice,
+// SyntheticUsbDevice).  Submitted iso urbs are queued and completed in order on a
+// worker thread, which asks the subclass to fill each one.  Control transfers are
+// accepted and ignored, bulk urbs are accepted but never complete.
+//
+
+#ifndef USBTV007_ANDROID_SIMULATEDUSBDEVICE_H
+#define USBTV007_ANDROID_SIMULATEDUSBDEVICE_H
+
+#include <vector>
+#include <deque>
+#include <thread>
+#include <mutex>
+#include <condition_variable>
+#include "UsbTransport.h"
+
+// Called on the urb thread after each iso urb callback returns, with the steady clock
+// times the callback was entered and returned
+typedef std::function<void(usbdevfs_urb*, uint64_t, uint64_t)> UrbObserver;
+
+class SimulatedUsbDevice : public UsbTransport {
+private:
+	bool                        _urbThreadRunning;
+	std::thread*                _urbThread;
+	std::mutex                  _urbMutex;
+	std::condition_variable     _urbCondition;
+	std::vector<usbdevfs_urb*>  _isoUrbPool;
+	std::vector<usbdevfs_urb*>  _bulkUrbPool;
+	std::deque<usbdevfs_urb*>   _pendingIsoUrbs;    // Submitted urbs waiting for data
+	UrbObserver                 _urbObserver;
+	uint64_t                    _fillTimeNs;
+
+	void simulateUrbAsync();
+
+	usbdevfs_urb* allocateUrb(uint32_t urbSize, uint32_t bufferSize, UrbCallback callback);
+	void deleteUrb(usbdevfs_urb* urb);
+	void freeIsoUrbs();
+	void freeBulkUrbs();
+
+protected:
+	bool        _paced;             // Deliver urbs at _streamTimeNs rather than immediately
+	uint64_t    _streamTimeNs;      // Stream time of the last urb filled, used for pacing
+	uint64_t    _urbDelayNs;        // Extra delay for the urb just filled, reset before each fill
+
+	/**
+	 * Fills a urb with the next iso data.  Called on the urb thread.
+	 *
+	 * @return false if this is the last urb the stream will produce
+	 */
+	virtual bool fillIsoUrb(usbdevfs_urb* urb) = 0;
+	virtual bool isStreamReady() = 0;
+
+public:
+	SimulatedUsbDevice();
+	~SimulatedUsbDevice() override;
+
+	void setUrbObserver(UrbObserver observer) {
+		_urbObserver = observer;
+	}
+
+	// Total time spent producing iso data, so benchmarks can separate it from driver time
+	uint64_t getFillTimeNs() {
+		return _fillTimeNs;
+	}
+
+	bool isUrbThreadRunning() override {
+		return _urbThreadRunning;
+	}
+
+	bool setInterface(unsigned int interface, unsigned int altSetting) override;
+	bool controlTransfer(uint8_t requestType, uint8_t request, uint16_t value,
+	                     uint16_t index, void* buffer, uint16_t length,
+	                     uint32_t timeout) override;
+
+	bool initIsoUrbs(uint8_t numTransfers, uint8_t endpoint, uint32_t packetLength,
+	                 uint8_t numberOfPackets, UrbCallback callback) override;
+	bool submitBulkUrb(uint8_t endpoint, uint32_t bufferSize, UrbCallback callback) override;
+	bool resubmitUrb(usbdevfs_urb *urb) override;
+
+	bool discardIsoUrbs() override;
+	bool discardBulkUrbs() override;
+	bool startUrbAsyncRead() override;
+	void stopUrbAsyncRead() override;
+};
+
+
+#endif //USBTV007_ANDROID_SIMULATEDUSBDEVICE_H
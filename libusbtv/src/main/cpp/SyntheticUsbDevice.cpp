@@ -0,0 +1,374 @@
+// Copyright (C) 2020 Eric Callahan <arksine.code@gmail.com>
+//
+// This file may be distributed under the terms of the GNU GPLv3 license
+
+#include "SyntheticUsbDevice.h"
+#include "ColorControls.h"
+#include "util.h"
+#include <cstdlib>
+
+// 75% color bars in YUV (BT.601), left to right: white, yellow, cyan, green, magenta, red, blue
+static const uint8_t COLOR_BAR_YUV[][3] = {
+		{ 180, 128, 128 },
+		{ 162,  44, 142 },
+		{ 131, 156,  44 },
+		{ 112,  72,  58 },
+		{  84, 184, 198 },
+		{  65, 100, 212 },
+		{  35, 212, 114 },
+};
+
+#define SYNTHETIC_LINE_WIDTH    720
+#define SYNTHETIC_MAX_LOSS_RATE 0.99f
+
+/**
+ * Fills a stream config with a clean, real time stream of color bars
+ */
+void SyntheticUsbDevice::defaultConfig(SyntheticStreamConfig *config, TvNorm norm) {
+	config->norm = norm;
+	config->pattern = TestPattern::COLOR_BARS;
+	config->packetRate = USBTV_PACKET_RATE;
+	config->lossRate = 0.0f;
+	config->reorderRate = 0.0f;
+	config->jitterUs = 0;
+	config->fieldLimit = 0;
+	config->unplugPeriod = 0;
+	config->seed = 1;
+}
+
+SyntheticUsbDevice::SyntheticUsbDevice(const SyntheticStreamConfig &config) {
+	_config = config;
+	if (_config.lossRate > SYNTHETIC_MAX_LOSS_RATE) {
+		// At least some packets must get through or a fill never finishes
+		_config.lossRate = SYNTHETIC_MAX_LOSS_RATE;
+	}
+
+	_packetsPerField = (config.norm == TvNorm::PAL) ? (uint16_t)USBTV_PAL_PACKETS_PER_FIELD :
+	                   (uint16_t)USBTV_NTSC_PACKETS_PER_FIELD;
+	_paced = (config.packetRate > 0);
+
+	_frameId = 0;
+	_odd = true;
+	_packetNo = 0;
+	_fieldCount = 0;
+	_packetHeld = false;
+	_random = (config.seed != 0) ? config.seed : 1;
+	_packetsGenerated = 0;
+	_packetsDropped = 0;
+	_packetsReordered = 0;
+	_fieldLines = (uint16_t)((_packetsPerField * USBTV_PAYLOAD_SIZE) / (SYNTHETIC_LINE_WIDTH * 2));
+	_boxX = 0;
+	_boxDrawn = false;
+	_unplugged = false;
+
+	// As left by VIDEO_INIT, which maps each level to itself
+	_levelRegs[0] = 0x12;
+	_levelRegs[1] = 0x90;
+	_levelRegs[2] = 0x00;
+	_levelsChanged = false;
+	updateLevels();
+
+	_fieldPayload = (uint8_t*)malloc((size_t)_packetsPerField * USBTV_PAYLOAD_SIZE);
+	if (_fieldPayload == nullptr) {
+		LOGE("Unable to allocate synthetic field");
+		return;
+	}
+	renderPattern();
+}
+
+SyntheticUsbDevice::~SyntheticUsbDevice() {
+	// The urb thread reads the field payload, stop it before freeing
+	if (isUrbThreadRunning()) {
+		stopUrbAsyncRead();
+	}
+	free(_fieldPayload);
+}
+
+/**
+ * Records writes to the brightness and contrast registers, whether made one byte at a time
+ * as VIDEO_INIT does or together as ColorControls does.  Other transfers have no effect.
+ */
+bool SyntheticUsbDevice::controlTransfer(uint8_t requestType, uint8_t request, uint16_t value,
+                                         uint16_t index, void *buffer, uint16_t length,
+                                         uint32_t timeout) {
+	if ((requestType & USB_DIR_IN) == USB_DIR_OUT) {
+		const uint8_t* data = (const uint8_t*)buffer;
+		uint16_t count = (request == USBTV_CONTROL_REG && data != nullptr) ? length : 1;
+		for (uint16_t i = 0; i < count; i++) {
+			uint32_t reg = (uint32_t)index + i;
+			if (reg >= USBTV_LEVELS_REG && reg < USBTV_LEVELS_REG + 3) {
+				_levelRegs[reg - USBTV_LEVELS_REG] =
+						(request == USBTV_CONTROL_REG) ? data[i] : (uint8_t)value;
+				_levelsChanged = true;
+			}
+		}
+	}
+	return SimulatedUsbDevice::controlTransfer(requestType, request, value, index, buffer,
+	                                           length, timeout);
+}
+
+/**
+ * Maps each luma level of the test pattern through the brightness and contrast registers.
+ * Contrast scales the levels about mid grey, relative to the contrast VIDEO_INIT sets.
+ */
+void SyntheticUsbDevice::updateLevels() {
+	int brightness = ((_levelRegs[0] & 0x0f) << 8) | _levelRegs[2];
+	int contrast = ((_levelRegs[0] & 0xf0) << 4) | _levelRegs[1];
+	const ColorControlRange* ranges = COLOR_CONTROL_RANGES;
+	int offset = (brightness - ranges[(int)ColorControl::BRIGHTNESS].defaultValue) /
+	             SYNTHETIC_BRIGHTNESS_PER_LEVEL;
+	int defaultContrast = ranges[(int)ColorControl::CONTRAST].defaultValue;
+
+	for (int level = 0; level < 256; level++) {
+		int mapped = 128 + ((level - 128) * contrast) / defaultContrast + offset;
+		_lumaLevels[level] = (uint8_t)((mapped < 0) ? 0 : ((mapped > 255) ? 255 : mapped));
+	}
+}
+
+/**
+ * Renders the test pattern into the field payload as YUYV lines.  Both fields carry the
+ * same image.
+ */
+void SyntheticUsbDevice::renderPattern() {
+	for (uint32_t line = 0; line < _fieldLines; line++) {
+		renderSpan(line, 0, SYNTHETIC_LINE_WIDTH);
+	}
+	_boxDrawn = false;
+}
+
+/**
+ * Renders the background of the test pattern between two even pixel positions of a line
+ */
+void SyntheticUsbDevice::renderSpan(uint32_t line, uint32_t startX, uint32_t endX) {
+	uint8_t* dst = _fieldPayload + (line * SYNTHETIC_LINE_WIDTH + startX) * 2;
+	for (uint32_t x = startX; x < endX; x += 2) {
+		switch (_config.pattern) {
+			case TestPattern::COLOR_BARS: {
+				const uint8_t* yuv = COLOR_BAR_YUV[(x * ARRAY_SIZE(COLOR_BAR_YUV)) /
+				                                   SYNTHETIC_LINE_WIDTH];
+				dst[0] = _lumaLevels[yuv[0]];
+				dst[1] = yuv[1];
+				dst[2] = _lumaLevels[yuv[0]];
+				dst[3] = yuv[2];
+				break;
+			}
+			case TestPattern::LUMA_RAMP:
+			case TestPattern::MOVING_BOX:
+				dst[0] = _lumaLevels[16 + (x * 219) / (SYNTHETIC_LINE_WIDTH - 1)];
+				dst[1] = 128;
+				dst[2] = _lumaLevels[16 + ((x + 1) * 219) / (SYNTHETIC_LINE_WIDTH - 1)];
+				dst[3] = 128;
+				break;
+		}
+		dst += 4;
+	}
+}
+
+/**
+ * Moves the box of the MOVING_BOX pattern to its position for the next field.  It bounces
+ * between the edges for the first half of each motion period and is hidden for the rest.
+ */
+void SyntheticUsbDevice::moveBox() {
+	uint32_t top = (_fieldLines - SYNTHETIC_BOX_LINES) / 2;
+	if (_boxDrawn) {
+		for (uint32_t line = top; line < top + SYNTHETIC_BOX_LINES; line++) {
+			renderSpan(line, _boxX, _boxX + SYNTHETIC_BOX_WIDTH);
+		}
+		_boxDrawn = false;
+	}
+
+	uint32_t phase = _fieldCount % SYNTHETIC_MOTION_PERIOD;
+	if (phase >= SYNTHETIC_MOTION_PERIOD / 2) {
+		return;
+	}
+
+	uint32_t travel = SYNTHETIC_LINE_WIDTH - SYNTHETIC_BOX_WIDTH;
+	uint32_t position = (phase * SYNTHETIC_BOX_STEP) % (2 * travel);
+	_boxX = (uint16_t)((position <= travel) ? position : 2 * travel - position);
+	for (uint32_t line = top; line < top + SYNTHETIC_BOX_LINES; line++) {
+		uint8_t* dst = _fieldPayload + (line * SYNTHETIC_LINE_WIDTH + _boxX) * 2;
+		for (uint32_t x = 0; x < SYNTHETIC_BOX_WIDTH; x++) {
+			dst[2 * x] = _lumaLevels[235];
+			dst[2 * x + 1] = 128;
+		}
+	}
+	_boxDrawn = true;
+}
+
+/**
+ * Renders the flat blue picture the device sends without an input
+ */
+void SyntheticUsbDevice::renderUnplugged() {
+	uint8_t* dst = _fieldPayload;
+	for (uint32_t i = 0; i < (uint32_t)_fieldLines * SYNTHETIC_LINE_WIDTH / 2; i++) {
+		dst[0] = 41;
+		dst[1] = 240;
+		dst[2] = 41;
+		dst[3] = 110;
+		dst += 4;
+	}
+	_boxDrawn = false;
+}
+
+/**
+ * Returns a pseudo random value in [0, 1).  Xorshift keeps runs repeatable for a seed.
+ */
+float SyntheticUsbDevice::nextRandom() {
+	_random ^= _random << 13;
+	_random ^= _random >> 17;
+	_random ^= _random << 5;
+	return (float)(_random >> 8) / (float)(1 << 24);
+}
+
+/**
+ * Writes the packet at the current stream position and advances it.
+ *
+ * @param dst   Destination for the 1024 byte packet, NULL to skip the packet
+ * @return false if the field limit has been reached
+ */
+bool SyntheticUsbDevice::generatePacket(uint8_t *dst) {
+	if (_config.fieldLimit > 0 && _fieldCount >= _config.fieldLimit) {
+		return false;
+	}
+
+	if (_packetNo == 0 && _config.unplugPeriod > 0) {
+		bool unplugged = (_fieldCount % _config.unplugPeriod) >= _config.unplugPeriod / 2;
+		if (unplugged != _unplugged) {
+			_unplugged = unplugged;
+			if (unplugged) {
+				renderUnplugged();
+			} else {
+				renderPattern();
+			}
+		}
+	}
+
+	if (_packetNo == 0 && _levelsChanged.exchange(false)) {
+		updateLevels();
+		if (!_unplugged) {
+			renderPattern();
+		}
+	}
+
+	if (_packetNo == 0 && _config.pattern == TestPattern::MOVING_BOX && !_unplugged) {
+		moveBox();
+	}
+
+	if (dst != nullptr) {
+		uint32_t header = 0x88000000 | ((uint32_t)_frameId << 16) | (_odd ? 0x8000 : 0) |
+		                  _packetNo;
+		*((__be32*)dst) = __cpu_to_be32(header);
+		memcpy(dst + sizeof(__be32), _fieldPayload + (_packetNo * USBTV_PAYLOAD_SIZE),
+		       USBTV_PAYLOAD_SIZE);
+		memset(dst + sizeof(__be32) + USBTV_PAYLOAD_SIZE, 0,
+		       USBTV_PACKET_SIZE - sizeof(__be32) - USBTV_PAYLOAD_SIZE);
+	}
+
+	_packetNo++;
+	if (_packetNo >= _packetsPerField) {
+		// Fields alternate odd then even, the frame id advances after each even field
+		_packetNo = 0;
+		_fieldCount++;
+		if (!_odd) {
+			_frameId++;
+		}
+		_odd = !_odd;
+	}
+	return true;
+}
+
+/**
+ * Writes the next packet that survives simulated loss
+ *
+ * @return false if the field limit has been reached
+ */
+bool SyntheticUsbDevice::nextPacket(uint8_t *dst) {
+	while (_config.lossRate > 0.0f && nextRandom() < _config.lossRate) {
+		if (!generatePacket(nullptr)) {
+			return false;
+		}
+		_packetsDropped++;
+	}
+
+	if (!generatePacket(dst)) {
+		return false;
+	}
+	_packetsGenerated++;
+	return true;
+}
+
+/**
+ * Writes packets from the stream directly, without a urb.  Loss is applied, reordering
+ * and jitter are not.
+ *
+ * @param dst   Destination for count 1024 byte packets
+ * @param count Number of packets to write
+ * @return The number of packets written, less than count if the field limit was reached
+ */
+uint32_t SyntheticUsbDevice::generatePackets(uint8_t *dst, uint32_t count) {
+	uint32_t written = 0;
+	while (written < count && nextPacket(dst + (written * USBTV_PACKET_SIZE))) {
+		written++;
+	}
+	return written;
+}
+
+/**
+ * Fills each iso packet slot with as many whole packets as fit, mirroring what the
+ * device sends in a single microframe.  A reordered packet is held back and written
+ * after the packet that follows it.
+ *
+ * @param urb   The urb to fill
+ * @return false if the field limit was reached
+ */
+bool SyntheticUsbDevice::fillIsoUrb(usbdevfs_urb *urb) {
+	uint8_t* buffer = (uint8_t*)urb->buffer;
+	bool more = true;
+
+	for (int i = 0; i < urb->number_of_packets; i++) {
+		uint32_t count = urb->iso_frame_desc[i].length / USBTV_PACKET_SIZE;
+		uint32_t copied = 0;
+
+		while (copied < count && more) {
+			uint8_t* dst = buffer + (copied * USBTV_PACKET_SIZE);
+			if (_packetHeld) {
+				memcpy(dst, _heldPacket, USBTV_PACKET_SIZE);
+				_packetHeld = false;
+				copied++;
+				continue;
+			}
+
+			if (!nextPacket(dst)) {
+				more = false;
+				break;
+			}
+
+			if (_config.reorderRate > 0.0f && nextRandom() < _config.reorderRate) {
+				memcpy(_heldPacket, dst, USBTV_PACKET_SIZE);
+				if (nextPacket(dst)) {
+					_packetHeld = true;
+					_packetsReordered++;
+				} else {
+					memcpy(dst, _heldPacket, USBTV_PACKET_SIZE);
+				}
+			}
+			copied++;
+		}
+
+		urb->iso_frame_desc[i].actual_length = copied * USBTV_PACKET_SIZE;
+		urb->iso_frame_desc[i].status = 0;
+		urb->actual_length += copied * USBTV_PACKET_SIZE;
+		buffer += urb->iso_frame_desc[i].length;
+	}
+
+	if (_config.packetRate > 0) {
+		// Dropped packets still occupy their time on the wire
+		_streamTimeNs = ((_packetsGenerated + _packetsDropped) * 1000000000ULL) /
+		                _config.packetRate;
+	}
+	if (_config.jitterUs > 0) {
+		_urbDelayNs = (uint64_t)(nextRandom() * _config.jitterUs) * 1000;
+	}
+
+	return more;
+}
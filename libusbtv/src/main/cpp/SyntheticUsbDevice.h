@@ -0,0 +1,130 @@
+// Copyright (C) 2020 Eric Callahan <arksine.code@gmail.com>
+//
+// This file may be distributed under the terms of the GNU GPLv3 license
+//
+// A UsbTransport that generates a USBTV007 video stream.  Packets follow the device
+// format: a 0x88 header byte, the frame id, the odd field bit and the packet number,
+// then 960 bytes of YUYV test pattern.  Fields alternate odd/even with NTSC or PAL
+// packet counts.  Packet loss, reordering and urb delivery jitter can be injected to
+// exercise the driver's recovery paths, and the input can be unplugged periodically, when
+// the fields carry the device's flat blue picture.  Brightness and contrast written to the
+// device's registers are applied to the luma of the test pattern from the next field.
+//
+
+#ifndef USBTV007_ANDROID_SYNTHETICUSBDEVICE_H
+#define USBTV007_ANDROID_SYNTHETICUSBDEVICE_H
+
+#include <atomic>
+#include "SimulatedUsbDevice.h"
+#include "usbtv_definitions.h"
+
+#define USBTV_NTSC_PACKETS_PER_FIELD    360
+#define USBTV_PAL_PACKETS_PER_FIELD     432
+
+enum struct TestPattern {
+	COLOR_BARS,
+	LUMA_RAMP,
+	MOVING_BOX,     // A white box crossing a luma ramp for half of every motion period
+};
+
+#define SYNTHETIC_BOX_WIDTH         64
+#define SYNTHETIC_BOX_LINES         32      // Lines of each field
+#define SYNTHETIC_BOX_STEP          4       // Pixels the box moves each field
+#define SYNTHETIC_MOTION_PERIOD     480     // Fields
+
+// Luma levels each brightness step moves the picture by.  The device's response has not
+// been measured, this only stands in for it.
+#define SYNTHETIC_BRIGHTNESS_PER_LEVEL  3
+
+struct SyntheticStreamConfig {
+	TvNorm      norm;
+	TestPattern pattern;
+	uint32_t    packetRate;     // Packets per second, 0 generates as fast as urbs are returned
+	float       lossRate;       // Probability each packet is dropped
+	float       reorderRate;    // Probability each packet is swapped with the one after it
+	uint32_t    jitterUs;       // Maximum random delay added to each urb
+	uint32_t    fieldLimit;     // Number of fields to generate, 0 for no limit
+	uint32_t    unplugPeriod;   // Fields in each period, unplugged for the second half, 0 never
+	uint32_t    seed;
+};
+
+class SyntheticUsbDevice : public SimulatedUsbDevice {
+private:
+	SyntheticStreamConfig   _config;
+	uint16_t                _packetsPerField;
+	uint8_t*                _fieldPayload;      // Test pattern for one field, 960 bytes per packet
+	uint16_t                _fieldLines;
+	uint16_t                _boxX;
+	bool                    _boxDrawn;
+	bool                    _unplugged;
+
+	// Brightness and contrast registers, 0x0244 to 0x0246, written by the control thread
+	// and applied by the urb thread at the start of a field
+	std::atomic<uint8_t>    _levelRegs[3];
+	std::atomic<bool>       _levelsChanged;
+	uint8_t                 _lumaLevels[256];
+
+	// Position of the next packet in the stream
+	uint8_t     _frameId;
+	bool        _odd;
+	uint16_t    _packetNo;
+	uint32_t    _fieldCount;
+
+	uint8_t     _heldPacket[USBTV_PACKET_SIZE];     // Packet delayed by a reorder
+	bool        _packetHeld;
+	uint32_t    _random;
+
+	uint64_t    _packetsGenerated;
+	uint64_t    _packetsDropped;
+	uint64_t    _packetsReordered;
+
+	void renderPattern();
+	void renderSpan(uint32_t line, uint32_t startX, uint32_t endX);
+	void moveBox();
+	void renderUnplugged();
+	void updateLevels();
+	bool generatePacket(uint8_t* dst);
+	bool nextPacket(uint8_t* dst);
+	float nextRandom();
+
+protected:
+	bool fillIsoUrb(usbdevfs_urb* urb) override;
+	bool isStreamReady() override {
+		return _fieldPayload != nullptr;
+	}
+
+public:
+	SyntheticUsbDevice(const SyntheticStreamConfig& config);
+	~SyntheticUsbDevice() override;
+
+	static void defaultConfig(SyntheticStreamConfig* config, TvNorm norm);
+
+	bool controlTransfer(uint8_t requestType, uint8_t request, uint16_t value,
+	                     uint16_t index, void* buffer, uint16_t length,
+	                     uint32_t timeout) override;
+
+	uint32_t generatePackets(uint8_t* dst, uint32_t count);
+
+	uint16_t getPacketsPerField() {
+		return _packetsPerField;
+	}
+
+	uint32_t getFieldCount() {
+		return _fieldCount;
+	}
+
+	uint64_t getPacketsGenerated() {
+		return _packetsGenerated;
+	}
+
+	uint64_t getPacketsDropped() {
+		return _packetsDropped;
+	}
+
+	uint64_t getPacketsReordered() {
+		return _packetsReordered;
+	}
+};
+
+
+#endif //USBTV007_ANDROID_SYNTHETICUSBDEVICE_H
@@ -0,0 +1,488 @@
+// Copyright (C) 2020 Eric Callahan <arksine.code@gmail.com>
+//
+// This file may be distributed under the terms of the GNU GPLv3 license
+
+#include "Timeshift.h"
+#include "Tracer.h"
+#include "util.h"
+#include <cstdlib>
+#include <fcntl.h>
+#include <unistd.h>
+#include <sys/mman.h>
+
+Timeshift::Timeshift() : _freeStaging(USBTV_TIMESHIFT_STAGING_FRAMES),
+                         _pendingStaging(USBTV_TIMESHIFT_STAGING_FRAMES + 1) {
+	_seconds = 0;
+	_open = false;
+	_params = {};
+	_slotSize = 0;
+	_slotCount = 0;
+	_fd = -1;
+	_ring = nullptr;
+	_ringSize = 0;
+	_nextSequence = 0;
+	for (int i = 0; i < USBTV_TIMESHIFT_STAGING_FRAMES; i++) {
+		_staging[i] = nullptr;
+	}
+	_writerThread = nullptr;
+	_writtenFrames = 0;
+	_droppedFrames = 0;
+}
+
+Timeshift::~Timeshift() {
+	close();
+}
+
+/**
+ * Enables the timeshift.  The ring is allocated by configure() once the geometry of the
+ * delivered frames is known, any frames held from an earlier open are discarded.
+ *
+ * @param path      File to map the ring from, or NULL to keep it in anonymous memory.  The
+ *                  file is unlinked once mapped, its space is released when the ring is.
+ * @param seconds   Length of the timeshift, at most USBTV_TIMESHIFT_MAX_SECONDS, or
+ *                  USBTV_TIMESHIFT_MAX_MEMORY_SECONDS without a file
+ * @return true if the timeshift is open
+ */
+bool Timeshift::open(const char *path, uint16_t seconds) {
+	if (seconds == 0 || seconds > USBTV_TIMESHIFT_MAX_SECONDS) {
+		LOGE("Invalid timeshift length: %d seconds", seconds);
+		return false;
+	}
+	if (path == nullptr && seconds > USBTV_TIMESHIFT_MAX_MEMORY_SECONDS) {
+		LOGE("A timeshift of %d seconds needs a file, at most %d seconds are kept in memory",
+		     seconds, USBTV_TIMESHIFT_MAX_MEMORY_SECONDS);
+		return false;
+	}
+
+	std::lock_guard<std::mutex> lock(_writeMutex);
+	releaseRing();
+	_path = (path != nullptr) ? path : "";
+	_seconds = seconds;
+	_open = true;
+	LOGD("Timeshift enabled: %d seconds, %s", _seconds,
+	     _path.empty() ? "anonymous memory" : _path.c_str());
+	return true;
+}
+
+/**
+ * Disables the timeshift and releases the ring
+ */
+void Timeshift::close() {
+	std::lock_guard<std::mutex> lock(_writeMutex);
+	releaseRing();
+	_open = false;
+}
+
+/**
+ * Allocates the ring for frames described by params.  The ring, and the frames it holds,
+ * are kept if it already matches.  Must not be called concurrently with write().
+ *
+ * @param params            Parameters of the frames that will be written
+ * @param framesPerSecond   Rate frames are delivered at, which sizes the ring
+ * @return true if the ring is ready
+ */
+bool Timeshift::configure(const FrameParams &params, uint32_t framesPerSecond) {
+	if (!_open) {
+		return false;
+	}
+
+	uint32_t slotCount = _seconds * framesPerSecond;
+	std::lock_guard<std::mutex> lock(_writeMutex);
+	if (_ring != nullptr && slotCount == _slotCount &&
+	    params.bufferSize == _params.bufferSize && params.frameWidth == _params.frameWidth &&
+	    params.frameHeight == _params.frameHeight && params.pixelFormat == _params.pixelFormat) {
+		// The scan type or norm may still have changed
+		std::lock_guard<std::mutex> indexLock(_indexMutex);
+		_params = params;
+		return true;
+	}
+
+	releaseRing();
+	return allocateRing(params, slotCount);
+}
+
+/**
+ * Maps the ring, resets the index and starts the writer thread.  _writeMutex must be held.
+ */
+bool Timeshift::allocateRing(const FrameParams &params, uint32_t slotCount) {
+	uint64_t ringSize = (uint64_t)params.bufferSize * slotCount;
+	if (ringSize == 0 || ringSize > SIZE_MAX) {
+		LOGE("Invalid timeshift size: %llu bytes", (unsigned long long)ringSize);
+		return false;
+	}
+
+	if (_path.empty() && ringSize > USBTV_TIMESHIFT_MAX_MEMORY) {
+		LOGE("Timeshift of %llu bytes exceeds the %d byte memory budget, a file is needed",
+		     (unsigned long long)ringSize, USBTV_TIMESHIFT_MAX_MEMORY);
+		return false;
+	}
+
+	void* ring;
+	if (_path.empty()) {
+		// Pages are only committed as the ring fills
+		ring = mmap(nullptr, (size_t)ringSize, PROT_READ | PROT_WRITE,
+		            MAP_PRIVATE | MAP_ANONYMOUS | MAP_NORESERVE, -1, 0);
+	} else {
+		_fd = ::open(_path.c_str(), O_RDWR | O_CREAT | O_TRUNC, 0644);
+		if (_fd < 0) {
+			LOGE("Unable to create timeshift file %s", _path.c_str());
+			return false;
+		}
+		unlink(_path.c_str());
+
+		if (ftruncate(_fd, (off_t)ringSize) != 0) {
+			LOGE("Unable to size timeshift file");
+			::close(_fd);
+			_fd = -1;
+			return false;
+		}
+		ring = mmap(nullptr, (size_t)ringSize, PROT_READ | PROT_WRITE, MAP_SHARED, _fd, 0);
+	}
+
+	if (ring == MAP_FAILED) {
+		LOGE("Unable to map timeshift ring of %llu bytes", (unsigned long long)ringSize);
+		if (_fd >= 0) {
+			::close(_fd);
+			_fd = -1;
+		}
+		return false;
+	}
+
+	{
+		std::lock_guard<std::mutex> lock(_indexMutex);
+		_ring = (uint8_t*)ring;
+		_ringSize = ringSize;
+		_params = params;
+		_slotSize = params.bufferSize;
+		_slotCount = slotCount;
+		_nextSequence = 0;
+		_index.resize(slotCount);
+		for (uint32_t i = 0; i < slotCount; i++) {
+			_index[i].sequence = TIMESHIFT_INVALID_SEQUENCE;
+			_index[i].timestampNs = 0;
+			_index[i].offset = (uint64_t)i * _slotSize;
+			_index[i].frameId = 0;
+			_index[i].flags = 0;
+		}
+	}
+
+	for (int i = 0; i < USBTV_TIMESHIFT_STAGING_FRAMES; i++) {
+		_staging[i] = (uint8_t*)malloc(_slotSize);
+		_freeStaging.enqueue(i);
+	}
+	_writtenFrames = 0;
+	_droppedFrames = 0;
+	_writerThread = new std::thread(&Timeshift::writerLoop, this);
+
+	LOGD("Timeshift ring allocated: %d frames of %d bytes", _slotCount, _slotSize);
+	return true;
+}
+
+/**
+ * Stops the writer thread and unmaps the ring.  _writeMutex must be held.
+ */
+void Timeshift::releaseRing() {
+	if (_writerThread != nullptr) {
+		_pendingStaging.enqueue(-1);
+		_writerThread->join();
+		delete _writerThread;
+		_writerThread = nullptr;
+	}
+
+	if (_ring == nullptr) {
+		return;
+	}
+
+	LOGD("Timeshift ring released.  Frames written: %d, Frames dropped: %d",
+	     _writtenFrames, _droppedFrames);
+
+	// Staged frames the writer did not reach are discarded
+	int index;
+	while (_pendingStaging.try_dequeue(index)) {}
+	while (_freeStaging.try_dequeue(index)) {}
+	for (int i = 0; i < USBTV_TIMESHIFT_STAGING_FRAMES; i++) {
+		free(_staging[i]);
+		_staging[i] = nullptr;
+	}
+
+	std::lock_guard<std::mutex> lock(_indexMutex);
+	munmap(_ring, (size_t)_ringSize);
+	_ring = nullptr;
+	_ringSize = 0;
+	if (_fd >= 0) {
+		::close(_fd);
+		_fd = -1;
+	}
+	_index.clear();
+	_nextSequence = 0;
+	_slotSize = 0;
+	_slotCount = 0;
+}
+
+/**
+ * Stages a copy of a delivered frame for the writer thread.  Called from the frame process
+ * thread, this never blocks.  The frame is dropped from the timeshift if every staging
+ * buffer is still queued, or if the ring is being replaced.
+ *
+ * @return true if the frame was staged
+ */
+bool Timeshift::write(const UsbTvFrame *frame) {
+	std::unique_lock<std::mutex> lock(_writeMutex, std::try_to_lock);
+	if (!lock.owns_lock() || _ring == nullptr || frame->params->bufferSize != _slotSize) {
+		return false;
+	}
+
+	int index;
+	if (!_freeStaging.try_dequeue(index)) {
+		TRACE_INSTANT(TIMESHIFT_DROPPED, frame->frameId);
+		_droppedFrames++;
+		return false;
+	}
+
+	{
+		TRACE_SCOPE(TIMESHIFT_STAGE, frame->frameId);
+		memcpy(_staging[index], frame->buffer, _slotSize);
+	}
+	_stagedEntries[index].timestampNs = frame->timestampNs;
+	_stagedEntries[index].frameId = frame->frameId;
+	_stagedEntries[index].flags = frame->flags;
+	_pendingStaging.enqueue(index);
+	return true;
+}
+
+/**
+ * Copies staged frames into the ring until a negative index is received
+ */
+void Timeshift::writerLoop() {
+	TRACE_THREAD_NAME("usbtv_timeshift");
+
+	int index;
+	while (true) {
+		_pendingStaging.wait_dequeue(index);
+		if (index < 0) {
+			break;
+		}
+
+		const TimeshiftEntry& staged = _stagedEntries[index];
+		TimeshiftEntry* entry;
+		uint64_t sequence;
+		{
+			std::lock_guard<std::mutex> lock(_indexMutex);
+			sequence = _nextSequence;
+			entry = &_index[sequence % _slotCount];
+			entry->sequence = TIMESHIFT_INVALID_SEQUENCE;
+		}
+
+		{
+			TRACE_SCOPE(TIMESHIFT_WRITE, staged.frameId);
+			memcpy(_ring + entry->offset, _staging[index], _slotSize);
+		}
+
+		{
+			std::lock_guard<std::mutex> lock(_indexMutex);
+			entry->timestampNs = staged.timestampNs;
+			entry->frameId = staged.frameId;
+			entry->flags = staged.flags;
+			entry->sequence = sequence;
+			_nextSequence = sequence + 1;
+		}
+		_writtenFrames++;
+		_freeStaging.enqueue(index);
+	}
+}
+
+/**
+ * Finds the frames currently held.  _indexMutex must be held.
+ */
+bool Timeshift::findRange(TimeshiftRange *range) {
+	if (_ring == nullptr || _nextSequence == 0) {
+		return false;
+	}
+
+	uint64_t newest = _nextSequence - 1;
+	uint64_t oldest = (_nextSequence > _slotCount) ? _nextSequence - _slotCount : 0;
+	// The oldest slot is invalid while the writer is replacing it
+	if (_index[oldest % _slotCount].sequence != oldest) {
+		oldest++;
+	}
+	if (oldest > newest) {
+		return false;
+	}
+
+	range->oldest = oldest;
+	range->newest = newest;
+	range->oldestTimestampNs = _index[oldest % _slotCount].timestampNs;
+	range->newestTimestampNs = _index[newest % _slotCount].timestampNs;
+	return true;
+}
+
+/**
+ * @return false if no frames are held
+ */
+bool Timeshift::getRange(TimeshiftRange *range) {
+	std::lock_guard<std::mutex> lock(_indexMutex);
+	return findRange(range);
+}
+
+/**
+ * Finds the last frame captured at or before a time.  Times before the oldest frame
+ * resolve to the oldest frame.
+ *
+ * @param timestampNs   Steady clock time, as in UsbTvFrame::timestampNs
+ * @param sequence      Receives the sequence number of the frame
+ * @return false if no frames are held
+ */
+bool Timeshift::findByTime(uint64_t timestampNs, uint64_t *sequence) {
+	std::lock_guard<std::mutex> lock(_indexMutex);
+	TimeshiftRange range;
+	if (!findRange(&range)) {
+		return false;
+	}
+
+	// Capture times increase with the sequence number
+	uint64_t low = range.oldest;
+	uint64_t high = range.newest;
+	while (low < high) {
+		uint64_t mid = low + (high - low + 1) / 2;
+		if (_index[mid % _slotCount].timestampNs <= timestampNs) {
+			low = mid;
+		} else {
+			high = mid - 1;
+		}
+	}
+	*sequence = low;
+	return true;
+}
+
+/**
+ * Finds the newest frame held with a frame id.  Frame ids come from the device and repeat,
+ * so only recent ids are meaningful.
+ *
+ * @return false if no held frame has the id
+ */
+bool Timeshift::findByFrameId(uint32_t frameId, uint64_t *sequence) {
+	std::lock_guard<std::mutex> lock(_indexMutex);
+	TimeshiftRange range;
+	if (!findRange(&range)) {
+		return false;
+	}
+
+	for (uint64_t s = range.newest + 1; s > range.oldest; s--) {
+		if (_index[(s - 1) % _slotCount].frameId == frameId) {
+			*sequence = s - 1;
+			return true;
+		}
+	}
+	return false;
+}
+
+/**
+ * Reads the index entry of a frame
+ *
+ * @return false if the frame has been overwritten or not yet written
+ */
+bool Timeshift::getEntry(uint64_t sequence, TimeshiftEntry *entry) {
+	std::lock_guard<std::mutex> lock(_indexMutex);
+	if (_ring == nullptr || _index[sequence % _slotCount].sequence != sequence) {
+		return false;
+	}
+	*entry = _index[sequence % _slotCount];
+	return true;
+}
+
+/**
+ * Copies a frame out of the ring
+ *
+ * @param sequence  Sequence number of the frame
+ * @param dst       Buffer of at least getFrameSize() bytes
+ * @param capacity  Size of dst
+ * @param entry     Receives the index entry of the frame, may be NULL
+ * @return false if the frame is not held or dst is too small
+ */
+bool Timeshift::read(uint64_t sequence, uint8_t *dst, uint32_t capacity, TimeshiftEntry *entry) {
+	std::lock_guard<std::mutex> lock(_indexMutex);
+	if (_ring == nullptr || capacity < _slotSize) {
+		return false;
+	}
+
+	const TimeshiftEntry& slot = _index[sequence % _slotCount];
+	if (slot.sequence != sequence) {
+		return false;
+	}
+
+	memcpy(dst, _ring + slot.offset, _slotSize);
+	if (entry != nullptr) {
+		*entry = slot;
+	}
+	return true;
+}
+
+/**
+ * Writes a range of frames to a file, back to back in their native layout with no header,
+ * eg. for ffmpeg's rawvideo demuxer.  Recording continues during the export, frames that
+ * are overwritten before they are reached are skipped.
+ *
+ * @param first     Sequence number of the first frame
+ * @param last      Sequence number of the last frame, inclusive
+ * @param path      Path of the file to create
+ * @return The number of frames written, or -1 on error
+ */
+int64_t Timeshift::exportRange(uint64_t first, uint64_t last, const char *path) {
+	uint32_t frameSize = getFrameSize();
+	if (frameSize == 0 || first > last) {
+		return -1;
+	}
+
+	int fd = ::open(path, O_WRONLY | O_CREAT | O_TRUNC, 0644);
+	if (fd < 0) {
+		LOGE("Unable to create timeshift export %s", path);
+		return -1;
+	}
+
+	// Frames are copied out so that the index lock is not held during file writes
+	std::vector<uint8_t> buffer(frameSize);
+	int64_t exported = 0;
+	for (uint64_t sequence = first; sequence <= last; sequence++) {
+		if (!read(sequence, buffer.data(), frameSize, nullptr)) {
+			continue;
+		}
+
+		size_t written = 0;
+		while (written < frameSize) {
+			ssize_t ret = ::write(fd, buffer.data() + written, frameSize - written);
+			if (ret < 0) {
+				LOGE("Error writing timeshift export");
+				::close(fd);
+				return -1;
+			}
+			written += (size_t)ret;
+		}
+		exported++;
+	}
+
+	::close(fd);
+	LOGD("Timeshift export written to %s: %lld frames", path, (long long)exported);
+	return exported;
+}
+
+/**
+ * Returns the size of each frame held, 0 if the ring is not allocated
+ */
+uint32_t Timeshift::getFrameSize() {
+	std::lock_guard<std::mutex> lock(_indexMutex);
+	return _slotSize;
+}
+
+/**
+ * Returns the parameters of the frames held, which readers size their frames by
+ *
+ * @return false if the ring is not allocated
+ */
+bool Timeshift::getFrameParams(FrameParams* params) {
+	std::lock_guard<std::mutex> lock(_indexMutex);
+	if (_ring == nullptr) {
+		return false;
+	}
+	*params = _params;
+	return true;
+}
@@ -0,0 +1,123 @@
+// Copyright (C) 2020 Eric Callahan <arksine.code@gmail.com>
+//
+// This file may be distributed under the terms of the GNU GPLv3 license
+//
+// Keeps the last few seconds of delivered frames for DVR style seeking and replay.  Frames
+// are stored in fixed size slots of a ring, either in anonymous memory or, when the ring is
+// too large to keep resident, in a memory mapped file.  An index records the frame id,
+// capture time and ring offset of every slot.
+//
+// A ring in anonymous memory is limited to USBTV_TIMESHIFT_MAX_MEMORY bytes.  As the frame
+// size is not known when the timeshift is opened, open() refuses anonymous rings longer than
+// the budget holds of full size frames, and configure() checks the ring actually needed.
+//
+// The frame process thread only copies each frame into a free staging buffer and queues it.
+// A writer thread copies staged frames into the ring, so page faults and file writeback are
+// never taken on the process thread.  When the writer falls behind frames are dropped from
+// the timeshift rather than waited for.
+//
+// Frames are identified by a sequence number counting every frame written since the ring
+// was allocated, frame s is held in slot s % slotCount.  The writer invalidates a slot's
+// entry before overwriting it and readers copy slots while holding the index lock, so a
+// frame is never read while it is being replaced.
+//
+
+#ifndef USBTV007_ANDROID_TIMESHIFT_H
+#define USBTV007_ANDROID_TIMESHIFT_H
+
+#include <cstdint>
+#include <mutex>
+#include <string>
+#include <thread>
+#include <vector>
+#include "usbtv_definitions.h"
+#include "ConcurrentQueue/blockingconcurrentqueue.h"
+
+#define USBTV_TIMESHIFT_STAGING_FRAMES  4
+#define USBTV_TIMESHIFT_MAX_SECONDS     600
+#define USBTV_TIMESHIFT_MAX_MEMORY      (256 * 1024 * 1024)
+// Full size 4:2:2 frames, deinterlaced to a frame per field.  NTSC and PAL alike.
+#define USBTV_TIMESHIFT_PEAK_BYTES_PER_SECOND   (720 * 480 * 2 * 60)
+#define USBTV_TIMESHIFT_MAX_MEMORY_SECONDS  \
+	(USBTV_TIMESHIFT_MAX_MEMORY / USBTV_TIMESHIFT_PEAK_BYTES_PER_SECOND)
+#define TIMESHIFT_INVALID_SEQUENCE      UINT64_MAX
+
+struct TimeshiftEntry {
+	uint64_t    sequence;       // TIMESHIFT_INVALID_SEQUENCE while the slot is empty or written
+	uint64_t    timestampNs;    // Capture time of the frame
+	uint64_t    offset;         // Offset of the slot within the ring
+	uint32_t    frameId;
+	uint32_t    flags;
+};
+
+// Sequence numbers and capture times of the frames currently held
+struct TimeshiftRange {
+	uint64_t    oldest;
+	uint64_t    newest;
+	uint64_t    oldestTimestampNs;
+	uint64_t    newestTimestampNs;
+};
+
+class Timeshift {
+private:
+	// Set by open()
+	std::string _path;              // Empty to keep the ring in anonymous memory
+	uint16_t    _seconds;
+	bool        _open;
+
+	// Ring, allocated by configure() for the geometry of the delivered frames.  The mapping
+	// and index are guarded by _indexMutex.
+	FrameParams _params;
+	uint32_t    _slotSize;
+	uint32_t    _slotCount;
+	int         _fd;
+	uint8_t*    _ring;
+	uint64_t    _ringSize;
+	std::vector<TimeshiftEntry> _index;
+	uint64_t    _nextSequence;
+	std::mutex  _indexMutex;
+
+	// Staging buffers.  _writeMutex is held by the process thread while it stages a frame and
+	// by the control thread while the ring is replaced, the process thread never waits for it.
+	std::mutex      _writeMutex;
+	uint8_t*        _staging[USBTV_TIMESHIFT_STAGING_FRAMES];
+	TimeshiftEntry  _stagedEntries[USBTV_TIMESHIFT_STAGING_FRAMES];
+	moodycamel::ConcurrentQueue<int>            _freeStaging;
+	moodycamel::BlockingConcurrentQueue<int>    _pendingStaging;
+	std::thread*    _writerThread;
+
+	uint32_t    _writtenFrames;
+	uint32_t    _droppedFrames;
+
+	bool allocateRing(const FrameParams& params, uint32_t slotCount);
+	void releaseRing();
+	void writerLoop();
+	bool findRange(TimeshiftRange* range);
+
+public:
+	Timeshift();
+	~Timeshift();
+
+	bool open(const char* path, uint16_t seconds);
+	void close();
+	bool configure(const FrameParams& params, uint32_t framesPerSecond);
+	bool write(const UsbTvFrame* frame);
+
+	bool getRange(TimeshiftRange* range);
+	bool findByTime(uint64_t timestampNs, uint64_t* sequence);
+	bool findByFrameId(uint32_t frameId, uint64_t* sequence);
+	bool getEntry(uint64_t sequence, TimeshiftEntry* entry);
+	bool read(uint64_t sequence, uint8_t* dst, uint32_t capacity, TimeshiftEntry* entry);
+	int64_t exportRange(uint64_t first, uint64_t last, const char* path);
+
+	bool isOpen() {
+		return _open;
+	}
+
+	uint32_t getFrameSize();
+	bool getFrameParams(FrameParams* params);
+	uint32_t getDroppedFrameCount() { return _droppedFrames; }
+};
+
+
+#endif //USBTV007_ANDROID_TIMESHIFT_H
@@ -0,0 +1,473 @@
+// Copyright (C) 2020 Eric Callahan <arksine.code@gmail.com>
+//
+// This file may be distributed under the terms of the GNU GPLv3 license
+
+#include "Tracer.h"
+#include <cstdio>
+#include <algorithm>
+#include <mutex>
+#include <vector>
+#include <string>
+#include <pthread.h>
+#include <unistd.h>
+#include <sys/prctl.h>
+#include <sys/syscall.h>
+
+namespace Trace {
+	std::atomic<bool> gEnabled(false);
+	__thread ThreadBuffer* tlsBuffer = nullptr;
+}
+
+using namespace Trace;
+
+static const char* const EVENT_NAMES[] = {
+		"urb_reap",
+		"packet_parse",
+		"field_complete",
+		"frame_queue",
+		"frame_dropped",
+		"pool_wait",
+		"frame_dequeue",
+		"java_callback",
+		"frame_return",
+		"deinterlace",
+		"denoise",
+		"scale",
+		"secondary",
+		"secondary_dropped",
+		"timeshift_stage",
+		"timeshift_write",
+		"timeshift_dropped",
+		"record_frame",
+		"record_wait",
+		"record_write",
+		"record_dropped",
+		"mjpeg_stage",
+		"jpeg_encode",
+		"mjpeg_send",
+		"shared_publish",
+		"shared_dropped",
+		"change_detect",
+		"frame_suppressed",
+		"motion_detect",
+		"motion_event",
+		"signal_check",
+		"signal_change"
+};
+
+static_assert(sizeof(EVENT_NAMES) / sizeof(EVENT_NAMES[0]) == (size_t)TraceEvent::COUNT,
+              "Each TraceEvent requires a name");
+
+static std::mutex gRegistryMutex;
+static std::vector<ThreadBuffer*> gBuffers;
+static uint32_t gEventsPerThread = TRACE_DEFAULT_EVENTS_PER_THREAD;
+static pthread_key_t gThreadKey;
+static pthread_once_t gThreadKeyOnce = PTHREAD_ONCE_INIT;
+static __thread const char* tlsThreadName = nullptr;
+
+// Threads registered after TRACE_MAX_THREADS live buffers exist write here, it is never dumped
+static Record gOverflowRecord;
+static ThreadBuffer gOverflowBuffer = { &gOverflowRecord, 0, {0}, 0, {0}, false };
+
+static void onThreadExit(void* value) {
+	std::lock_guard<std::mutex> lock(gRegistryMutex);
+	((ThreadBuffer*)value)->retired = true;
+}
+
+static void createThreadKey() {
+	pthread_key_create(&gThreadKey, onThreadExit);
+}
+
+// Names are written unescaped to the JSON trace, so characters that would need escaping
+// are replaced
+static void setBufferName(ThreadBuffer* buffer, const char* name) {
+	size_t i = 0;
+	for (; i < sizeof(buffer->name) - 1 && name[i] != '\0'; i++) {
+		char c = name[i];
+		buffer->name[i] = (c == '"' || c == '\\' || (unsigned char)c < 0x20) ? '_' : c;
+	}
+	buffer->name[i] = '\0';
+}
+
+/**
+ * Assigns a ring buffer to the calling thread.  A new buffer is allocated until
+ * TRACE_MAX_THREADS exist, after which the buffer of the earliest thread that has exited
+ * is reused.
+ *
+ * @return The thread's buffer, never NULL
+ */
+ThreadBuffer* Trace::registerThread() {
+	pthread_once(&gThreadKeyOnce, createThreadKey);
+
+	std::lock_guard<std::mutex> lock(gRegistryMutex);
+	ThreadBuffer* buffer = nullptr;
+
+	if (gBuffers.size() < TRACE_MAX_THREADS) {
+		buffer = new ThreadBuffer;
+		buffer->records = new Record[gEventsPerThread];
+		buffer->mask = gEventsPerThread - 1;
+		gBuffers.push_back(buffer);
+	} else {
+		for (ThreadBuffer* retired : gBuffers) {
+			if (retired->retired) {
+				buffer = retired;
+				break;
+			}
+		}
+		if (buffer == nullptr) {
+			LOGI("Trace thread limit reached, events from this thread are not recorded");
+			tlsBuffer = &gOverflowBuffer;
+			return tlsBuffer;
+		}
+		// Keep registration order, so the next reuse takes the next earliest thread
+		gBuffers.erase(std::find(gBuffers.begin(), gBuffers.end(), buffer));
+		gBuffers.push_back(buffer);
+	}
+
+	buffer->head.store(0, std::memory_order_relaxed);
+	buffer->tid = (int)syscall(__NR_gettid);
+	buffer->retired = false;
+	if (tlsThreadName != nullptr) {
+		setBufferName(buffer, tlsThreadName);
+	} else {
+		char name[16] = {0};
+		prctl(PR_GET_NAME, name, 0, 0, 0);
+		setBufferName(buffer, name);
+	}
+
+	pthread_setspecific(gThreadKey, buffer);
+	tlsBuffer = buffer;
+	return buffer;
+}
+
+/**
+ * Names the calling thread in traces.  Threads that are not named use their
+ * system name.
+ *
+ * @param name  Name to use, must remain valid for the life of the thread
+ */
+void Trace::nameThread(const char *name) {
+	tlsThreadName = name;
+
+	std::lock_guard<std::mutex> lock(gRegistryMutex);
+	if (tlsBuffer != nullptr && tlsBuffer != &gOverflowBuffer) {
+		setBufferName(tlsBuffer, name);
+	}
+}
+
+/**
+ * Starts recording.  Events from earlier sessions are discarded.
+ *
+ * @param eventsPerThread   Ring buffer capacity for threads registered from now on, rounded
+ *                          up to a power of two.  Buffers that already exist keep their size.
+ * @return false if the capacity is out of range
+ */
+bool Trace::start(uint32_t eventsPerThread) {
+	if (eventsPerThread == 0 || eventsPerThread > (1u << 24)) {
+		LOGE("Invalid trace buffer size: %u", eventsPerThread);
+		return false;
+	}
+
+	uint32_t capacity = 1;
+	while (capacity < eventsPerThread) {
+		capacity <<= 1;
+	}
+
+	{
+		std::lock_guard<std::mutex> lock(gRegistryMutex);
+		gEventsPerThread = capacity;
+	}
+	clear();
+	gEnabled.store(true, std::memory_order_relaxed);
+	LOGD("Tracing started, %u events per thread", capacity);
+	return true;
+}
+
+void Trace::stop() {
+	gEnabled.store(false, std::memory_order_relaxed);
+	LOGD("Tracing stopped");
+}
+
+/**
+ * Discards all recorded events.  Threads still recording when this is called may leave a
+ * few events behind.
+ */
+void Trace::clear() {
+	std::lock_guard<std::mutex> lock(gRegistryMutex);
+	for (ThreadBuffer* buffer : gBuffers) {
+		buffer->head.store(0, std::memory_order_relaxed);
+	}
+}
+
+struct ThreadSnapshot {
+	int                 tid;
+	std::string         name;
+	std::vector<Record> records;
+};
+
+/**
+ * Copies the valid records of each buffer.  Records are read while their threads may
+ * still be writing, so any that could have been overwritten during the copy are dropped,
+ * as are end events whose begin was already overwritten.
+ */
+static void snapshotBuffers(std::vector<ThreadSnapshot>* snapshots) {
+	std::lock_guard<std::mutex> lock(gRegistryMutex);
+
+	for (ThreadBuffer* buffer : gBuffers) {
+		uint32_t capacity = buffer->mask + 1;
+		uint32_t head = buffer->head.load(std::memory_order_acquire);
+		uint32_t first = (head > capacity) ? head - capacity : 0;
+
+		std::vector<Record> records;
+		records.reserve(head - first);
+		for (uint32_t i = first; i < head; i++) {
+			records.push_back(buffer->records[i & buffer->mask]);
+		}
+
+		uint32_t after = buffer->head.load(std::memory_order_acquire);
+		uint32_t valid = (after > capacity) ? after - capacity : 0;
+		size_t skip = (valid > first) ? valid - first : 0;
+		if (skip > records.size()) {
+			skip = records.size();
+		}
+
+		ThreadSnapshot snapshot;
+		snapshot.tid = buffer->tid;
+		snapshot.name = buffer->name;
+
+		int depth = 0;
+		for (size_t i = skip; i < records.size(); i++) {
+			const Record& rec = records[i];
+			if (rec.event >= TraceEvent::COUNT) {
+				continue;
+			}
+			if (rec.phase == Phase::BEGIN) {
+				depth++;
+			} else if (rec.phase == Phase::END) {
+				if (depth == 0) {
+					continue;
+				}
+				depth--;
+			}
+			snapshot.records.push_back(rec);
+		}
+
+		if (!snapshot.records.empty()) {
+			snapshots->push_back(std::move(snapshot));
+		}
+	}
+}
+
+static void writeChromeJson(FILE* file, const std::vector<ThreadSnapshot>& snapshots) {
+	int pid = (int)getpid();
+	bool first = true;
+
+	fprintf(file, "{\"displayTimeUnit\":\"ns\",\"traceEvents\":[\n");
+	for (const ThreadSnapshot& thread : snapshots) {
+		fprintf(file, "%s{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":%d,\"tid\":%d,"
+				"\"args\":{\"name\":\"%s\"}}", first ? "" : ",\n", pid, thread.tid,
+		        thread.name.c_str());
+		first = false;
+
+		for (const Record& rec : thread.records) {
+			// Chrome trace timestamps are microseconds
+			uint64_t us = rec.timestampNs / 1000;
+			uint32_t fraction = (uint32_t)(rec.timestampNs % 1000);
+			const char* name = EVENT_NAMES[(int)rec.event];
+
+			switch (rec.phase) {
+				case Phase::BEGIN:
+					fprintf(file, ",\n{\"name\":\"%s\",\"ph\":\"B\",\"pid\":%d,\"tid\":%d,"
+							"\"ts\":%llu.%03u,\"args\":{\"arg\":%u}}", name, pid, thread.tid,
+					        (unsigned long long)us, fraction, rec.arg);
+					break;
+				case Phase::END:
+					fprintf(file, ",\n{\"name\":\"%s\",\"ph\":\"E\",\"pid\":%d,\"tid\":%d,"
+							"\"ts\":%llu.%03u}", name, pid, thread.tid,
+					        (unsigned long long)us, fraction);
+					break;
+				case Phase::INSTANT:
+					fprintf(file, ",\n{\"name\":\"%s\",\"ph\":\"i\",\"s\":\"t\",\"pid\":%d,"
+							"\"tid\":%d,\"ts\":%llu.%03u,\"args\":{\"arg\":%u}}", name, pid,
+					        thread.tid, (unsigned long long)us, fraction, rec.arg);
+					break;
+			}
+		}
+	}
+	fprintf(file, "\n]}\n");
+}
+
+/**
+ * Minimal protobuf encoding for the handful of Perfetto trace messages written below
+ */
+namespace {
+	class ProtoWriter {
+	private:
+		std::vector<uint8_t> _data;
+
+	public:
+		void varint(uint64_t value) {
+			while (value >= 0x80) {
+				_data.push_back((uint8_t)(value | 0x80));
+				value >>= 7;
+			}
+			_data.push_back((uint8_t)value);
+		}
+
+		void uintField(uint32_t field, uint64_t value) {
+			varint((field << 3) | 0);
+			varint(value);
+		}
+
+		void bytesField(uint32_t field, const void* bytes, size_t length) {
+			varint((field << 3) | 2);
+			varint(length);
+			const uint8_t* src = (const uint8_t*)bytes;
+			_data.insert(_data.end(), src, src + length);
+		}
+
+		void stringField(uint32_t field, const char* value) {
+			bytesField(field, value, strlen(value));
+		}
+
+		void messageField(uint32_t field, const ProtoWriter& message) {
+			bytesField(field, message._data.data(), message._data.size());
+		}
+
+		bool write(FILE* file) {
+			return fwrite(_data.data(), 1, _data.size(), file) == _data.size();
+		}
+	};
+}
+
+// Field numbers from perfetto/trace/trace.proto and the track_event protos
+#define PERFETTO_TRACE_PACKET               1
+#define PERFETTO_PACKET_TIMESTAMP           8
+#define PERFETTO_PACKET_SEQUENCE_ID         10
+#define PERFETTO_PACKET_TRACK_EVENT         11
+#define PERFETTO_PACKET_CLOCK_ID            58
+#define PERFETTO_PACKET_TRACK_DESCRIPTOR    60
+#define PERFETTO_TRACK_UUID                 1
+#define PERFETTO_TRACK_THREAD               4
+#define PERFETTO_THREAD_PID                 1
+#define PERFETTO_THREAD_TID                 2
+#define PERFETTO_THREAD_NAME                5
+#define PERFETTO_EVENT_DEBUG_ANNOTATION     4
+#define PERFETTO_EVENT_TYPE                 9
+#define PERFETTO_EVENT_TRACK_UUID           11
+#define PERFETTO_EVENT_NAME                 23
+#define PERFETTO_ANNOTATION_UINT_VALUE      3
+#define PERFETTO_ANNOTATION_NAME            10
+#define PERFETTO_SLICE_BEGIN                1
+#define PERFETTO_SLICE_END                  2
+#define PERFETTO_INSTANT                    3
+#define PERFETTO_CLOCK_MONOTONIC            3
+#define PERFETTO_SEQUENCE_ID                1
+
+static bool writePerfetto(FILE* file, const std::vector<ThreadSnapshot>& snapshots) {
+	int pid = (int)getpid();
+	bool success = true;
+
+	for (const ThreadSnapshot& thread : snapshots) {
+		uint64_t trackUuid = ((uint64_t)pid << 32) | (uint32_t)thread.tid;
+
+		ProtoWriter threadDesc;
+		threadDesc.uintField(PERFETTO_THREAD_PID, (uint64_t)pid);
+		threadDesc.uintField(PERFETTO_THREAD_TID, (uint64_t)thread.tid);
+		threadDesc.stringField(PERFETTO_THREAD_NAME, thread.name.c_str());
+
+		ProtoWriter trackDesc;
+		trackDesc.uintField(PERFETTO_TRACK_UUID, trackUuid);
+		trackDesc.messageField(PERFETTO_TRACK_THREAD, threadDesc);
+
+		ProtoWriter descPacket;
+		descPacket.messageField(PERFETTO_PACKET_TRACK_DESCRIPTOR, trackDesc);
+		descPacket.uintField(PERFETTO_PACKET_SEQUENCE_ID, PERFETTO_SEQUENCE_ID);
+
+		ProtoWriter trace;
+		trace.messageField(PERFETTO_TRACE_PACKET, descPacket);
+		success &= trace.write(file);
+
+		for (const Record& rec : thread.records) {
+			ProtoWriter event;
+			switch (rec.phase) {
+				case Phase::BEGIN:
+					event.uintField(PERFETTO_EVENT_TYPE, PERFETTO_SLICE_BEGIN);
+					break;
+				case Phase::END:
+					event.uintField(PERFETTO_EVENT_TYPE, PERFETTO_SLICE_END);
+					break;
+				case Phase::INSTANT:
+					event.uintField(PERFETTO_EVENT_TYPE, PERFETTO_INSTANT);
+					break;
+			}
+			event.uintField(PERFETTO_EVENT_TRACK_UUID, trackUuid);
+			if (rec.phase != Phase::END) {
+				ProtoWriter annotation;
+				annotation.stringField(PERFETTO_ANNOTATION_NAME, "arg");
+				annotation.uintField(PERFETTO_ANNOTATION_UINT_VALUE, rec.arg);
+				event.messageField(PERFETTO_EVENT_DEBUG_ANNOTATION, annotation);
+				event.stringField(PERFETTO_EVENT_NAME, EVENT_NAMES[(int)rec.event]);
+			}
+
+			ProtoWriter packet;
+			packet.uintField(PERFETTO_PACKET_TIMESTAMP, rec.timestampNs);
+			packet.uintField(PERFETTO_PACKET_CLOCK_ID, PERFETTO_CLOCK_MONOTONIC);
+			packet.messageField(PERFETTO_PACKET_TRACK_EVENT, event);
+			packet.uintField(PERFETTO_PACKET_SEQUENCE_ID, PERFETTO_SEQUENCE_ID);
+
+			ProtoWriter wrapper;
+			wrapper.messageField(PERFETTO_TRACE_PACKET, packet);
+			success &= wrapper.write(file);
+		}
+	}
+
+	return success;
+}
+
+/**
+ * Writes the events currently held in every thread's buffer.  Recording may continue
+ * while the file is written.
+ *
+ * @param path      File to create
+ * @param format    Chrome trace JSON, or a Perfetto protobuf trace
+ * @return true if the trace was written
+ */
+bool Trace::dump(const char *path, TraceFormat format) {
+	std::vector<ThreadSnapshot> snapshots;
+	snapshotBuffers(&snapshots);
+
+	FILE* file = fopen(path, "wb");
+	if (file == nullptr) {
+		LOGE("Unable to create trace file %s", path);
+		return false;
+	}
+
+	bool success = true;
+	size_t events = 0;
+	for (const ThreadSnapshot& thread : snapshots) {
+		events += thread.records.size();
+	}
+
+	switch (format) {
+		case TraceFormat::CHROME_JSON:
+			writeChromeJson(file, snapshots);
+			break;
+		case TraceFormat::PERFETTO:
+			success = writePerfetto(file, snapshots);
+			break;
+	}
+
+	bool writeError = (ferror(file) != 0);
+	if (fclose(file) != 0 || writeError) {
+		success = false;
+	}
+
+	if (!success) {
+		LOGE("Error writing trace file %s", path);
+	} else {
+		LOGD("Trace written to %s, %d threads, %d events", path, (int)snapshots.size(),
+		     (int)events);
+	}
+	return success;
+}
@@ -0,0 +1,167 @@
+// Copyright (C) 2020 Eric Callahan <arksine.code@gmail.com>
+//
+// This file may be distributed under the terms of the GNU GPLv3 license
+//
+// Lightweight event tracing for the capture pipeline.  Each thread that records an event
+// gets its own ring buffer, written without locks or atomics beyond a single release store,
+// so recording costs a clock read and a 16 byte write.  While tracing is stopped each trace
+// point is a relaxed load and a branch, and defining USBTV_NO_TRACE removes them entirely.
+//
+// The buffers can be written out at any time as Chrome trace JSON (chrome://tracing,
+// ui.perfetto.dev) or as a Perfetto protobuf trace.
+//
+
+#ifndef USBTV007_ANDROID_TRACER_H
+#define USBTV007_ANDROID_TRACER_H
+
+#include <cstdint>
+#include <atomic>
+#include "util.h"
+
+#define TRACE_DEFAULT_EVENTS_PER_THREAD     65536
+#define TRACE_MAX_THREADS                   32
+
+enum struct TraceEvent : uint16_t {
+	URB_REAP,           // Transport handling of a completed urb, including the driver callback
+	PACKET_PARSE,       // Parsing the packets of an iso urb, arg is the packet count
+	FIELD_COMPLETE,     // Last packet of a field received, arg is the frame id
+	FRAME_QUEUE,        // Handing a complete frame to the process thread, arg is the pool index
+	FRAME_DROPPED,      // A frame was discarded, arg is the frame id
+	POOL_WAIT,          // Waiting for a free frame in the pool
+	FRAME_DEQUEUE,      // Process thread waiting for the next frame
+	JAVA_CALLBACK,      // Frame callback, arg is the pool index
+	FRAME_RETURN,       // Frame returned to the pool by its consumer, arg is the pool index
+	DEINTERLACE,        // Building a frame from a field, arg is the frame id
+	DENOISE,            // Temporal noise reduction, arg is the frame id
+	SCALE,              // Resizing a frame, arg is the frame id
+	SECONDARY,          // Producing a secondary stream frame, arg is the frame id
+	SECONDARY_DROPPED,  // A secondary stream frame was discarded, arg is the frame id
+	TIMESHIFT_STAGE,    // Copying a frame for the timeshift writer, arg is the frame id
+	TIMESHIFT_WRITE,    // Writing a staged frame to the timeshift ring, arg is the frame id
+	TIMESHIFT_DROPPED,  // A frame was not added to the timeshift, arg is the frame id
+	RECORD_FRAME,       // Serializing a frame for the video recorder, arg is the frame id
+	RECORD_WAIT,        // Waiting for the recorder writer to free a chunk, arg is the frame id
+	RECORD_WRITE,       // Writing a chunk to the recording file, arg is the chunk length
+	RECORD_DROPPED,     // A frame was not recorded, arg is the frame id
+	MJPEG_STAGE,        // Copying a frame for the MJPEG encoder, arg is the frame id
+	JPEG_ENCODE,        // Compressing a frame to JPEG, arg is the frame id
+	MJPEG_SEND,         // Sending a JPEG to an MJPEG viewer, arg is the image length
+	SHARED_PUBLISH,     // Announcing a frame to frame sharing clients, arg is the frame id
+	SHARED_DROPPED,     // A frame was not shared with any client, arg is the frame id
+	CHANGE_DETECT,      // Comparing a frame with the last changed frame, arg is the frame id
+	FRAME_SUPPRESSED,   // Unchanged or no motion, a frame was not delivered, arg is the frame id
+	MOTION_DETECT,      // Looking for motion in a frame, arg is the frame id
+	MOTION_EVENT,       // Motion started, continued or ended, arg is the MotionState
+	SIGNAL_CHECK,       // Sampling a frame for a picture, arg is the frame id
+	SIGNAL_CHANGE,      // The signal was lost or came back, arg is the SignalState
+	COUNT
+};
+
+enum struct TraceFormat {
+	CHROME_JSON,
+	PERFETTO
+};
+
+namespace Trace {
+	enum struct Phase : uint8_t {
+		BEGIN,
+		END,
+		INSTANT
+	};
+
+	struct Record {
+		uint64_t    timestampNs;
+		uint32_t    arg;
+		TraceEvent  event;
+		Phase       phase;
+	};
+
+	struct ThreadBuffer {
+		Record*                 records;
+		uint32_t                mask;
+		std::atomic<uint32_t>   head;       // Total records written, only the owner writes it
+		int                     tid;
+		char                    name[16];
+		bool                    retired;    // The owning thread has exited
+	};
+
+	extern std::atomic<bool> gEnabled;
+	extern __thread ThreadBuffer* tlsBuffer;
+
+	ThreadBuffer* registerThread();
+
+	bool start(uint32_t eventsPerThread);
+	void stop();
+	void clear();
+	bool dump(const char* path, TraceFormat format);
+	void nameThread(const char* name);
+
+	static inline bool isEnabled() {
+		return gEnabled.load(std::memory_order_relaxed);
+	}
+
+	/**
+	 * Appends a record to the calling thread's buffer, registering the thread on its first
+	 * event.  Only the owning thread writes a buffer, the release store on head publishes
+	 * the record to dump().
+	 */
+	static inline void record(TraceEvent event, Phase phase, uint32_t arg) {
+		ThreadBuffer* buffer = tlsBuffer;
+		if (buffer == nullptr) {
+			buffer = registerThread();
+		}
+
+		uint32_t head = buffer->head.load(std::memory_order_relaxed);
+		Record* rec = &buffer->records[head & buffer->mask];
+		rec->timestampNs = getSteadyTimeNs();
+		rec->arg = arg;
+		rec->event = event;
+		rec->phase = phase;
+		buffer->head.store(head + 1, std::memory_order_release);
+	}
+
+	/**
+	 * Records a begin event on construction and the matching end event on destruction.  The
+	 * end is recorded whenever the begin was, even if tracing stops in between.
+	 */
+	class Scope {
+	private:
+		TraceEvent  _event;
+		bool        _active;
+
+	public:
+		Scope(TraceEvent event, uint32_t arg = 0) {
+			_event = event;
+			_active = isEnabled();
+			if (_active) {
+				record(event, Phase::BEGIN, arg);
+			}
+		}
+
+		~Scope() {
+			if (_active) {
+				record(_event, Phase::END, 0);
+			}
+		}
+	};
+}
+
+#if defined(USBTV_NO_TRACE)
+#define TRACE_SCOPE(event, ...)         ((void)0)
+#define TRACE_INSTANT(event, arg)       ((void)0)
+#define TRACE_THREAD_NAME(name)         ((void)0)
+#else
+#define TRACE_CONCAT_(a, b)             a##b
+#define TRACE_CONCAT(a, b)              TRACE_CONCAT_(a, b)
+#define TRACE_SCOPE(event, ...) \
+	Trace::Scope TRACE_CONCAT(_traceScope, __LINE__)(TraceEvent::event, ##__VA_ARGS__)
+#define TRACE_INSTANT(event, arg) \
+	do { \
+		if (Trace::isEnabled()) { \
+			Trace::record(TraceEvent::event, Trace::Phase::INSTANT, (uint32_t)(arg)); \
+		} \
+	} while (0)
+#define TRACE_THREAD_NAME(name)         Trace::nameThread(name)
+#endif
+
+#endif //USBTV007_ANDROID_TRACER_H
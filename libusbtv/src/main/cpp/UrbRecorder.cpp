@@ -0,0 +1,273 @@
+// Copyright (C) 2020 Eric Callahan <arksine.code@gmail.com>
+//
+// This file may be distributed under the terms of the GNU GPLv3 license
+
+#include "UrbRecorder.h"
+#include "util.h"
+#include <fcntl.h>
+#include <unistd.h>
+#include <sys/mman.h>
+
+UrbRecorder::UrbRecorder() {
+	_fd = -1;
+	_chunk = nullptr;
+	_chunkOffset = 0;
+	_position = 0;
+	_maxBytes = 0;
+	_full = false;
+	_mapThread = nullptr;
+	_mapRunning = false;
+	_mapPending = false;
+	_mapFailed = false;
+	_mapOffset = 0;
+	_nextChunk = nullptr;
+	_retiredChunk = nullptr;
+	_recordedUrbs = 0;
+	_droppedUrbs = 0;
+}
+
+UrbRecorder::~UrbRecorder() {
+	close();
+}
+
+/**
+ * Creates the recording file, maps its first chunk and starts mapping the second.
+ *
+ * @param path      Path of the file to create, an existing file is truncated
+ * @param maxBytes  Maximum size of the recording.  Urbs received once it is reached are dropped.
+ * @return true if the file is ready for recording
+ */
+bool UrbRecorder::open(const char *path, uint64_t maxBytes) {
+	if (_fd >= 0) {
+		LOGE("Urb recorder is already open");
+		return false;
+	}
+
+	if (maxBytes < URB_RECORD_CHUNK_SIZE) {
+		maxBytes = URB_RECORD_CHUNK_SIZE;
+	}
+
+	_fd = ::open(path, O_RDWR | O_CREAT | O_TRUNC, 0644);
+	if (_fd < 0) {
+		LOGE("Unable to create urb recording %s", path);
+		return false;
+	}
+
+	_maxBytes = maxBytes;
+	_full = false;
+	_recordedUrbs = 0;
+	_droppedUrbs = 0;
+
+	_chunk = mapChunk(0);
+	if (_chunk == nullptr) {
+		::close(_fd);
+		_fd = -1;
+		return false;
+	}
+	_chunkOffset = 0;
+
+	UrbRecordFileHeader* header = (UrbRecordFileHeader*)_chunk;
+	memcpy(header->magic, URB_RECORD_MAGIC, sizeof(header->magic));
+	header->version = URB_RECORD_VERSION;
+	header->chunkSize = URB_RECORD_CHUNK_SIZE;
+	_position = sizeof(UrbRecordFileHeader);
+
+	_mapRunning = true;
+	_mapFailed = false;
+	_mapThread = new std::thread(&UrbRecorder::mapLoop, this);
+	requestChunk(URB_RECORD_CHUNK_SIZE);
+
+	LOGD("Urb recording started: %s", path);
+	return true;
+}
+
+/**
+ * Unmaps the chunks and truncates the file to the data actually written
+ */
+void UrbRecorder::close() {
+	if (_fd < 0) {
+		return;
+	}
+
+	if (_mapThread != nullptr) {
+		{
+			std::lock_guard<std::mutex> lock(_mapMutex);
+			_mapRunning = false;
+		}
+		_mapCondition.notify_one();
+		_mapThread->join();
+		delete _mapThread;
+		_mapThread = nullptr;
+	}
+
+	for (uint8_t** chunk : {&_chunk, &_nextChunk, &_retiredChunk}) {
+		if (*chunk != nullptr) {
+			munmap(*chunk, URB_RECORD_CHUNK_SIZE);
+			*chunk = nullptr;
+		}
+	}
+	_mapPending = false;
+
+	if (ftruncate(_fd, (off_t)(_chunkOffset + _position)) != 0) {
+		LOGE("Unable to truncate urb recording");
+	}
+	::close(_fd);
+	_fd = -1;
+
+	LOGD("Urb recording closed.  Urbs recorded: %d, Urbs dropped: %d",
+	     _recordedUrbs, _droppedUrbs);
+}
+
+/**
+ * Extends the file to cover the chunk at offset and maps it, with its pages populated.  The
+ * extended region reads as zeros, which marks unused space at the end of each chunk.
+ *
+ * @return The mapped chunk, or NULL on failure
+ */
+uint8_t* UrbRecorder::mapChunk(uint64_t offset) {
+	if (ftruncate(_fd, (off_t)(offset + URB_RECORD_CHUNK_SIZE)) != 0) {
+		LOGE("Unable to extend urb recording");
+		return nullptr;
+	}
+
+	void* chunk = mmap(nullptr, URB_RECORD_CHUNK_SIZE, PROT_READ | PROT_WRITE,
+	                   MAP_SHARED | MAP_POPULATE, _fd, (off_t)offset);
+	if (chunk == MAP_FAILED) {
+		LOGE("Unable to map urb recording chunk");
+		return nullptr;
+	}
+	return (uint8_t*)chunk;
+}
+
+/**
+ * Asks the mapping thread to map the chunk at offset, if the recording may grow to hold it
+ */
+void UrbRecorder::requestChunk(uint64_t offset) {
+	if (offset + URB_RECORD_CHUNK_SIZE > _maxBytes) {
+		return;
+	}
+
+	{
+		std::lock_guard<std::mutex> lock(_mapMutex);
+		_mapOffset = offset;
+		_mapPending = true;
+	}
+	_mapCondition.notify_one();
+}
+
+void UrbRecorder::mapLoop() {
+	std::unique_lock<std::mutex> lock(_mapMutex);
+	while (true) {
+		_mapCondition.wait(lock, [this] {
+			return _mapPending || _retiredChunk != nullptr || !_mapRunning;
+		});
+		if (!_mapRunning) {
+			break;
+		}
+
+		uint8_t* retired = _retiredChunk;
+		_retiredChunk = nullptr;
+		bool pending = _mapPending;
+		uint64_t offset = _mapOffset;
+		lock.unlock();
+
+		if (retired != nullptr) {
+			munmap(retired, URB_RECORD_CHUNK_SIZE);
+		}
+		uint8_t* chunk = pending ? mapChunk(offset) : nullptr;
+
+		lock.lock();
+		if (pending) {
+			_nextChunk = chunk;
+			_mapFailed = (chunk == nullptr);
+			_mapPending = false;
+		}
+	}
+}
+
+/**
+ * Moves the window to the chunk mapped ahead, and has the one after it mapped.  Called on
+ * the reap thread, it never waits for a chunk to be mapped.
+ *
+ * @return true if the window moved, false if the urb must be dropped
+ */
+bool UrbRecorder::advanceChunk() {
+	uint64_t next = _chunkOffset + URB_RECORD_CHUNK_SIZE;
+	{
+		std::lock_guard<std::mutex> lock(_mapMutex);
+		if (next + URB_RECORD_CHUNK_SIZE > _maxBytes || _mapFailed) {
+			LOGI("Urb recording is full, further urbs will be dropped");
+			_full = true;
+			return false;
+		}
+		if (_nextChunk == nullptr) {
+			// Still being mapped
+			return false;
+		}
+
+		_retiredChunk = _chunk;
+		_chunk = _nextChunk;
+		_nextChunk = nullptr;
+		_chunkOffset = next;
+		_position = 0;
+		if (next + 2 * URB_RECORD_CHUNK_SIZE <= _maxBytes) {
+			_mapOffset = next + URB_RECORD_CHUNK_SIZE;
+			_mapPending = true;
+		}
+	}
+	_mapCondition.notify_one();
+	return true;
+}
+
+/**
+ * Appends a completed isochronous urb.  Only the bytes each iso packet actually received
+ * are stored.
+ *
+ * @param urb           The reaped urb
+ * @param timestampNs   Time the urb was reaped
+ * @return true if the urb was recorded, false if it was dropped
+ */
+bool UrbRecorder::append(usbdevfs_urb *urb, uint64_t timestampNs) {
+	if (_chunk == nullptr || _full) {
+		_droppedUrbs++;
+		return false;
+	}
+
+	uint32_t payloadSize = 0;
+	for (int i = 0; i < urb->number_of_packets; i++) {
+		payloadSize += urb->iso_frame_desc[i].actual_length;
+	}
+
+	uint32_t descSize = urb->number_of_packets * sizeof(usbdevfs_iso_packet_desc);
+	uint32_t recordSize = (uint32_t)sizeof(UrbRecord) + descSize + payloadSize;
+	recordSize = (recordSize + 7) & ~7u;
+
+	if (recordSize > URB_RECORD_CHUNK_SIZE - _position && !advanceChunk()) {
+		_droppedUrbs++;
+		return false;
+	}
+
+	uint8_t* dst = _chunk + _position;
+	UrbRecord* record = (UrbRecord*)dst;
+	record->recordSize = recordSize;
+	record->status = urb->status;
+	record->timestampNs = timestampNs;
+	record->numberOfPackets = (uint32_t)urb->number_of_packets;
+	record->endpoint = urb->endpoint;
+	dst += sizeof(UrbRecord);
+
+	memcpy(dst, urb->iso_frame_desc, descSize);
+	dst += descSize;
+
+	const uint8_t* src = (const uint8_t*)urb->buffer;
+	for (int i = 0; i < urb->number_of_packets; i++) {
+		uint32_t length = urb->iso_frame_desc[i].actual_length;
+		memcpy(dst, src, length);
+		dst += length;
+		src += urb->iso_frame_desc[i].length;
+	}
+
+	_position += recordSize;
+	_recordedUrbs++;
+	return true;
+}
@@ -0,0 +1,92 @@
+// Copyright (C) 2020 Eric Callahan <arksine.code@gmail.com>
+//
+// This file may be distributed under the terms of the GNU GPLv3 license
+//
+// Records completed isochronous urbs to an append-only file so a capture can be replayed
+// exactly (see ReplayUsbDevice).  The file is written through a memory mapped window that
+// advances in fixed size chunks, so appending a urb is a single copy on the reap thread.
+//
+// The window is double buffered.  A thread of the recorder's own extends the file and maps
+// the chunk after the current one ahead of time, and unmaps the chunk left behind, so the
+// reap thread never waits on the filesystem.  Should it fall behind, urbs are dropped until
+// the next chunk is ready.
+//
+// File layout:
+//  UrbRecordFileHeader
+//  UrbRecord, its usbdevfs_iso_packet_desc array, then the payload of each iso packet
+//  packed back to back (actual_length bytes each).  Records are 8 byte aligned and never
+//  span a chunk.  A recordSize of zero means the rest of the chunk is unused.
+//
+
+#ifndef USBTV007_ANDROID_URBRECORDER_H
+#define USBTV007_ANDROID_URBRECORDER_H
+
+#include <condition_variable>
+#include <cstdint>
+#include <mutex>
+#include <thread>
+#include <linux/usbdevice_fs.h>
+
+#define URB_RECORD_MAGIC        "UTV007RC"
+#define URB_RECORD_VERSION      1
+#define URB_RECORD_CHUNK_SIZE   (16 * 1024 * 1024)
+
+struct UrbRecordFileHeader {
+	char        magic[8];
+	uint32_t    version;
+	uint32_t    chunkSize;
+};
+
+struct UrbRecord {
+	uint32_t    recordSize;         // Size of the record including descriptors and payload
+	int32_t     status;             // urb status
+	uint64_t    timestampNs;        // steady clock time the urb was reaped
+	uint32_t    numberOfPackets;
+	uint8_t     endpoint;
+	uint8_t     reserved[3];
+};
+
+class UrbRecorder {
+private:
+	int         _fd;
+	uint8_t*    _chunk;             // Mapped window of the current chunk
+	uint64_t    _chunkOffset;       // File offset of the current chunk
+	uint32_t    _position;          // Write position within the current chunk
+	uint64_t    _maxBytes;
+	bool        _full;
+
+	// Chunk mapping thread.  The reap thread takes the next chunk and hands back the one it
+	// leaves, the thread only holds the mutex while exchanging them.
+	std::thread*            _mapThread;
+	std::mutex              _mapMutex;
+	std::condition_variable _mapCondition;
+	bool                    _mapRunning;
+	bool                    _mapPending;    // _mapOffset is to be mapped
+	bool                    _mapFailed;
+	uint64_t                _mapOffset;
+	uint8_t*                _nextChunk;     // Mapped at _chunkOffset + URB_RECORD_CHUNK_SIZE
+	uint8_t*                _retiredChunk;  // To be unmapped
+
+	uint32_t    _recordedUrbs;
+	uint32_t    _droppedUrbs;
+
+	uint8_t* mapChunk(uint64_t offset);
+	bool advanceChunk();
+	void requestChunk(uint64_t offset);
+	void mapLoop();
+
+public:
+	UrbRecorder();
+	~UrbRecorder();
+
+	bool open(const char* path, uint64_t maxBytes);
+	void close();
+	bool append(usbdevfs_urb* urb, uint64_t timestampNs);
+
+	bool isOpen() {
+		return _fd >= 0;
+	}
+};
+
+
+#endif //USBTV007_ANDROID_URBRECORDER_H
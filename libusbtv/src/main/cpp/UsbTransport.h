@@ -0,0 +1,77 @@
+// Copyright (C) 2020 Eric Callahan <arksine.code@gmail.com>
+//
+// This file may be distributed under the terms of the GNU GPLv3 license
+//
+// Abstract transport used by UsbTvDriver.  The usbfs implementation talks to a real
+// device (AndroidUsbDevice), other implementations (ReplayUsbDevice) feed the driver
+// without one so the packet assembly, pooling and threading can run anywhere.
+//
+
+#ifndef USBTV007_ANDROID_USBTRANSPORT_H
+#define USBTV007_ANDROID_USBTRANSPORT_H
+
+#include <cstdint>
+#include <linux/usbdevice_fs.h>
+#include <linux/usb/ch9.h>
+#include <functional>
+
+typedef std::function<void(usbdevfs_urb*)> UrbCallback;
+
+class UsbTransport;
+
+// TODO: I can add some data to the UrbContext for transfers that are bulk-continuation, then
+// send the last transfer
+namespace UsbDevice {
+	// Context used for the primary continuous bulk transfer.  It contains indices for
+	// the subtransfers used to actually fetch the data
+
+	// TODO: Should I add poolIndex to the below as well?
+	struct ContinuousBulkContext {
+		uint8_t                 subUrbCount;
+		usbdevfs_urb**          subUrbs;
+		bool                    mappedBuffer;
+	};
+
+	struct UrbContext {
+		UsbTransport*           usbDevice;
+		UrbCallback             callback;
+		uint8_t                 poolIndex;
+		usbdevfs_urb*           contBulkUrb = nullptr;      // used only for continuous URBs
+		bool                    isLast      = true;        // used only for continuous URBs
+		bool                    submitted   = false;       // true while owned by the transport
+		bool                    mappedBuffer = false;      // buffer was allocated with usbfs mmap
+	};
+}
+
+/**
+ * Operations UsbTvDriver requires from a USB connection.  URBs handed to callbacks
+ * are usbdevfs_urb structures regardless of the implementation, their usercontext is
+ * always a UsbDevice::UrbContext.
+ */
+class UsbTransport {
+public:
+	virtual ~UsbTransport() {}
+
+	virtual bool isUrbThreadRunning() = 0;
+
+	virtual bool setInterface(unsigned int interface, unsigned int altSetting) = 0;
+	virtual bool controlTransfer(uint8_t requestType, uint8_t request, uint16_t value,
+	                             uint16_t index, void* buffer, uint16_t length,
+	                             uint32_t timeout) = 0;
+
+	virtual bool initIsoUrbs(uint8_t numTransfers, uint8_t endpoint, uint32_t packetLength,
+	                         uint8_t numberOfPackets, UrbCallback callback) = 0;
+	virtual bool submitBulkUrb(uint8_t endpoint, uint32_t bufferSize, UrbCallback callback) = 0;
+	virtual bool resubmitUrb(usbdevfs_urb *urb) = 0;
+
+	virtual bool discardIsoUrbs() = 0;
+	virtual bool discardBulkUrbs() = 0;
+	virtual bool startUrbAsyncRead() = 0;
+	virtual void stopUrbAsyncRead() = 0;
+
+	// Recording of completed iso urbs, only supported by transports attached to a device
+	virtual bool startRecording(const char* path, uint64_t maxBytes) { return false; }
+	virtual void stopRecording() {}
+};
+
+#endif //USBTV007_ANDROID_USBTRANSPORT_H
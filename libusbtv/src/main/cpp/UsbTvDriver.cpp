@@ -4,11 +4,8 @@
 
 #include "UsbTvDriver.h"
 
-#if defined(PROFILE_FRAME) || defined(PROFILE_VIDEO_URB)
-#include <chrono>
-#endif
-
 void frame_process_thread(Driver::ThreadContext* ctx);
+void secondary_delivery_thread(Driver::ThreadContext* ctx);
 
 // TODO: Some audio notes:  The structure seems simple, the bulk transfer comes in 256-byte packets with 4-byte headers
 // So when processing a buffer I simply process in 256 byte segments, skipping the first 4-bytes.  The
@@ -22,41 +19,145 @@ void frame_process_thread(Driver::ThreadContext* ctx);
 // Channels - 2
 // Depth - 16-bits
 
-UsbTvDriver::UsbTvDriver(JNIEnv *env, JavaCallback* cb, jobject params)
-		: _paramsHelper(env){
+/**
+ * Creates the driver.  By default the driver streams from the usbfs file descriptor in
+ * params, an alternate transport (ie. a ReplayUsbDevice) may be supplied instead.
+ *
+ * @param env       The Java environment of the calling thread
+ * @param cb        Callback used to deliver frames to Java
+ * @param params    DeviceParams object
+ * @param transport Optional transport to stream from.  The driver takes ownership.
+ */
+UsbTvDriver::UsbTvDriver(JNIEnv *env, FrameCallback* cb, jobject params, UsbTransport* transport) {
 
 	_initialized = false;
+	_env = nullptr;
+	_paramsHelper = nullptr;
 
 	if (env == nullptr || cb == nullptr || params == nullptr) {
+		delete transport;
 		return;
 	}
 	_env = env;
+	_paramsHelper = new DeviceParamsHelper(env);
 
 	/*
 	 *  Get initial values from the params object usings the helper class
 	 */
 
-	int fd = _paramsHelper.getFileDescriptor(env, params);
-	_framePoolSize = (uint16_t)_paramsHelper.getFramePoolSize(env, params);
-	_isoEndpoint = (uint8_t)_paramsHelper.getVideoEndpoint(env, params);
-	_maxIsoPacketSize = (uint32_t)_paramsHelper.getVideoUrbPacketSize(env, params);
+	int fd = _paramsHelper->getFileDescriptor(env, params);
+	uint16_t framePoolSize = (uint16_t)_paramsHelper->getFramePoolSize(env, params);
+	uint8_t isoEndpoint = (uint8_t)_paramsHelper->getVideoEndpoint(env, params);
+	uint32_t maxIsoPacketSize = (uint32_t)_paramsHelper->getVideoUrbPacketSize(env, params);
 	// TODO: Audio Endpoint and Audio Urb Size should also be retreived here
 
+	if (transport == nullptr) {
+		transport = new AndroidUsbDevice(fd);
+	}
+
+	init(cb, transport, framePoolSize, isoEndpoint, maxIsoPacketSize);
+}
+
+/**
+ * Creates a driver without a Java environment.  Frames are delivered to cb with no
+ * Java object attached, streaming is started with a StreamParams struct.
+ *
+ * @param cb                Callback that receives completed frames
+ * @param transport         Transport to stream from.  The driver takes ownership.
+ * @param framePoolSize     Number of frames in the pool
+ * @param isoEndpoint       Video endpoint address
+ * @param maxIsoPacketSize  Length of each iso packet slot requested
+ */
+UsbTvDriver::UsbTvDriver(FrameCallback *cb, UsbTransport *transport, uint16_t framePoolSize,
+                         uint8_t isoEndpoint, uint32_t maxIsoPacketSize) {
+	_initialized = false;
+	_env = nullptr;
+	_paramsHelper = nullptr;
+
+	if (cb == nullptr || transport == nullptr || framePoolSize < 2) {
+		delete transport;
+		return;
+	}
+
+	init(cb, transport, framePoolSize, isoEndpoint, maxIsoPacketSize);
+}
+
+void UsbTvDriver::init(FrameCallback *cb, UsbTransport *transport, uint16_t framePoolSize,
+                       uint8_t isoEndpoint, uint32_t maxIsoPacketSize) {
+	if (framePoolSize > USBTV_MAX_FRAME_POOL) {
+		framePoolSize = USBTV_MAX_FRAME_POOL;
+	}
+	_framePoolSize = framePoolSize;
+	_framePoolCount = framePoolSize;
+	_inputPoolCount = framePoolSize;
+	_scalerPoolStart = framePoolSize;
+	_secondaryPoolStart = framePoolSize;
+	_isoEndpoint = isoEndpoint;
+	_maxIsoPacketSize = maxIsoPacketSize;
 
 	_frameProcessQueue = new moodycamel::BlockingConcurrentQueue<UsbTvFrame*>((unsigned long)
 	                                                                          (_framePoolSize - 1));
+	// Room for every secondary frame and the null frame that stops the delivery thread
+	_secondaryQueue = new moodycamel::BlockingConcurrentQueue<UsbTvFrame*>(
+			USBTV_SECONDARY_POOL_FRAMES + 1);
 
 
 	_streamActive = false;
 	_framePool = nullptr;
+	_framePoolActive = false;
+	_sharedPoolActive = false;
+	_crop = {0, 0, 0, 0};
+	_cropActive = false;
+	_cropLeft = 0;
+	_cropBytes = 0;
+	_pixelShift = 0;
+	_cropTop = 0;
+	_cropLines = 0;
+	_assemblyPaused = false;
+	_usbInputFrame = nullptr;
+	_numIsoTransfers = USBTV_ISOC_TRANSFERS;
+	_configuredIsoTransfers = USBTV_ISOC_TRANSFERS;
 	_numIsoPackets = USBTV_ISOC_PACKETS_PER_REQUEST;
+	_isoAutoTune.active = false;
+	_isoAutoTune.monitoring = false;
+	_retiredIsoUrbs.reserve(USBTV_ISOC_MAX_TRANSFERS);
 	_currentFrameId = 0;
 	_lastOdd = true;
 	_secondFrame = false;
+	_skipPayload = false;
+	_lumaStatsEnabled = false;
+	_lumaStatsActive = false;
+	_deinterlaceMode = DeinterlaceMode::MOTION_ADAPTIVE;
+	_deinterlacer = nullptr;
+	_prevField = nullptr;
+	_prevField2 = nullptr;
+	_denoiseStrength = 0;
+	_denoiser = nullptr;
+	_changeThreshold = 0;
+	_suppressUnchanged = false;
+	_changeDetector = nullptr;
+	_lastDeliveredNs = 0;
+	_suppressedFrameCounter = 0;
+	_motionSensitivity = 0;
+	_motionGate = false;
+	_motionDetector = nullptr;
+	_scale = {0, 0, ScaleFilter::BILINEAR, false};
+	_scaleActive = false;
+	_scaler = nullptr;
+	_secondary = {0, 0, ScaleFilter::BILINEAR, DropPolicy::DROP_NEWEST};
+	_secondaryActive = false;
+	_secondaryScaler = nullptr;
+	_secondaryCallback = nullptr;
+	_useSecondaryCallback = false;
+	_secondaryThread = nullptr;
+	_secondaryThreadRunning = false;
+	_secondaryDroppedCounter = 0;
 	_packetsDone = 0;
 	_packetsPerField = 0;
+	_droppedFrameCounter = 0;
+	_incompleteFrameCounter = 0;
 
-	_usbConnection = new AndroidUsbDevice(fd);
+	_usbConnection = transport;
 
 	_useCallback = false;
 	_frameProcessThread = nullptr;
@@ -66,6 +167,11 @@ UsbTvDriver::UsbTvDriver(JNIEnv *env, JavaCallback* cb, jobject params)
 	_frameProcessContext->useCallback = &_useCallback;
 	_frameProcessContext->threadRunning = &_processThreadRunning;
 	_frameProcessContext->callback = cb;
+	_secondaryContext = new Driver::ThreadContext;
+	_secondaryContext->usbtv = this;
+	_secondaryContext->useCallback = &_useSecondaryCallback;
+	_secondaryContext->threadRunning = &_secondaryThreadRunning;
+	_secondaryContext->callback = nullptr;
 
 #if defined(PROFILE_FRAME)
 	_framePoolSpins = 0;
@@ -87,48 +193,304 @@ UsbTvDriver::~UsbTvDriver() {
 		LOGD("Streaming stopped");
 		// TODO: Delete any dynamic Audio Vars if necessary
 
+		_autoLevel.stop();
+
 		delete _frameProcessQueue;
 		delete _frameProcessContext;
+		delete _secondaryQueue;
+		delete _secondaryContext;
 		delete _usbConnection;
 	}
+	delete _paramsHelper;
 }
 
-bool UsbTvDriver::parseStreamingParams(jobject params) {
+/**
+ * Reads the streaming parameters from a DeviceParams object
+ */
+void UsbTvDriver::parseStreamingParams(jobject params, StreamParams* streamParams) {
+	FrameParams* frame = &streamParams->frame;
+	frame->frameWidth = (uint16_t)_paramsHelper->getFrameWidth(_env, params);
+	frame->frameHeight = (uint16_t)_paramsHelper->getFrameHeight(_env, params);
+	frame->bufferSize = (uint32_t)_paramsHelper->getFrameSizeInBytes(_env, params);
+	streamParams->packetsPerField = (uint16_t)_paramsHelper->getVideoPacketsPerField(_env, params);
+
+	// TODO: I should do checks on the ordinals, or just use switch statements to assign them
+	frame->norm = static_cast<TvNorm>(_paramsHelper->getNormOrdinal(_env, params));
+	frame->scanType = static_cast<ScanType>(_paramsHelper->getScanTypeOrdinal(_env, params));
+	frame->pixelFormat = static_cast<PixelFormat>(_paramsHelper->getPixelFormatOrdinal(_env, params));
+	streamParams->input = static_cast<TvInput>(_paramsHelper->getInputSelectionOrdinal(_env, params));
+
+	// DeviceParams clamps these, but they are checked again in applyStreamingParams as they
+	// size native allocations
+	int isoTransfers = _paramsHelper->getIsoTransferCount(_env, params);
+	int isoPackets = _paramsHelper->getIsoPacketsPerRequest(_env, params);
+	streamParams->isoTransfers = (uint8_t)((isoTransfers > 0 && isoTransfers <= 255) ? isoTransfers : 0);
+	streamParams->isoPacketsPerRequest = (uint8_t)((isoPackets > 0 && isoPackets <= 255) ? isoPackets : 0);
+	streamParams->isoAutoTune = _paramsHelper->isIsoAutoTuneEnabled(_env, params);
+	streamParams->deinterlaceMode = static_cast<DeinterlaceMode>(
+			_paramsHelper->getDeinterlaceModeOrdinal(_env, params));
+	streamParams->crop.x = (uint16_t)_paramsHelper->getCropX(_env, params);
+	streamParams->crop.y = (uint16_t)_paramsHelper->getCropY(_env, params);
+	streamParams->crop.width = (uint16_t)_paramsHelper->getCropWidth(_env, params);
+	streamParams->crop.height = (uint16_t)_paramsHelper->getCropHeight(_env, params);
+	streamParams->scale.width = (uint16_t)_paramsHelper->getScaleWidth(_env, params);
+	streamParams->scale.height = (uint16_t)_paramsHelper->getScaleHeight(_env, params);
+	streamParams->scale.filter = static_cast<ScaleFilter>(
+			_paramsHelper->getScaleFilterOrdinal(_env, params));
+	streamParams->scale.squarePixels = _paramsHelper->isSquarePixelsEnabled(_env, params);
+	streamParams->secondary.width = (uint16_t)_paramsHelper->getSecondaryWidth(_env, params);
+	streamParams->secondary.height = (uint16_t)_paramsHelper->getSecondaryHeight(_env, params);
+	streamParams->secondary.filter = static_cast<ScaleFilter>(
+			_paramsHelper->getSecondaryFilterOrdinal(_env, params));
+	streamParams->secondary.dropPolicy = static_cast<DropPolicy>(
+			_paramsHelper->getSecondaryDropPolicyOrdinal(_env, params));
+	int strength = _paramsHelper->getDenoiseStrength(_env, params);
+	streamParams->denoiseStrength = (uint8_t)((strength > 0 && strength <= USBTV_DENOISE_MAX_STRENGTH)
+	                                          ? strength : 0);
+}
 
-	_frameParams.frameWidth = (uint16_t)_paramsHelper.getFrameWidth(_env, params);
-	_frameParams.frameHeight = (uint16_t)_paramsHelper.getFrameHeight(_env, params);
-	_frameParams.bufferSize = (uint32_t)_paramsHelper.getFrameSizeInBytes(_env, params);
-	_packetsPerField = (uint16_t)_paramsHelper.getVideoPacketsPerField(_env, params);
+/**
+ * Copies streaming parameters into the driver, replacing out of range iso geometry with
+ * the defaults.
+ */
+void UsbTvDriver::applyStreamingParams(const StreamParams &params) {
+	_frameParams = params.frame;
+	_packetsPerField = params.packetsPerField;
+	_input = params.input;
+	applyCrop(params.crop);
+	applyScale(params.scale);
+	applySecondary(params.secondary);
 
 	LOGD("Params Frame Width: %d", _frameParams.frameWidth);
 	LOGD("Params Frame Height: %d", _frameParams.frameHeight);
 	LOGD("Params Buffer Size: %d", _frameParams.bufferSize);
 	LOGD("Params Packets Per Field: %d", _packetsPerField);
+	LOGD("Params TvNorm Ordinal: %d", (int)_frameParams.norm);
+	LOGD("Params ScanType Ordinal: %d", (int)_frameParams.scanType);
+	LOGD("Params PixelFormat Ordinal: %d", (int)_frameParams.pixelFormat);
+	LOGD("Params InputSelection Ordinal: %d", (int)_input);
+
+	_deinterlaceMode = params.deinterlaceMode;
+	if (_frameParams.scanType == ScanType::DEINTERLACED) {
+		LOGD("Params Deinterlace Mode Ordinal: %d", (int)_deinterlaceMode);
+	}
+	setDenoiseStrength(params.denoiseStrength);
+	LOGD("Params Denoise Strength: %d", getDenoiseStrength());
 
-	// TODO: I should do checks on the ordinals, or just use switch statements to assign them
-	int ord = _paramsHelper.getNormOrdinal(_env, params);
-	_frameParams.norm = static_cast<TvNorm>(ord);
-	LOGD("Params TvNorm Ordinal: %d", ord);
-	ord = _paramsHelper.getScanTypeOrdinal(_env, params);
-	_frameParams.scanType = static_cast<ScanType>(ord);
-	LOGD("Params ScanType Ordinal: %d", ord);
-	ord = _paramsHelper.getInputSelectionOrdinal(_env, params);
-	_input = static_cast<TvInput>(ord);
-	LOGD("Params InputSelection Ordinal: %d", ord);
+	int isoTransfers = params.isoTransfers;
+	int isoPackets = params.isoPacketsPerRequest;
+	if (isoTransfers < USBTV_ISOC_MIN_TRANSFERS || isoTransfers > USBTV_ISOC_MAX_TRANSFERS) {
+		isoTransfers = USBTV_ISOC_TRANSFERS;
+	}
+	if (isoPackets < 1 || isoPackets > USBTV_ISOC_MAX_PACKETS_PER_REQUEST) {
+		isoPackets = USBTV_ISOC_PACKETS_PER_REQUEST;
+	}
+	_numIsoTransfers = (uint8_t)isoTransfers;
+	_configuredIsoTransfers = (uint8_t)isoTransfers;
+	_numIsoPackets = (uint8_t)isoPackets;
+	_retiredIsoUrbs.clear();
+	_isoAutoTune.active = params.isoAutoTune;
+	_isoAutoTune.monitoring = false;
+	_isoAutoTune.urbCount = 0;
+	_isoAutoTune.packetErrors = 0;
+	_isoAutoTune.maxGapUs = 0;
+	LOGD("Params Iso Transfers: %d", _numIsoTransfers.load());
+	LOGD("Params Iso Packets Per Request: %d", _numIsoPackets);
+	LOGD("Params Iso Auto-Tune: %s", _isoAutoTune.active ? "true" : "false");
+}
 
-	return true;
+/**
+ * Aligns a crop to whole macropixels and field line pairs, and clips it to the source
+ * frame.  An empty crop, or one starting outside the frame, selects the whole frame.
+ *
+ * @param crop              The requested crop, in pixels of the full interlaced frame
+ * @param packetsPerField   Packets of each field, which give the source frame's height
+ * @return The crop applied
+ */
+CropRect UsbTvDriver::alignCrop(const CropRect &crop, uint16_t packetsPerField) {
+	uint16_t sourceWidth = USBTV_FRAME_WIDTH;
+	uint16_t sourceHeight = (uint16_t)(((uint32_t)packetsPerField * USBTV_PAYLOAD_SIZE) /
+	                                   (USBTV_FRAME_WIDTH * 2) * 2);
+
+	CropRect aligned;
+	aligned.x = (uint16_t)(crop.x & ~1);
+	aligned.y = (uint16_t)(crop.y & ~1);
+	aligned.width = (uint16_t)(crop.width & ~1);
+	aligned.height = (uint16_t)(crop.height & ~1);
+	if (aligned.width == 0 || aligned.height == 0 || aligned.x >= sourceWidth ||
+	    aligned.y >= sourceHeight) {
+		aligned = {0, 0, sourceWidth, sourceHeight};
+	}
+	if (aligned.x + aligned.width > sourceWidth) {
+		aligned.width = sourceWidth - aligned.x;
+	}
+	if (aligned.y + aligned.height > sourceHeight) {
+		aligned.height = sourceHeight - aligned.y;
+	}
+	return aligned;
+}
+
+/**
+ * Resolves the crop and the sizes of the delivered and secondary frames the driver will
+ * use for a stream, without starting it.  DeviceParams reports these rather than working
+ * them out itself.
+ */
+FrameGeometry UsbTvDriver::resolveGeometry(const StreamParams &params) {
+	FrameGeometry geometry;
+	geometry.crop = alignCrop(params.crop, params.packetsPerField);
+
+	bool singleField = (params.frame.scanType == ScanType::PROGRESSIVE ||
+	                    params.frame.scanType == ScanType::DISCARD);
+	uint16_t width = geometry.crop.width;
+	uint16_t height = singleField ? (uint16_t)(geometry.crop.height / 2) : geometry.crop.height;
+	Scaler::computeOutputSize(params.scale, params.frame.norm, width, height, singleField,
+	                          &geometry.frameWidth, &geometry.frameHeight);
+
+	geometry.secondaryWidth = 0;
+	geometry.secondaryHeight = 0;
+	if (params.secondary.width != 0 || params.secondary.height != 0) {
+		ScaleParams scale = {params.secondary.width, params.secondary.height,
+		                     params.secondary.filter, params.scale.squarePixels};
+		Scaler::computeOutputSize(scale, params.frame.norm, width, height, singleField,
+		                          &geometry.secondaryWidth, &geometry.secondaryHeight);
+	}
+	return geometry;
+}
+
+/**
+ * Sets the region of each frame kept while scattering packets, and sizes the frame to it.
+ * _packetsPerField and _frameParams.scanType must already be set.
+ */
+void UsbTvDriver::applyCrop(const CropRect &crop) {
+	CropRect aligned = alignCrop(crop, _packetsPerField);
+	CropRect full = alignCrop({0, 0, 0, 0}, _packetsPerField);
+
+	_crop = aligned;
+	_cropActive = (aligned.width != full.width || aligned.height != full.height);
+	_cropLeft = (uint32_t)aligned.x * 2;
+	_cropBytes = (uint32_t)aligned.width * 2;
+	_cropTop = (uint16_t)(aligned.y / 2);
+	_cropLines = (uint16_t)(aligned.height / 2);
+
+	// Frames built from a single field hold half of the crop's lines
+	_frameParams.frameWidth = aligned.width;
+	_frameParams.frameHeight = aligned.height;
+	if (_frameParams.scanType == ScanType::PROGRESSIVE ||
+	    _frameParams.scanType == ScanType::DISCARD) {
+		_frameParams.frameHeight = _cropLines;
+	}
+	_frameParams.bufferSize = (uint32_t)_frameParams.frameWidth * _frameParams.frameHeight *
+	                          bytesPerPixel(_frameParams.pixelFormat);
+	_pixelShift = (uint8_t)((_frameParams.pixelFormat == PixelFormat::Y8) ? 1 : 0);
+
+	if (_cropActive) {
+		LOGD("Params Crop: %dx%d at %d, %d", _crop.width, _crop.height, _crop.x, _crop.y);
+	}
+}
+
+/**
+ * Resolves the size of scaled frames from the captured frame size.  applyCrop must be
+ * called first.
+ */
+void UsbTvDriver::applyScale(const ScaleParams &scale) {
+	_scale = scale;
+	if ((int)_scale.filter < (int)ScaleFilter::BILINEAR ||
+	    (int)_scale.filter > (int)ScaleFilter::LANCZOS) {
+		_scale.filter = ScaleFilter::BILINEAR;
+	}
+
+	bool singleField = (_frameParams.scanType == ScanType::PROGRESSIVE ||
+	                    _frameParams.scanType == ScanType::DISCARD);
+	_scaledParams = _frameParams;
+	Scaler::computeOutputSize(_scale, _frameParams.norm, _frameParams.frameWidth,
+	                          _frameParams.frameHeight, singleField, &_scaledParams.frameWidth,
+	                          &_scaledParams.frameHeight);
+	_scaledParams.bufferSize = (uint32_t)_scaledParams.frameWidth * _scaledParams.frameHeight *
+	                           bytesPerPixel(_scaledParams.pixelFormat);
+	_scaleActive = (_scaledParams.frameWidth != _frameParams.frameWidth ||
+	                _scaledParams.frameHeight != _frameParams.frameHeight);
+
+	if (_scaleActive) {
+		LOGD("Params Scale: %dx%d, filter ordinal %d", _scaledParams.frameWidth,
+		     _scaledParams.frameHeight, (int)_scale.filter);
+	}
+}
+
+/**
+ * Resolves the size of secondary stream frames from the captured frame size.  applyScale
+ * must be called first, as the square pixel setting is shared with it.
+ */
+void UsbTvDriver::applySecondary(const SecondaryStreamParams &secondary) {
+	_secondary = secondary;
+	if ((int)_secondary.filter < (int)ScaleFilter::BILINEAR ||
+	    (int)_secondary.filter > (int)ScaleFilter::LANCZOS) {
+		_secondary.filter = ScaleFilter::BILINEAR;
+	}
+	if ((int)_secondary.dropPolicy < (int)DropPolicy::DROP_NEWEST ||
+	    (int)_secondary.dropPolicy > (int)DropPolicy::DROP_OLDEST) {
+		_secondary.dropPolicy = DropPolicy::DROP_NEWEST;
+	}
+
+	_secondaryParams = _frameParams;
+	_secondaryActive = (_secondary.width != 0 || _secondary.height != 0);
+	if (!_secondaryActive) {
+		return;
+	}
+
+	ScaleParams scale = {_secondary.width, _secondary.height, _secondary.filter,
+	                     _scale.squarePixels};
+	bool singleField = (_frameParams.scanType == ScanType::PROGRESSIVE ||
+	                    _frameParams.scanType == ScanType::DISCARD);
+	Scaler::computeOutputSize(scale, _frameParams.norm, _frameParams.frameWidth,
+	                          _frameParams.frameHeight, singleField,
+	                          &_secondaryParams.frameWidth, &_secondaryParams.frameHeight);
+	_secondaryParams.bufferSize = (uint32_t)_secondaryParams.frameWidth *
+	                              _secondaryParams.frameHeight *
+	                              bytesPerPixel(_secondaryParams.pixelFormat);
+
+	LOGD("Params Secondary Stream: %dx%d, filter ordinal %d, drop policy ordinal %d",
+	     _secondaryParams.frameWidth, _secondaryParams.frameHeight, (int)_secondary.filter,
+	     (int)_secondary.dropPolicy);
 }
 
 
 bool UsbTvDriver::startStreaming(jobject params) {
+	if (!_initialized || _paramsHelper == nullptr) {
+		return false;
+	}
+	if (_streamActive) {
+		return true;
+	}
+
+	StreamParams streamParams;
+	parseStreamingParams(params, &streamParams);
+	return beginStreaming(streamParams, params);
+}
+
+/**
+ * Starts streaming without a DeviceParams object.  Frames delivered to the callback
+ * have no Java object attached.
+ */
+bool UsbTvDriver::startStreaming(const StreamParams &params) {
+	return beginStreaming(params, nullptr);
+}
+
+bool UsbTvDriver::beginStreaming(const StreamParams &params, jobject javaParams) {
 	if (_initialized && !_streamActive) {
 		bool success;
 		_streamActive = true;
 		_droppedFrameCounter = 0;
 		_incompleteFrameCounter = 0;
+		_secondaryDroppedCounter = 0;
+		_suppressedFrameCounter = 0;
+		_lastDeliveredNs = 0;
 
 		// Setup Parameters
-		parseStreamingParams(params);
+		applyStreamingParams(params);
+		_governor.restart((_frameParams.norm == TvNorm::PAL) ? 20000000 : 16683333);
+		_signal.restart();
+		_autoLevel.restart();
+		_skipPayload = false;
 
 		// TODO: Pause Audio when implemented
 
@@ -180,24 +542,16 @@ bool UsbTvDriver::startStreaming(jobject params) {
 			return false;
 		}
 
-		// Init variables that depend on user settings
-
-		allocateFramePool(params);
-		_usbInputFrame = fetchFrameFromPool();
-
-		// Start Frame processing thread
-		if (_frameProcessThread == nullptr) {
-			_processThreadRunning = true;
-			_frameProcessThread = new std::thread(frame_process_thread, _frameProcessContext);
-			success = (_frameProcessThread != nullptr);
-		} else {
-			LOGE("ERROR, Process thread not free;");
-			success = false;
+		// The registers above reset the color controls
+		if (!_colorControls.apply(_usbConnection)) {
+			LOGI("Could not set color control registers");
+			_streamActive = false;
+			return false;
 		}
 
-		if (!success) {
-			LOGI("Could not start Frame Process Thread");
-			_processThreadRunning = false;
+		// Init variables that depend on user settings
+		_assemblyPaused = false;
+		if (!startFramePipeline(javaParams)) {
 			stopStreaming();
 			return false;
 		}
@@ -212,7 +566,7 @@ bool UsbTvDriver::startStreaming(jobject params) {
 		}
 
 		// Setup Isonchronous Usb Streaming
-		success = _usbConnection->initIsoUrbs(USBTV_ISOC_TRANSFERS, _isoEndpoint,
+		success = _usbConnection->initIsoUrbs(_numIsoTransfers, _isoEndpoint,
 		                                      _maxIsoPacketSize, _numIsoPackets,
 		                                      std::bind(&UsbTvDriver::onUrbReceived, this,
 		                                                std::placeholders::_1));
@@ -242,6 +596,7 @@ bool UsbTvDriver::startStreaming(jobject params) {
 void UsbTvDriver::stopStreaming() {
 	if (_initialized) {
 		_streamActive = false;
+		_framePoolActive = false;
 
 		// TODO: Stop Audio
 
@@ -252,41 +607,44 @@ void UsbTvDriver::stopStreaming() {
 			_usbConnection->discardIsoUrbs();
 		}
 
-		// Stop Frame processor thread
-		if (_frameProcessThread != nullptr) {
-			if (_processThreadRunning) {
-				_processThreadRunning = false;
-				UsbTvFrame *frame = nullptr;
-				// Enqueue a null frame to make sure that the thread exits its loop
-				_frameProcessQueue->enqueue(frame);
-			}
-			_frameProcessThread->join();
-			delete _frameProcessThread;
-			_frameProcessThread = nullptr;
-		}
-
 		_usbConnection->setInterface(0, 0);
 
 		LOGD("Interface set to zero");
 
-		// Make sure the process queue is empty and all locks have been released
-		UsbTvFrame* frame;
-		while(_frameProcessQueue->try_dequeue(frame)) {
-			if (frame != nullptr) {
-				frame->lock.clear(std::memory_order_release);
-			}
-		}
-
-		// Clear lock for frame that usb was reading into;
-		if (_usbInputFrame != nullptr) {
-			_usbInputFrame->lock.clear(std::memory_order_release);
-			_usbInputFrame = nullptr;
-		}
-
-		freeFramePool();
+		stopFramePipeline();
 
 		LOGD("Dropped Frames: %d", _droppedFrameCounter);
 		LOGD("Incomplete Frames: %d", _incompleteFrameCounter);
+		if (_secondaryActive) {
+			LOGD("Dropped Secondary Frames: %d", _secondaryDroppedCounter);
+		}
+		if (_timeshift.isOpen()) {
+			LOGD("Dropped Timeshift Frames: %d", _timeshift.getDroppedFrameCount());
+		}
+		if (_sharedPool.isRunning()) {
+			LOGD("Shared Frames: %d, Notifications Dropped: %d",
+			     _sharedPool.getPublishedFrameCount(), _sharedPool.getDroppedFrameCount());
+		}
+		if (_videoRecorder.isOpen()) {
+			LOGD("Dropped Recording Frames: %d", _videoRecorder.getDroppedFrameCount());
+		}
+		if (_governor.isEnabled()) {
+			LOGD("Quality Level: %d, Changes: %d", (int)_governor.getLevel(),
+			     _governor.getChangeCount());
+		}
+		if (_signal.isEnabled()) {
+			LOGD("Signal State: %d, Changes: %d, Idle Frames: %d", (int)_signal.getState(),
+			     _signal.getChangeCount(), _signal.getIdleFrameCount());
+		}
+		if (_autoLevel.isEnabled()) {
+			LOGD("Auto Level: Brightness %d, Contrast %d, Adjustments: %d",
+			     _colorControls.get(ColorControl::BRIGHTNESS),
+			     _colorControls.get(ColorControl::CONTRAST), _autoLevel.getChangeCount());
+		}
+		if (_mjpegServer.isRunning()) {
+			LOGD("MJPEG Frames Encoded: %d, Replaced: %d", _mjpegServer.getEncodedFrameCount(),
+			     _mjpegServer.getReplacedFrameCount());
+		}
 #if defined(PROFILE_FRAME)
 		LOGD("Frame Pool Spins: %ld", _framePoolSpins);
 		LOGD("Iso packets larger than 16KB recd: %s", _isoMaxCheck ? "true" : "false");
@@ -294,6 +652,306 @@ void UsbTvDriver::stopStreaming() {
 	}
 }
 
+/**
+ * Allocates the frame pool and the stages that depend on the frame geometry, then starts
+ * the frame process thread.
+ */
+bool UsbTvDriver::startFramePipeline(jobject javaParams) {
+	// The deinterlacer keeps fields from the pool as history.  It, the scaler and the
+	// secondary stream write to output frames reserved at the end of the pool.  Frames held
+	// by sharing clients are spares in the region frames are delivered from.
+	bool deinterlaced = (_frameParams.scanType == ScanType::DEINTERLACED);
+	uint16_t sharedFrames = _sharedPool.isRunning() ? (uint16_t)USBTV_SHARED_EXTRA_FRAMES : 0;
+	_inputPoolCount = _framePoolSize;
+	if (!deinterlaced && !_scaleActive) {
+		_inputPoolCount += sharedFrames;
+	}
+	_scalerPoolStart = _inputPoolCount;
+	if (deinterlaced) {
+		_inputPoolCount += USBTV_DEINTERLACE_HISTORY_FRAMES;
+		_scalerPoolStart = _inputPoolCount + (uint16_t)USBTV_DEINTERLACE_OUTPUT_FRAMES;
+		if (!_scaleActive) {
+			_scalerPoolStart += sharedFrames;
+		}
+		_deinterlacer = new Deinterlacer(_deinterlaceMode, (uint32_t)_frameParams.frameWidth *
+		                                 bytesPerPixel(_frameParams.pixelFormat),
+		                                 _frameParams.frameHeight,
+		                                 WorkerPool::defaultThreadCount(
+				                                 USBTV_DEINTERLACE_MAX_THREADS));
+	}
+	_framePoolCount = _scalerPoolStart;
+	if (_scaleActive) {
+		_framePoolCount += USBTV_SCALER_OUTPUT_FRAMES + sharedFrames;
+		_scaler = new Scaler(_frameParams.pixelFormat, _frameParams.frameWidth,
+		                     _frameParams.frameHeight, _scaledParams.frameWidth,
+		                     _scaledParams.frameHeight, _scale.filter,
+		                     WorkerPool::defaultThreadCount(USBTV_SCALER_MAX_THREADS));
+	}
+	_secondaryPoolStart = _framePoolCount;
+	if (_secondaryActive) {
+		// Secondary frames are small enough to scale on the process thread alone
+		_framePoolCount += USBTV_SECONDARY_POOL_FRAMES;
+		_secondaryScaler = new Scaler(_frameParams.pixelFormat, _frameParams.frameWidth,
+		                              _frameParams.frameHeight, _secondaryParams.frameWidth,
+		                              _secondaryParams.frameHeight, _secondary.filter, 0);
+	}
+
+	// Stage frames come on top of the configured pool, give up input frames to keep the
+	// whole pool within the range of a pool index
+	if (_framePoolCount > USBTV_MAX_FRAME_POOL) {
+		uint16_t excess = (uint16_t)(_framePoolCount - USBTV_MAX_FRAME_POOL);
+		LOGI("Frame pool of %d frames too large, using %d fewer input frames",
+		     _framePoolCount, excess);
+		_inputPoolCount -= excess;
+		_scalerPoolStart -= excess;
+		_secondaryPoolStart -= excess;
+		_framePoolCount -= excess;
+	}
+
+	if (_timeshift.isOpen()) {
+		configureTimeshift();
+	}
+
+	allocateFramePool(javaParams);
+	_framePoolActive = true;
+	_usbInputFrame = fetchFrameFromPool();
+	_packetsDone = 0;
+	_secondFrame = false;
+
+	// Start Frame processing thread
+	bool success;
+	if (_frameProcessThread == nullptr) {
+		_processThreadRunning = true;
+		_frameProcessThread = new std::thread(frame_process_thread, _frameProcessContext);
+		success = (_frameProcessThread != nullptr);
+	} else {
+		LOGE("ERROR, Process thread not free;");
+		success = false;
+	}
+
+	if (!success) {
+		LOGI("Could not start Frame Process Thread");
+		_processThreadRunning = false;
+	} else {
+		startSecondaryThread();
+	}
+	return success;
+}
+
+/**
+ * Stops the frame process thread and frees the frame pool.  Packet assembly must not be
+ * running, either because the urbs are stopped or because it is paused.
+ */
+void UsbTvDriver::stopFramePipeline() {
+	_framePoolActive = false;
+
+	// Stop Frame processor thread
+	if (_frameProcessThread != nullptr) {
+		if (_processThreadRunning) {
+			_processThreadRunning = false;
+			UsbTvFrame *frame = nullptr;
+			// Enqueue a null frame to make sure that the thread exits its loop
+			_frameProcessQueue->enqueue(frame);
+		}
+		_frameProcessThread->join();
+		delete _frameProcessThread;
+		_frameProcessThread = nullptr;
+	}
+
+	// The process thread is the only producer of secondary frames, so the delivery thread
+	// can be stopped once it has exited
+	stopSecondaryThread();
+
+	releaseFieldHistory();
+	delete _deinterlacer;
+	_deinterlacer = nullptr;
+	delete _denoiser;
+	_denoiser = nullptr;
+	delete _changeDetector;
+	_changeDetector = nullptr;
+	delete _motionDetector;
+	_motionDetector = nullptr;
+	delete _scaler;
+	_scaler = nullptr;
+	delete _secondaryScaler;
+	_secondaryScaler = nullptr;
+
+	// Make sure the process queues are empty and all locks have been released
+	UsbTvFrame* frame;
+	while(_frameProcessQueue->try_dequeue(frame)) {
+		if (frame != nullptr) {
+			frame->lock.clear(std::memory_order_release);
+		}
+	}
+	while(_secondaryQueue->try_dequeue(frame)) {
+		if (frame != nullptr) {
+			frame->lock.clear(std::memory_order_release);
+		}
+	}
+
+	// Clear lock for frame that usb was reading into;
+	if (_usbInputFrame != nullptr) {
+		_usbInputFrame->lock.clear(std::memory_order_release);
+		_usbInputFrame = nullptr;
+	}
+
+	freeFramePool();
+}
+
+/**
+ * Starts the thread that hands secondary frames to their callback.  Without a callback
+ * the frames are left queued for acquireSecondaryFrame.
+ */
+void UsbTvDriver::startSecondaryThread() {
+	if (!_secondaryActive || _secondaryCallback == nullptr || !_useSecondaryCallback ||
+	    _secondaryThread != nullptr) {
+		return;
+	}
+
+	_secondaryContext->callback = _secondaryCallback;
+	_secondaryThreadRunning = true;
+	_secondaryThread = new std::thread(secondary_delivery_thread, _secondaryContext);
+}
+
+void UsbTvDriver::stopSecondaryThread() {
+	if (_secondaryThread == nullptr) {
+		return;
+	}
+
+	if (_secondaryThreadRunning) {
+		_secondaryThreadRunning = false;
+		UsbTvFrame* frame = nullptr;
+		_secondaryQueue->enqueue(frame);
+	}
+	_secondaryThread->join();
+	delete _secondaryThread;
+	_secondaryThread = nullptr;
+}
+
+/**
+ * Enables the timeshift of delivered frames.  While streaming the ring is allocated
+ * immediately, otherwise when the stream starts.  Frames already held are discarded.
+ *
+ * @param path      File to map the ring from, or NULL to keep it in memory
+ * @param seconds   Length of the timeshift
+ * @return true if the timeshift was enabled
+ */
+bool UsbTvDriver::startTimeshift(const char *path, uint16_t seconds) {
+	if (!_initialized || !_timeshift.open(path, seconds)) {
+		return false;
+	}
+	if (_framePoolActive) {
+		configureTimeshift();
+	}
+	return true;
+}
+
+/**
+ * Sizes the timeshift ring for the frames currently delivered.  The ring is kept across
+ * pipeline restarts unless their geometry changes.
+ */
+void UsbTvDriver::configureTimeshift() {
+	uint32_t numerator, denominator;
+	getDeliveredFrameRate(&numerator, &denominator);
+	_timeshift.configure(getDeliveredParams(), (numerator + denominator - 1) / denominator);
+}
+
+/**
+ * Starts recording delivered frames to a video file.  The stream must be active, the file
+ * holds frames of the size currently delivered.
+ *
+ * @param path          Path of the file to create
+ * @param container     File layout
+ * @param policy        What to do with frames when storage falls behind
+ * @param maxBytes      Maximum size of the file, zero for no limit
+ * @return true if recording started
+ */
+bool UsbTvDriver::startVideoRecording(const char *path, VideoContainer container,
+                                      RecordPolicy policy, uint64_t maxBytes) {
+	if (!_framePoolActive) {
+		LOGE("Video recording requires an active stream");
+		return false;
+	}
+
+	uint32_t numerator, denominator;
+	getDeliveredFrameRate(&numerator, &denominator);
+	return _videoRecorder.open(path, container, policy, maxBytes, getDeliveredParams(),
+	                           numerator, denominator);
+}
+
+/**
+ * @return Parameters of the frames returned by processFrame()
+ */
+const FrameParams& UsbTvDriver::getDeliveredParams() {
+	return _scaleActive ? _scaledParams : _frameParams;
+}
+
+/**
+ * Computes the rate frames are delivered at.  NTSC fields arrive at 60000/1001 per second
+ * and PAL fields at 50, scan types that combine two fields deliver half as many frames.
+ */
+void UsbTvDriver::getDeliveredFrameRate(uint32_t *numerator, uint32_t *denominator) {
+	const FrameParams& params = getDeliveredParams();
+	if (params.norm == TvNorm::NTSC) {
+		*numerator = 60000;
+		*denominator = 1001;
+	} else {
+		*numerator = 50;
+		*denominator = 1;
+	}
+	if (params.scanType == ScanType::DISCARD || params.scanType == ScanType::INTERLEAVED) {
+		*numerator /= 2;
+	}
+}
+
+/**
+ * Changes the capture crop to the one in a DeviceParams object.  Frames delivered after
+ * the change belong to a new frame pool, whose Java frames reference params.
+ */
+bool UsbTvDriver::setCrop(jobject params) {
+	if (!_initialized || _paramsHelper == nullptr) {
+		return false;
+	}
+
+	StreamParams streamParams;
+	parseStreamingParams(params, &streamParams);
+	return reconfigureCrop(streamParams.crop, params);
+}
+
+bool UsbTvDriver::setCrop(const CropRect &crop) {
+	return reconfigureCrop(crop, nullptr);
+}
+
+/**
+ * Applies a new crop while streaming.  The frame pool is resized, but the iso urbs keep
+ * running and their packets are discarded until the new pool is ready.  When not streaming
+ * there is nothing to do, the crop is applied when the stream starts.
+ */
+bool UsbTvDriver::reconfigureCrop(const CropRect &crop, jobject javaParams) {
+	if (!_streamActive) {
+		return true;
+	}
+
+	{
+		std::lock_guard<std::mutex> lock(_assemblyMutex);
+		_assemblyPaused = true;
+	}
+
+	stopFramePipeline();
+	applyCrop(crop);
+	applyScale(_scale);
+	applySecondary(_secondary);
+	bool success = startFramePipeline(javaParams);
+
+	if (success) {
+		std::lock_guard<std::mutex> lock(_assemblyMutex);
+		_assemblyPaused = false;
+	} else {
+		stopStreaming();
+	}
+	return success;
+}
+
 
 
 bool UsbTvDriver::setTvInput(int input) {
@@ -302,13 +960,16 @@ bool UsbTvDriver::setTvInput(int input) {
 		case 0:
 			_input = TvInput ::USBTV_COMPOSITE_INPUT;
 			if (_streamActive && old != _input) {
-				return setRegisters(COMPOSITE_INPUT, ARRAY_SIZE(COMPOSITE_INPUT));
+				// The input registers reset sharpness
+				return setRegisters(COMPOSITE_INPUT, ARRAY_SIZE(COMPOSITE_INPUT)) &&
+				       _colorControls.apply(_usbConnection);
 			}
 			break;
 		case 1:
 			_input = TvInput ::USBTV_SVIDEO_INPUT;
 			if (_streamActive && old != _input) {
-				return setRegisters(SVIDEO_INPUT, ARRAY_SIZE(SVIDEO_INPUT));
+				return setRegisters(SVIDEO_INPUT, ARRAY_SIZE(SVIDEO_INPUT)) &&
+				       _colorControls.apply(_usbConnection);
 			}
 			break;
 		default:
@@ -319,20 +980,45 @@ bool UsbTvDriver::setTvInput(int input) {
 	return true;
 }
 
+/**
+ * Sets a color control.  The value is written to the device immediately if it is connected,
+ * and kept to be written again each time streaming starts.  While auto level is enabled it
+ * takes over brightness and contrast, adjusting from the values set here.
+ *
+ * @param control   The ColorControl ordinal
+ * @param value     A value within the control's range, see COLOR_CONTROL_RANGES
+ * @return true if the value was valid and written
+ */
 bool UsbTvDriver::setControl(int control, int value) {
-
-	if (_initialized) {
-		// TODO:
+	if (!ColorControls::isValid(control, value)) {
+		LOGI("Invalid color control %d value %d", control, value);
+		return false;
 	}
-	return false;
+	return _colorControls.set(_initialized ? _usbConnection : nullptr,
+	                          static_cast<ColorControl>(control), value);
 }
 
+/**
+ * Returns a color control's value from the shadow, without a transfer
+ */
 int UsbTvDriver::getControl(int control) {
-	if (_initialized) {
-		// TODO:
+	if (control < 0 || control >= USBTV_COLOR_CONTROLS) {
+		return 0;
+	}
+	return _colorControls.get(static_cast<ColorControl>(control));
+}
+
+/**
+ * Enables or disables auto level.  Disabling it leaves brightness and contrast at their
+ * last values.
+ */
+void UsbTvDriver::setAutoLevel(bool enabled) {
+	if (enabled && _initialized) {
+		_autoLevel.start(_usbConnection, &_colorControls);
+	} else {
+		_autoLevel.stop();
 	}
-	return 0;
- }
+}
 
 /**
  * Polls for a complete frame.
@@ -345,6 +1031,35 @@ UsbTvFrame* UsbTvDriver::getFrame() {
 	return frame;
 }
 
+/**
+ * Waits for the next secondary stream frame, used by the delivery thread
+ */
+UsbTvFrame* UsbTvDriver::getSecondaryFrame() {
+	UsbTvFrame* frame;
+	_secondaryQueue->wait_dequeue(frame);
+	return frame;
+}
+
+/**
+ * Polls for a secondary stream frame when no secondary callback is in use.  The frame
+ * remains locked until it is released with clearFrameLock, and must be released before
+ * streaming stops or the crop changes.
+ *
+ * @param timeoutUs Time to wait for a frame, in microseconds
+ * @return The oldest undelivered secondary frame, or NULL if none arrived in time
+ */
+UsbTvFrame* UsbTvDriver::acquireSecondaryFrame(long timeoutUs) {
+	if (!_secondaryActive || _secondaryThread != nullptr) {
+		return nullptr;
+	}
+
+	UsbTvFrame* frame = nullptr;
+	if (!_secondaryQueue->wait_dequeue_timed(frame, timeoutUs)) {
+		return nullptr;
+	}
+	return frame;
+}
+
 /**
  * Allows an external frame consumer to clear the lock on a frame buffer when
  * it is finished processing.  This returns the buffer to the frame pool, making it available
@@ -354,6 +1069,7 @@ UsbTvFrame* UsbTvDriver::getFrame() {
  * @return  True if successful, otherwise false
  */
 bool UsbTvDriver::clearFrameLock(int framePoolIndex) {
+	TRACE_SCOPE(FRAME_RETURN, framePoolIndex);
 	bool success = true;
 	_framePoolMutex.lock();  // Because its possible for this to be called when destroying the
 							 // frame pool a mutex is necessary
@@ -396,40 +1112,84 @@ bool UsbTvDriver::setRegisters(const uint16_t regs[][2] , int size ) {
 }
 
 /**
- * Allocates a pool of UsbTvFrame objects and their buffers
+ * Allocates a pool of UsbTvFrame objects and their buffers.  Java frames are only
+ * created when a DeviceParams object is supplied.
  *
  */
 void UsbTvDriver::allocateFramePool(jobject params) {
 	_framePoolMutex.lock();
 	if (_framePool == nullptr) {
-		_framePool = new UsbTvFrame*[_framePoolSize];
+		_framePool = new UsbTvFrame*[_framePoolCount];
+		bool createJavaFrames = (_env != nullptr && params != nullptr);
 
 		// Variables necessary to create Java UsbTvFrame objects.
-		const char* initSig = "(Lcom/arksine/libusbtv/DeviceParams;Ljava/nio/ByteBuffer;I)V";
-		jclass framecls = _env->FindClass("com/arksine/libusbtv/UsbTvFrame");
-		jmethodID midInit = _env->GetMethodID(framecls, "<init>", initSig);
+		jclass framecls = nullptr;
+		jmethodID midInit = nullptr;
+		if (createJavaFrames) {
+			const char* initSig = "(Lcom/arksine/libusbtv/DeviceParams;Ljava/nio/ByteBuffer;"
+			                      "Ljava/nio/ByteBuffer;IZ)V";
+			framecls = _env->FindClass("com/arksine/libusbtv/UsbTvFrame");
+			midInit = _env->GetMethodID(framecls, "<init>", initSig);
+		}
 
 		// init frame pool
-		for (uint8_t i = 0; i < _framePoolSize; i++) {
+		std::vector<FrameParams*> poolParams(_framePoolCount);
+		for (uint16_t i = 0; i < _framePoolCount; i++) {
+			poolParams[i] = &_frameParams;
+			if (i >= _secondaryPoolStart) {
+				poolParams[i] = &_secondaryParams;
+			} else if (i >= _scalerPoolStart) {
+				poolParams[i] = &_scaledParams;
+			}
+		}
+
+		// The whole pool is shared, so frames are addressed by their pool index
+		_sharedPoolActive = false;
+		if (_sharedPool.isRunning()) {
+			std::vector<uint32_t> bufferSizes;
+			for (FrameParams* frameParams : poolParams) {
+				bufferSizes.push_back(frameParams->bufferSize);
+			}
+			_sharedPoolActive = _sharedPool.allocate(bufferSizes);
+		}
+
+		for (uint16_t i = 0; i < _framePoolCount; i++) {
+			bool secondary = (i >= _secondaryPoolStart);
+			FrameParams* frameParams = poolParams[i];
 			_framePool[i] = new UsbTvFrame;
-			_framePool[i]->buffer = malloc(_frameParams.bufferSize);
+			_framePool[i]->buffer = _sharedPoolActive ? _sharedPool.getBuffer(i) :
+			                        malloc(frameParams->bufferSize);
 			_framePool[i]->flags = 0;
 			_framePool[i]->lock.clear(std::memory_order_release);
 			_framePool[i]->frameId = 0;
-			_framePool[i]->params = &_frameParams;
+			_framePool[i]->poolIndex = i;
+			_framePool[i]->timestampNs = 0;
+			_framePool[i]->signature = 0;
+			_framePool[i]->lumaStats = new LumaStats();
+			_framePool[i]->params = frameParams;
+			_framePool[i]->javaFrame = nullptr;
+
+			if (!createJavaFrames) {
+				continue;
+			}
 
 			// Each Frame in the FramePool also contains its corresponding java implementation
 			// That way it only needs to be handled here, and it the frame can be returned
 			// Through a function.
-			jobject bb = _env->NewDirectByteBuffer(_framePool[i]->buffer, _frameParams.bufferSize);
-			jobject jFrame = _env->NewObject(framecls, midInit, params, bb, (jint)i);
+			jobject bb = _env->NewDirectByteBuffer(_framePool[i]->buffer, frameParams->bufferSize);
+			jobject stats = _env->NewDirectByteBuffer(_framePool[i]->lumaStats, sizeof(LumaStats));
+			jobject jFrame = _env->NewObject(framecls, midInit, params, bb, stats, (jint)i,
+			                                 (jboolean)secondary);
 			_framePool[i]->javaFrame = _env->NewGlobalRef(jFrame);
 
 			_env->DeleteLocalRef(jFrame);
+			_env->DeleteLocalRef(stats);
 			_env->DeleteLocalRef(bb);
 		}
 
-		_env->DeleteLocalRef(framecls);
+		if (createJavaFrames) {
+			_env->DeleteLocalRef(framecls);
+		}
 	}
 	_framePoolMutex.unlock();
 }
@@ -439,49 +1199,69 @@ void UsbTvDriver::allocateFramePool(jobject params) {
  */
 void UsbTvDriver::freeFramePool() {
 	_framePoolMutex.lock();
-	if (_framePool!= nullptr && !_streamActive) {
-		for (int i = 0; i < _framePoolSize; i++) {
+	if (_framePool!= nullptr && !_framePoolActive) {
+		for (int i = 0; i < _framePoolCount; i++) {
 			if (_framePool[i]->lock.test_and_set(std::memory_order_acquire)) {
 				LOGD("frame index %d still has a lock when attempting to free", i);
 			}
-			_env->DeleteGlobalRef(_framePool[i]->javaFrame);
-			free(_framePool[i]->buffer);
+			if (_framePool[i]->javaFrame != nullptr) {
+				_env->DeleteGlobalRef(_framePool[i]->javaFrame);
+			}
+			if (!_sharedPoolActive) {
+				free(_framePool[i]->buffer);
+			}
+			delete _framePool[i]->lumaStats;
 			delete _framePool[i];
 		}
 		delete [] _framePool;
 		_framePool = nullptr;
+		if (_sharedPoolActive) {
+			_sharedPool.freeRegion();
+			_sharedPoolActive = false;
+		}
 	}
 	_framePoolMutex.unlock();
 }
 
 /**
- * Fetches an unlocked frame from the frame pool.  It will block until an unlocked frame
+ * Fetches an unlocked input frame from the frame pool.  It will block until an unlocked frame
  * is received.
  *
  * @return A prevously unlocked frame from the pool, which is subsequently locked.
  */
 UsbTvFrame* UsbTvDriver::fetchFrameFromPool() {
+	return fetchFrameFromPool(0, _inputPoolCount);
+}
+
+/**
+ * Fetches an unlocked frame with a pool index in [first, end)
+ */
+UsbTvFrame* UsbTvDriver::fetchFrameFromPool(uint16_t first, uint16_t end) {
 	UsbTvFrame* frame;
-	uint8_t index = 0;
+	uint16_t index = first;
 
 	// TODO: Add debug logic to profile to determine if the pool is spinning for a long period of time
 
-	// Loop until an unlocked frame is found while the stream is active.  If the stream stops
-	// and this pool is spinning then it will break so the thread can quit.
-	while(_streamActive) {
+	// Loop until an unlocked frame is found while the pool is active.  If the stream stops
+	// or the pool is rebuilt while spinning then it will break so the thread can quit.
+	while(_framePoolActive) {
 		frame = _framePool[index];
 
 		// Test lock for current frame.  The test atomically sets the lock active.  If
-		// the lock was previously inactive then this is a free frame and it will be returned.
+		// the lock was previously inactive then this is a free frame and it will be returned,
+		// unless a sharing client still holds it.
 		if (!frame->lock.test_and_set(std::memory_order_acquire)) {
-			frame->flags = FRAME_START;
-			return frame;
+			if (!_sharedPoolActive || !_sharedPool.isHeld(index)) {
+				frame->flags = FRAME_START;
+				return frame;
+			}
+			frame->lock.clear(std::memory_order_release);
 		}
 
 		index++;
 
-		if (index >= _framePoolSize) {
-			index = 0;
+		if (index >= end) {
+			index = first;
 #if defined(PROFILE_FRAME)
 			_framePoolSpins++;
 #endif
@@ -493,6 +1273,25 @@ UsbTvFrame* UsbTvDriver::fetchFrameFromPool() {
 	return _framePool[0];
 }
 
+/**
+ * Fetches an unlocked frame with a pool index in [first, end) without waiting
+ *
+ * @return A previously unlocked frame, or NULL if every frame in the range is locked
+ */
+UsbTvFrame* UsbTvDriver::tryFetchFrameFromPool(uint16_t first, uint16_t end) {
+	for (uint16_t index = first; index < end; index++) {
+		UsbTvFrame* frame = _framePool[index];
+		if (!frame->lock.test_and_set(std::memory_order_acquire)) {
+			if (!_sharedPoolActive || !_sharedPool.isHeld(index)) {
+				frame->flags = FRAME_START;
+				return frame;
+			}
+			frame->lock.clear(std::memory_order_release);
+		}
+	}
+	return nullptr;
+}
+
 /**
  * Callback given to the AndroidUsbDevice instance.  When a Usb Request Block
  * is received, this callback will be executed with a pointer to the URB
@@ -504,10 +1303,16 @@ void UsbTvDriver::onUrbReceived(usbdevfs_urb *urb) {
 	unsigned int packetLength;
 	unsigned int packetOffset = 0;
 
+	TRACE_SCOPE(PACKET_PARSE, urb->actual_length / USBTV_PACKET_SIZE);
+
+	// Packets are discarded while the frame pipeline is rebuilt
+	std::unique_lock<std::mutex> assemblyLock(_assemblyMutex);
+	int packetCount = _assemblyPaused ? 0 : urb->number_of_packets;
+
 	// TODO: Check indexes 6 and 7 to see if they are always empty.  This is a check
 	// to see if the USBDEVFS buffer limit of 16KB is applicable to iso transfers as well
 
-	for (int i = 0; i < urb->number_of_packets; i++) {
+	for (int i = 0; i < packetCount; i++) {
 		packetLength = urb->iso_frame_desc[i].actual_length;
 		buffer += packetOffset;
 
@@ -523,12 +1328,120 @@ void UsbTvDriver::onUrbReceived(usbdevfs_urb *urb) {
 				uint8_t* packet = buffer + (j * USBTV_PACKET_SIZE);
 				processPacket((__be32*) packet);
 			}
+		} else if (_isoAutoTune.active || _isoAutoTune.monitoring) {
+			_isoAutoTune.packetErrors++;
 		}
 		packetOffset = urb->iso_frame_desc[i].length;
 	}
+	assemblyLock.unlock();
+	_signal.onUrb();
 
-	// Resubmit urb
-	((UsbDevice::UrbContext *) urb->usercontext)->usbDevice->resubmitUrb(urb);
+	UsbDevice::UrbContext* context = (UsbDevice::UrbContext *) urb->usercontext;
+	if (_isoAutoTune.active || _isoAutoTune.monitoring) {
+		updateIsoAutoTune();
+	}
+
+	// Resubmit urb.  Urbs beyond the tuned transfer count are retired by not resubmitting
+	// them, and kept in case the count is restored.
+	if (context->poolIndex < _numIsoTransfers) {
+		context->usbDevice->resubmitUrb(urb);
+	} else {
+		_retiredIsoUrbs.push_back(urb);
+	}
+}
+
+/**
+ * Tracks the gap between iso urb completions while auto-tune is active.  Once the
+ * measurement window has elapsed the transfer count is settled.  While monitoring a
+ * settled count, the configured count is restored at the first packet error or at a gap
+ * the tuned queue does not cover.
+ */
+void UsbTvDriver::updateIsoAutoTune() {
+	auto now = std::chrono::steady_clock::now();
+
+	if (_isoAutoTune.monitoring) {
+		long gap = (long)std::chrono::duration_cast<std::chrono::microseconds>(
+				now - _isoAutoTune.lastCompletion).count();
+		_isoAutoTune.lastCompletion = now;
+		long queueDurationUs = (long)_numIsoPackets * USBTV_ISOC_PACKET_INTERVAL_US *
+		                       _numIsoTransfers;
+		if (_isoAutoTune.packetErrors > 0 || gap >= queueDurationUs) {
+			LOGI("Iso underrun after auto-tune.  Packet errors: %d, Gap: %ld us",
+			     _isoAutoTune.packetErrors, gap);
+			restoreIsoTransfers();
+		}
+		return;
+	}
+
+	if (_isoAutoTune.urbCount == 0) {
+		_isoAutoTune.startTime = now;
+	} else {
+		long gap = (long)std::chrono::duration_cast<std::chrono::microseconds>(
+				now - _isoAutoTune.lastCompletion).count();
+		if (gap > _isoAutoTune.maxGapUs) {
+			_isoAutoTune.maxGapUs = gap;
+		}
+	}
+	_isoAutoTune.lastCompletion = now;
+	_isoAutoTune.urbCount++;
+
+	auto elapsed = std::chrono::duration_cast<std::chrono::milliseconds>(
+			now - _isoAutoTune.startTime);
+	if (elapsed.count() >= USBTV_ISOC_AUTOTUNE_MS) {
+		finishIsoAutoTune();
+	}
+}
+
+/**
+ * Chooses the smallest transfer count that covers the worst completion gap measured.  If
+ * iso packet errors were seen, or the worst gap already exhausted the queue, the configured
+ * depth is kept as the stream may have underrun.
+ */
+void UsbTvDriver::finishIsoAutoTune() {
+	_isoAutoTune.active = false;
+
+	long urbDurationUs = _numIsoPackets * USBTV_ISOC_PACKET_INTERVAL_US;
+	long queueDurationUs = urbDurationUs * _numIsoTransfers;
+
+	if (_isoAutoTune.packetErrors > 0 || _isoAutoTune.maxGapUs >= queueDurationUs) {
+		LOGI("Iso auto-tune detected underruns, keeping %d transfers.  Packet errors: %d, "
+				     "Max gap: %ld us", _numIsoTransfers.load(), _isoAutoTune.packetErrors,
+		     _isoAutoTune.maxGapUs);
+		return;
+	}
+
+	long depth = (_isoAutoTune.maxGapUs + urbDurationUs - 1) / urbDurationUs +
+	             USBTV_ISOC_AUTOTUNE_HEADROOM;
+	if (depth < USBTV_ISOC_MIN_TRANSFERS) {
+		depth = USBTV_ISOC_MIN_TRANSFERS;
+	}
+	if (depth < _numIsoTransfers) {
+		_numIsoTransfers = (uint8_t)depth;
+
+		// Keep watching, load that arrives later may need the configured depth after all
+		_isoAutoTune.monitoring = true;
+		_isoAutoTune.packetErrors = 0;
+	}
+
+	LOGI("Iso auto-tune settled on %d transfers of %d packets.  Urbs measured: %d, Max gap: %ld us",
+	     _numIsoTransfers.load(), _numIsoPackets, _isoAutoTune.urbCount, _isoAutoTune.maxGapUs);
+}
+
+/**
+ * Steps back up to the configured transfer count by resubmitting the urbs auto-tune
+ * retired.  Urbs still in flight beyond the tuned count are resubmitted as they complete.
+ * Monitoring ends, the configured count is kept for the rest of the stream.
+ */
+void UsbTvDriver::restoreIsoTransfers() {
+	_isoAutoTune.monitoring = false;
+	_numIsoTransfers = _configuredIsoTransfers;
+	for (usbdevfs_urb* retired : _retiredIsoUrbs) {
+		UsbDevice::UrbContext* context = (UsbDevice::UrbContext *) retired->usercontext;
+		context->usbDevice->resubmitUrb(retired);
+	}
+	LOGI("Iso transfers restored to %d, %d urbs resubmitted", _numIsoTransfers.load(),
+	     (int)_retiredIsoUrbs.size());
+	_retiredIsoUrbs.clear();
 }
 
 /**
@@ -577,6 +1490,7 @@ void UsbTvDriver::processPacket(__be32 *packet) {
 #endif
 
 		if (packetNumber >= _packetsPerField) {
+			_signal.onBadPacket();
 			LOGD("Packet number exceeds packets per field");
 			LOGD("Frame Id: %d", frameId);
 			LOGD("Is Field Odd: %s", isOdd ? "true" : "false");
@@ -590,26 +1504,46 @@ void UsbTvDriver::processPacket(__be32 *packet) {
 			// I won't drop as many frames
 			if ((_usbInputFrame->flags & FRAME_IN_PROGRESS) > 0) {
 				LOGD("Incomplete Frame Dropped, ID: %d", _currentFrameId);
+				TRACE_INSTANT(FRAME_DROPPED, _currentFrameId);
 				_droppedFrameCounter++;
 			}
 			_lastOdd = isOdd;
 			_currentFrameId = frameId;
 			_packetsDone = 0;
 			_usbInputFrame->flags = FRAME_IN_PROGRESS;
+
+			// While idle without a signal only a probe frame is captured now and then.  An
+			// interleaved or discarded frame starts with its odd field.
+			bool frameStart = isOdd || _frameParams.scanType == ScanType::PROGRESSIVE ||
+			                  _frameParams.scanType == ScanType::DEINTERLACED;
+			if (frameStart) {
+				_skipPayload = _signal.isIdle() && !_signal.shouldProbe();
+				_lumaStatsActive = _lumaStatsEnabled.load(std::memory_order_relaxed) ||
+				                   _autoLevel.isEnabled();
+				if (_lumaStatsActive) {
+					memset(_lumaHistograms, 0, sizeof(_lumaHistograms));
+				}
+			}
 		}
 
-		switch (_frameParams.scanType) {
-			case ScanType::PROGRESSIVE:
-				packetToProgressiveFrame((uint8_t*)packet, packetNumber);
-				break;
-			case ScanType::DISCARD:
-				if (isOdd) {
+		if (!_skipPayload) {
+			switch (_frameParams.scanType) {
+				case ScanType::PROGRESSIVE:
 					packetToProgressiveFrame((uint8_t*)packet, packetNumber);
-				}
-				break;
-			case ScanType::INTERLEAVED:
-				packetToInterleavedFrame((uint8_t*)packet, packetNumber, isOdd);
-				break;
+					break;
+				case ScanType::DISCARD:
+					if (isOdd) {
+						packetToProgressiveFrame((uint8_t*)packet, packetNumber);
+					}
+					break;
+				case ScanType::INTERLEAVED:
+					packetToInterleavedFrame((uint8_t*)packet, packetNumber, isOdd);
+					break;
+				case ScanType::DEINTERLACED:
+					// Fields are assembled whole, the process thread builds the frame
+					packetToProgressiveFrame((uint8_t*)packet, packetNumber);
+					break;
+			}
 		}
 
 		_packetsDone++;
@@ -621,10 +1555,14 @@ void UsbTvDriver::processPacket(__be32 *packet) {
 		if (packetNumber == (uint32_t)(_packetsPerField - 1)) {
 			checkFinishedFrame(isOdd);
 		}
+	} else {
+		_signal.onBadPacket();
 	}
 }
 
 void UsbTvDriver::checkFinishedFrame(bool isOdd) {
+	TRACE_INSTANT(FIELD_COMPLETE, _currentFrameId);
+	_signal.onField(isOdd, _packetsDone, _packetsPerField);
 	if (_packetsDone != _packetsPerField) {
 		// Frame not completed, write error
 		_usbInputFrame->flags = FRAME_PARTIAL;
@@ -632,6 +1570,7 @@ void UsbTvDriver::checkFinishedFrame(bool isOdd) {
 	} else {
 		_usbInputFrame->flags = FRAME_COMPLETE;
 	}
+	_usbInputFrame->frameId = _currentFrameId;
 
 	// An entire frame has been written to the buffer. Process by ScanType.
 	//  - For progressive 60, execute color conversion and render here.
@@ -639,10 +1578,14 @@ void UsbTvDriver::checkFinishedFrame(bool isOdd) {
 	//  - For interleaved only render after an entire frame is received.
 	switch (_frameParams.scanType){
 		case ScanType::PROGRESSIVE:
+			if (isOdd) {
+				_usbInputFrame->flags |= FRAME_TOP_FIELD;
+			}
 			addCompleteFrameToQueue();
 			break;
 		case ScanType::DISCARD:
 			if (isOdd) {
+				_usbInputFrame->flags |= FRAME_TOP_FIELD;
 				addCompleteFrameToQueue();
 			}
 			break;
@@ -654,6 +1597,12 @@ void UsbTvDriver::checkFinishedFrame(bool isOdd) {
 				_secondFrame = true;
 			}
 			break;
+		case ScanType::DEINTERLACED:
+			if (isOdd) {
+				_usbInputFrame->flags |= FRAME_TOP_FIELD;
+			}
+			addCompleteFrameToQueue();
+			break;
 	}
 }
 
@@ -665,10 +1614,15 @@ void UsbTvDriver::checkFinishedFrame(bool isOdd) {
  * @param packetNo  The packet number in the frame
  */
 void UsbTvDriver::packetToProgressiveFrame(uint8_t *packet, uint32_t packetNo) {
+	if (_cropActive) {
+		packetToCroppedFrame(packet, packetNo, 1, 0);
+		return;
+	}
+
 	uint8_t* dstFrame = (uint8_t*)(_usbInputFrame->buffer);
-	uint32_t bufOffset = packetNo * USBTV_PAYLOAD_SIZE;
+	uint32_t bufOffset = (packetNo * USBTV_PAYLOAD_SIZE) >> _pixelShift;
 	dstFrame += bufOffset;
-	memcpy(dstFrame, packet, USBTV_PAYLOAD_SIZE);
+	copyPayload(dstFrame, packet, USBTV_PAYLOAD_SIZE);
 
 }
 
@@ -696,11 +1650,16 @@ void UsbTvDriver::packetToProgressiveFrame(uint8_t *packet, uint32_t packetNo) {
  * @param isOdd     Flag determining if the packet and even or odd field in the frame
  */
 void UsbTvDriver::packetToInterleavedFrame(uint8_t *packet, uint32_t packetNo, bool isOdd) {
+	if (_cropActive) {
+		packetToCroppedFrame(packet, packetNo, 2, (uint32_t)(isOdd ? 0 : 1));
+		return;
+	}
+
 	uint8_t* dstFrame;
 	uint8_t packetHalf;
 	uint32_t halfPayloadSize = USBTV_PAYLOAD_SIZE / 2;
 	uint8_t oddFieldOffset = (uint8_t)((isOdd) ? 0 : 1);
-	int lineSize = _frameParams.frameWidth * 2;  // Line width in bytes
+	int lineSize = _frameParams.frameWidth * bytesPerPixel(_frameParams.pixelFormat);
 
 	for (packetHalf = 0; packetHalf < 2; packetHalf++) {
 		// Get the overall index of the packet half I am operating on.
@@ -716,26 +1675,528 @@ void UsbTvDriver::packetToInterleavedFrame(uint8_t *packet, uint32_t packetNo, b
 		// partIndex MOD 3 == 0 - start at beginning of line
 		// partIndex MOD 3 == 1 - offset half a payload
 		// partIndex MOD 3 == 2 - offset entire payload
-		uint32_t bufferOffset = (lineIndex * lineSize) + (halfPayloadSize * (partIndex % 3));
+		uint32_t bufferOffset = (lineIndex * lineSize) +
+		                        ((halfPayloadSize * (partIndex % 3)) >> _pixelShift);
 		dstFrame = (uint8_t*)(_usbInputFrame->buffer) + bufferOffset;
-		memcpy(dstFrame, packet, halfPayloadSize);
+		copyPayload(dstFrame, packet, halfPayloadSize);
 		packet += halfPayloadSize;
 	}
 }
 
+/**
+ * Copies YUYV data from a packet into a frame in the frame's pixel format.  The luma is
+ * counted for the frame's statistics while the payload is still in cache.
+ *
+ * @param dst   Destination in the frame
+ * @param src   Source in the packet payload
+ * @param size  Number of payload bytes
+ */
+void UsbTvDriver::copyPayload(uint8_t *dst, const uint8_t *src, uint32_t size) {
+	if (_pixelShift != 0) {
+		extractLuma(dst, src, size / 2);
+	} else {
+		memcpy(dst, src, size);
+	}
+	if (_lumaStatsActive) {
+		accumulateLumaHistogram(_lumaHistograms, src, size / 2);
+	}
+}
+
+/**
+ * Writes the part of a packet inside the crop to the frame.  A packet's payload is two
+ * thirds of a source line, so it may span a line boundary.
+ *
+ * @param packet        The packet to write
+ * @param packetNo      The packet number in the field
+ * @param lineStep      Frame lines advanced per field line, 2 when interleaving
+ * @param lineOffset    Frame line written by the first field line of the crop
+ */
+void UsbTvDriver::packetToCroppedFrame(uint8_t *packet, uint32_t packetNo, uint32_t lineStep,
+                                       uint32_t lineOffset) {
+	const uint32_t sourceLineSize = USBTV_FRAME_WIDTH * 2;
+	uint32_t sourceOffset = packetNo * USBTV_PAYLOAD_SIZE;
+	uint32_t line = sourceOffset / sourceLineSize;
+	uint32_t column = sourceOffset % sourceLineSize;
+	uint32_t remaining = USBTV_PAYLOAD_SIZE;
+	uint8_t* dstFrame = (uint8_t*)(_usbInputFrame->buffer);
+
+	while (remaining > 0) {
+		uint32_t run = sourceLineSize - column;
+		if (run > remaining) {
+			run = remaining;
+		}
+
+		if (line >= _cropTop && line < (uint32_t)(_cropTop + _cropLines)) {
+			uint32_t start = (column > _cropLeft) ? column : _cropLeft;
+			uint32_t end = column + run;
+			if (end > _cropLeft + _cropBytes) {
+				end = _cropLeft + _cropBytes;
+			}
+			if (start < end) {
+				uint32_t dstLine = (line - _cropTop) * lineStep + lineOffset;
+				copyPayload(dstFrame + ((dstLine * _cropBytes + (start - _cropLeft)) >> _pixelShift),
+				            packet + (start - column), end - start);
+			}
+		}
+
+		packet += run;
+		remaining -= run;
+		line++;
+		column = 0;
+	}
+}
+
 /**
  * Called when a complete frame has been copied from Usb Request Blocks.
- * Simply adds a frame to the process frame queue,
+ * Simply adds a frame to the process frame queue, and reports the queue depth and the wait
+ * for the next frame to the quality governor when it is enabled.  With signal detection the
+ * frame is sampled first, and while idle without a signal it is reused rather than queued.
  */
 void UsbTvDriver::addCompleteFrameToQueue() {
 	UsbTvFrame* frame = _usbInputFrame;
-	if (_frameProcessQueue->try_enqueue(frame)) {
+	frame->timestampNs = getSteadyTimeNs();
+
+	if (_signal.isEnabled()) {
+		// Fields queued for deinterlacing hold half of the frame's lines
+		FrameParams captured = _frameParams;
+		if (captured.scanType == ScanType::DEINTERLACED) {
+			captured.frameHeight /= 2;
+		}
+		_signal.onFrame(frame, captured, !_skipPayload);
+		if (_signal.isIdle() || _skipPayload) {
+			_signal.countIdleFrame();
+			frame->flags = FRAME_START;
+			return;
+		}
+		if (_signal.getState() != SignalState::PRESENT) {
+			frame->flags |= FRAME_NO_SIGNAL;
+		}
+	}
+	finishLumaStats(frame);
+	if ((frame->flags & FRAME_NO_SIGNAL) == 0) {
+		_autoLevel.onFrame(frame->lumaStats, frame->timestampNs);
+	}
+
+	bool governed = _governor.isEnabled();
+	uint32_t queueDepth = governed ? (uint32_t)_frameProcessQueue->size_approx() : 0;
+	bool queued;
+	{
+		TRACE_SCOPE(FRAME_QUEUE, frame->poolIndex);
+		queued = _frameProcessQueue->try_enqueue(frame);
+	}
+
+	uint64_t waitNs = 0;
+	if (queued) {
+		TRACE_SCOPE(POOL_WAIT);
 		_usbInputFrame = fetchFrameFromPool();
+		if (governed) {
+			waitNs = getSteadyTimeNs() - frame->timestampNs;
+		}
 	} else {
 		LOGD("Frame Dropped, no space in process Queue. ID: %d", _currentFrameId);
+		TRACE_INSTANT(FRAME_DROPPED, _currentFrameId);
 		_droppedFrameCounter++;
 		_usbInputFrame->flags = FRAME_START;
 	}
+
+	if (governed) {
+		_governor.onField(queueDepth, (uint32_t)(_framePoolSize - 1), waitNs, !queued);
+	}
+}
+
+/**
+ * Sums the luma histograms counted while the frame was captured into its statistics
+ */
+void UsbTvDriver::finishLumaStats(UsbTvFrame *frame) {
+	LumaStats* stats = frame->lumaStats;
+	if (!_lumaStatsActive) {
+		stats->pixels = 0;
+		return;
+	}
+
+	uint32_t pixels = 0;
+	uint32_t sum = 0;
+	for (uint32_t bin = 0; bin < USBTV_LUMA_BINS; bin++) {
+		uint32_t count = _lumaHistograms[0][bin] + _lumaHistograms[1][bin] +
+		                 _lumaHistograms[2][bin] + _lumaHistograms[3][bin];
+		stats->histogram[bin] = count;
+		pixels += count;
+		sum += count * bin;
+	}
+
+	uint32_t min = 0;
+	while (min < USBTV_LUMA_BINS - 1 && stats->histogram[min] == 0) {
+		min++;
+	}
+	uint32_t max = USBTV_LUMA_BINS - 1;
+	while (max > min && stats->histogram[max] == 0) {
+		max--;
+	}
+	stats->min = min;
+	stats->max = max;
+	stats->sum = sum;
+	stats->pixels = pixels;
+}
+
+/**
+ * Copies the luma statistics of a frame to a frame produced from it by a later stage
+ */
+void UsbTvDriver::copyLumaStats(UsbTvFrame *dst, const UsbTvFrame *src) {
+	if (src->lumaStats->pixels > 0) {
+		memcpy(dst->lumaStats, src->lumaStats, sizeof(LumaStats));
+	} else {
+		dst->lumaStats->pixels = 0;
+	}
+}
+
+/**
+ * Prepares a frame dequeued by the process thread for delivery.  Noise reduction is applied
+ * first, then change and motion detection, deinterlacing and scaling when enabled.  The
+ * secondary stream is produced from the deinterlaced frame, before scaling.  The frame
+ * delivered is also staged for the timeshift, the video recording and the MJPEG server, and
+ * announced to sharing clients.  Frames that are suppressed as unchanged or held back by
+ * the motion gate are still recorded and kept in the timeshift, so both keep their timing.
+ *
+ * @param frame The frame received from getFrame()
+ * @return The frame to deliver, or NULL if there is nothing to deliver
+ */
+UsbTvFrame* UsbTvDriver::processFrame(UsbTvFrame *frame) {
+	denoiseFrame(frame);
+	bool deliver = detectChange(frame);
+	deliver = detectMotion(frame) && deliver;
+
+	if (_deinterlacer != nullptr) {
+		frame = deinterlaceFrame(frame);
+		if (frame == nullptr) {
+			return nullptr;
+		}
+	}
+
+	if (_secondaryScaler != nullptr && deliver) {
+		produceSecondaryFrame(frame);
+	}
+
+	if (_scaler != nullptr) {
+		frame = scaleFrame(frame);
+		if (frame == nullptr) {
+			return nullptr;
+		}
+	}
+
+	_timeshift.write(frame);
+	_videoRecorder.write(frame);
+	if (!deliver) {
+		TRACE_INSTANT(FRAME_SUPPRESSED, frame->frameId);
+		_suppressedFrameCounter++;
+		frame->lock.clear(std::memory_order_release);
+		return nullptr;
+	}
+
+	_lastDeliveredNs = getSteadyTimeNs();
+	_mjpegServer.submit(frame);
+	if (_sharedPoolActive) {
+		_sharedPool.publish(frame);
+	}
+	return frame;
+}
+
+/**
+ * The frame is a field which is kept as history, a full frame built from it is returned
+ * in its place.
+ */
+UsbTvFrame* UsbTvDriver::deinterlaceFrame(UsbTvFrame *frame) {
+	TRACE_SCOPE(DEINTERLACE, frame->frameId);
+	bool topField = (frame->flags & FRAME_TOP_FIELD) != 0;
+
+	// History is only usable while fields alternate.  If a field was dropped start over.
+	if (_prevField != nullptr && ((_prevField->flags & FRAME_TOP_FIELD) != 0) == topField) {
+		releaseFieldHistory();
+	}
+
+	UsbTvFrame* output;
+	{
+		TRACE_SCOPE(POOL_WAIT);
+		output = fetchFrameFromPool(_inputPoolCount, _scalerPoolStart);
+	}
+	if (!_framePoolActive) {
+		frame->lock.clear(std::memory_order_release);
+		return nullptr;
+	}
+
+	_deinterlacer->process((const uint8_t*)frame->buffer, topField,
+	                       (_prevField != nullptr) ? (const uint8_t*)_prevField->buffer : nullptr,
+	                       (_prevField2 != nullptr) ? (const uint8_t*)_prevField2->buffer : nullptr,
+	                       (uint8_t*)output->buffer);
+
+	output->frameId = frame->frameId;
+	output->flags = frame->flags & ~FRAME_TOP_FIELD;
+	output->timestampNs = frame->timestampNs;
+	output->signature = frame->signature;
+	copyLumaStats(output, frame);
+
+	// The field replaces the oldest in the history
+	if (_prevField2 != nullptr) {
+		_prevField2->lock.clear(std::memory_order_release);
+	}
+	_prevField2 = _prevField;
+	_prevField = frame;
+
+	return output;
+}
+
+/**
+ * Returns a scaled copy of the frame, which is released back to the pool
+ */
+UsbTvFrame* UsbTvDriver::scaleFrame(UsbTvFrame *frame) {
+	TRACE_SCOPE(SCALE, frame->frameId);
+
+	UsbTvFrame* output;
+	{
+		TRACE_SCOPE(POOL_WAIT);
+		output = fetchFrameFromPool(_scalerPoolStart, _framePoolCount);
+	}
+	if (!_framePoolActive) {
+		frame->lock.clear(std::memory_order_release);
+		return nullptr;
+	}
+
+	_scaler->process((const uint8_t*)frame->buffer, (uint8_t*)output->buffer);
+
+	output->frameId = frame->frameId;
+	output->flags = frame->flags;
+	output->timestampNs = frame->timestampNs;
+	output->signature = frame->signature;
+	copyLumaStats(output, frame);
+	frame->lock.clear(std::memory_order_release);
+
+	return output;
+}
+
+/**
+ * Queues a scaled copy of the frame on the secondary stream.  The process thread never waits
+ * for the secondary consumer.  If it holds every secondary frame the copy is dropped, or with
+ * DROP_OLDEST it replaces the oldest frame still queued.
+ */
+void UsbTvDriver::produceSecondaryFrame(UsbTvFrame *frame) {
+	UsbTvFrame* output = tryFetchFrameFromPool(_secondaryPoolStart, _framePoolCount);
+	if (output == nullptr) {
+		if (_secondary.dropPolicy == DropPolicy::DROP_OLDEST) {
+			_secondaryQueue->try_dequeue(output);
+		}
+		TRACE_INSTANT(SECONDARY_DROPPED, (output != nullptr) ? output->frameId : frame->frameId);
+		_secondaryDroppedCounter++;
+		if (output == nullptr) {
+			return;
+		}
+	}
+
+	{
+		TRACE_SCOPE(SECONDARY, frame->frameId);
+		_secondaryScaler->process((const uint8_t*)frame->buffer, (uint8_t*)output->buffer);
+	}
+
+	output->frameId = frame->frameId;
+	output->flags = frame->flags;
+	output->timestampNs = frame->timestampNs;
+	output->signature = frame->signature;
+	copyLumaStats(output, frame);
+
+	if (!_secondaryQueue->try_enqueue(output)) {
+		TRACE_INSTANT(SECONDARY_DROPPED, output->frameId);
+		_secondaryDroppedCounter++;
+		output->lock.clear(std::memory_order_release);
+	}
+}
+
+/**
+ * Applies temporal noise reduction to a frame in place, if enabled.  Fields are filtered
+ * against the previous field of the same parity.
+ */
+void UsbTvDriver::denoiseFrame(UsbTvFrame *frame) {
+	uint8_t strength = _denoiseStrength.load(std::memory_order_relaxed);
+	if (strength == 0) {
+		// History is stale by the time filtering is enabled again
+		if (_denoiser != nullptr) {
+			_denoiser->reset();
+		}
+		return;
+	}
+
+	if (_denoiser == nullptr) {
+		// Fields queued for deinterlacing fill half of the frame buffer
+		uint32_t size = _frameParams.bufferSize;
+		if (_frameParams.scanType == ScanType::DEINTERLACED) {
+			size /= 2;
+		}
+		_denoiser = new Denoiser(size);
+	}
+
+	TRACE_SCOPE(DENOISE, frame->frameId);
+	_denoiser->process((uint8_t*)frame->buffer, (uint8_t)((frame->flags & FRAME_TOP_FIELD) ? 0 : 1),
+	                   strength);
+}
+
+/**
+ * Computes the frame's signature and flags it if it is unchanged, when change detection is
+ * enabled.  Fields are compared with the last changed field of the same parity.
+ *
+ * @return false if the frame is unchanged and should not be delivered
+ */
+bool UsbTvDriver::detectChange(UsbTvFrame *frame) {
+	frame->flags &= ~FRAME_UNCHANGED;
+	frame->signature = 0;
+
+	uint8_t threshold = _changeThreshold.load(std::memory_order_relaxed);
+	if (threshold == 0) {
+		// The reference frames are stale by the time detection is enabled again
+		if (_changeDetector != nullptr) {
+			_changeDetector->reset();
+		}
+		return true;
+	}
+
+	if (_changeDetector == nullptr) {
+		// Fields queued for deinterlacing hold half of the frame's lines
+		uint16_t height = _frameParams.frameHeight;
+		if (_frameParams.scanType == ScanType::DEINTERLACED) {
+			height /= 2;
+		}
+		_changeDetector = new ChangeDetector(_frameParams.frameWidth, height,
+		                                     _frameParams.pixelFormat);
+	}
+
+	bool changed;
+	{
+		TRACE_SCOPE(CHANGE_DETECT, frame->frameId);
+		changed = _changeDetector->process((const uint8_t*)frame->buffer,
+		                                   (uint8_t)((frame->flags & FRAME_TOP_FIELD) ? 0 : 1),
+		                                   (uint8_t)(threshold - 1), &frame->signature);
+	}
+	if (changed) {
+		return true;
+	}
+
+	frame->flags |= FRAME_UNCHANGED;
+	return !_suppressUnchanged.load(std::memory_order_relaxed) ||
+	       getSteadyTimeNs() - _lastDeliveredNs >= (uint64_t)USBTV_CHANGE_KEEPALIVE_MS * 1000000;
+}
+
+/**
+ * Enables change detection.  A frame is flagged as unchanged when no region's mean luma
+ * moved by threshold or more levels since the last changed frame.
+ *
+ * @param threshold         From 1 to 255 levels, or 0 to disable detection
+ * @param suppressUnchanged Unchanged frames are not delivered to the callback, the secondary
+ *                          stream, the MJPEG server or sharing clients
+ */
+void UsbTvDriver::setChangeDetection(int threshold, bool suppressUnchanged) {
+	if (threshold < 0) {
+		threshold = 0;
+	} else if (threshold > 255) {
+		threshold = 255;
+	}
+	_suppressUnchanged.store(suppressUnchanged, std::memory_order_relaxed);
+	_changeThreshold.store((uint8_t)threshold, std::memory_order_relaxed);
+}
+
+/**
+ * Looks for motion in the frame when motion detection is enabled, and raises the motion
+ * events of the frame callback.  Fields are compared with the background of their parity.
+ *
+ * @return false if the motion gate holds the frame back
+ */
+bool UsbTvDriver::detectMotion(UsbTvFrame *frame) {
+	FrameCallback* callback = _frameProcessContext->callback;
+	MotionEvent event;
+
+	uint8_t sensitivity = _motionSensitivity.load(std::memory_order_relaxed);
+	if (sensitivity == 0) {
+		if (_motionDetector != nullptr) {
+			// Listeners are not left waiting for the end of motion in progress
+			if (_motionDetector->isMoving() && callback != nullptr) {
+				event.state = MotionState::END;
+				event.frameId = frame->frameId;
+				event.timestampNs = frame->timestampNs;
+				event.regionCount = 0;
+				callback->onMotion(event);
+			}
+			_motionDetector->reset();
+		}
+		return true;
+	}
+
+	if (_motionDetector == nullptr) {
+		// Fields queued for deinterlacing hold every other line of the frame
+		uint16_t height = _frameParams.frameHeight;
+		uint8_t lineScale = 1;
+		if (_frameParams.scanType == ScanType::DEINTERLACED) {
+			height /= 2;
+			lineScale = 2;
+		}
+		_motionDetector = new MotionDetector(_frameParams.frameWidth, height,
+		                                     _frameParams.pixelFormat, lineScale);
+	}
+
+	bool raised;
+	{
+		TRACE_SCOPE(MOTION_DETECT, frame->frameId);
+		raised = _motionDetector->process((const uint8_t*)frame->buffer,
+		                                  (uint8_t)((frame->flags & FRAME_TOP_FIELD) ? 0 : 1),
+		                                  sensitivity, frame->frameId, frame->timestampNs,
+		                                  &event);
+	}
+	if (raised) {
+		TRACE_INSTANT(MOTION_EVENT, (uint32_t)event.state);
+		if (callback != nullptr) {
+			callback->onMotion(event);
+		}
+	}
+
+	return !_motionGate.load(std::memory_order_relaxed) || _motionDetector->isMoving();
+}
+
+/**
+ * Enables motion detection.  Motion events are raised through the frame callback.
+ *
+ * @param sensitivity   From 1 to USBTV_MOTION_MAX_SENSITIVITY, or 0 to disable detection
+ * @param gateFrames    Frames are only delivered to the callback, the secondary stream, the
+ *                      MJPEG server and sharing clients while there is motion
+ */
+void UsbTvDriver::setMotionDetection(int sensitivity, bool gateFrames) {
+	if (sensitivity < 0) {
+		sensitivity = 0;
+	} else if (sensitivity > USBTV_MOTION_MAX_SENSITIVITY) {
+		sensitivity = USBTV_MOTION_MAX_SENSITIVITY;
+	}
+	_motionGate.store(gateFrames, std::memory_order_relaxed);
+	_motionSensitivity.store((uint8_t)sensitivity, std::memory_order_relaxed);
+}
+
+/**
+ * Sets the temporal noise reduction strength, from 0 (off) to USBTV_DENOISE_MAX_STRENGTH.
+ * Takes effect with the next frame, the stream is not restarted.
+ */
+void UsbTvDriver::setDenoiseStrength(int strength) {
+	if (strength < 0) {
+		strength = 0;
+	} else if (strength > USBTV_DENOISE_MAX_STRENGTH) {
+		strength = USBTV_DENOISE_MAX_STRENGTH;
+	}
+	_denoiseStrength.store((uint8_t)strength, std::memory_order_relaxed);
+}
+
+/**
+ * Returns fields held by the deinterlacer to the pool
+ */
+void UsbTvDriver::releaseFieldHistory() {
+	if (_prevField != nullptr) {
+		_prevField->lock.clear(std::memory_order_release);
+		_prevField = nullptr;
+	}
+	if (_prevField2 != nullptr) {
+		_prevField2->lock.clear(std::memory_order_release);
+		_prevField2 = nullptr;
+	}
 }
 
 /**
@@ -762,11 +2223,15 @@ void frame_process_thread(Driver::ThreadContext* ctx) {
 
 	// Attach native thread to Java thread
 	ctx->callback->attachThread();
+	TRACE_THREAD_NAME("usbtv_process");
 
 	UsbTvFrame* frame;
 
 	while (*(ctx->threadRunning)) {
-		frame = usbtv->getFrame();
+		{
+			TRACE_SCOPE(FRAME_DEQUEUE);
+			frame = usbtv->getFrame();
+		}
 
 #if defined(PROFILE_FRAME)
 		/**
@@ -781,7 +2246,13 @@ void frame_process_thread(Driver::ThreadContext* ctx) {
 			continue;
 		}
 
+		frame = usbtv->processFrame(frame);
+		if (frame == nullptr) {
+			continue;
+		}
+
 		if (*(ctx->useCallback)) {
+			TRACE_SCOPE(JAVA_CALLBACK, frame->poolIndex);
 			ctx->callback->invoke(frame);
 		}
 
@@ -808,4 +2279,33 @@ void frame_process_thread(Driver::ThreadContext* ctx) {
 	ctx->callback->detachThread();
 
 	return;
-}
\ No newline at end of file
+}
+
+/**
+ * Function to be executed in the secondary stream delivery thread.  Frames are delivered here
+ * rather than on the process thread, so a slow consumer only holds up the secondary stream.
+ */
+void secondary_delivery_thread(Driver::ThreadContext* ctx) {
+	UsbTvDriver* usbtv = ctx->usbtv;
+
+	ctx->callback->attachThread();
+	TRACE_THREAD_NAME("usbtv_secondary");
+
+	UsbTvFrame* frame;
+
+	while (*(ctx->threadRunning)) {
+		frame = usbtv->getSecondaryFrame();
+		if (frame == nullptr) {
+			continue;
+		}
+
+		if (*(ctx->useCallback)) {
+			TRACE_SCOPE(JAVA_CALLBACK, frame->poolIndex);
+			ctx->callback->invoke(frame);
+		} else {
+			usbtv->clearFrameLock(frame->poolIndex);
+		}
+	}
+
+	ctx->callback->detachThread();
+}
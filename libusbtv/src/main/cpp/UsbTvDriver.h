@@ -5,11 +5,29 @@
 #ifndef USBTV007_ANDROID_USBTVDRIVER_H
 #define USBTV007_ANDROID_USBTVDRIVER_H
 
+#include <atomic>
 #include <thread>
-#include <android/native_window.h>
+#include <chrono>
+#include <vector>
+#include "util.h"
 #include "usbtv_definitions.h"
 #include "AndroidUsbDevice.h"
-#include "JNIHelpers/JavaCallback.h"
+#include "FrameCallback.h"
+#include "Tracer.h"
+#include "Deinterlacer.h"
+#include "Denoiser.h"
+#include "ChangeDetector.h"
+#include "MotionDetector.h"
+#include "Scaler.h"
+#include "PixelKernels.h"
+#include "Timeshift.h"
+#include "VideoRecorder.h"
+#include "MjpegServer.h"
+#include "SharedFramePool.h"
+#include "QualityGovernor.h"
+#include "SignalMonitor.h"
+#include "ColorControls.h"
+#include "AutoLevel.h"
 #include "ConcurrentQueue/blockingconcurrentqueue.h"
 #include "JNIHelpers/DeviceParamsHelper.h"
 
@@ -18,36 +36,78 @@ class UsbTvDriver;
 namespace Driver {
 	struct ThreadContext {
 		UsbTvDriver*    usbtv;
-		JavaCallback*   callback;
+		FrameCallback*  callback;
 		bool*           useCallback;
 		bool*           threadRunning;
 	};
+
+	// Measurements taken while iso auto-tune is active, and after it settled below the
+	// configured depth while it watches for underruns
+	struct IsoAutoTune {
+		bool        active;
+		bool        monitoring;
+		uint32_t    urbCount;
+		uint32_t    packetErrors;
+		long        maxGapUs;
+		std::chrono::steady_clock::time_point startTime;
+		std::chrono::steady_clock::time_point lastCompletion;
+	};
 }
 
 class UsbTvDriver {
+#if defined(USBTV_BENCH)
+	// Host benchmarks drive the packet and frame pool paths directly
+	friend class UsbTvDriverBench;
+#endif
+
 private:
 	bool _initialized; // Variable to check to make sure constructor successfully completed
-	bool _streamActive;
+	std::atomic<bool> _streamActive;    // Also read by the JNI thread
 
-	JNIEnv* _env;        // Reference to Java environment from local thread
+	JNIEnv* _env;        // Reference to Java environment from local thread, NULL for native use
 
-	DeviceParamsHelper _paramsHelper;
+	DeviceParamsHelper* _paramsHelper;
 	FrameParams        _frameParams;
 
 	/* Video Members */
 	TvInput     _input;
 
 	uint16_t        _framePoolSize;
+	uint16_t        _framePoolCount;     // Frames allocated, including stage output frames
+	uint16_t        _inputPoolCount;     // Frames at the start of the pool used for input
+	uint16_t        _scalerPoolStart;    // Deinterlacer output frames precede this index,
+	                                     // scaler output frames follow it
+	uint16_t        _secondaryPoolStart; // Secondary stream frames from here to the end
 	UsbTvFrame**    _framePool;
 	std::mutex      _framePoolMutex;
+	bool            _framePoolActive;    // Cleared to release threads waiting on the pool
 
-	AndroidUsbDevice*   _usbConnection;
+	// Capture cropping, applied while packets are scattered into frames.  Offsets are in
+	// bytes within a source line and in lines within a field.
+	CropRect    _crop;
+	bool        _cropActive;
+	uint32_t    _cropLeft;
+	uint32_t    _cropBytes;
+	uint16_t    _cropTop;
+	uint16_t    _cropLines;
+	uint8_t     _pixelShift;        // Payload byte offsets >> this give frame offsets, 1 for Y8
+
+	// Held by the urb thread while assembling packets, so the frame pipeline can be rebuilt
+	// while the iso urbs keep running
+	std::mutex  _assemblyMutex;
+	bool        _assemblyPaused;
+
+	UsbTransport*       _usbConnection;
 	bool                _useCallback;
 
 	// Isonchronous Transfer Variables
 	uint8_t     _isoEndpoint;
+	std::atomic<uint8_t>    _numIsoTransfers;   // Lowered by the iso auto-tune on the urb thread
+	uint8_t     _configuredIsoTransfers;
 	uint8_t     _numIsoPackets;
 	uint32_t    _maxIsoPacketSize;
+	Driver::IsoAutoTune _isoAutoTune;
+	std::vector<usbdevfs_urb*>  _retiredIsoUrbs;    // Held by the urb thread for a step back up
 
 	// packet/frame tracking variables
 	UsbTvFrame* _usbInputFrame;      // The current frame being written to from Usb
@@ -56,6 +116,79 @@ private:
 	uint16_t    _packetsDone;
 	bool        _lastOdd;
 	bool        _secondFrame;
+	bool        _skipPayload;       // The frame is not being captured, while idle without signal
+
+	// Luma statistics, counted on the urb thread as packets are copied.  The setting may be
+	// changed from any thread, it is applied as the next frame starts.
+	std::atomic<bool>   _lumaStatsEnabled;
+	bool                _lumaStatsActive;
+	uint32_t            _lumaHistograms[USBTV_LUMA_HISTOGRAMS][USBTV_LUMA_BINS];
+
+	// Deinterlacing.  The field history is only accessed from the frame process thread.
+	DeinterlaceMode _deinterlaceMode;
+	Deinterlacer*   _deinterlacer;
+	UsbTvFrame*     _prevField;
+	UsbTvFrame*     _prevField2;
+
+	// Noise reduction.  The strength may be changed from any thread while streaming, the
+	// denoiser itself is created and used on the frame process thread.
+	std::atomic<uint8_t>    _denoiseStrength;
+	Denoiser*               _denoiser;
+
+	// Change detection.  The settings may be changed from any thread while streaming, the
+	// detector is created and used on the frame process thread.  While suppressing, an
+	// unchanged frame is still delivered every USBTV_CHANGE_KEEPALIVE_MS.
+	std::atomic<uint8_t>    _changeThreshold;
+	std::atomic<bool>       _suppressUnchanged;
+	ChangeDetector*         _changeDetector;
+	uint64_t                _lastDeliveredNs;
+	uint32_t                _suppressedFrameCounter;
+
+	// Motion detection.  The settings may be changed from any thread while streaming, the
+	// detector is created and used on the frame process thread, which also raises its events.
+	std::atomic<uint8_t>    _motionSensitivity;
+	std::atomic<bool>       _motionGate;
+	MotionDetector*         _motionDetector;
+
+	// Scaling, the last stage.  Scaled frames are described by _scaledParams, every other
+	// frame in the pool by _frameParams.
+	ScaleParams     _scale;
+	FrameParams     _scaledParams;
+	bool            _scaleActive;
+	Scaler*         _scaler;
+
+	// Secondary stream.  Frames are scaled from each captured frame into their own region of
+	// the pool and queued for a delivery thread, or for acquireSecondaryFrame when there is no
+	// callback.  Frames are dropped rather than waited for, so the consumer can never hold
+	// up the main stream.
+	SecondaryStreamParams   _secondary;
+	FrameParams             _secondaryParams;
+	bool                    _secondaryActive;
+	Scaler*                 _secondaryScaler;
+	FrameCallback*          _secondaryCallback;
+	bool                    _useSecondaryCallback;
+	Driver::ThreadContext*  _secondaryContext;
+	bool                    _secondaryThreadRunning;
+	std::thread*            _secondaryThread;
+	moodycamel::BlockingConcurrentQueue<UsbTvFrame*>*   _secondaryQueue;
+	uint32_t                _secondaryDroppedCounter;
+
+	// Timeshift of delivered frames.  It outlives the frame pipeline, so frames held when
+	// streaming stops can still be read back.
+	Timeshift   _timeshift;
+
+	// Recording of delivered frames to a video file.  Frames of another size than the
+	// recording was started with, ie. after a crop or scale change, are not recorded.
+	VideoRecorder   _videoRecorder;
+
+	// MJPEG stream of delivered frames over HTTP.  It may be started before streaming, viewers
+	// then receive frames once streaming starts.
+	MjpegServer     _mjpegServer;
+
+	// Sharing of delivered frames with other processes.  The frame pool is allocated in its
+	// shared region when sharing is started as the pool is allocated.
+	SharedFramePool _sharedPool;
+	bool            _sharedPoolActive;
 
 	// Frame Process variables
 	Driver::ThreadContext*  _frameProcessContext;
@@ -67,6 +200,19 @@ private:
 	uint32_t    _droppedFrameCounter;
 	uint32_t    _incompleteFrameCounter;
 
+	// Watches the process queue and pool waits on the urb thread and recommends a lower
+	// quality when the consumer falls behind.  Its level survives restarts.
+	QualityGovernor _governor;
+
+	// Watches packet headers and the picture on the urb thread for the signal being lost.
+	// While idle without a signal frames are not delivered, and only probes are captured.
+	SignalMonitor   _signal;
+
+	// Shadow of the color controls, and the loop that adjusts brightness and contrast from
+	// the luma statistics of each frame.  Neither makes control transfers on the urb thread.
+	ColorControls   _colorControls;
+	AutoLevel       _autoLevel;
+
 #if defined(PROFILE_FRAME)
 	long _framePoolSpins;
 	bool _isoMaxCheck;
@@ -77,20 +223,57 @@ private:
 	/* Private Member Functions */
 	bool setRegisters(const uint16_t regs[][2], int size);
 	UsbTvFrame* fetchFrameFromPool();
+	UsbTvFrame* fetchFrameFromPool(uint16_t first, uint16_t end);
+	UsbTvFrame* tryFetchFrameFromPool(uint16_t first, uint16_t end);
+	void init(FrameCallback* cb, UsbTransport* transport, uint16_t framePoolSize,
+	          uint8_t isoEndpoint, uint32_t maxIsoPacketSize);
 	void allocateFramePool(jobject params);
 	void freeFramePool();
 
-	bool parseStreamingParams(jobject params);
+	void parseStreamingParams(jobject params, StreamParams* streamParams);
+	void applyStreamingParams(const StreamParams& params);
+	bool beginStreaming(const StreamParams& params, jobject javaParams);
+	void applyCrop(const CropRect& crop);
+	void applyScale(const ScaleParams& scale);
+	void applySecondary(const SecondaryStreamParams& secondary);
+	bool startFramePipeline(jobject javaParams);
+	void stopFramePipeline();
+	bool reconfigureCrop(const CropRect& crop, jobject javaParams);
 	void onUrbReceived(usbdevfs_urb* urb);
+	void updateIsoAutoTune();
+	void finishIsoAutoTune();
+	void restoreIsoTransfers();
 	void processPacket(__be32* packet);
 	void packetToProgressiveFrame(uint8_t* packet, uint32_t packetNo);
 	void packetToInterleavedFrame(uint8_t* packet, uint32_t packetNo, bool isOdd);
+	void copyPayload(uint8_t* dst, const uint8_t* src, uint32_t size);
+	void packetToCroppedFrame(uint8_t* packet, uint32_t packetNo, uint32_t lineStep,
+	                          uint32_t lineOffset);
 	void checkFinishedFrame(bool isOdd);
 	void addCompleteFrameToQueue();
+	void finishLumaStats(UsbTvFrame* frame);
+	static void copyLumaStats(UsbTvFrame* dst, const UsbTvFrame* src);
+	void releaseFieldHistory();
+	void denoiseFrame(UsbTvFrame* frame);
+	bool detectChange(UsbTvFrame* frame);
+	bool detectMotion(UsbTvFrame* frame);
+	UsbTvFrame* deinterlaceFrame(UsbTvFrame* frame);
+	UsbTvFrame* scaleFrame(UsbTvFrame* frame);
+	void produceSecondaryFrame(UsbTvFrame* frame);
+	void startSecondaryThread();
+	void stopSecondaryThread();
+	void configureTimeshift();
+	const FrameParams& getDeliveredParams();
+	void getDeliveredFrameRate(uint32_t* numerator, uint32_t* denominator);
 
 
 public:
-	UsbTvDriver(JNIEnv *env, JavaCallback* cb, jobject params);
+	static CropRect alignCrop(const CropRect& crop, uint16_t packetsPerField);
+	static FrameGeometry resolveGeometry(const StreamParams& params);
+
+	UsbTvDriver(JNIEnv *env, FrameCallback* cb, jobject params, UsbTransport* transport = nullptr);
+	UsbTvDriver(FrameCallback* cb, UsbTransport* transport, uint16_t framePoolSize,
+	            uint8_t isoEndpoint, uint32_t maxIsoPacketSize);
 	~UsbTvDriver();
 
 	bool isInitialized() { return _initialized;}
@@ -98,15 +281,74 @@ public:
 
 
 	void setCallback(bool shouldUse) {_useCallback = shouldUse;}
+	void setSecondaryCallback(FrameCallback* cb) {_secondaryCallback = cb;}
+	void useSecondaryCallback(bool shouldUse) {_useSecondaryCallback = shouldUse;}
 
 	UsbTvFrame* getFrame();
+	UsbTvFrame* processFrame(UsbTvFrame* frame);
 	bool clearFrameLock(int framePoolIndex);
+	UsbTvFrame* getSecondaryFrame();
+	UsbTvFrame* acquireSecondaryFrame(long timeoutUs);
 
 	bool startStreaming(jobject params);
+	bool startStreaming(const StreamParams& params);
 	void stopStreaming();
+	bool setCrop(jobject params);
+	bool setCrop(const CropRect& crop);
 	bool setTvInput(int input);
 	bool setControl(int control, int value);
 	int  getControl(int control);
+	void setDenoiseStrength(int strength);
+	int  getDenoiseStrength() { return _denoiseStrength.load(std::memory_order_relaxed); }
+	void setChangeDetection(int threshold, bool suppressUnchanged);
+	void setMotionDetection(int sensitivity, bool gateFrames);
+	void setLumaStatistics(bool enabled) { _lumaStatsEnabled = enabled; }
+
+	bool startRecording(const char* path, uint64_t maxBytes) {
+		return _usbConnection->startRecording(path, maxBytes);
+	}
+	void stopRecording() { _usbConnection->stopRecording(); }
+
+	int getIsoTransferCount() {
+		return _streamActive ? _numIsoTransfers.load(std::memory_order_relaxed) : 0;
+	}
+	int getIsoPacketsPerRequest() { return _streamActive ? _numIsoPackets : 0; }
+
+	uint32_t getDroppedFrameCount() { return _droppedFrameCounter; }
+	uint32_t getIncompleteFrameCount() { return _incompleteFrameCounter; }
+	uint32_t getSecondaryDroppedFrameCount() { return _secondaryDroppedCounter; }
+	uint32_t getSuppressedFrameCount() { return _suppressedFrameCounter; }
+
+	bool startTimeshift(const char* path, uint16_t seconds);
+	void stopTimeshift() { _timeshift.close(); }
+	Timeshift* getTimeshift() { return &_timeshift; }
+
+	bool startVideoRecording(const char* path, VideoContainer container, RecordPolicy policy,
+	                         uint64_t maxBytes);
+	void stopVideoRecording() { _videoRecorder.close(); }
+	VideoRecorder* getVideoRecorder() { return &_videoRecorder; }
+
+	bool startMjpegServer(uint16_t port, const char* accessToken, uint8_t quality,
+	                      uint8_t maxFrameRate) {
+		return _mjpegServer.start(port, accessToken, quality, maxFrameRate);
+	}
+	void stopMjpegServer() { _mjpegServer.stop(); }
+	MjpegServer* getMjpegServer() { return &_mjpegServer; }
+
+	bool startFrameSharing(const char* socketName, const std::vector<uid_t>& allowedUids) {
+		return _sharedPool.start(socketName, allowedUids);
+	}
+	void stopFrameSharing() { _sharedPool.stop(); }
+	SharedFramePool* getSharedFramePool() { return &_sharedPool; }
+
+	void setQualityGovernor(bool enabled) { _governor.setEnabled(enabled); }
+	QualityGovernor* getQualityGovernor() { return &_governor; }
+
+	void setSignalDetection(bool enabled, bool idle) { _signal.setEnabled(enabled, idle); }
+	SignalMonitor* getSignalMonitor() { return &_signal; }
+
+	void setAutoLevel(bool enabled);
+	AutoLevel* getAutoLevel() { return &_autoLevel; }
 
 };
 
@@ -0,0 +1,598 @@
+// Copyright (C) 2020 Eric Callahan <arksine.code@gmail.com>
+//
+// This file may be distributed under the terms of the GNU GPLv3 license
+
+#include "VideoRecorder.h"
+#include "PixelKernels.h"
+#include "Tracer.h"
+#include "util.h"
+#include <cerrno>
+#include <cstdio>
+#include <cstdlib>
+#include <fcntl.h>
+#include <unistd.h>
+
+#define AVI_HEADER_SIZE         224
+#define AVI_RIFF_SIZE_OFFSET    4
+#define AVI_TOTAL_FRAMES_OFFSET 48
+#define AVI_LENGTH_OFFSET       140
+#define AVI_MOVI_SIZE_OFFSET    216
+#define AVI_MOVI_OFFSET         220     // The 'movi' fourcc, which idx1 offsets are relative to
+#define AVI_INDEX_ENTRY_SIZE    16
+#define AVIF_HASINDEX           0x00000010
+#define AVIIF_KEYFRAME          0x00000010
+
+static inline void putFourcc(uint8_t* dst, const char* fourcc) {
+	memcpy(dst, fourcc, 4);
+}
+
+static inline void put16(uint8_t* dst, uint16_t value) {
+	dst[0] = (uint8_t)value;
+	dst[1] = (uint8_t)(value >> 8);
+}
+
+static inline void put32(uint8_t* dst, uint32_t value) {
+	put16(dst, (uint16_t)value);
+	put16(dst + 2, (uint16_t)(value >> 16));
+}
+
+/**
+ * Writes all of a buffer at an offset, retrying short writes
+ */
+static bool writeFully(int fd, const uint8_t* data, uint32_t length, uint64_t offset) {
+	while (length > 0) {
+		ssize_t written = pwrite(fd, data, length, (off_t)offset);
+		if (written < 0) {
+			if (errno == EINTR) {
+				continue;
+			}
+			return false;
+		}
+		data += written;
+		length -= (uint32_t)written;
+		offset += (uint64_t)written;
+	}
+	return true;
+}
+
+VideoRecorder::VideoRecorder() : _freeChunks(USBTV_RECORDER_CHUNKS),
+                                 _fullChunks(USBTV_RECORDER_CHUNKS + 1) {
+	_fd = -1;
+	_direct = false;
+	_container = VideoContainer::RAW;
+	_policy = RecordPolicy::DROP;
+	_params = {};
+	_rateNumerator = 0;
+	_rateDenominator = 1;
+	_recordSize = 0;
+	_maxBytes = 0;
+	_full = false;
+	for (int i = 0; i < USBTV_RECORDER_CHUNKS; i++) {
+		_chunks[i] = nullptr;
+		_chunkLength[i] = 0;
+		_chunkOffset[i] = 0;
+		_reserved[i] = -1;
+	}
+	_current = -1;
+	_position = 0;
+	_fileSize = 0;
+	_reservedCount = 0;
+	_reservedNext = 0;
+	_planar = nullptr;
+	_writerThread = nullptr;
+	_writeFailed = false;
+	_bytesWritten = 0;
+	_startTimeNs = 0;
+	_stopTimeNs = 0;
+	_recordedFrames = 0;
+	_droppedFrames = 0;
+}
+
+VideoRecorder::~VideoRecorder() {
+	close();
+}
+
+/**
+ * Creates the recording file, writes the container header and starts the writer thread.
+ * Every frame written must match params.
+ *
+ * @param path              Path of the file to create, an existing file is truncated
+ * @param container         File layout
+ * @param policy            What to do with frames when the writer falls behind
+ * @param maxBytes          Maximum size of the file, zero for no limit.  Frames received once
+ *                          it is reached are dropped.  AVI files are limited to
+ *                          USBTV_RECORDER_AVI_MAX_BYTES.
+ * @param params            Parameters of the frames that will be written
+ * @param rateNumerator     Frame rate, in frames per second, as a fraction
+ * @param rateDenominator
+ * @return true if the file is ready for recording
+ */
+bool VideoRecorder::open(const char *path, VideoContainer container, RecordPolicy policy,
+                         uint64_t maxBytes, const FrameParams &params, uint32_t rateNumerator,
+                         uint32_t rateDenominator) {
+	std::lock_guard<std::mutex> lock(_writeMutex);
+	if (_fd >= 0) {
+		LOGE("Video recorder is already open");
+		return false;
+	}
+
+	_container = container;
+	_policy = policy;
+	_params = params;
+	_rateNumerator = rateNumerator;
+	_rateDenominator = (rateDenominator > 0) ? rateDenominator : 1;
+	_recordSize = computeRecordSize();
+	// At least two frames must fit in the ring for the writer to overlap the process thread
+	if (_recordSize == 0 || _recordSize > USBTV_RECORDER_CHUNK_SIZE * (USBTV_RECORDER_CHUNKS / 2)) {
+		LOGE("Unable to record frames of %d bytes", params.bufferSize);
+		return false;
+	}
+
+	_maxBytes = maxBytes;
+	if (_container == VideoContainer::AVI &&
+	    (_maxBytes == 0 || _maxBytes > USBTV_RECORDER_AVI_MAX_BYTES)) {
+		_maxBytes = USBTV_RECORDER_AVI_MAX_BYTES;
+	}
+
+	// Not every filesystem supports O_DIRECT, fall back to buffered writes
+	_direct = true;
+	_fd = ::open(path, O_WRONLY | O_CREAT | O_TRUNC | O_DIRECT, 0644);
+	if (_fd < 0 && errno == EINVAL) {
+		_direct = false;
+		_fd = ::open(path, O_WRONLY | O_CREAT | O_TRUNC, 0644);
+	}
+	if (_fd < 0) {
+		LOGE("Unable to create video recording %s", path);
+		return false;
+	}
+
+	for (int i = 0; i < USBTV_RECORDER_CHUNKS; i++) {
+		void* chunk;
+		if (posix_memalign(&chunk, USBTV_RECORDER_ALIGNMENT, USBTV_RECORDER_CHUNK_SIZE) != 0) {
+			LOGE("Unable to allocate video recorder chunks");
+			releaseChunks();
+			::close(_fd);
+			_fd = -1;
+			return false;
+		}
+		_chunks[i] = (uint8_t*)chunk;
+		_freeChunks.enqueue(i);
+	}
+	if (_container == VideoContainer::Y4M && _params.pixelFormat == PixelFormat::YUYV) {
+		_planar = (uint8_t*)malloc(_params.bufferSize);
+	}
+
+	_current = -1;
+	_position = 0;
+	_fileSize = 0;
+	_full = false;
+	_writeFailed = false;
+	_bytesWritten = 0;
+	_recordedFrames = 0;
+	_droppedFrames = 0;
+
+	uint8_t header[AVI_HEADER_SIZE];
+	uint32_t headerSize = buildFileHeader(header);
+	if (headerSize > 0) {
+		reserveChunks(headerSize);
+		append(header, headerSize);
+	}
+
+	_startTimeNs = getSteadyTimeNs();
+	_stopTimeNs = 0;
+	_writerThread = new std::thread(&VideoRecorder::writerLoop, this);
+
+	LOGD("Video recording started: %s, %dx%d, %s", path, _params.frameWidth,
+	     _params.frameHeight, _direct ? "direct I/O" : "buffered I/O");
+	return true;
+}
+
+/**
+ * Writes the frames already serialized, completes the container and closes the file
+ */
+void VideoRecorder::close() {
+	std::lock_guard<std::mutex> lock(_writeMutex);
+	if (_fd < 0) {
+		return;
+	}
+
+	if (_current >= 0) {
+		queueChunk();
+	}
+
+	// Every chunk is free again once the writer is idle
+	int index;
+	for (int i = 0; i < USBTV_RECORDER_CHUNKS; i++) {
+		_freeChunks.wait_dequeue(index);
+	}
+	_fullChunks.enqueue(-1);
+	_writerThread->join();
+	delete _writerThread;
+	_writerThread = nullptr;
+	_stopTimeNs = getSteadyTimeNs();
+
+	// The remaining writes are not aligned
+	if (_direct) {
+		fcntl(_fd, F_SETFL, fcntl(_fd, F_GETFL) & ~O_DIRECT);
+		_direct = false;
+	}
+	if (ftruncate(_fd, (off_t)_fileSize) != 0) {
+		LOGE("Unable to truncate video recording");
+	}
+	if (_container == VideoContainer::AVI && !_writeFailed) {
+		finishAvi();
+	}
+
+	::close(_fd);
+	_fd = -1;
+	releaseChunks();
+
+	LOGD("Video recording stopped.  Frames recorded: %d, Frames dropped: %d, %.1f MB/s",
+	     _recordedFrames.load(), _droppedFrames.load(), getWriteRate());
+}
+
+/**
+ * Serializes a delivered frame into the chunk ring.  Called from the frame process thread.
+ * The frame is dropped if the chunks it needs are not free, after waiting up to
+ * USBTV_RECORDER_MAX_WAIT_MS with RecordPolicy::WAIT, or if the file is being opened or
+ * closed.
+ *
+ * @return true if the frame was recorded
+ */
+bool VideoRecorder::write(const UsbTvFrame *frame) {
+	std::unique_lock<std::mutex> lock(_writeMutex, std::try_to_lock);
+	if (!lock.owns_lock() || _fd < 0) {
+		return false;
+	}
+
+	const FrameParams* params = frame->params;
+	if (_full || _writeFailed || params->bufferSize != _params.bufferSize ||
+	    params->frameWidth != _params.frameWidth || params->frameHeight != _params.frameHeight) {
+		_droppedFrames++;
+		return false;
+	}
+
+	uint64_t limit = _fileSize + _recordSize;
+	if (_container == VideoContainer::AVI) {
+		// Leave room for the index
+		limit += 8 + (uint64_t)(_recordedFrames + 1) * AVI_INDEX_ENTRY_SIZE;
+	}
+	if (_maxBytes > 0 && limit > _maxBytes) {
+		LOGI("Video recording reached its size limit");
+		_full = true;
+		_droppedFrames++;
+		return false;
+	}
+
+	if (!reserveChunks(_recordSize)) {
+		TRACE_INSTANT(RECORD_DROPPED, frame->frameId);
+		_droppedFrames++;
+		return false;
+	}
+
+	TRACE_SCOPE(RECORD_FRAME, frame->frameId);
+	uint32_t pad = 0;
+	uint8_t header[8];
+	switch (_container) {
+		case VideoContainer::Y4M:
+			append((const uint8_t*)"FRAME\n", 6);
+			break;
+		case VideoContainer::AVI:
+			pad = _params.bufferSize & 1;
+			putFourcc(header, "00db");
+			put32(header + 4, _params.bufferSize);
+			append(header, 8);
+			break;
+		default:
+			break;
+	}
+
+	if (_planar != nullptr) {
+		uint32_t pixels = (uint32_t)_params.frameWidth * _params.frameHeight;
+		splitPlanes(_planar, _planar + pixels, _planar + pixels + pixels / 2,
+		            (const uint8_t*)frame->buffer, pixels);
+		append(_planar, _params.bufferSize);
+	} else {
+		append((const uint8_t*)frame->buffer, _params.bufferSize);
+	}
+	if (pad > 0) {
+		uint8_t zero = 0;
+		append(&zero, 1);
+	}
+
+	_recordedFrames++;
+	return true;
+}
+
+/**
+ * @return Bytes written per frame, including the container's frame header
+ */
+uint32_t VideoRecorder::computeRecordSize() {
+	switch (_container) {
+		case VideoContainer::Y4M:
+			return 6 + _params.bufferSize;
+		case VideoContainer::AVI:
+			return 8 + _params.bufferSize + (_params.bufferSize & 1);
+		default:
+			return _params.bufferSize;
+	}
+}
+
+/**
+ * Builds the container's file header
+ *
+ * @param header    Receives the header, at least AVI_HEADER_SIZE bytes
+ * @return Size of the header
+ */
+uint32_t VideoRecorder::buildFileHeader(uint8_t *header) {
+	bool mono = (_params.pixelFormat == PixelFormat::Y8);
+	uint16_t width = _params.frameWidth;
+	uint16_t height = _params.frameHeight;
+
+	if (_container == VideoContainer::Y4M) {
+		char interlace = (_params.scanType == ScanType::INTERLEAVED) ? 't' : 'p';
+		int length = snprintf((char*)header, AVI_HEADER_SIZE, "YUV4MPEG2 W%d H%d F%u:%u I%c A0:0 C%s\n",
+		                      width, height, _rateNumerator, _rateDenominator, interlace,
+		                      mono ? "mono" : "422");
+		return (uint32_t)length;
+	} else if (_container != VideoContainer::AVI) {
+		return 0;
+	}
+
+	// Sizes and frame counts left at zero are written by finishAvi()
+	memset(header, 0, AVI_HEADER_SIZE);
+	uint8_t* p = header;
+	putFourcc(p, "RIFF");
+	putFourcc(p + 8, "AVI ");
+	putFourcc(p + 12, "LIST");
+	put32(p + 16, 192);
+	putFourcc(p + 20, "hdrl");
+
+	p = header + 24;
+	putFourcc(p, "avih");
+	put32(p + 4, 56);
+	put32(p + 8, (uint32_t)(1000000ULL * _rateDenominator / _rateNumerator));
+	put32(p + 12, (uint32_t)((uint64_t)_params.bufferSize * _rateNumerator / _rateDenominator));
+	put32(p + 20, AVIF_HASINDEX);
+	put32(p + 32, 1);                               // Streams
+	put32(p + 36, _recordSize);                     // Suggested buffer size
+	put32(p + 40, width);
+	put32(p + 44, height);
+
+	p = header + 88;
+	putFourcc(p, "LIST");
+	put32(p + 4, 116);
+	putFourcc(p + 8, "strl");
+
+	p = header + 100;
+	putFourcc(p, "strh");
+	put32(p + 4, 56);
+	putFourcc(p + 8, "vids");
+	putFourcc(p + 12, mono ? "Y800" : "YUY2");
+	put32(p + 28, _rateDenominator);                // Scale
+	put32(p + 32, _rateNumerator);                  // Rate
+	put32(p + 44, _recordSize);                     // Suggested buffer size
+	put32(p + 48, 0xFFFFFFFF);                      // Quality
+	put16(p + 60, width);                           // Frame rectangle
+	put16(p + 62, height);
+
+	p = header + 164;
+	putFourcc(p, "strf");
+	put32(p + 4, 40);
+	put32(p + 8, 40);                               // BITMAPINFOHEADER
+	put32(p + 12, width);
+	put32(p + 16, height);
+	put16(p + 20, 1);                               // Planes
+	put16(p + 22, mono ? 8 : 16);                   // Bits per pixel
+	putFourcc(p + 24, mono ? "Y800" : "YUY2");
+	put32(p + 28, _params.bufferSize);
+
+	p = header + 212;
+	putFourcc(p, "LIST");
+	putFourcc(p + 8, "movi");
+	return AVI_HEADER_SIZE;
+}
+
+/**
+ * Takes enough free chunks, in addition to the current one, to hold length more bytes
+ *
+ * @return false if the chunks are not free, none are taken
+ */
+bool VideoRecorder::reserveChunks(uint32_t length) {
+	uint32_t available = (_current >= 0) ? USBTV_RECORDER_CHUNK_SIZE - _position : 0;
+	uint32_t needed = (length > available) ?
+	                  (length - available + USBTV_RECORDER_CHUNK_SIZE - 1) / USBTV_RECORDER_CHUNK_SIZE : 0;
+
+	_reservedCount = 0;
+	_reservedNext = 0;
+	uint64_t deadlineNs = getSteadyTimeNs() + USBTV_RECORDER_MAX_WAIT_MS * 1000000ULL;
+	while (_reservedCount < needed) {
+		int index;
+		if (_freeChunks.try_dequeue(index)) {
+			_reserved[_reservedCount++] = index;
+			continue;
+		}
+
+		uint64_t now = getSteadyTimeNs();
+		if (_policy != RecordPolicy::WAIT || now >= deadlineNs) {
+			releaseReserved();
+			return false;
+		}
+		TRACE_SCOPE(RECORD_WAIT, 0);
+		if (_freeChunks.wait_dequeue_timed(index, (int64_t)((deadlineNs - now) / 1000))) {
+			_reserved[_reservedCount++] = index;
+		}
+	}
+	return true;
+}
+
+/**
+ * Returns reserved chunks that were not used to the free queue
+ */
+void VideoRecorder::releaseReserved() {
+	for (uint32_t i = _reservedNext; i < _reservedCount; i++) {
+		_freeChunks.enqueue(_reserved[i]);
+	}
+	_reservedCount = 0;
+	_reservedNext = 0;
+}
+
+/**
+ * Copies data to the end of the file, moving to reserved chunks as chunks fill.  Enough
+ * chunks must have been reserved.
+ */
+void VideoRecorder::append(const uint8_t *data, uint32_t length) {
+	while (length > 0) {
+		if (_current < 0) {
+			_current = _reserved[_reservedNext++];
+			_position = 0;
+		}
+
+		uint32_t count = USBTV_RECORDER_CHUNK_SIZE - _position;
+		if (count > length) {
+			count = length;
+		}
+		memcpy(_chunks[_current] + _position, data, count);
+		_position += count;
+		_fileSize += count;
+		data += count;
+		length -= count;
+
+		if (_position == USBTV_RECORDER_CHUNK_SIZE) {
+			queueChunk();
+		}
+	}
+}
+
+/**
+ * Queues the current chunk for the writer.  Only the last chunk of a recording is queued
+ * before it is full.
+ */
+void VideoRecorder::queueChunk() {
+	_chunkLength[_current] = _position;
+	_chunkOffset[_current] = _fileSize - _position;
+	_fullChunks.enqueue(_current);
+	_current = -1;
+	_position = 0;
+}
+
+/**
+ * Writes queued chunks until a negative index is received.  Chunks are written at their own
+ * offset, so the order they are dequeued in does not matter.
+ */
+void VideoRecorder::writerLoop() {
+	TRACE_THREAD_NAME("usbtv_recorder");
+
+	int index;
+	while (true) {
+		_fullChunks.wait_dequeue(index);
+		if (index < 0) {
+			break;
+		}
+
+		// Once a write fails the rest of the recording is discarded
+		if (!_writeFailed && !writeChunk(index)) {
+			LOGE("Video recording write failed: %s", strerror(errno));
+			_writeFailed = true;
+		}
+		_freeChunks.enqueue(index);
+	}
+}
+
+/**
+ * Writes a chunk to the file.  With direct I/O the length is rounded up to the alignment,
+ * close() truncates the padding.
+ */
+bool VideoRecorder::writeChunk(int index) {
+	uint32_t length = _chunkLength[index];
+	TRACE_SCOPE(RECORD_WRITE, length);
+
+	if (_direct) {
+		uint32_t aligned = (length + USBTV_RECORDER_ALIGNMENT - 1) & ~(USBTV_RECORDER_ALIGNMENT - 1);
+		memset(_chunks[index] + length, 0, aligned - length);
+		if (writeFully(_fd, _chunks[index], aligned, _chunkOffset[index])) {
+			_bytesWritten += length;
+			return true;
+		}
+		if (errno != EINVAL) {
+			return false;
+		}
+
+		// The filesystem accepted O_DIRECT at open but not for writes
+		LOGD("Direct I/O unsupported, recording with buffered I/O");
+		fcntl(_fd, F_SETFL, fcntl(_fd, F_GETFL) & ~O_DIRECT);
+		_direct = false;
+	}
+
+	if (!writeFully(_fd, _chunks[index], length, _chunkOffset[index])) {
+		return false;
+	}
+	_bytesWritten += length;
+	return true;
+}
+
+/**
+ * Appends the idx1 index and writes the sizes and frame counts to the AVI header.  The
+ * writer thread must be stopped.
+ */
+void VideoRecorder::finishAvi() {
+	uint32_t frames = _recordedFrames;
+	uint32_t indexSize = frames * AVI_INDEX_ENTRY_SIZE;
+	uint8_t* index = (uint8_t*)malloc(8 + indexSize);
+	if (index == nullptr) {
+		return;
+	}
+
+	putFourcc(index, "idx1");
+	put32(index + 4, indexSize);
+	for (uint32_t i = 0; i < frames; i++) {
+		uint8_t* entry = index + 8 + i * AVI_INDEX_ENTRY_SIZE;
+		putFourcc(entry, "00db");
+		put32(entry + 4, AVIIF_KEYFRAME);
+		put32(entry + 8, 4 + i * _recordSize);
+		put32(entry + 12, _params.bufferSize);
+	}
+	bool success = writeFully(_fd, index, 8 + indexSize, _fileSize);
+	free(index);
+
+	uint8_t value[4];
+	uint64_t totalSize = _fileSize + 8 + indexSize;
+	put32(value, (uint32_t)(totalSize - 8));
+	success = success && writeFully(_fd, value, 4, AVI_RIFF_SIZE_OFFSET);
+	put32(value, frames);
+	success = success && writeFully(_fd, value, 4, AVI_TOTAL_FRAMES_OFFSET);
+	success = success && writeFully(_fd, value, 4, AVI_LENGTH_OFFSET);
+	put32(value, (uint32_t)(_fileSize - AVI_MOVI_OFFSET));
+	success = success && writeFully(_fd, value, 4, AVI_MOVI_SIZE_OFFSET);
+	if (!success) {
+		LOGE("Unable to complete AVI recording");
+	}
+}
+
+/**
+ * Frees the chunk ring.  The writer thread must be stopped.
+ */
+void VideoRecorder::releaseChunks() {
+	int index;
+	while (_freeChunks.try_dequeue(index)) {}
+	while (_fullChunks.try_dequeue(index)) {}
+	for (int i = 0; i < USBTV_RECORDER_CHUNKS; i++) {
+		free(_chunks[i]);
+		_chunks[i] = nullptr;
+	}
+	free(_planar);
+	_planar = nullptr;
+	_current = -1;
+	_position = 0;
+}
+
+/**
+ * @return Average rate frames have been written to the file since it was opened, in MB/s
+ */
+double VideoRecorder::getWriteRate() {
+	uint64_t endNs = (_stopTimeNs > 0) ? _stopTimeNs : getSteadyTimeNs();
+	if (_startTimeNs == 0 || endNs <= _startTimeNs) {
+		return 0.0;
+	}
+	return (double)getBytesWritten() / (1024.0 * 1024.0) / ((endNs - _startTimeNs) / 1e9);
+}
@@ -0,0 +1,121 @@
+// Copyright (C) 2020 Eric Callahan <arksine.code@gmail.com>
+//
+// This file may be distributed under the terms of the GNU GPLv3 license
+//
+// Records delivered frames, uncompressed, to a raw, Y4M or AVI file.  The frame process
+// thread serializes each frame straight into a ring of page aligned chunks, a writer thread
+// writes full chunks to the file.  The file is opened with O_DIRECT where the filesystem
+// allows it, so recording at full rate neither fills the page cache nor stalls the process
+// thread on writeback.
+//
+// A frame is only recorded if every chunk it needs is free.  When storage falls behind the
+// frame is either dropped or, with RecordPolicy::WAIT, the process thread waits a bounded
+// time for the writer.
+//
+// File layouts:
+//  RAW     Frames back to back, as delivered
+//  Y4M     YUV4MPEG2 stream header, then "FRAME\n" and planar 4:2:2 (or mono) data per frame
+//  AVI     RIFF AVI with a single YUY2 (or Y800) stream and an idx1 index.  The header sizes
+//          and index are written when recording stops, files are limited to 2GB.
+//
+
+#ifndef USBTV007_ANDROID_VIDEORECORDER_H
+#define USBTV007_ANDROID_VIDEORECORDER_H
+
+#include <atomic>
+#include <cstdint>
+#include <mutex>
+#include <thread>
+#include "usbtv_definitions.h"
+#include "ConcurrentQueue/blockingconcurrentqueue.h"
+
+#define USBTV_RECORDER_CHUNK_SIZE       (4 * 1024 * 1024)
+#define USBTV_RECORDER_CHUNKS           8
+#define USBTV_RECORDER_ALIGNMENT        4096
+#define USBTV_RECORDER_MAX_WAIT_MS      100
+#define USBTV_RECORDER_AVI_MAX_BYTES    0x7FFFFFFFULL
+
+enum struct VideoContainer : uint8_t {
+	RAW = 0,
+	Y4M = 1,
+	AVI = 2
+};
+
+// What the process thread does when no chunk is free for a frame
+enum struct RecordPolicy : uint8_t {
+	DROP = 0,
+	WAIT = 1
+};
+
+class VideoRecorder {
+private:
+	// _writeMutex is held by the process thread while it serializes a frame and by the
+	// control thread while the file is opened or closed, the process thread never waits for it.
+	std::mutex      _writeMutex;
+	std::atomic<int>    _fd;            // Checked by isOpen() from other threads
+	bool            _direct;            // The file was opened with O_DIRECT
+	VideoContainer  _container;
+	RecordPolicy    _policy;
+	FrameParams     _params;
+	uint32_t        _rateNumerator;
+	uint32_t        _rateDenominator;
+	uint32_t        _recordSize;        // Bytes written per frame, including its header
+	uint64_t        _maxBytes;
+	bool            _full;
+
+	// Chunk ring.  The chunk being filled is owned by the process thread, full chunks are
+	// queued with their file offset and length for the writer.
+	uint8_t*        _chunks[USBTV_RECORDER_CHUNKS];
+	uint32_t        _chunkLength[USBTV_RECORDER_CHUNKS];
+	uint64_t        _chunkOffset[USBTV_RECORDER_CHUNKS];
+	moodycamel::BlockingConcurrentQueue<int>    _freeChunks;
+	moodycamel::BlockingConcurrentQueue<int>    _fullChunks;
+	int             _current;           // Chunk being filled, or -1
+	uint32_t        _position;          // Write position within the current chunk
+	uint64_t        _fileSize;          // Bytes serialized so far
+	int             _reserved[USBTV_RECORDER_CHUNKS];
+	uint32_t        _reservedCount;
+	uint32_t        _reservedNext;
+	uint8_t*        _planar;            // Y4M conversion buffer
+	std::thread*    _writerThread;
+
+	std::atomic<bool>       _writeFailed;
+	std::atomic<uint64_t>   _bytesWritten;
+	uint64_t        _startTimeNs;
+	uint64_t        _stopTimeNs;
+	std::atomic<uint32_t>   _recordedFrames;
+	std::atomic<uint32_t>   _droppedFrames;
+
+	uint32_t computeRecordSize();
+	uint32_t buildFileHeader(uint8_t* header);
+	bool reserveChunks(uint32_t length);
+	void releaseReserved();
+	void append(const uint8_t* data, uint32_t length);
+	void queueChunk();
+	void writerLoop();
+	bool writeChunk(int index);
+	void finishAvi();
+	void releaseChunks();
+
+public:
+	VideoRecorder();
+	~VideoRecorder();
+
+	bool open(const char* path, VideoContainer container, RecordPolicy policy,
+	          uint64_t maxBytes, const FrameParams& params, uint32_t rateNumerator,
+	          uint32_t rateDenominator);
+	void close();
+	bool write(const UsbTvFrame* frame);
+
+	bool isOpen() {
+		return _fd.load(std::memory_order_relaxed) >= 0;
+	}
+
+	uint32_t getRecordedFrameCount() { return _recordedFrames.load(std::memory_order_relaxed); }
+	uint32_t getDroppedFrameCount() { return _droppedFrames.load(std::memory_order_relaxed); }
+	uint64_t getBytesWritten() { return _bytesWritten.load(std::memory_order_relaxed); }
+	double getWriteRate();
+};
+
+
+#endif //USBTV007_ANDROID_VIDEORECORDER_H
@@ -0,0 +1,126 @@
+// Copyright (C) 2020 Eric Callahan <arksine.code@gmail.com>
+//
+// This file may be distributed under the terms of the GNU GPLv3 license
+
+#include "WorkerPool.h"
+#include "Tracer.h"
+
+/**
+ * Starts the worker threads
+ *
+ * @param threadCount   Threads created in addition to the thread calling run().  With
+ *                      zero threads run() executes every part itself.
+ * @param name          Thread name used in traces
+ */
+WorkerPool::WorkerPool(uint8_t threadCount, const char* name) {
+	_running = true;
+	_jobParts = 0;
+	_nextPart = 0;
+	_partsDone = 0;
+	_activeWorkers = 0;
+	_generation = 0;
+
+	for (uint8_t i = 0; i < threadCount; i++) {
+		_threads.push_back(new std::thread(&WorkerPool::workerLoop, this, name));
+	}
+}
+
+WorkerPool::~WorkerPool() {
+	{
+		std::lock_guard<std::mutex> lock(_mutex);
+		_running = false;
+	}
+	_startCondition.notify_all();
+
+	for (std::thread* thread : _threads) {
+		thread->join();
+		delete thread;
+	}
+}
+
+/**
+ * Returns the number of worker threads to create so that, with the calling thread, no
+ * more than maxThreads threads and no more threads than cores are used
+ */
+uint8_t WorkerPool::defaultThreadCount(uint8_t maxThreads) {
+	unsigned int cores = std::thread::hardware_concurrency();
+	if (cores == 0) {
+		cores = 1;
+	}
+	if (cores > maxThreads) {
+		cores = maxThreads;
+	}
+	return (uint8_t)(cores > 0 ? cores - 1 : 0);
+}
+
+/**
+ * Executes job once for each part number in [0, parts), spread across the workers and the
+ * calling thread.  Blocks until all parts have completed.
+ */
+void WorkerPool::run(uint32_t parts, const WorkerJob &job) {
+	if (_threads.empty() || parts < 2) {
+		for (uint32_t i = 0; i < parts; i++) {
+			job(i);
+		}
+		return;
+	}
+
+	{
+		// Workers that woke too late for the previous job may still be leaving it
+		std::unique_lock<std::mutex> lock(_mutex);
+		_doneCondition.wait(lock, [this] { return _activeWorkers == 0; });
+
+		_job = job;
+		_jobParts = parts;
+		_partsDone = 0;
+		_nextPart.store(0, std::memory_order_relaxed);
+		_generation++;
+	}
+	_startCondition.notify_all();
+
+	uint32_t done = runParts();
+
+	std::unique_lock<std::mutex> lock(_mutex);
+	_partsDone += done;
+	_doneCondition.wait(lock, [this] {
+		return _partsDone == _jobParts && _activeWorkers == 0;
+	});
+}
+
+uint32_t WorkerPool::runParts() {
+	uint32_t done = 0;
+	uint32_t part;
+	while ((part = _nextPart.fetch_add(1, std::memory_order_relaxed)) < _jobParts) {
+		_job(part);
+		done++;
+	}
+	return done;
+}
+
+void WorkerPool::workerLoop(const char* name) {
+	TRACE_THREAD_NAME(name);
+	uint64_t lastGeneration = 0;
+
+	std::unique_lock<std::mutex> lock(_mutex);
+	while (true) {
+		_startCondition.wait(lock, [this, lastGeneration] {
+			return _generation != lastGeneration || !_running;
+		});
+		if (!_running) {
+			break;
+		}
+
+		lastGeneration = _generation;
+		_activeWorkers++;
+		lock.unlock();
+
+		uint32_t done = runParts();
+
+		lock.lock();
+		_activeWorkers--;
+		_partsDone += done;
+		if (_activeWorkers == 0 || _partsDone == _jobParts) {
+			_doneCondition.notify_all();
+		}
+	}
+}
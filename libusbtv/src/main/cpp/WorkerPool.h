@@ -0,0 +1,56 @@
+// Copyright (C) 2020 Eric Callahan <arksine.code@gmail.com>
+//
+// This file may be distributed under the terms of the GNU GPLv3 license
+//
+// A small fixed pool of threads that splits a job into numbered parts (ie. row stripes of a
+// frame).  The calling thread works on parts as well, and run() returns once every part
+// is finished.
+//
+
+#ifndef USBTV007_ANDROID_WORKERPOOL_H
+#define USBTV007_ANDROID_WORKERPOOL_H
+
+#include <cstdint>
+#include <vector>
+#include <thread>
+#include <mutex>
+#include <atomic>
+#include <functional>
+#include <condition_variable>
+
+typedef std::function<void(uint32_t)> WorkerJob;
+
+class WorkerPool {
+private:
+	std::vector<std::thread*>   _threads;
+	std::mutex                  _mutex;
+	std::condition_variable     _startCondition;
+	std::condition_variable     _doneCondition;
+	bool                        _running;
+
+	// Current job, only replaced while no worker is active
+	WorkerJob               _job;
+	uint32_t                _jobParts;
+	std::atomic<uint32_t>   _nextPart;
+	uint32_t                _partsDone;
+	uint32_t                _activeWorkers;
+	uint64_t                _generation;
+
+	void workerLoop(const char* name);
+	uint32_t runParts();
+
+public:
+	WorkerPool(uint8_t threadCount, const char* name);
+	~WorkerPool();
+
+	uint8_t getThreadCount() {
+		return (uint8_t)_threads.size();
+	}
+
+	void run(uint32_t parts, const WorkerJob& job);
+
+	static uint8_t defaultThreadCount(uint8_t maxThreads);
+};
+
+
+#endif //USBTV007_ANDROID_WORKERPOOL_H
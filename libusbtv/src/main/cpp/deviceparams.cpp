@@ -0,0 +1,78 @@
+// Copyright (C) 2020 Eric Callahan <arksine.code@gmail.com>
+//
+// This file may be distributed under the terms of the GNU GPLv3 license
+//
+// Native methods of DeviceParams.  These only call static driver code, so they are built
+// into the JMH stub library as well as libusbtv.
+//
+
+#include "deviceparams.h"
+#include "UsbTvDriver.h"
+
+// Layout of the array passed to resolveFrameGeometry.  Must agree with DeviceParams.GEOMETRY_*
+enum {
+	GEOMETRY_CROP_X,
+	GEOMETRY_CROP_Y,
+	GEOMETRY_CROP_WIDTH,
+	GEOMETRY_CROP_HEIGHT,
+	GEOMETRY_WIDTH,
+	GEOMETRY_HEIGHT,
+	GEOMETRY_SECONDARY_WIDTH,
+	GEOMETRY_SECONDARY_HEIGHT,
+	GEOMETRY_SIZE
+};
+
+static uint16_t clampGeometry(jint value, int max) {
+	return (uint16_t)((value < 0) ? 0 : ((value > max) ? max : value));
+}
+
+extern "C" {
+
+/**
+ * Resolves frame geometry as the driver will apply it.  The array holds the requested crop,
+ * scale size and secondary size on entry, and the applied crop, delivered frame size and
+ * secondary frame size on return.
+ */
+JNIEXPORT void JNICALL Java_com_arksine_libusbtv_DeviceParams_resolveFrameGeometry(JNIEnv* jenv,
+                                                                                  jclass thisClass,
+                                                                                  jint norm,
+                                                                                  jint scanType,
+                                                                                  jint packetsPerField,
+                                                                                  jboolean squarePixels,
+                                                                                  jintArray geometry) {
+	if (geometry == nullptr || jenv->GetArrayLength(geometry) < GEOMETRY_SIZE) {
+		return;
+	}
+
+	jint values[GEOMETRY_SIZE];
+	jenv->GetIntArrayRegion(geometry, 0, GEOMETRY_SIZE, values);
+
+	StreamParams params = {};
+	params.frame.norm = static_cast<TvNorm>(norm);
+	params.frame.scanType = static_cast<ScanType>(scanType);
+	params.packetsPerField = clampGeometry(packetsPerField, UINT16_MAX);
+	params.crop.x = clampGeometry(values[GEOMETRY_CROP_X], UINT16_MAX);
+	params.crop.y = clampGeometry(values[GEOMETRY_CROP_Y], UINT16_MAX);
+	params.crop.width = clampGeometry(values[GEOMETRY_CROP_WIDTH], UINT16_MAX);
+	params.crop.height = clampGeometry(values[GEOMETRY_CROP_HEIGHT], UINT16_MAX);
+	params.scale.width = clampGeometry(values[GEOMETRY_WIDTH], USBTV_SCALE_MAX_WIDTH);
+	params.scale.height = clampGeometry(values[GEOMETRY_HEIGHT], USBTV_SCALE_MAX_HEIGHT);
+	params.scale.squarePixels = squarePixels;
+	params.secondary.width = clampGeometry(values[GEOMETRY_SECONDARY_WIDTH],
+	                                       USBTV_SCALE_MAX_WIDTH);
+	params.secondary.height = clampGeometry(values[GEOMETRY_SECONDARY_HEIGHT],
+	                                        USBTV_SCALE_MAX_HEIGHT);
+
+	FrameGeometry resolved = UsbTvDriver::resolveGeometry(params);
+	values[GEOMETRY_CROP_X] = resolved.crop.x;
+	values[GEOMETRY_CROP_Y] = resolved.crop.y;
+	values[GEOMETRY_CROP_WIDTH] = resolved.crop.width;
+	values[GEOMETRY_CROP_HEIGHT] = resolved.crop.height;
+	values[GEOMETRY_WIDTH] = resolved.frameWidth;
+	values[GEOMETRY_HEIGHT] = resolved.frameHeight;
+	values[GEOMETRY_SECONDARY_WIDTH] = resolved.secondaryWidth;
+	values[GEOMETRY_SECONDARY_HEIGHT] = resolved.secondaryHeight;
+	jenv->SetIntArrayRegion(geometry, 0, GEOMETRY_SIZE, values);
+}
+
+}
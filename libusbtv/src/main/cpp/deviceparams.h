@@ -0,0 +1,20 @@
+// Copyright (C) 2020 Eric Callahan <arksine.code@gmail.com>
+//
+// This file may be distributed under the terms of the GNU GPLv3 license
+
+#ifndef USBTV007_ANDROID_DEVICEPARAMS_H
+#define USBTV007_ANDROID_DEVICEPARAMS_H
+
+#include <jni.h>
+
+extern "C" {
+JNIEXPORT void JNICALL Java_com_arksine_libusbtv_DeviceParams_resolveFrameGeometry(JNIEnv* jenv,
+                                                                                  jclass thisClass,
+                                                                                  jint norm,
+                                                                                  jint scanType,
+                                                                                  jint packetsPerField,
+                                                                                  jboolean squarePixels,
+                                                                                  jintArray geometry);
+};
+
+#endif //USBTV007_ANDROID_DEVICEPARAMS_H
@@ -6,12 +6,14 @@
 #include <android/native_window_jni.h>
 #include "usbtv.h"
 #include "UsbTvDriver.h"
+#include "JNIHelpers/JavaCallback.h"
 
 
 // Global vars necessary for tracking
 UsbTvDriver* usbtv = nullptr;
 JavaVM* javaVm = nullptr;
 JavaCallback* callback = nullptr;
+JavaCallback* secondaryCallback = nullptr;
 
 // TODO: jniOnUnload?
 
@@ -45,21 +47,30 @@ JNIEXPORT jboolean JNICALL Java_com_arksine_libusbtv_UsbTv_initialize(JNIEnv* je
 	if (callback != nullptr) {
 		delete callback;
 	}
+	if (secondaryCallback != nullptr) {
+		delete secondaryCallback;
+	}
 
 	callback = new JavaCallback(javaVm, thisObj, "nativeFrameCallback",
-	                            "(Lcom/arksine/libusbtv/UsbTvFrame;II)V");
+	                            "(Lcom/arksine/libusbtv/UsbTvFrame;IIJ)V");
+	callback->setMotionFunction("nativeMotionCallback", "(IIJI[I)V");
+	secondaryCallback = new JavaCallback(javaVm, thisObj, "nativeSecondaryFrameCallback",
+	                                     "(Lcom/arksine/libusbtv/UsbTvFrame;IIJ)V");
 
 	usbtv = new UsbTvDriver(jenv, callback, params);
 
 	if (!usbtv->isInitialized()) {
 		LOGE("Error Initializing UsbTV Driver");
 		delete callback;
+		delete secondaryCallback;
 		delete usbtv;
 		callback = nullptr;
+		secondaryCallback = nullptr;
 		usbtv = nullptr;
 
 		return (jboolean) false;
 	}
+	usbtv->setSecondaryCallback(secondaryCallback);
 
 	return (jboolean)true;
 
@@ -77,6 +88,11 @@ JNIEXPORT void JNICALL Java_com_arksine_libusbtv_UsbTv_dispose(JNIEnv* jenv,
 		callback = nullptr;
 	}
 
+	if (secondaryCallback != nullptr) {
+		delete secondaryCallback;
+		secondaryCallback = nullptr;
+	}
+
 }
 
 JNIEXPORT void JNICALL Java_com_arksine_libusbtv_UsbTv_useCallback(JNIEnv* jenv,
@@ -87,6 +103,14 @@ JNIEXPORT void JNICALL Java_com_arksine_libusbtv_UsbTv_useCallback(JNIEnv* jenv,
 	}
 }
 
+JNIEXPORT void JNICALL Java_com_arksine_libusbtv_UsbTv_useSecondaryCallback(JNIEnv* jenv,
+                                                                            jobject thisObj,
+                                                                            jboolean shouldUse) {
+	if (usbtv != nullptr) {
+		usbtv->useSecondaryCallback((bool)shouldUse);
+	}
+}
+
 
 JNIEXPORT jboolean JNICALL Java_com_arksine_libusbtv_UsbTv_startStreaming(JNIEnv* jenv,
                                                                           jobject thisObj,
@@ -140,6 +164,365 @@ JNIEXPORT jint JNICALL Java_com_arksine_libusbtv_UsbTv_getControl(JNIEnv* jenv,
 	}
 }
 
+JNIEXPORT jboolean JNICALL Java_com_arksine_libusbtv_UsbTv_startRecording(JNIEnv* jenv,
+                                                                         jobject thisObj,
+                                                                         jstring path,
+                                                                         jint maxMegabytes) {
+	if (usbtv == nullptr || path == nullptr) {
+		return (jboolean) false;
+	}
+
+	const char* filePath = jenv->GetStringUTFChars(path, nullptr);
+	bool success = usbtv->startRecording(filePath, (uint64_t)maxMegabytes * 1024 * 1024);
+	jenv->ReleaseStringUTFChars(path, filePath);
+	return (jboolean) success;
+}
+
+JNIEXPORT void JNICALL Java_com_arksine_libusbtv_UsbTv_stopRecording(JNIEnv* jenv,
+                                                                    jobject thisObj) {
+	if (usbtv != nullptr) {
+		usbtv->stopRecording();
+	}
+}
+
+JNIEXPORT jint JNICALL Java_com_arksine_libusbtv_UsbTv_getIsoTransferCount(JNIEnv* jenv,
+                                                                          jobject thisObj) {
+	if (usbtv != nullptr) {
+		return usbtv->getIsoTransferCount();
+	} else {
+		return 0;
+	}
+}
+
+JNIEXPORT jint JNICALL Java_com_arksine_libusbtv_UsbTv_getIsoPacketsPerRequest(JNIEnv* jenv,
+                                                                              jobject thisObj) {
+	if (usbtv != nullptr) {
+		return usbtv->getIsoPacketsPerRequest();
+	} else {
+		return 0;
+	}
+}
+
+JNIEXPORT void JNICALL Java_com_arksine_libusbtv_UsbTv_setDenoiseStrength(JNIEnv* jenv,
+                                                                         jobject thisObj,
+                                                                         jint strength) {
+	if (usbtv != nullptr) {
+		usbtv->setDenoiseStrength((int)strength);
+	}
+}
+
+JNIEXPORT void JNICALL Java_com_arksine_libusbtv_UsbTv_setChangeDetection(JNIEnv* jenv,
+                                                                         jobject thisObj,
+                                                                         jint threshold,
+                                                                         jboolean suppressUnchanged) {
+	if (usbtv != nullptr) {
+		usbtv->setChangeDetection((int)threshold, (bool)suppressUnchanged);
+	}
+}
+
+JNIEXPORT void JNICALL Java_com_arksine_libusbtv_UsbTv_setMotionDetection(JNIEnv* jenv,
+                                                                         jobject thisObj,
+                                                                         jint sensitivity,
+                                                                         jboolean gateFrames) {
+	if (usbtv != nullptr) {
+		usbtv->setMotionDetection((int)sensitivity, (bool)gateFrames);
+	}
+}
+
+JNIEXPORT jboolean JNICALL Java_com_arksine_libusbtv_UsbTv_setCrop(JNIEnv* jenv,
+                                                                  jobject thisObj,
+                                                                  jobject params) {
+	if (usbtv != nullptr) {
+		return (jboolean)usbtv->setCrop(params);
+	} else {
+		return (jboolean)false;
+	}
+}
+
+JNIEXPORT jint JNICALL Java_com_arksine_libusbtv_UsbTv_getSecondaryDroppedFrameCount(JNIEnv* jenv,
+                                                                                    jobject thisObj) {
+	if (usbtv != nullptr) {
+		return (jint) usbtv->getSecondaryDroppedFrameCount();
+	} else {
+		return 0;
+	}
+}
+
+JNIEXPORT jint JNICALL Java_com_arksine_libusbtv_UsbTv_getSuppressedFrameCount(JNIEnv* jenv,
+                                                                              jobject thisObj) {
+	if (usbtv != nullptr) {
+		return (jint) usbtv->getSuppressedFrameCount();
+	} else {
+		return 0;
+	}
+}
+
+JNIEXPORT jboolean JNICALL Java_com_arksine_libusbtv_UsbTv_startTimeshift(JNIEnv* jenv,
+                                                                         jobject thisObj,
+                                                                         jstring path,
+                                                                         jint seconds) {
+	if (usbtv == nullptr || seconds <= 0 || seconds > USBTV_TIMESHIFT_MAX_SECONDS) {
+		return (jboolean) false;
+	}
+
+	// Without a path the ring is kept in memory
+	const char* filePath = (path != nullptr) ? jenv->GetStringUTFChars(path, nullptr) : nullptr;
+	bool success = usbtv->startTimeshift(filePath, (uint16_t)seconds);
+	if (filePath != nullptr) {
+		jenv->ReleaseStringUTFChars(path, filePath);
+	}
+	return (jboolean) success;
+}
+
+JNIEXPORT void JNICALL Java_com_arksine_libusbtv_UsbTv_stopTimeshift(JNIEnv* jenv,
+                                                                    jobject thisObj) {
+	if (usbtv != nullptr) {
+		usbtv->stopTimeshift();
+	}
+}
+
+JNIEXPORT jint JNICALL Java_com_arksine_libusbtv_UsbTv_exportTimeshift(JNIEnv* jenv,
+                                                                      jobject thisObj,
+                                                                      jlong startTimeNs,
+                                                                      jlong endTimeNs,
+                                                                      jstring path) {
+	if (usbtv == nullptr || path == nullptr) {
+		return -1;
+	}
+
+	Timeshift* timeshift = usbtv->getTimeshift();
+	uint64_t first;
+	uint64_t last;
+	if (!timeshift->findByTime((uint64_t)startTimeNs, &first) ||
+	    !timeshift->findByTime((uint64_t)endTimeNs, &last)) {
+		return -1;
+	}
+
+	const char* filePath = jenv->GetStringUTFChars(path, nullptr);
+	int64_t exported = timeshift->exportRange(first, last, filePath);
+	jenv->ReleaseStringUTFChars(path, filePath);
+	return (jint) exported;
+}
+
+JNIEXPORT jint JNICALL Java_com_arksine_libusbtv_UsbTv_getTimeshiftDroppedFrameCount(JNIEnv* jenv,
+                                                                                    jobject thisObj) {
+	if (usbtv != nullptr) {
+		return (jint) usbtv->getTimeshift()->getDroppedFrameCount();
+	} else {
+		return 0;
+	}
+}
+
+JNIEXPORT jboolean JNICALL Java_com_arksine_libusbtv_UsbTv_startVideoRecording(JNIEnv* jenv,
+                                                                              jobject thisObj,
+                                                                              jstring path,
+                                                                              jint container,
+                                                                              jint policy,
+                                                                              jint maxMegabytes) {
+	if (usbtv == nullptr || path == nullptr || container < 0 ||
+	    container > (jint)VideoContainer::AVI || policy < 0 || policy > (jint)RecordPolicy::WAIT ||
+	    maxMegabytes < 0) {
+		return (jboolean) false;
+	}
+
+	const char* filePath = jenv->GetStringUTFChars(path, nullptr);
+	bool success = usbtv->startVideoRecording(filePath, (VideoContainer)container,
+	                                          (RecordPolicy)policy,
+	                                          (uint64_t)maxMegabytes * 1024 * 1024);
+	jenv->ReleaseStringUTFChars(path, filePath);
+	return (jboolean) success;
+}
+
+JNIEXPORT void JNICALL Java_com_arksine_libusbtv_UsbTv_stopVideoRecording(JNIEnv* jenv,
+                                                                         jobject thisObj) {
+	if (usbtv != nullptr) {
+		usbtv->stopVideoRecording();
+	}
+}
+
+JNIEXPORT jint JNICALL Java_com_arksine_libusbtv_UsbTv_getVideoRecordingDroppedFrameCount(JNIEnv* jenv,
+                                                                                         jobject thisObj) {
+	if (usbtv != nullptr) {
+		return (jint) usbtv->getVideoRecorder()->getDroppedFrameCount();
+	} else {
+		return 0;
+	}
+}
+
+JNIEXPORT jint JNICALL Java_com_arksine_libusbtv_UsbTv_startMjpegServer(JNIEnv* jenv,
+                                                                        jobject thisObj,
+                                                                        jint port,
+                                                                        jint quality,
+                                                                        jint maxFrameRate,
+                                                                        jstring accessToken) {
+	if (usbtv == nullptr || port < 0 || port > 65535 || quality < 1 || quality > 100 ||
+	    maxFrameRate < 0 || maxFrameRate > 255) {
+		return -1;
+	}
+
+	const char* token = (accessToken != nullptr) ?
+	                    jenv->GetStringUTFChars(accessToken, nullptr) : nullptr;
+	bool success = usbtv->startMjpegServer((uint16_t)port, token, (uint8_t)quality,
+	                                       (uint8_t)maxFrameRate);
+	if (token != nullptr) {
+		jenv->ReleaseStringUTFChars(accessToken, token);
+	}
+	if (!success) {
+		return -1;
+	}
+	return (jint) usbtv->getMjpegServer()->getPort();
+}
+
+JNIEXPORT void JNICALL Java_com_arksine_libusbtv_UsbTv_stopMjpegServer(JNIEnv* jenv,
+                                                                      jobject thisObj) {
+	if (usbtv != nullptr) {
+		usbtv->stopMjpegServer();
+	}
+}
+
+JNIEXPORT jint JNICALL Java_com_arksine_libusbtv_UsbTv_getMjpegClientCount(JNIEnv* jenv,
+                                                                          jobject thisObj) {
+	if (usbtv != nullptr) {
+		return (jint) usbtv->getMjpegServer()->getClientCount();
+	} else {
+		return 0;
+	}
+}
+
+JNIEXPORT jboolean JNICALL Java_com_arksine_libusbtv_UsbTv_startFrameSharing(JNIEnv* jenv,
+                                                                            jobject thisObj,
+                                                                            jstring socketName,
+                                                                            jintArray allowedUids) {
+	if (usbtv == nullptr || socketName == nullptr) {
+		return (jboolean) false;
+	}
+
+	std::vector<uid_t> uids;
+	if (allowedUids != nullptr) {
+		jsize count = jenv->GetArrayLength(allowedUids);
+		jint* elements = jenv->GetIntArrayElements(allowedUids, nullptr);
+		for (jsize i = 0; i < count; i++) {
+			uids.push_back((uid_t)elements[i]);
+		}
+		jenv->ReleaseIntArrayElements(allowedUids, elements, JNI_ABORT);
+	}
+
+	const char* name = jenv->GetStringUTFChars(socketName, nullptr);
+	bool success = usbtv->startFrameSharing(name, uids);
+	jenv->ReleaseStringUTFChars(socketName, name);
+	return (jboolean) success;
+}
+
+JNIEXPORT void JNICALL Java_com_arksine_libusbtv_UsbTv_stopFrameSharing(JNIEnv* jenv,
+                                                                       jobject thisObj) {
+	if (usbtv != nullptr) {
+		usbtv->stopFrameSharing();
+	}
+}
+
+JNIEXPORT jint JNICALL Java_com_arksine_libusbtv_UsbTv_getFrameSharingClientCount(JNIEnv* jenv,
+                                                                                 jobject thisObj) {
+	if (usbtv != nullptr) {
+		return (jint) usbtv->getSharedFramePool()->getClientCount();
+	} else {
+		return 0;
+	}
+}
+
+JNIEXPORT void JNICALL Java_com_arksine_libusbtv_UsbTv_setQualityGovernor(JNIEnv* jenv,
+                                                                        jobject thisObj,
+                                                                        jboolean enabled) {
+	if (usbtv != nullptr) {
+		usbtv->setQualityGovernor((bool)enabled);
+	}
+}
+
+JNIEXPORT jint JNICALL Java_com_arksine_libusbtv_UsbTv_getQualityLevel(JNIEnv* jenv,
+                                                                     jobject thisObj) {
+	if (usbtv != nullptr) {
+		return (jint) usbtv->getQualityGovernor()->getLevel();
+	} else {
+		return 0;
+	}
+}
+
+JNIEXPORT void JNICALL Java_com_arksine_libusbtv_UsbTv_setSignalDetection(JNIEnv* jenv,
+                                                                        jobject thisObj,
+                                                                        jboolean enabled,
+                                                                        jboolean idle) {
+	if (usbtv != nullptr) {
+		usbtv->setSignalDetection((bool)enabled, (bool)idle);
+	}
+}
+
+JNIEXPORT jint JNICALL Java_com_arksine_libusbtv_UsbTv_getSignalState(JNIEnv* jenv,
+                                                                    jobject thisObj) {
+	if (usbtv != nullptr) {
+		return (jint) usbtv->getSignalMonitor()->getState();
+	} else {
+		return 0;
+	}
+}
+
+JNIEXPORT void JNICALL Java_com_arksine_libusbtv_UsbTv_setLumaStatistics(JNIEnv* jenv,
+                                                                       jobject thisObj,
+                                                                       jboolean enabled) {
+	if (usbtv != nullptr) {
+		usbtv->setLumaStatistics((bool)enabled);
+	}
+}
+
+JNIEXPORT void JNICALL Java_com_arksine_libusbtv_UsbTv_setAutoLevel(JNIEnv* jenv,
+                                                                  jobject thisObj,
+                                                                  jboolean enabled) {
+	if (usbtv != nullptr) {
+		usbtv->setAutoLevel((bool)enabled);
+	}
+}
+
+// Tracing is process wide and does not require an initialized driver
+
+JNIEXPORT jboolean JNICALL Java_com_arksine_libusbtv_UsbTv_startTracing(JNIEnv* jenv,
+                                                                       jobject thisObj,
+                                                                       jint eventsPerThread) {
+	if (eventsPerThread <= 0) {
+		return (jboolean) false;
+	}
+	return (jboolean) Trace::start((uint32_t)eventsPerThread);
+}
+
+JNIEXPORT void JNICALL Java_com_arksine_libusbtv_UsbTv_stopTracing(JNIEnv* jenv,
+                                                                  jobject thisObj) {
+	Trace::stop();
+}
+
+JNIEXPORT jboolean JNICALL Java_com_arksine_libusbtv_UsbTv_dumpTrace(JNIEnv* jenv,
+                                                                    jobject thisObj,
+                                                                    jstring path,
+                                                                    jint format) {
+	if (path == nullptr) {
+		return (jboolean) false;
+	}
+
+	TraceFormat traceFormat;
+	switch (format) {
+		case 0:
+			traceFormat = TraceFormat::CHROME_JSON;
+			break;
+		case 1:
+			traceFormat = TraceFormat::PERFETTO;
+			break;
+		default:
+			LOGI("Invalid trace format");
+			return (jboolean) false;
+	}
+
+	const char* filePath = jenv->GetStringUTFChars(path, nullptr);
+	bool success = Trace::dump(filePath, traceFormat);
+	jenv->ReleaseStringUTFChars(path, filePath);
+	return (jboolean) success;
+}
+
 JNIEXPORT jboolean JNICALL Java_com_arksine_libusbtv_UsbTvFrame_returnFrameToPool(JNIEnv* jenv,
                                                                               jobject thisObj,
                                                                               jint poolIndex) {
@@ -148,4 +531,95 @@ JNIEXPORT jboolean JNICALL Java_com_arksine_libusbtv_UsbTvFrame_returnFrameToPoo
 	} else {
 		return (jboolean) false;
 	}
-}
\ No newline at end of file
+}
+// Timeshift playback.  Frames are identified by their sequence number in the ring, -1 when
+// there is no such frame.
+
+JNIEXPORT jboolean JNICALL Java_com_arksine_libusbtv_TimeshiftPlayer_getRange(JNIEnv* jenv,
+                                                                             jobject thisObj,
+                                                                             jlongArray range) {
+	TimeshiftRange held;
+	if (usbtv == nullptr || range == nullptr || jenv->GetArrayLength(range) < 4 ||
+	    !usbtv->getTimeshift()->getRange(&held)) {
+		return (jboolean) false;
+	}
+
+	jlong values[4] = {(jlong)held.oldest, (jlong)held.newest, (jlong)held.oldestTimestampNs,
+	                   (jlong)held.newestTimestampNs};
+	jenv->SetLongArrayRegion(range, 0, 4, values);
+	return (jboolean) true;
+}
+
+JNIEXPORT jlong JNICALL Java_com_arksine_libusbtv_TimeshiftPlayer_findFrame(JNIEnv* jenv,
+                                                                           jobject thisObj,
+                                                                           jlong timestampNs) {
+	uint64_t sequence;
+	if (usbtv == nullptr || timestampNs < 0 ||
+	    !usbtv->getTimeshift()->findByTime((uint64_t)timestampNs, &sequence)) {
+		return -1;
+	}
+	return (jlong) sequence;
+}
+
+JNIEXPORT jlong JNICALL Java_com_arksine_libusbtv_TimeshiftPlayer_findFrameId(JNIEnv* jenv,
+                                                                             jobject thisObj,
+                                                                             jint frameId) {
+	uint64_t sequence;
+	if (usbtv == nullptr || !usbtv->getTimeshift()->findByFrameId((uint32_t)frameId, &sequence)) {
+		return -1;
+	}
+	return (jlong) sequence;
+}
+
+JNIEXPORT jlong JNICALL Java_com_arksine_libusbtv_TimeshiftPlayer_getFrameTimestamp(JNIEnv* jenv,
+                                                                                   jobject thisObj,
+                                                                                   jlong sequence) {
+	TimeshiftEntry entry;
+	if (usbtv == nullptr || sequence < 0 ||
+	    !usbtv->getTimeshift()->getEntry((uint64_t)sequence, &entry)) {
+		return -1;
+	}
+	return (jlong) entry.timestampNs;
+}
+
+JNIEXPORT jboolean JNICALL Java_com_arksine_libusbtv_TimeshiftPlayer_getFrameParams(JNIEnv* jenv,
+                                                                                   jobject thisObj,
+                                                                                   jintArray params) {
+	FrameParams held;
+	if (usbtv == nullptr || params == nullptr || jenv->GetArrayLength(params) < 6 ||
+	    !usbtv->getTimeshift()->getFrameParams(&held)) {
+		return (jboolean) false;
+	}
+
+	// Layout must agree with TimeshiftPlayer.FRAME_*
+	jint values[6] = {(jint)held.frameWidth, (jint)held.frameHeight, (jint)held.norm,
+	                  (jint)held.scanType, (jint)held.pixelFormat, (jint)held.bufferSize};
+	jenv->SetIntArrayRegion(params, 0, 6, values);
+	return (jboolean) true;
+}
+
+JNIEXPORT jboolean JNICALL Java_com_arksine_libusbtv_TimeshiftPlayer_readFrame(JNIEnv* jenv,
+                                                                              jobject thisObj,
+                                                                              jlong sequence,
+                                                                              jobject buffer,
+                                                                              jlongArray info) {
+	if (usbtv == nullptr || sequence < 0 || buffer == nullptr || info == nullptr ||
+	    jenv->GetArrayLength(info) < 3) {
+		return (jboolean) false;
+	}
+
+	uint8_t* dst = (uint8_t*)jenv->GetDirectBufferAddress(buffer);
+	jlong capacity = jenv->GetDirectBufferCapacity(buffer);
+	if (dst == nullptr || capacity <= 0) {
+		return (jboolean) false;
+	}
+
+	TimeshiftEntry entry;
+	if (!usbtv->getTimeshift()->read((uint64_t)sequence, dst, (uint32_t)capacity, &entry)) {
+		return (jboolean) false;
+	}
+
+	jlong values[3] = {(jlong)entry.frameId, (jlong)entry.flags, (jlong)entry.timestampNs};
+	jenv->SetLongArrayRegion(info, 0, 3, values);
+	return (jboolean) true;
+}
@@ -22,6 +22,10 @@ JNIEXPORT void JNICALL Java_com_arksine_libusbtv_UsbTv_useCallback(JNIEnv* jenv,
                                                                   jobject thisObj,
                                                                   jboolean shouldUse);
 
+JNIEXPORT void JNICALL Java_com_arksine_libusbtv_UsbTv_useSecondaryCallback(JNIEnv* jenv,
+                                                                            jobject thisObj,
+                                                                            jboolean shouldUse);
+
 JNIEXPORT jboolean JNICALL Java_com_arksine_libusbtv_UsbTv_startStreaming(JNIEnv* jenv,
                                                                           jobject thisObj,
                                                                           jobject params);
@@ -42,9 +46,162 @@ JNIEXPORT jint JNICALL Java_com_arksine_libusbtv_UsbTv_getControl(JNIEnv* jenv,
                                                                   jobject thisObj,
                                                                   jint control);
 
+JNIEXPORT jboolean JNICALL Java_com_arksine_libusbtv_UsbTv_startRecording(JNIEnv* jenv,
+                                                                         jobject thisObj,
+                                                                         jstring path,
+                                                                         jint maxMegabytes);
+
+JNIEXPORT void JNICALL Java_com_arksine_libusbtv_UsbTv_stopRecording(JNIEnv* jenv,
+                                                                    jobject thisObj);
+
+JNIEXPORT jint JNICALL Java_com_arksine_libusbtv_UsbTv_getIsoTransferCount(JNIEnv* jenv,
+                                                                          jobject thisObj);
+
+JNIEXPORT jint JNICALL Java_com_arksine_libusbtv_UsbTv_getIsoPacketsPerRequest(JNIEnv* jenv,
+                                                                              jobject thisObj);
+
+JNIEXPORT void JNICALL Java_com_arksine_libusbtv_UsbTv_setDenoiseStrength(JNIEnv* jenv,
+                                                                         jobject thisObj,
+                                                                         jint strength);
+
+JNIEXPORT void JNICALL Java_com_arksine_libusbtv_UsbTv_setChangeDetection(JNIEnv* jenv,
+                                                                         jobject thisObj,
+                                                                         jint threshold,
+                                                                         jboolean suppressUnchanged);
+
+JNIEXPORT void JNICALL Java_com_arksine_libusbtv_UsbTv_setMotionDetection(JNIEnv* jenv,
+                                                                         jobject thisObj,
+                                                                         jint sensitivity,
+                                                                         jboolean gateFrames);
+
+JNIEXPORT jboolean JNICALL Java_com_arksine_libusbtv_UsbTv_setCrop(JNIEnv* jenv,
+                                                                  jobject thisObj,
+                                                                  jobject params);
+
+JNIEXPORT jint JNICALL Java_com_arksine_libusbtv_UsbTv_getSecondaryDroppedFrameCount(JNIEnv* jenv,
+                                                                                    jobject thisObj);
+
+JNIEXPORT jint JNICALL Java_com_arksine_libusbtv_UsbTv_getSuppressedFrameCount(JNIEnv* jenv,
+                                                                              jobject thisObj);
+
+JNIEXPORT jboolean JNICALL Java_com_arksine_libusbtv_UsbTv_startTimeshift(JNIEnv* jenv,
+                                                                         jobject thisObj,
+                                                                         jstring path,
+                                                                         jint seconds);
+
+JNIEXPORT void JNICALL Java_com_arksine_libusbtv_UsbTv_stopTimeshift(JNIEnv* jenv,
+                                                                    jobject thisObj);
+
+JNIEXPORT jint JNICALL Java_com_arksine_libusbtv_UsbTv_exportTimeshift(JNIEnv* jenv,
+                                                                      jobject thisObj,
+                                                                      jlong startTimeNs,
+                                                                      jlong endTimeNs,
+                                                                      jstring path);
+
+JNIEXPORT jint JNICALL Java_com_arksine_libusbtv_UsbTv_getTimeshiftDroppedFrameCount(JNIEnv* jenv,
+                                                                                    jobject thisObj);
+
+JNIEXPORT jboolean JNICALL Java_com_arksine_libusbtv_UsbTv_startVideoRecording(JNIEnv* jenv,
+                                                                              jobject thisObj,
+                                                                              jstring path,
+                                                                              jint container,
+                                                                              jint policy,
+                                                                              jint maxMegabytes);
+
+JNIEXPORT void JNICALL Java_com_arksine_libusbtv_UsbTv_stopVideoRecording(JNIEnv* jenv,
+                                                                         jobject thisObj);
+
+JNIEXPORT jint JNICALL Java_com_arksine_libusbtv_UsbTv_getVideoRecordingDroppedFrameCount(JNIEnv* jenv,
+                                                                                         jobject thisObj);
+
+JNIEXPORT jint JNICALL Java_com_arksine_libusbtv_UsbTv_startMjpegServer(JNIEnv* jenv,
+                                                                        jobject thisObj,
+                                                                        jint port,
+                                                                        jint quality,
+                                                                        jint maxFrameRate,
+                                                                        jstring accessToken);
+
+JNIEXPORT void JNICALL Java_com_arksine_libusbtv_UsbTv_stopMjpegServer(JNIEnv* jenv,
+                                                                      jobject thisObj);
+
+JNIEXPORT jint JNICALL Java_com_arksine_libusbtv_UsbTv_getMjpegClientCount(JNIEnv* jenv,
+                                                                          jobject thisObj);
+
+JNIEXPORT jboolean JNICALL Java_com_arksine_libusbtv_UsbTv_startFrameSharing(JNIEnv* jenv,
+                                                                            jobject thisObj,
+                                                                            jstring socketName,
+                                                                            jintArray allowedUids);
+
+JNIEXPORT void JNICALL Java_com_arksine_libusbtv_UsbTv_stopFrameSharing(JNIEnv* jenv,
+                                                                       jobject thisObj);
+
+JNIEXPORT jint JNICALL Java_com_arksine_libusbtv_UsbTv_getFrameSharingClientCount(JNIEnv* jenv,
+                                                                                 jobject thisObj);
+
+JNIEXPORT void JNICALL Java_com_arksine_libusbtv_UsbTv_setQualityGovernor(JNIEnv* jenv,
+                                                                        jobject thisObj,
+                                                                        jboolean enabled);
+
+JNIEXPORT jint JNICALL Java_com_arksine_libusbtv_UsbTv_getQualityLevel(JNIEnv* jenv,
+                                                                     jobject thisObj);
+
+JNIEXPORT void JNICALL Java_com_arksine_libusbtv_UsbTv_setSignalDetection(JNIEnv* jenv,
+                                                                        jobject thisObj,
+                                                                        jboolean enabled,
+                                                                        jboolean idle);
+
+JNIEXPORT jint JNICALL Java_com_arksine_libusbtv_UsbTv_getSignalState(JNIEnv* jenv,
+                                                                    jobject thisObj);
+
+JNIEXPORT void JNICALL Java_com_arksine_libusbtv_UsbTv_setLumaStatistics(JNIEnv* jenv,
+                                                                       jobject thisObj,
+                                                                       jboolean enabled);
+
+JNIEXPORT void JNICALL Java_com_arksine_libusbtv_UsbTv_setAutoLevel(JNIEnv* jenv,
+                                                                  jobject thisObj,
+                                                                  jboolean enabled);
+
+JNIEXPORT jboolean JNICALL Java_com_arksine_libusbtv_UsbTv_startTracing(JNIEnv* jenv,
+                                                                       jobject thisObj,
+                                                                       jint eventsPerThread);
+
+JNIEXPORT void JNICALL Java_com_arksine_libusbtv_UsbTv_stopTracing(JNIEnv* jenv,
+                                                                  jobject thisObj);
+
+JNIEXPORT jboolean JNICALL Java_com_arksine_libusbtv_UsbTv_dumpTrace(JNIEnv* jenv,
+                                                                    jobject thisObj,
+                                                                    jstring path,
+                                                                    jint format);
+
 JNIEXPORT jboolean JNICALL Java_com_arksine_libusbtv_UsbTvFrame_returnFrameToPool(JNIEnv* jenv,
                                                                                   jobject thisObj,
                                                                                   jint poolIndex);
+
+JNIEXPORT jboolean JNICALL Java_com_arksine_libusbtv_TimeshiftPlayer_getRange(JNIEnv* jenv,
+                                                                             jobject thisObj,
+                                                                             jlongArray range);
+
+JNIEXPORT jlong JNICALL Java_com_arksine_libusbtv_TimeshiftPlayer_findFrame(JNIEnv* jenv,
+                                                                           jobject thisObj,
+                                                                           jlong timestampNs);
+
+JNIEXPORT jlong JNICALL Java_com_arksine_libusbtv_TimeshiftPlayer_findFrameId(JNIEnv* jenv,
+                                                                             jobject thisObj,
+                                                                             jint frameId);
+
+JNIEXPORT jlong JNICALL Java_com_arksine_libusbtv_TimeshiftPlayer_getFrameTimestamp(JNIEnv* jenv,
+                                                                                   jobject thisObj,
+                                                                                   jlong sequence);
+
+JNIEXPORT jboolean JNICALL Java_com_arksine_libusbtv_TimeshiftPlayer_getFrameParams(JNIEnv* jenv,
+                                                                                   jobject thisObj,
+                                                                                   jintArray params);
+
+JNIEXPORT jboolean JNICALL Java_com_arksine_libusbtv_TimeshiftPlayer_readFrame(JNIEnv* jenv,
+                                                                              jobject thisObj,
+                                                                              jlong sequence,
+                                                                              jobject buffer,
+                                                                              jlongArray info);
 };
 
 #endif //USBTV007_ANDROID_USBTV_H
@@ -21,16 +21,44 @@
 #define USBTV_REQUEST_REG	12
 
 
+// Default isochronous transfer geometry, and the limits accepted from DeviceParams
 #define USBTV_ISOC_TRANSFERS	            16
 #define USBTV_ISOC_PACKETS_PER_REQUEST	    8
+#define USBTV_ISOC_MIN_TRANSFERS            2
+#define USBTV_ISOC_MAX_TRANSFERS            32
+#define USBTV_ISOC_MAX_PACKETS_PER_REQUEST  32
+
+// The video endpoint is high speed with an interval of 1, so each iso packet covers
+// one 125us microframe.
+#define USBTV_ISOC_PACKET_INTERVAL_US       125
+
+// Iso auto-tune measures this long before settling on a transfer count.  The headroom
+// is the number of transfers added on top of the worst completion gap observed.
+#define USBTV_ISOC_AUTOTUNE_MS              3000
+#define USBTV_ISOC_AUTOTUNE_HEADROOM        2
 
 // Isonchronous Packet Sizes, in bytes
 #define USBTV_PACKET_SIZE	    1024
 #define USBTV_PAYLOAD_SIZE      960
 
+// Width in pixels of the frames sent by the device, for both norms
+#define USBTV_FRAME_WIDTH       720
+
+// Both NTSC (360 packets * 60 fields) and PAL (432 packets * 50 fields) deliver
+// this many packets per second
+#define USBTV_PACKET_RATE       21600
+
 // size of the array containing input frame buffers.  TODO: I should probably make this a dynamic size
 #define USBTV_FRAME_POOL_SIZE 4
 
+// Largest frame pool, stage output and shared frames included.  Must agree with
+// UsbTv.FRAME_POOL_MAX_SIZE.
+#define USBTV_MAX_FRAME_POOL 256
+
+// Frames in the secondary stream's pool: one held by the consumer, one waiting for it and
+// one being written
+#define USBTV_SECONDARY_POOL_FRAMES 3
+
 #define USBTV_AUDIO_URBSIZE	20480
 #define USBTV_AUDIO_HDRSIZE	4
 #define USBTV_AUDIO_BUFFER	65536
@@ -46,6 +74,9 @@
 #define FRAME_IN_PROGRESS   (1 << 1)
 #define FRAME_COMPLETE      (1 << 2)
 #define FRAME_PARTIAL       (1 << 3)
+#define FRAME_TOP_FIELD     (1 << 4)        // Set on frames holding only a top (odd) field
+#define FRAME_UNCHANGED     (1 << 5)        // Set when change detection found no change
+#define FRAME_NO_SIGNAL     (1 << 6)        // Set while signal detection finds no signal
 
 enum struct TvInput {
 	USBTV_COMPOSITE_INPUT,
@@ -60,9 +91,38 @@ enum struct TvNorm {
 enum struct ScanType {
 	PROGRESSIVE,
 	DISCARD,
-	INTERLEAVED
+	INTERLEAVED,
+	DEINTERLACED
+};
+
+enum struct DeinterlaceMode {
+	BOB,
+	LINEAR,
+	BLEND,
+	MOTION_ADAPTIVE
 };
 
+enum struct ScaleFilter {
+	BILINEAR,
+	BICUBIC,
+	LANCZOS
+};
+
+// What the secondary stream does with a new frame while its consumer holds back the others
+enum struct DropPolicy {
+	DROP_NEWEST,        // The new frame is discarded
+	DROP_OLDEST         // The oldest frame not yet delivered is replaced by the new one
+};
+
+enum struct PixelFormat {
+	YUYV,           // Packed 4:2:2 as sent by the device, 2 bytes per pixel
+	Y8              // Luma only, 1 byte per pixel
+};
+
+static inline uint8_t bytesPerPixel(PixelFormat format) {
+	return (uint8_t)((format == PixelFormat::Y8) ? 1 : 2);
+}
+
 enum struct ColorControl {
 	BRIGHTNESS,
 	CONTRAST,
@@ -76,9 +136,79 @@ struct FrameParams {
 	uint16_t    frameHeight;
 	TvNorm      norm;
 	ScanType    scanType;
+	PixelFormat pixelFormat;
 	uint32_t    bufferSize;
 };
 
+// Region of the full interlaced frame kept at capture, in pixels.  x and width must be even
+// so whole YUYV macropixels are kept, y and height must be even so that both fields keep
+// the same lines.  A zero width or height keeps the full frame.
+struct CropRect {
+	uint16_t    x;
+	uint16_t    y;
+	uint16_t    width;
+	uint16_t    height;
+};
+
+// Output size of the scaler.  A zero width or height is derived from the other so the
+// picture keeps its aspect ratio.  With squarePixels the source is treated as BT.601
+// (10:11 NTSC or 12:11 PAL pixels) and the output has square pixels, so both zero keeps
+// the line count and corrects the width.  Otherwise both zero disables scaling.
+struct ScaleParams {
+	uint16_t    width;
+	uint16_t    height;
+	ScaleFilter filter;
+	bool        squarePixels;
+};
+
+// A second, smaller stream produced from the same capture, ie. for thumbnails or a detector.
+// Frames are scaled from each captured frame (after cropping and deinterlacing, before
+// StreamParams.scale) and sized as for ScaleParams, sharing its squarePixels setting.  Zero
+// for both width and height disables the stream.
+struct SecondaryStreamParams {
+	uint16_t    width;
+	uint16_t    height;
+	ScaleFilter filter;
+	DropPolicy  dropPolicy;
+};
+
+// Everything UsbTvDriver needs to start a stream.  Read from DeviceParams when streaming
+// is started from Java.
+struct StreamParams {
+	FrameParams frame;
+	uint16_t    packetsPerField;
+	TvInput     input;
+	uint8_t     isoTransfers;
+	uint8_t     isoPacketsPerRequest;
+	bool        isoAutoTune;
+	DeinterlaceMode deinterlaceMode;    // Used when frame.scanType is DEINTERLACED
+	uint8_t     denoiseStrength;        // 0 disables temporal noise reduction
+	CropRect    crop;                   // frame.frameWidth and frameHeight describe the crop
+	ScaleParams scale;                  // Applied after the crop
+	SecondaryStreamParams secondary;
+};
+
+// Sizes of the frames a stream delivers, see UsbTvDriver::resolveGeometry()
+struct FrameGeometry {
+	CropRect    crop;               // Aligned and clipped to the captured frame
+	uint16_t    frameWidth;         // Delivered frames, after the crop and the scaler
+	uint16_t    frameHeight;
+	uint16_t    secondaryWidth;     // Zero when the secondary stream is disabled
+	uint16_t    secondaryHeight;
+};
+
+// Luma statistics of the fields a frame was captured from, counted as packets are copied.
+// Java reads them through a direct buffer as ints, see UsbTvFrame.
+#define USBTV_LUMA_BINS         256
+
+struct LumaStats {
+	uint32_t    pixels;         // Pixels counted, 0 when statistics were not computed
+	uint32_t    min;
+	uint32_t    max;
+	uint32_t    sum;            // Of the luma of every pixel counted
+	uint32_t    histogram[USBTV_LUMA_BINS];
+};
+
 // TODO: add colorspace and scantype so that receiving functions know how to process it. Also
 // add TvNorm and a Flag for Frame Status (complete, incomplete, other possible statuses)
 
@@ -88,7 +218,12 @@ struct UsbTvFrame {
 	FrameParams*    params;
 	uint32_t        frameId;
 	uint32_t        flags;
+	uint16_t        poolIndex;
+	uint64_t        timestampNs;   // Steady clock time the frame was queued for processing
+	uint64_t        signature;     // Set by change detection, 0 while it is disabled
+	LumaStats*      lumaStats;     // Set while luma statistics are enabled
 	jobject         javaFrame;     // This is a reference to Java Class implementation of this frame.
+	                               // NULL when the driver was created without a Java environment.
 
 	std::atomic_flag lock = ATOMIC_FLAG_INIT;
 };
@@ -7,15 +7,40 @@
 
 #include <jni.h>
 #include <cstring>
-#include <android/log.h>
+#include <chrono>
 
 #define LOG_TAG "NativeUsbTvJNI"
+
+#if defined(__ANDROID__)
+#include <android/log.h>
+
 #define LOGI(...) __android_log_print(ANDROID_LOG_INFO,LOG_TAG,__VA_ARGS__)
 #define LOGE(...) __android_log_print(ANDROID_LOG_ERROR,LOG_TAG,__VA_ARGS__)
 #define LOGD(...) __android_log_print(ANDROID_LOG_DEBUG,LOG_TAG,__VA_ARGS__)
+#else
+// Host builds (benchmarks) log to stderr.  Debug output is per frame in places, so it is
+// only enabled on request.
+#include <cstdio>
+
+#define HOST_LOG(level, ...) \
+	(fprintf(stderr, level "/" LOG_TAG ": " __VA_ARGS__), fputc('\n', stderr))
+#define LOGI(...) HOST_LOG("I", __VA_ARGS__)
+#define LOGE(...) HOST_LOG("E", __VA_ARGS__)
+#if defined(HOST_LOG_DEBUG)
+#define LOGD(...) HOST_LOG("D", __VA_ARGS__)
+#else
+#define LOGD(...) ((void)0)
+#endif
+#endif
 
 #define CLEAR(x) memset(&(x), 0, sizeof(x))
 
+// Steady clock time in nanoseconds, used to timestamp urbs and frames
+static inline uint64_t getSteadyTimeNs() {
+	return (uint64_t)std::chrono::duration_cast<std::chrono::nanoseconds>(
+			std::chrono::steady_clock::now().time_since_epoch()).count();
+}
+
 // TODO: implement a Timber like scheme for Logging.  In fact, it would be good if
 // I could incorporate Timber / Logger into Native code.
 
@@ -12,6 +12,23 @@ import android.support.annotation.NonNull;
  * also means that there will be a color space parameter
  */
 public class DeviceParams {
+    /**
+     * Layout of the array passed to resolveFrameGeometry().  Must agree with deviceparams.cpp
+     */
+    static final int GEOMETRY_CROP_X = 0;
+    static final int GEOMETRY_CROP_Y = 1;
+    static final int GEOMETRY_CROP_WIDTH = 2;
+    static final int GEOMETRY_CROP_HEIGHT = 3;
+    static final int GEOMETRY_WIDTH = 4;
+    static final int GEOMETRY_HEIGHT = 5;
+    static final int GEOMETRY_SECONDARY_WIDTH = 6;
+    static final int GEOMETRY_SECONDARY_HEIGHT = 7;
+    static final int GEOMETRY_SIZE = 8;
+
+    static {
+        NativeLibrary.load();
+    }
+
     private final UsbDevice mDevice;
     private final int mFileDescriptor;
     private final int mVideoEndpoint;
@@ -27,7 +44,27 @@ public class DeviceParams {
     private final int mFrameSizeBytes;
     private final UsbTv.TvNorm mNorm;
     private final UsbTv.ScanType mScanType;
+    private final UsbTv.PixelFormat mPixelFormat;
     private final UsbTv.InputSelection mInput;
+    private final int mIsoTransferCount;
+    private final int mIsoPacketsPerRequest;
+    private final boolean mIsoAutoTune;
+    private final UsbTv.DeinterlaceMode mDeinterlaceMode;
+    private final int mDenoiseStrength;
+    private final int mCropX;
+    private final int mCropY;
+    private final int mCropWidth;
+    private final int mCropHeight;
+    private final int mScaleWidth;
+    private final int mScaleHeight;
+    private final UsbTv.ScaleFilter mScaleFilter;
+    private final boolean mSquarePixels;
+    private final int mSecondaryWidth;
+    private final int mSecondaryHeight;
+    private final int mSecondaryFrameWidth;
+    private final int mSecondaryFrameHeight;
+    private final UsbTv.ScaleFilter mSecondaryFilter;
+    private final UsbTv.DropPolicy mSecondaryDropPolicy;
 
     private DeviceParams(Builder builder) {
         mDevice = builder.device;
@@ -42,10 +79,30 @@ public class DeviceParams {
         mFramePoolSize = builder.framePoolSize;
         mFrameWidth = builder.frameWidth;
         mFrameHeight = builder.frameHeight;
-        mFrameSizeBytes = mFrameWidth * mFrameHeight * 2;  // TODO: this would change if the colorspace is different
+        mFrameSizeBytes = mFrameWidth * mFrameHeight * builder.pixelFormat.getBytesPerPixel();
         mNorm = builder.norm;
         mScanType = builder.scanType;
+        mPixelFormat = builder.pixelFormat;
         mInput = builder.input;
+        mIsoTransferCount = builder.isoTransferCount;
+        mIsoPacketsPerRequest = builder.isoPacketsPerRequest;
+        mIsoAutoTune = builder.isoAutoTune;
+        mDeinterlaceMode = builder.deinterlaceMode;
+        mDenoiseStrength = builder.denoiseStrength;
+        mCropX = builder.cropX;
+        mCropY = builder.cropY;
+        mCropWidth = builder.cropWidth;
+        mCropHeight = builder.cropHeight;
+        mScaleWidth = builder.scaleWidth;
+        mScaleHeight = builder.scaleHeight;
+        mScaleFilter = builder.scaleFilter;
+        mSquarePixels = builder.squarePixels;
+        mSecondaryWidth = builder.secondaryWidth;
+        mSecondaryHeight = builder.secondaryHeight;
+        mSecondaryFrameWidth = builder.secondaryFrameWidth;
+        mSecondaryFrameHeight = builder.secondaryFrameHeight;
+        mSecondaryFilter = builder.secondaryFilter;
+        mSecondaryDropPolicy = builder.secondaryDropPolicy;
     }
     public UsbDevice getUsbDevice() {
         return mDevice;
@@ -111,6 +168,115 @@ public class DeviceParams {
         return mFramePoolSize;
     }
 
+    /**
+     * Returns the number of isochronous transfers (URBs) kept in flight.  When auto-tune
+     * is enabled this is the upper bound, the driver reports the depth it settled on
+     * through {@link IUsbTvDriver#getIsoTransferCount()}
+     */
+    public int getIsoTransferCount() {
+        return mIsoTransferCount;
+    }
+
+    public int getIsoPacketsPerRequest() {
+        return mIsoPacketsPerRequest;
+    }
+
+    public boolean isIsoAutoTuneEnabled() {
+        return mIsoAutoTune;
+    }
+
+    public UsbTv.DeinterlaceMode getDeinterlaceMode() {
+        return mDeinterlaceMode;
+    }
+
+    public UsbTv.PixelFormat getPixelFormat() {
+        return mPixelFormat;
+    }
+
+    public int getDenoiseStrength() {
+        return mDenoiseStrength;
+    }
+
+    /**
+     * The crop is in pixels of the full interlaced frame.  Frame width and height
+     * describe the cropped frame, or the scaled frame when scaling.
+     */
+    public int getCropX() {
+        return mCropX;
+    }
+
+    public int getCropY() {
+        return mCropY;
+    }
+
+    public int getCropWidth() {
+        return mCropWidth;
+    }
+
+    public int getCropHeight() {
+        return mCropHeight;
+    }
+
+    /**
+     * Returns the requested scale size, zero where it is derived.  Frame width and height
+     * hold the resolved size.
+     */
+    public int getScaleWidth() {
+        return mScaleWidth;
+    }
+
+    public int getScaleHeight() {
+        return mScaleHeight;
+    }
+
+    public UsbTv.ScaleFilter getScaleFilter() {
+        return mScaleFilter;
+    }
+
+    public boolean isSquarePixelsEnabled() {
+        return mSquarePixels;
+    }
+
+    public boolean isSecondaryStreamEnabled() {
+        return mSecondaryFrameWidth > 0;
+    }
+
+    /**
+     * Returns the requested secondary stream size, zero where it is derived.  Secondary
+     * frame width and height hold the resolved size, or zero when the stream is disabled.
+     */
+    public int getSecondaryWidth() {
+        return mSecondaryWidth;
+    }
+
+    public int getSecondaryHeight() {
+        return mSecondaryHeight;
+    }
+
+    public int getSecondaryFrameWidth() {
+        return mSecondaryFrameWidth;
+    }
+
+    public int getSecondaryFrameHeight() {
+        return mSecondaryFrameHeight;
+    }
+
+    public UsbTv.ScaleFilter getSecondaryScaleFilter() {
+        return mSecondaryFilter;
+    }
+
+    public UsbTv.DropPolicy getSecondaryDropPolicy() {
+        return mSecondaryDropPolicy;
+    }
+
+    /**
+     * Resolves the crop and frame sizes as the driver applies them.  The geometry holds the
+     * requested crop, scale size and secondary size, and is updated with the crop applied
+     * and the sizes of the delivered and secondary frames.
+     */
+    private static native void resolveFrameGeometry(int norm, int scanType, int packetsPerField,
+                                                    boolean squarePixels, int[] geometry);
+
     public static class Builder {
         private UsbDevice device;
         private int fileDescriptor;
@@ -126,7 +292,27 @@ public class DeviceParams {
         private int frameHeight;
         private UsbTv.TvNorm norm;
         private UsbTv.ScanType scanType;
+        private UsbTv.PixelFormat pixelFormat;
         private UsbTv.InputSelection input;
+        private int isoTransferCount;
+        private int isoPacketsPerRequest;
+        private boolean isoAutoTune;
+        private UsbTv.DeinterlaceMode deinterlaceMode;
+        private int denoiseStrength;
+        private int cropX;
+        private int cropY;
+        private int cropWidth;
+        private int cropHeight;
+        private int scaleWidth;
+        private int scaleHeight;
+        private UsbTv.ScaleFilter scaleFilter;
+        private boolean squarePixels;
+        private int secondaryWidth;
+        private int secondaryHeight;
+        private int secondaryFrameWidth;
+        private int secondaryFrameHeight;
+        private UsbTv.ScaleFilter secondaryFilter;
+        private UsbTv.DropPolicy secondaryDropPolicy;
 
         public Builder() {
             device = null;
@@ -141,7 +327,25 @@ public class DeviceParams {
             framePoolSize = 4;
             norm = UsbTv.TvNorm.NTSC;
             scanType = UsbTv.ScanType.PROGRESSIVE;
+            pixelFormat = UsbTv.PixelFormat.YUYV;
             input = UsbTv.InputSelection.COMPOSITE;
+            isoTransferCount = UsbTv.USBTV_ISOC_TRANSFERS;
+            isoPacketsPerRequest = UsbTv.USBTV_ISOC_PACKETS_PER_REQUEST;
+            isoAutoTune = false;
+            deinterlaceMode = UsbTv.DeinterlaceMode.MOTION_ADAPTIVE;
+            denoiseStrength = 0;
+            cropX = 0;
+            cropY = 0;
+            cropWidth = 0;
+            cropHeight = 0;
+            scaleWidth = 0;
+            scaleHeight = 0;
+            scaleFilter = UsbTv.ScaleFilter.BILINEAR;
+            squarePixels = false;
+            secondaryWidth = 0;
+            secondaryHeight = 0;
+            secondaryFilter = UsbTv.ScaleFilter.BILINEAR;
+            secondaryDropPolicy = UsbTv.DropPolicy.DROP_OLDEST;
         }
 
         public Builder(@NonNull DeviceParams params) {
@@ -159,7 +363,27 @@ public class DeviceParams {
             frameHeight = params.mFrameHeight;
             norm = params.mNorm;
             scanType = params.mScanType;
+            pixelFormat = params.mPixelFormat;
             input = params.mInput;
+            isoTransferCount = params.mIsoTransferCount;
+            isoPacketsPerRequest = params.mIsoPacketsPerRequest;
+            isoAutoTune = params.mIsoAutoTune;
+            deinterlaceMode = params.mDeinterlaceMode;
+            denoiseStrength = params.mDenoiseStrength;
+            cropX = params.mCropX;
+            cropY = params.mCropY;
+            cropWidth = params.mCropWidth;
+            cropHeight = params.mCropHeight;
+            scaleWidth = params.mScaleWidth;
+            scaleHeight = params.mScaleHeight;
+            scaleFilter = params.mScaleFilter;
+            squarePixels = params.mSquarePixels;
+            secondaryWidth = params.mSecondaryWidth;
+            secondaryHeight = params.mSecondaryHeight;
+            secondaryFrameWidth = params.mSecondaryFrameWidth;
+            secondaryFrameHeight = params.mSecondaryFrameHeight;
+            secondaryFilter = params.mSecondaryFilter;
+            secondaryDropPolicy = params.mSecondaryDropPolicy;
         }
 
         public Builder setUsbDevice(@NonNull UsbDevice capDevice) {
@@ -177,6 +401,11 @@ public class DeviceParams {
             return this;
         }
 
+        /**
+         * Sets the number of frames capture can fill before the consumer returns them, 2 to
+         * {@link UsbTv#FRAME_POOL_MAX_SIZE}.  Near the maximum the driver may use fewer, as
+         * the frames it adds for deinterlacing, scaling and sharing count towards it.
+         */
         public Builder setFramePoolSize(int poolSize) {
             framePoolSize = poolSize;
             return this;
@@ -197,6 +426,140 @@ public class DeviceParams {
             return this;
         }
 
+        /**
+         * Sets the number of isochronous transfers queued with the host controller.  More
+         * transfers resist underruns at the cost of memory and latency.
+         */
+        public Builder setIsoTransferCount(int count) {
+            isoTransferCount = count;
+            return this;
+        }
+
+        /**
+         * Sets the number of isochronous packets in each transfer.  Fewer packets lowers
+         * latency but raises the completion (interrupt) rate.
+         */
+        public Builder setIsoPacketsPerRequest(int packets) {
+            isoPacketsPerRequest = packets;
+            return this;
+        }
+
+        /**
+         * When enabled the driver measures completion jitter and iso packet errors during
+         * the first seconds of streaming, then reduces the transfer count to the smallest
+         * depth that did not underrun.  It keeps watching after that, and restores the
+         * configured count for the rest of the stream at the first underrun.
+         */
+        public Builder setIsoAutoTune(boolean enabled) {
+            isoAutoTune = enabled;
+            return this;
+        }
+
+        /**
+         * Sets the method used to build full frames from each field when the scan type
+         * is DEINTERLACED.  Frames are delivered at the field rate.
+         */
+        public Builder setDeinterlaceMode(UsbTv.DeinterlaceMode mode) {
+            deinterlaceMode = mode;
+            return this;
+        }
+
+        /**
+         * Sets the layout of frame buffers.  Y8 frames hold only the luma samples, one byte
+         * per pixel, and are half the size of YUYV frames.
+         */
+        public Builder setPixelFormat(UsbTv.PixelFormat format) {
+            pixelFormat = format;
+            return this;
+        }
+
+        /**
+         * Sets the strength of temporal noise reduction, from 0 (off) to
+         * {@link UsbTv#DENOISE_MAX_STRENGTH}.  Higher strengths average over more frames and
+         * treat larger changes as noise.
+         */
+        public Builder setDenoiseStrength(int strength) {
+            denoiseStrength = strength;
+            return this;
+        }
+
+        /**
+         * Keeps only a region of each frame, ie. to remove overscan.  Packets are cropped as
+         * they are received, so the frame buffers are only as large as the region.
+         * Coordinates are pixels in the full interlaced frame (720x480 or 720x576) and are
+         * rounded down to even values.  The region is clipped to the frame, a zero width or
+         * height keeps the full frame.
+         */
+        public Builder setCrop(int x, int y, int width, int height) {
+            cropX = x;
+            cropY = y;
+            cropWidth = width;
+            cropHeight = height;
+            return this;
+        }
+
+        /**
+         * Scales frames to a new size after they are captured and cropped.  A zero width or
+         * height is derived from the other so the picture keeps its aspect ratio.  Widths
+         * are rounded up to even values, sizes are limited to
+         * {@link UsbTv#SCALE_MAX_WIDTH} x {@link UsbTv#SCALE_MAX_HEIGHT}.  Zero for both
+         * disables scaling unless square pixels are enabled.
+         */
+        public Builder setScale(int width, int height) {
+            scaleWidth = width;
+            scaleHeight = height;
+            return this;
+        }
+
+        /**
+         * Sets the resampling kernel used when scaling.  BILINEAR is the fastest, BICUBIC
+         * and LANCZOS are sharper.
+         */
+        public Builder setScaleFilter(UsbTv.ScaleFilter filter) {
+            scaleFilter = filter;
+            return this;
+        }
+
+        /**
+         * Corrects for the non-square pixels of BT.601 video (10:11 for NTSC, 12:11 for PAL).
+         * Derived scale sizes then give square pixels, and without a scale size the line
+         * count is kept and only the width is corrected.  Cropping 8 pixels from each side
+         * leaves the 704 pixel 4:3 area, which scales to exactly 640x480 or 768x576.
+         */
+        public Builder setSquarePixels(boolean enabled) {
+            squarePixels = enabled;
+            return this;
+        }
+
+        /**
+         * Enables a second stream of small frames from the same capture, ie. for thumbnails
+         * or a detector, delivered to the secondary frame listener.  Secondary frames are
+         * scaled from the cropped (and deinterlaced) frame, independently of
+         * {@link #setScale(int, int)}, and sized in the same way.  They have their own frame
+         * pool, so a slow secondary consumer never holds up the main stream.  Zero for both
+         * width and height disables the stream.
+         */
+        public Builder setSecondaryStream(int width, int height) {
+            secondaryWidth = width;
+            secondaryHeight = height;
+            return this;
+        }
+
+        public Builder setSecondaryScaleFilter(UsbTv.ScaleFilter filter) {
+            secondaryFilter = filter;
+            return this;
+        }
+
+        /**
+         * Sets what happens to a new secondary frame while the listener is still holding the
+         * others.  DROP_NEWEST discards it, DROP_OLDEST (the default) replaces the oldest frame
+         * waiting for the listener, so it always receives the most recent frame.
+         */
+        public Builder setSecondaryDropPolicy(UsbTv.DropPolicy policy) {
+            secondaryDropPolicy = policy;
+            return this;
+        }
+
         // TODO: if the USB Device hasnt been set, should I do something here?
         public DeviceParams build() {
             if (callbacks == null) {
@@ -212,6 +575,9 @@ public class DeviceParams {
                 };
             }
             setFrameSize();
+            clampIsoGeometry();
+            clampDenoiseStrength();
+            clampFramePoolSize();
             return new DeviceParams(this);
         }
 
@@ -232,9 +598,60 @@ public class DeviceParams {
 
             videoPacketsPerField = (frameWidth * frameHeight) / UsbTv.USBTV_PAYLOAD_SIZE;
 
-            // Non-interleaved frames are half height
-            if (scanType != UsbTv.ScanType.INTERLEAVED) {
-                frameHeight /= 2;
+            // The driver resolves the crop and the scaled sizes, so both sides agree on them
+            scaleWidth = Math.min(Math.max(scaleWidth, 0), UsbTv.SCALE_MAX_WIDTH);
+            scaleHeight = Math.min(Math.max(scaleHeight, 0), UsbTv.SCALE_MAX_HEIGHT);
+            secondaryWidth = Math.min(Math.max(secondaryWidth, 0), UsbTv.SCALE_MAX_WIDTH);
+            secondaryHeight = Math.min(Math.max(secondaryHeight, 0), UsbTv.SCALE_MAX_HEIGHT);
+
+            int[] geometry = new int[GEOMETRY_SIZE];
+            geometry[GEOMETRY_CROP_X] = cropX;
+            geometry[GEOMETRY_CROP_Y] = cropY;
+            geometry[GEOMETRY_CROP_WIDTH] = cropWidth;
+            geometry[GEOMETRY_CROP_HEIGHT] = cropHeight;
+            geometry[GEOMETRY_WIDTH] = scaleWidth;
+            geometry[GEOMETRY_HEIGHT] = scaleHeight;
+            geometry[GEOMETRY_SECONDARY_WIDTH] = secondaryWidth;
+            geometry[GEOMETRY_SECONDARY_HEIGHT] = secondaryHeight;
+            resolveFrameGeometry(norm.ordinal(), scanType.ordinal(), videoPacketsPerField,
+                    squarePixels, geometry);
+
+            cropX = geometry[GEOMETRY_CROP_X];
+            cropY = geometry[GEOMETRY_CROP_Y];
+            cropWidth = geometry[GEOMETRY_CROP_WIDTH];
+            cropHeight = geometry[GEOMETRY_CROP_HEIGHT];
+            frameWidth = geometry[GEOMETRY_WIDTH];
+            frameHeight = geometry[GEOMETRY_HEIGHT];
+            secondaryFrameWidth = geometry[GEOMETRY_SECONDARY_WIDTH];
+            secondaryFrameHeight = geometry[GEOMETRY_SECONDARY_HEIGHT];
+        }
+
+        /**
+         * The driver needs two frames to stream, and adds stage frames on top of the pool
+         */
+        private void clampFramePoolSize() {
+            framePoolSize = Math.min(Math.max(framePoolSize, 2), UsbTv.FRAME_POOL_MAX_SIZE);
+        }
+
+        private void clampIsoGeometry() {
+            if (isoTransferCount < UsbTv.USBTV_ISOC_MIN_TRANSFERS) {
+                isoTransferCount = UsbTv.USBTV_ISOC_MIN_TRANSFERS;
+            } else if (isoTransferCount > UsbTv.USBTV_ISOC_MAX_TRANSFERS) {
+                isoTransferCount = UsbTv.USBTV_ISOC_MAX_TRANSFERS;
+            }
+
+            if (isoPacketsPerRequest < 1) {
+                isoPacketsPerRequest = 1;
+            } else if (isoPacketsPerRequest > UsbTv.USBTV_ISOC_MAX_PACKETS_PER_REQUEST) {
+                isoPacketsPerRequest = UsbTv.USBTV_ISOC_MAX_PACKETS_PER_REQUEST;
+            }
+        }
+
+        private void clampDenoiseStrength() {
+            if (denoiseStrength < 0) {
+                denoiseStrength = 0;
+            } else if (denoiseStrength > UsbTv.DENOISE_MAX_STRENGTH) {
+                denoiseStrength = UsbTv.DENOISE_MAX_STRENGTH;
             }
         }
 
@@ -0,0 +1,250 @@
+// Copyright (C) 2020 Eric Callahan <arksine.code@gmail.com>
+//
+// This file may be distributed under the terms of the GNU GPLv3 license
+package com.arksine.libusbtv;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import timber.log.Timber;
+
+/**
+ * Publishes the frames delivered to a subscriber that requests them, see
+ * {@link IUsbTvDriver#createFramePublisher(UsbTv.BackpressureStrategy, boolean)}.  The
+ * interfaces follow java.util.concurrent.Flow and Reactive Streams method for method, so
+ * either can be adapted with a few lines without adding a dependency.
+ *
+ * Frames are only delivered while the subscriber has outstanding demand.  Frames arriving
+ * without demand are handled according to the publisher's strategy, and never queued, so a
+ * subscriber that falls behind can not starve the native frame pool:
+ *  - DROP returns them to the pool at once.
+ *  - LATEST holds the newest one, returning the one it replaces, and delivers it on the
+ *    next request.
+ *  - DOWNSAMPLE returns them, and delivers only every nth frame after, where n doubles each
+ *    time the subscriber falls behind and halves while it keeps spare demand.
+ *
+ * onNext() is called on the native callback thread, or on the thread calling request() when
+ * a held frame is delivered, never concurrently.  Each frame must be returned with
+ * {@link UsbTvFrame#returnFrame()}.  One subscriber is allowed at a time, another may
+ * subscribe once it cancels.  The publisher completes when the device is closed.
+ */
+public class FramePublisher implements UsbTv.onFrameReceivedListener {
+    private static final int MAX_DECIMATION = 8;
+
+    public interface Subscriber {
+        void onSubscribe(Subscription subscription);
+        void onNext(UsbTvFrame frame);
+        void onError(Throwable error);
+        void onComplete();
+    }
+
+    public interface Subscription {
+        void request(long n);
+        void cancel();
+    }
+
+    private final UsbTv.BackpressureStrategy mStrategy;
+    private final AtomicReference<FrameSubscription> mSubscription = new AtomicReference<>();
+    private volatile boolean mCompleted = false;
+
+    FramePublisher(UsbTv.BackpressureStrategy strategy) {
+        mStrategy = strategy;
+    }
+
+    public UsbTv.BackpressureStrategy getStrategy() {
+        return mStrategy;
+    }
+
+    public void subscribe(Subscriber subscriber) {
+        if (subscriber == null) {
+            throw new NullPointerException("Subscriber may not be null");
+        }
+
+        FrameSubscription subscription = new FrameSubscription(subscriber);
+        if (!mSubscription.compareAndSet(null, subscription)) {
+            subscription.mCancelled = true;
+            subscriber.onSubscribe(subscription);
+            subscriber.onError(new IllegalStateException("FramePublisher already has a subscriber"));
+            return;
+        }
+
+        subscriber.onSubscribe(subscription);
+        if (mCompleted) {
+            subscription.complete();
+        }
+    }
+
+    @Override
+    public void onFrameReceived(UsbTvFrame frame) {
+        FrameSubscription subscription = mSubscription.get();
+        if (subscription != null) {
+            subscription.offer(frame);
+        } else {
+            frame.returnFrame();
+        }
+    }
+
+    /**
+     * Forgets the frame held for the subscriber once streaming has stopped.  Its pool is
+     * rebuilt when streaming restarts, so it must not be read or returned afterwards.
+     */
+    void discardHeldFrame() {
+        FrameSubscription subscription = mSubscription.get();
+        if (subscription != null) {
+            subscription.mLatest.set(null);
+        }
+    }
+
+    /**
+     * Completes the subscriber when the device is closed
+     */
+    void complete() {
+        mCompleted = true;
+        FrameSubscription subscription = mSubscription.get();
+        if (subscription != null) {
+            subscription.complete();
+        }
+    }
+
+    private class FrameSubscription implements Subscription {
+        private final Subscriber mSubscriber;
+        private final AtomicLong mRequested = new AtomicLong(0);
+        private final AtomicReference<UsbTvFrame> mLatest = new AtomicReference<>();
+        private final AtomicInteger mWip = new AtomicInteger(0);   // Serializes the signals
+        private volatile boolean mCancelled = false;
+        private volatile boolean mDone = false;
+        private volatile Throwable mError = null;
+
+        // Only used on the native callback thread
+        private int mDecimation = 1;
+        private int mSkipped = 0;
+
+        FrameSubscription(Subscriber subscriber) {
+            mSubscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                mError = new IllegalArgumentException("Requested " + n + " frames, must be positive");
+                drain();
+                return;
+            }
+
+            for (;;) {
+                long requested = mRequested.get();
+                if (requested == Long.MAX_VALUE) {
+                    break;
+                }
+                long updated = requested + n;
+                if (updated < 0) {
+                    updated = Long.MAX_VALUE;
+                }
+                if (mRequested.compareAndSet(requested, updated)) {
+                    break;
+                }
+            }
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            mCancelled = true;
+            mSubscription.compareAndSet(this, null);
+            drain();
+        }
+
+        void complete() {
+            mDone = true;
+            drain();
+        }
+
+        /**
+         * Called on the native callback thread for each frame delivered
+         */
+        void offer(UsbTvFrame frame) {
+            if (mCancelled) {
+                frame.returnFrame();
+                return;
+            }
+
+            long requested = mRequested.get();
+            switch (mStrategy) {
+                case DROP:
+                    if (requested == 0) {
+                        frame.returnFrame();
+                        return;
+                    }
+                    break;
+                case DOWNSAMPLE:
+                    if (++mSkipped < mDecimation) {
+                        frame.returnFrame();
+                        return;
+                    }
+                    mSkipped = 0;
+                    if (requested == 0) {
+                        mDecimation = Math.min(mDecimation * 2, MAX_DECIMATION);
+                        frame.returnFrame();
+                        return;
+                    } else if (requested > 1 && mDecimation > 1) {
+                        mDecimation /= 2;
+                    }
+                    break;
+                case LATEST:
+                default:
+                    break;
+            }
+
+            UsbTvFrame replaced = mLatest.getAndSet(frame);
+            if (replaced != null) {
+                replaced.returnFrame();
+            }
+            drain();
+        }
+
+        private void drain() {
+            if (mWip.getAndIncrement() != 0) {
+                return;
+            }
+
+            int missed = 1;
+            do {
+                while (!mCancelled && mError == null && mRequested.get() > 0) {
+                    UsbTvFrame frame = mLatest.getAndSet(null);
+                    if (frame == null) {
+                        break;
+                    }
+                    if (mRequested.get() != Long.MAX_VALUE) {
+                        mRequested.decrementAndGet();
+                    }
+                    try {
+                        mSubscriber.onNext(frame);
+                    } catch (RuntimeException e) {
+                        Timber.e(e, "Frame subscriber threw, cancelling its subscription");
+                        cancel();
+                    }
+                }
+
+                if (!mCancelled && (mError != null || mDone)) {
+                    mCancelled = true;
+                    mSubscription.compareAndSet(this, null);
+                    if (mError != null) {
+                        mSubscriber.onError(mError);
+                    } else {
+                        mSubscriber.onComplete();
+                    }
+                }
+
+                if (mCancelled) {
+                    UsbTvFrame frame = mLatest.getAndSet(null);
+                    if (frame != null) {
+                        frame.returnFrame();
+                    }
+                }
+
+                missed = mWip.addAndGet(-missed);
+            } while (missed != 0);
+        }
+    }
+}
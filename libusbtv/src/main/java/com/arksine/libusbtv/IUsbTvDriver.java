@@ -30,10 +30,374 @@ public abstract class IUsbTvDriver {
 
     public abstract void setOnFrameReceivedListener(UsbTv.onFrameReceivedListener cb);
 
+    /**
+     * Sets the listener for secondary stream frames, see
+     * {@link DeviceParams.Builder#setSecondaryStream(int, int)}.  It is called on its own
+     * thread, and frames must be returned with {@link UsbTvFrame#returnFrame()} as for the
+     * main stream.  Like the main listener it cannot be changed while streaming.
+     */
+    public abstract void setOnSecondaryFrameReceivedListener(UsbTv.onFrameReceivedListener cb);
+
+    /**
+     * Creates a {@link FramePublisher} and sets it as the main or secondary frame listener,
+     * replacing the current one, so frames are delivered only as its subscriber requests
+     * them.  Like the listeners it cannot be set while streaming.
+     *
+     * @param strategy  How frames arriving without demand are handled
+     * @param secondary Publish the secondary stream rather than the main one
+     */
+    public abstract FramePublisher createFramePublisher(UsbTv.BackpressureStrategy strategy,
+                                                        boolean secondary);
+
     public abstract void setInput(UsbTv.InputSelection input);
     public abstract void setNorm(UsbTv.TvNorm norm);
     public abstract void setScanType(UsbTv.ScanType scanType);
+
+    /**
+     * Selects how full frames are built when the scan type is DEINTERLACED.  The stream
+     * is restarted if it is currently deinterlacing.
+     */
+    public abstract void setDeinterlaceMode(UsbTv.DeinterlaceMode mode);
+
+    /**
+     * Selects the layout of frame buffers.  The stream is restarted, so frames received
+     * before the change must not be used afterwards.
+     */
+    public abstract void setPixelFormat(UsbTv.PixelFormat format);
+
+    /**
+     * Sets the temporal noise reduction strength, from 0 (off) to
+     * {@link UsbTv#DENOISE_MAX_STRENGTH}.  Applied to the next frame without restarting
+     * the stream.
+     */
+    public abstract void setDenoiseStrength(int strength);
+
+    /**
+     * Enables detection of frames that repeat the last changed frame, such as a static
+     * scene or a no-signal screen.  Each frame's mean luma is compared region by region, and
+     * unchanged frames are flagged, see {@link UsbTvFrame#isUnchanged()}.  Applied to the
+     * next frame without restarting the stream.
+     *
+     * @param threshold         Change in a region's mean luma, from 1 to 255 levels, that
+     *                          marks the frame as changed.  0 disables detection.
+     * @param suppressUnchanged Unchanged frames are not delivered to the frame listeners,
+     *                          the MJPEG server or sharing clients, except for one each
+     *                          second so consumers can tell the stream is alive.  They are
+     *                          still recorded and kept in the timeshift.
+     */
+    public abstract void setChangeDetection(int threshold, boolean suppressUnchanged);
+
+    /**
+     * Enables the native motion detector, which compares a low resolution grid of each
+     * frame's luma against a background it learns, and raises motion events with the
+     * bounding boxes of the regions that moved, see {@link #setOnMotionListener}.  Objects
+     * that stop moving fade into the background after several seconds.  Applied to the
+     * next frame without restarting the stream.
+     *
+     * @param sensitivity   From 1 to {@link UsbTv#MOTION_MAX_SENSITIVITY}, higher detects
+     *                      smaller changes in brightness.  0 disables detection.
+     * @param gateFrames    Frames are only delivered to the frame listeners, the MJPEG server
+     *                      and sharing clients while there is motion.  They are still
+     *                      recorded and kept in the timeshift.
+     */
+    public abstract void setMotionDetection(int sensitivity, boolean gateFrames);
+
+    /**
+     * Sets the listener for motion events, which may be changed at any time.  It is called
+     * on the native frame thread and should return quickly.
+     */
+    public abstract void setOnMotionListener(UsbTv.onMotionListener listener);
+
+    /**
+     * Sets the region of the full frame kept at capture, see
+     * {@link DeviceParams.Builder#setCrop(int, int, int, int)}.  While streaming the frame
+     * pool is rebuilt for the new size, frames received before the change must not be
+     * used afterwards.  The usb transfers are not interrupted.
+     */
+    public abstract void setCrop(int x, int y, int width, int height);
+
+    /**
+     * Sets the size frames are scaled to, see
+     * {@link DeviceParams.Builder#setScale(int, int)}.  The stream is restarted.
+     */
+    public abstract void setScale(int width, int height, UsbTv.ScaleFilter filter,
+                                  boolean squarePixels);
+
+    /**
+     * Sets the size and drop policy of the secondary stream, see
+     * {@link DeviceParams.Builder#setSecondaryStream(int, int)}.  The stream is restarted.
+     */
+    public abstract void setSecondaryStream(int width, int height, UsbTv.ScaleFilter filter,
+                                            UsbTv.DropPolicy policy);
+
+    /**
+     * Sets a color control.  Brightness, contrast and saturation range from 0 to 1023, hue
+     * from -3583 to 3583 and sharpness from 0 to 255.  The value is kept and written again
+     * each time the stream starts.  An out of range value is reported through
+     * {@link UsbTv.DriverCallbacks#onError()}.
+     */
     public abstract void setControl(UsbTv.ColorControl control, int value);
+
+    /**
+     * Returns a color control's current value, including changes made by auto level.  The
+     * value is kept by the driver, so this never waits on the device.
+     */
     public abstract int getColorControl(UsbTv.ColorControl control);
 
+    /**
+     * Records the raw isochronous transfers received from the device to a file, for later
+     * replay with ReplayUsbDevice.  Recording can be started before or during streaming.
+     * Only debug builds of the library, built with USBTV_URB_RECORDING, can record, release
+     * builds report an error.
+     *
+     * @param path          Path of the recording file to create
+     * @param maxMegabytes  Maximum size of the recording, transfers received once it is
+     *                      full are not recorded
+     */
+    public abstract void startRecording(String path, int maxMegabytes);
+    public abstract void stopRecording();
+
+    /**
+     * Keeps the last frames delivered in a ring, so that they can be played back with a
+     * {@link TimeshiftPlayer} or exported.  Frames are copied to the ring on a thread of their
+     * own, when it falls behind they are left out rather than delaying capture.  The ring is
+     * kept when streaming stops, and cleared when the frame size changes.
+     *
+     * A 30 second ring of full size frames needs over 600MB, so a ring longer than
+     * {@link UsbTv#TIMESHIFT_MAX_MEMORY_SECONDS} must be mapped from a file, and one in memory
+     * that would exceed 256MB for the frames delivered is not allocated.  The file is removed
+     * once created, and its space released by {@link #stopTimeshift()}.
+     *
+     * @param seconds   Length of the timeshift, up to {@link UsbTv#TIMESHIFT_MAX_SECONDS}, or
+     *                  {@link UsbTv#TIMESHIFT_MAX_MEMORY_SECONDS} without a file
+     * @param path      File to hold the ring, or null to keep it in memory
+     */
+    public abstract void startTimeshift(int seconds, String path);
+    public abstract void stopTimeshift();
+
+    /**
+     * Creates a player for the frames held by the timeshift.  Frames are delivered to the
+     * listener on the player's own thread.  Players are released when the device is closed.
+     *
+     * @return The player, or null if the device is closed
+     */
+    public abstract TimeshiftPlayer createTimeshiftPlayer(UsbTv.onFrameReceivedListener listener);
+
+    /**
+     * Writes the timeshift frames captured between two times to a file, back to back in
+     * their native layout with no header.  This blocks while the file is written, so it
+     * should not be called from the UI thread.
+     *
+     * @param startTimeNs   Capture time of the first frame, on the System.nanoTime() clock
+     * @param endTimeNs     Capture time of the last frame
+     * @param path          Path of the file to create
+     * @return The number of frames written, or -1 on error
+     */
+    public abstract int exportTimeshift(long startTimeNs, long endTimeNs, String path);
+
+    /**
+     * Returns the number of frames left out of the timeshift because its writer fell behind
+     */
+    public abstract int getTimeshiftDroppedFrameCount();
+
+    /**
+     * Records the frames delivered to a video file, uncompressed.  Recording must be started
+     * while streaming and keeps the frame size delivered at the time, frames of another size
+     * are not recorded.  Files are written on a thread of their own, bypassing the page
+     * cache where the filesystem allows it.  AVI files are limited to 2GB.
+     *
+     * @param path          Path of the file to create
+     * @param container     RAW frames back to back, a Y4M stream, or an AVI file
+     * @param policy        Whether frames are dropped, or capture waits briefly, when
+     *                      storage falls behind
+     * @param maxMegabytes  Maximum size of the file, 0 for no limit
+     */
+    public abstract void startVideoRecording(String path, UsbTv.VideoContainer container,
+                                             UsbTv.RecordPolicy policy, int maxMegabytes);
+    public abstract void stopVideoRecording();
+
+    /**
+     * Returns the number of frames left out of the video recording
+     */
+    public abstract int getVideoRecordingDroppedFrameCount();
+
+    /**
+     * Serves the frames delivered as an MJPEG stream over HTTP.  GET / returns a
+     * multipart/x-mixed-replace stream, GET /snapshot.jpg the latest frame.  Frames are
+     * encoded on threads of their own and only while a viewer is connected, each viewer
+     * receives the latest frame so a slow viewer never stalls capture.  The server may be
+     * started before streaming.
+     *
+     * The app must declare the android.permission.INTERNET permission, which the library
+     * does not request itself.
+     *
+     * Without an access token only viewers on this device are accepted.  With one the server
+     * listens on every interface and answers only requests carrying the token, eg.
+     * http://host:port/?token=TOKEN.  The stream is not encrypted, anyone on the network can
+     * see the token and the video, so only share it on a trusted network.
+     *
+     * @param port          TCP port, 0 for any free port (see getMjpegServerPort())
+     * @param quality       JPEG quality, 1 to 100
+     * @param maxFrameRate  Most frames encoded per second, 0 for no limit
+     * @param accessToken   Null for loopback only, otherwise a secret of at least
+     *                      UsbTv.MJPEG_MIN_TOKEN_LENGTH characters viewers on other hosts must
+     *                      present
+     */
+    public abstract void startMjpegServer(int port, int quality, int maxFrameRate,
+                                          String accessToken);
+    public abstract void stopMjpegServer();
+
+    /**
+     * Returns the port the MJPEG server is listening on, or -1 if it is not running
+     */
+    public abstract int getMjpegServerPort();
+
+    /**
+     * Returns the number of viewers connected to the MJPEG server
+     */
+    public abstract int getMjpegClientCount();
+
+    /**
+     * Shares the frames delivered with other processes without copying them.  The frame pool
+     * is allocated in shared memory, which clients map read-only, and each frame delivered is
+     * announced on a Unix domain socket.  Native clients use SharedFrameClient.  Clients that
+     * hold too many frames skip frames rather than stall capture.  Sharing applies from the
+     * next time streaming starts.  Frames are not shared if the region cannot be restricted
+     * to read-only mappings, which needs a memfd seal (Linux 5.1) or ashmem.
+     *
+     * Only processes running as this app's uid, or one of the uids allowed, may connect.  Any
+     * app can reach a socket in the abstract namespace, so a uid must only be allowed if that
+     * app is trusted with the video.
+     *
+     * @param socketName    Path of the socket, or a name in the abstract namespace prefixed
+     *                      with '@'
+     * @param allowedUids   Uids of other apps allowed to connect, see
+     *                      PackageManager.getPackageUid()
+     */
+    public abstract void startFrameSharing(String socketName, int... allowedUids);
+    public abstract void stopFrameSharing();
+
+    /**
+     * Returns the number of processes receiving shared frames
+     */
+    public abstract int getFrameSharingClientCount();
+
+    /**
+     * Enables a governor that lowers the stream's quality when the frame consumer cannot
+     * keep up, rather than letting fields drop.  It watches the process queue, the time
+     * capture waits for a free frame and the fields dropped.  After sustained overload the
+     * stream steps down from FULL to DISCARD (one field per frame, at half the frame rate),
+     * then to HALF_WIDTH (also scaled to half width), and steps back up once the load has
+     * stayed low for a while.  Each change restarts the stream and is reported through
+     * {@link #setOnQualityChangedListener}.
+     * {@link #getDeviceParams()} keeps returning the configured parameters, the size of each
+     * frame is given by the frame itself.  Disabling the governor restores full quality.
+     */
+    public abstract void setQualityGovernor(boolean enabled);
+
+    /**
+     * Sets the listener for quality changes made by the governor, which may be changed at
+     * any time
+     */
+    public abstract void setOnQualityChangedListener(UsbTv.onQualityChangedListener listener);
+
+    /**
+     * Returns the quality level the stream is running at
+     */
+    public abstract UsbTv.QualityLevel getQualityLevel();
+
+    /**
+     * Enables detection of the source being disconnected or unstable.  Without an input the
+     * device keeps streaming a flat blue or black picture, which is found as NO_SIGNAL once it
+     * has lasted half a second.  Damaged, misordered or missing fields are found as
+     * SYNC_LOST.  Changes are reported through {@link #setOnSignalChangedListener}, and
+     * frames captured without a signal are flagged, see {@link UsbTvFrame#isNoSignal()}.  A
+     * picture that really is flat, ie. a covered lens, also reads as no signal.
+     *
+     * @param enabled           Watch the stream for the signal
+     * @param idleWithoutSignal Stop delivering frames while there is no signal.  Only a frame
+     *                          every 100ms is captured, to find the signal when it returns,
+     *                          and delivery resumes by itself.
+     */
+    public abstract void setSignalDetection(boolean enabled, boolean idleWithoutSignal);
+
+    /**
+     * Sets the listener for changes of the signal state, which may be changed at any time
+     */
+    public abstract void setOnSignalChangedListener(UsbTv.onSignalChangedListener listener);
+
+    /**
+     * Returns the signal state last reported, PRESENT while signal detection is disabled
+     */
+    public abstract UsbTv.SignalState getSignalState();
+
+    /**
+     * Enables luma statistics.  While enabled each frame carries a 256 bin histogram of its
+     * luma along with the minimum, maximum and mean, see
+     * {@link UsbTvFrame#getLumaHistogram()}.  They are counted as the fields are captured, so
+     * they describe the cropped picture before any scaling, and cover both fields of an
+     * INTERLEAVED frame.  The change applies from the next frame.
+     */
+    public abstract void setLumaStatistics(boolean enabled);
+
+    /**
+     * Enables auto level, which adjusts brightness and contrast a few times a second so the
+     * picture spans the video range.  It judges each frame's luma statistics, which frames
+     * then carry as if {@link #setLumaStatistics(boolean)} was enabled, and skips frames
+     * without a signal.  Adjustments are written on their own thread and never delay
+     * capture.  While enabled, brightness and contrast set through
+     * {@link #setControl(UsbTv.ColorControl, int)} are where it continues from.  Disabling
+     * it leaves them at their last values.
+     */
+    public abstract void setAutoLevel(boolean enabled);
+
+    /**
+     * Returns the number of isochronous transfers the driver is currently using.  If
+     * auto-tune is enabled this reflects the depth it settled on, or the configured depth
+     * once an underrun restored it.  0 if not streaming.
+     */
+    public abstract int getIsoTransferCount();
+
+    /**
+     * Returns the number of packets per isochronous transfer currently in use, 0
+     * if not streaming.
+     */
+    public abstract int getIsoPacketsPerRequest();
+
+    /**
+     * Returns the number of secondary stream frames dropped since streaming started because
+     * the secondary listener was still holding the others
+     */
+    public abstract int getSecondaryDroppedFrameCount();
+
+    /**
+     * Returns the number of frames not delivered since streaming started because they were
+     * unchanged or had no motion, see {@link #setChangeDetection(int, boolean)} and
+     * {@link #setMotionDetection(int, boolean)}
+     */
+    public abstract int getSuppressedFrameCount();
+
+    /**
+     * Starts recording timing events from the native capture pipeline (urb reaping, packet
+     * parsing, frame queueing, callbacks and frame returns) into a ring buffer per thread.
+     * Older events are overwritten once a buffer is full.  Previously recorded events are
+     * discarded.
+     *
+     * @param eventsPerThread   Ring buffer size, see UsbTv.TRACE_DEFAULT_EVENTS_PER_THREAD
+     * @return true if tracing started
+     */
+    public abstract boolean startTracing(int eventsPerThread);
+    public abstract void stopTracing();
+
+    /**
+     * Writes the recorded trace events to a file, which may be opened with chrome://tracing
+     * or ui.perfetto.dev.  Tracing does not need to be stopped first.  This blocks while
+     * the file is written, so it should not be called from the UI thread.
+     *
+     * @param path      Path of the trace file to create
+     * @param format    Chrome trace JSON or Perfetto protobuf
+     * @return true if the trace was written
+     */
+    public abstract boolean dumpTrace(String path, UsbTv.TraceFormat format);
+
 }
@@ -0,0 +1,37 @@
+// Copyright (C) 2020 Eric Callahan <arksine.code@gmail.com>
+//
+// This file may be distributed under the terms of the GNU GPLv3 license
+package com.arksine.libusbtv;
+
+import android.os.Build;
+
+/**
+ * Loads the native driver for every class with native methods, so DeviceParams may be
+ * built before UsbTv is first used.
+ */
+final class NativeLibrary {
+    private static boolean sLoaded = false;
+
+    private NativeLibrary() {}
+
+    static synchronized void load() {
+        if (!sLoaded) {
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN_MR2) {
+                System.loadLibrary("gnustl_shared");
+            }
+            System.loadLibrary("usbtv");
+            sLoaded = true;
+        }
+    }
+
+    /**
+     * Loads a library standing in for the driver, such as the JMH stub on a desktop JVM.
+     * Must be called before DeviceParams or UsbTv is first used.
+     */
+    static synchronized void loadStandIn(String library) {
+        if (!sLoaded) {
+            System.loadLibrary(library);
+            sLoaded = true;
+        }
+    }
+}
@@ -0,0 +1,401 @@
+// Copyright (C) 2020 Eric Callahan <arksine.code@gmail.com>
+//
+// This file may be distributed under the terms of the GNU GPLv3 license
+package com.arksine.libusbtv;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import timber.log.Timber;
+
+/**
+ * Plays back frames held by the timeshift, see {@link IUsbTvDriver#startTimeshift(int, String)}.
+ * Frames are delivered to a listener on the player's own thread, at any speed and in either
+ * direction, while live capture continues.  Positions are capture times on the
+ * {@link System#nanoTime()} clock.
+ *
+ * Playback frames must be returned with {@link UsbTvFrame#returnFrame()} like live frames.
+ * The player waits for a frame to be returned when the listener holds all of them.
+ */
+public class TimeshiftPlayer {
+    private static final int PLAYBACK_FRAMES = 3;
+    private static final long MAX_WAIT_NS = 100000000L;     // Longest sleep between checks
+    private static final long MIN_WAIT_NS = 1000000L;
+
+    // Layout of the array filled by getFrameParams().  Must agree with usbtv.cpp
+    private static final int FRAME_WIDTH = 0;
+    private static final int FRAME_HEIGHT = 1;
+    private static final int FRAME_NORM = 2;
+    private static final int FRAME_SCAN_TYPE = 3;
+    private static final int FRAME_PIXEL_FORMAT = 4;
+    private static final int FRAME_SIZE = 5;
+
+    private final UsbTv mOwner;
+    private final DeviceParams mParams;
+    private final UsbTv.onFrameReceivedListener mListener;
+    private final ArrayBlockingQueue<UsbTvFrame> mFreeFrames =
+            new ArrayBlockingQueue<>(PLAYBACK_FRAMES);
+    private final long[] mRange = new long[4];
+    private final long[] mFrameInfo = new long[3];
+    private final int[] mFrameParams = new int[6];
+    private final int[] mAllocatedParams = new int[6];
+
+    // Playback clock.  The position advances from mAnchorPositionNs at mSpeed times the rate
+    // of the system clock since mAnchorTimeNs.  Guarded by mLock.
+    private final Object mLock = new Object();
+    private long mAnchorPositionNs = 0;
+    private long mAnchorTimeNs = 0;
+    private float mSpeed = 1.0f;
+    private boolean mPlaying = false;
+    private boolean mLive = false;
+    private boolean mReleased = false;
+    private volatile DeviceParams mPlaybackParams = null;    // Of the frames allocated
+
+    private volatile long mLastSequence = -1;
+    private Thread mPlaybackThread = null;
+
+    TimeshiftPlayer(UsbTv owner, DeviceParams params, UsbTv.onFrameReceivedListener listener) {
+        mOwner = owner;
+        mParams = params;
+        mListener = listener;
+    }
+
+    /**
+     * Starts or resumes playback from the current position.  A new player starts from the
+     * oldest frame held.
+     */
+    public void play() {
+        synchronized (mLock) {
+            if (mReleased || mPlaying) {
+                return;
+            }
+            if (mAnchorPositionNs == 0 && getRange(mRange)) {
+                mAnchorPositionNs = mRange[2];
+            }
+            mAnchorTimeNs = System.nanoTime();
+            mPlaying = true;
+
+            if (mPlaybackThread == null) {
+                mPlaybackThread = new Thread(mPlaybackLoop, "usbtv_timeshift_playback");
+                mPlaybackThread.start();
+            }
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * Pauses playback, holding the current position
+     */
+    public void pause() {
+        synchronized (mLock) {
+            if (mPlaying) {
+                mAnchorPositionNs = currentPosition(System.nanoTime());
+                mPlaying = false;
+                mLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Stops playback.  The player cannot be used again.  Players still held when the device
+     * is closed are released by it.
+     */
+    public void release() {
+        Thread thread;
+        synchronized (mLock) {
+            mReleased = true;
+            mPlaying = false;
+            thread = mPlaybackThread;
+            mPlaybackThread = null;
+            mLock.notifyAll();
+        }
+
+        if (thread != null) {
+            thread.interrupt();
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Timber.d(e);
+            }
+        }
+        mOwner.removeTimeshiftPlayer(this);
+    }
+
+    /**
+     * Sets the playback speed.  1.0 is real time, negative speeds play backwards.  At the
+     * newest frame forward playback follows live capture, backward playback pauses at the
+     * oldest frame.
+     */
+    public void setSpeed(float speed) {
+        if (speed == 0.0f || Float.isNaN(speed) || Float.isInfinite(speed)) {
+            Timber.i("Invalid playback speed: %f", speed);
+            return;
+        }
+        synchronized (mLock) {
+            mAnchorPositionNs = currentPosition(System.nanoTime());
+            mAnchorTimeNs = System.nanoTime();
+            mSpeed = speed;
+            mLock.notifyAll();
+        }
+    }
+
+    public float getSpeed() {
+        synchronized (mLock) {
+            return mSpeed;
+        }
+    }
+
+    /**
+     * Moves playback to the frame captured at or before a time.  Times outside the timeshift
+     * resolve to the oldest or newest frame when the next frame is delivered.
+     *
+     * @param timestampNs   Capture time on the System.nanoTime() clock
+     */
+    public void seekTo(long timestampNs) {
+        synchronized (mLock) {
+            mAnchorPositionNs = timestampNs;
+            mAnchorTimeNs = System.nanoTime();
+            mLastSequence = -1;
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * Moves playback to a time before the newest frame held
+     *
+     * @return false if the timeshift holds no frames
+     */
+    public boolean seekBack(long millis) {
+        synchronized (mLock) {
+            if (!getRange(mRange)) {
+                return false;
+            }
+            seekTo(mRange[3] - TimeUnit.MILLISECONDS.toNanos(millis));
+            return true;
+        }
+    }
+
+    /**
+     * Moves playback to the newest frame held with a frame id.  Frame ids repeat, so only
+     * the ids of recent frames are meaningful.
+     *
+     * @return false if no frame held has the id
+     */
+    public boolean seekToFrame(int frameId) {
+        synchronized (mLock) {
+            long sequence = findFrameId(frameId);
+            long timestampNs = (sequence >= 0) ? getFrameTimestamp(sequence) : -1;
+            if (timestampNs < 0) {
+                return false;
+            }
+            seekTo(timestampNs);
+            return true;
+        }
+    }
+
+    /**
+     * Returns the capture time of the frame at the playback position
+     */
+    public long getPosition() {
+        synchronized (mLock) {
+            return currentPosition(System.nanoTime());
+        }
+    }
+
+    /**
+     * Returns the capture times of the oldest and newest frames held, or null if the
+     * timeshift holds no frames
+     */
+    public long[] getTimeRange() {
+        long[] range = new long[4];
+        if (!getRange(range)) {
+            return null;
+        }
+        return new long[] {range[2], range[3]};
+    }
+
+    public boolean isPlaying() {
+        synchronized (mLock) {
+            return mPlaying;
+        }
+    }
+
+    /**
+     * Returns true if playback has caught up with live capture
+     */
+    public boolean isLive() {
+        synchronized (mLock) {
+            return mLive;
+        }
+    }
+
+    /**
+     * Called by UsbTvFrame.returnFrame() for playback frames
+     */
+    void recycleFrame(UsbTvFrame frame) {
+        // Frames allocated before the timeshift geometry changed are discarded
+        if (frame.getDeviceParams() == mPlaybackParams) {
+            mFreeFrames.offer(frame);
+        }
+    }
+
+    private long currentPosition(long now) {
+        if (!mPlaying) {
+            return mAnchorPositionNs;
+        }
+        return mAnchorPositionNs + (long) ((now - mAnchorTimeNs) * (double) mSpeed);
+    }
+
+    /**
+     * Allocates playback frames for the frames held by the timeshift.  The ring may have
+     * been allocated after the stream was restarted at another quality or crop, so its
+     * geometry replaces the parameters the player was created with.
+     */
+    private void allocateFrames(int[] frameParams) {
+        DeviceParams params = new DeviceParams.Builder(mParams)
+                .setTvNorm(UsbTv.TvNorm.values()[frameParams[FRAME_NORM]])
+                .setScanType(UsbTv.ScanType.values()[frameParams[FRAME_SCAN_TYPE]])
+                .setPixelFormat(UsbTv.PixelFormat.values()[frameParams[FRAME_PIXEL_FORMAT]])
+                .setScale(frameParams[FRAME_WIDTH], frameParams[FRAME_HEIGHT])
+                .build();
+
+        mFreeFrames.clear();
+        System.arraycopy(frameParams, 0, mAllocatedParams, 0, mAllocatedParams.length);
+        mPlaybackParams = params;
+        for (int i = 0; i < PLAYBACK_FRAMES; i++) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(frameParams[FRAME_SIZE]);
+            mFreeFrames.offer(new UsbTvFrame(params, buffer, this));
+        }
+    }
+
+    /**
+     * Delivers the frame at the playback position whenever it changes, then sleeps until
+     * the next frame is due
+     */
+    private final Runnable mPlaybackLoop = new Runnable() {
+        @Override
+        public void run() {
+            while (true) {
+                long position;
+                float speed;
+                long sequence;
+                synchronized (mLock) {
+                    while (!mReleased && !mPlaying) {
+                        try {
+                            mLock.wait();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                    if (mReleased) {
+                        return;
+                    }
+
+                    long now = System.nanoTime();
+                    position = currentPosition(now);
+                    speed = mSpeed;
+                    mLive = false;
+                    if (!getRange(mRange)) {
+                        position = -1;
+                    } else if (position >= mRange[3]) {
+                        // Caught up, follow the newest frame
+                        position = mRange[3];
+                        mLive = (speed > 0.0f);
+                        mAnchorPositionNs = position;
+                        mAnchorTimeNs = now;
+                    } else if (position <= mRange[2]) {
+                        position = mRange[2];
+                        mAnchorPositionNs = position;
+                        mAnchorTimeNs = now;
+                        if (speed < 0.0f) {
+                            mPlaying = false;
+                        }
+                    }
+                    sequence = (position >= 0) ? findFrame(position) : -1;
+                }
+
+                if (sequence >= 0 && sequence != mLastSequence) {
+                    if (!deliverFrame(sequence)) {
+                        return;
+                    }
+                }
+
+                long waitNs = MAX_WAIT_NS;
+                if (sequence >= 0) {
+                    long next = getFrameTimestamp((speed > 0.0f) ? sequence + 1 : sequence - 1);
+                    if (next >= 0) {
+                        waitNs = (long) ((next - position) / (double) speed);
+                    } else {
+                        // The next frame has not been captured yet
+                        waitNs = MIN_WAIT_NS * 4;
+                    }
+                }
+                waitNs = Math.max(MIN_WAIT_NS, Math.min(waitNs, MAX_WAIT_NS));
+
+                synchronized (mLock) {
+                    if (mReleased) {
+                        return;
+                    }
+                    try {
+                        mLock.wait(waitNs / 1000000L, (int) (waitNs % 1000000L));
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }
+    };
+
+    /**
+     * Reads a frame into a free playback frame and passes it to the listener
+     *
+     * @return false if the player was released while waiting for a free frame
+     */
+    private boolean deliverFrame(long sequence) {
+        if (!getFrameParams(mFrameParams) || mFrameParams[FRAME_SIZE] <= 0) {
+            return true;
+        }
+        if (mPlaybackParams == null || !Arrays.equals(mFrameParams, mAllocatedParams)) {
+            allocateFrames(mFrameParams);
+        }
+
+        UsbTvFrame frame;
+        try {
+            frame = mFreeFrames.poll(MAX_WAIT_NS, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            return false;
+        }
+        if (frame == null) {
+            return true;
+        }
+
+        ByteBuffer buffer = frame.getFrameBuf();
+        buffer.rewind();
+        if (!readFrame(sequence, buffer, mFrameInfo)) {
+            // Overwritten since it was found
+            mFreeFrames.offer(frame);
+            return true;
+        }
+
+        mLastSequence = sequence;
+        frame.setFrameId((int) mFrameInfo[0]);
+        frame.setFlags((int) mFrameInfo[1]);
+        frame.unlock();
+        if (mListener != null) {
+            mListener.onFrameReceived(frame);
+        } else {
+            frame.returnFrame();
+        }
+        return true;
+    }
+
+    // Native Methods.  Frames are identified by their sequence number in the timeshift ring.
+    private native boolean getRange(long[] range);
+    private native long findFrame(long timestampNs);
+    private native long findFrameId(int frameId);
+    private native long getFrameTimestamp(long sequence);
+    private native boolean getFrameParams(int[] params);
+    private native boolean readFrame(long sequence, ByteBuffer buffer, long[] info);
+}
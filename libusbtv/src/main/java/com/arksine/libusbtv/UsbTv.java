@@ -54,9 +54,57 @@ public class UsbTv extends Handler {
         void onFrameReceived(UsbTvFrame frame);
     }
 
+    /**
+     * Receives motion events on the native frame thread, before the frame they were raised
+     * for is delivered
+     */
+    public interface onMotionListener {
+        void onMotion(UsbTvMotionEvent event);
+    }
+
+    /**
+     * Called on the driver's handler thread after the quality governor changed the stream's
+     * quality, see {@link IUsbTvDriver#setQualityGovernor(boolean)}.  The stream has already
+     * been restarted, frames received since have the new size.
+     */
+    public interface onQualityChangedListener {
+        void onQualityChanged(QualityLevel level);
+    }
+
+    /**
+     * Called on the driver's handler thread when signal detection finds the signal lost or
+     * back, see {@link IUsbTvDriver#setSignalDetection(boolean, boolean)}
+     */
+    public interface onSignalChangedListener {
+        void onSignalChanged(SignalState state);
+    }
+
     public enum TvNorm {NTSC, PAL}
     public enum InputSelection {COMPOSITE, SVIDEO}
-    public enum ScanType {PROGRESSIVE, DISCARD, INTERLEAVED}
+    public enum ScanType {PROGRESSIVE, DISCARD, INTERLEAVED, DEINTERLACED}
+    public enum DeinterlaceMode {BOB, LINEAR, BLEND, MOTION_ADAPTIVE}
+    public enum ScaleFilter {BILINEAR, BICUBIC, LANCZOS}
+    public enum DropPolicy {DROP_NEWEST, DROP_OLDEST}
+    public enum TraceFormat {CHROME_JSON, PERFETTO}
+    public enum VideoContainer {RAW, Y4M, AVI}
+    public enum RecordPolicy {DROP, WAIT}
+    public enum BackpressureStrategy {DROP, LATEST, DOWNSAMPLE}
+    public enum QualityLevel {FULL, DISCARD, HALF_WIDTH}
+    public enum SignalState {PRESENT, NO_SIGNAL, SYNC_LOST}
+    public enum PixelFormat {
+        YUYV(2),
+        Y8(1);
+
+        private final int mBytesPerPixel;
+
+        PixelFormat(int bytesPerPixel) {
+            mBytesPerPixel = bytesPerPixel;
+        }
+
+        public int getBytesPerPixel() {
+            return mBytesPerPixel;
+        }
+    }
     public enum ColorControl {
         BRIGHTNESS,
         CONTRAST,
@@ -74,8 +122,33 @@ public class UsbTv extends Handler {
         SET_INPUT,
         SET_NORM,
         SET_SCANTYPE,
+        SET_DEINTERLACE_MODE,
+        SET_PIXEL_FORMAT,
+        SET_DENOISE_STRENGTH,
+        SET_CHANGE_DETECTION,
+        SET_MOTION_DETECTION,
+        SET_CROP,
+        SET_SCALE,
+        SET_SECONDARY_STREAM,
         SET_CONTROL,
-        SET_FRAME_LISTENER;
+        SET_FRAME_LISTENER,
+        SET_SECONDARY_FRAME_LISTENER,
+        START_RECORDING,
+        STOP_RECORDING,
+        START_TIMESHIFT,
+        STOP_TIMESHIFT,
+        START_VIDEO_RECORDING,
+        STOP_VIDEO_RECORDING,
+        START_MJPEG_SERVER,
+        STOP_MJPEG_SERVER,
+        START_FRAME_SHARING,
+        STOP_FRAME_SHARING,
+        SET_QUALITY_GOVERNOR,
+        CHECK_QUALITY,
+        SET_SIGNAL_DETECTION,
+        CHECK_SIGNAL,
+        SET_LUMA_STATISTICS,
+        SET_AUTO_LEVEL;
 
         private static final NativeAction[] ACTION_ARRAY = NativeAction.values();
 
@@ -103,6 +176,68 @@ public class UsbTv extends Handler {
     static final int USBTV_PACKET_SIZE = 1024;
     static final int USBTV_PAYLOAD_SIZE = 960;
 
+    /**
+     * Isochronous transfer geometry defaults and limits.  These must agree with the
+     * limits in usbtv_definitions.h
+     */
+    static final int USBTV_ISOC_TRANSFERS = 16;
+    static final int USBTV_ISOC_PACKETS_PER_REQUEST = 8;
+    static final int USBTV_ISOC_MIN_TRANSFERS = 2;
+    static final int USBTV_ISOC_MAX_TRANSFERS = 32;
+    static final int USBTV_ISOC_MAX_PACKETS_PER_REQUEST = 32;
+
+    /**
+     * Default trace ring buffer size per thread.  Must agree with Tracer.h
+     */
+    public static final int TRACE_DEFAULT_EVENTS_PER_THREAD = 65536;
+
+    /**
+     * Largest temporal noise reduction strength.  Must agree with Denoiser.h
+     */
+    public static final int DENOISE_MAX_STRENGTH = 100;
+
+    /**
+     * Highest motion detection sensitivity.  Must agree with MotionDetector.h
+     */
+    public static final int MOTION_MAX_SENSITIVITY = 100;
+
+    /**
+     * Longest timeshift, in seconds.  Must agree with Timeshift.h
+     */
+    public static final int TIMESHIFT_MAX_SECONDS = 600;
+
+    /**
+     * Longest timeshift kept in memory rather than a file.  Must agree with Timeshift.h
+     */
+    public static final int TIMESHIFT_MAX_MEMORY_SECONDS = 6;
+
+    /**
+     * Largest frame pool, including frames the driver adds for its stages.  Must agree with
+     * usbtv_definitions.h
+     */
+    public static final int FRAME_POOL_MAX_SIZE = 256;
+
+    /**
+     * Shortest MJPEG server access token.  Must agree with MjpegServer.h
+     */
+    public static final int MJPEG_MIN_TOKEN_LENGTH = 16;
+
+    /**
+     * Largest scaled frame size.  Must agree with Scaler.h
+     */
+    public static final int SCALE_MAX_WIDTH = 1920;
+    public static final int SCALE_MAX_HEIGHT = 1080;
+
+    /**
+     * Interval between checks of the quality governor's recommendation while streaming
+     */
+    private static final int QUALITY_CHECK_INTERVAL_MS = 500;
+
+    /**
+     * Interval between checks of the signal state while streaming
+     */
+    private static final int SIGNAL_CHECK_INTERVAL_MS = 250;
+
     /**
      * Endpoint Size Constants
      */
@@ -168,19 +303,29 @@ public class UsbTv extends Handler {
     private boolean mHasUsbPermission = false;
     private AtomicBoolean mIsOpen = new AtomicBoolean(false);
     private AtomicBoolean mIsStreaming = new AtomicBoolean(false);
+    private volatile int mMjpegPort = -1;
+    private boolean mQualityGovernor = false;
+    private volatile QualityLevel mQualityLevel = QualityLevel.FULL;
+    private boolean mSignalDetection = false;
+    private volatile SignalState mSignalState = SignalState.PRESENT;
 
     private DeviceParams mDeviceParams;
 
     private DriverCallbacks mDriverCallbacks;
     private onFrameReceivedListener mOnFrameReceivedListener = null;
+    private onFrameReceivedListener mOnSecondaryFrameReceivedListener = null;
+    private volatile onMotionListener mOnMotionListener = null;
+    private volatile onQualityChangedListener mOnQualityChangedListener = null;
+    private volatile onSignalChangedListener mOnSignalChangedListener = null;
+
+    // Players created for the timeshift, released before the driver is disposed.  The lock
+    // is also held while the timeshift is used from outside the handler thread.
+    private final ArrayList<TimeshiftPlayer> mTimeshiftPlayers = new ArrayList<>();
 
     private static ArrayList<UsbTv> mReferenceList = new ArrayList<>();
 
     static {
-        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN_MR2) {
-            System.loadLibrary("gnustl_shared");
-        }
-        System.loadLibrary("usbtv");
+        NativeLibrary.load();
     }
 
     public static void registerUsbReceiver(@NonNull Context context) {
@@ -378,7 +523,15 @@ public class UsbTv extends Handler {
                 if (mIsStreaming.compareAndSet(true, false)) {
                     stopStreaming();        // Native stop streaming
                 }
-                dispose();  // Native Dispose, native code should stop streaming
+                synchronized (mTimeshiftPlayers) {
+                    for (TimeshiftPlayer player : new ArrayList<>(mTimeshiftPlayers)) {
+                        player.release();
+                    }
+                    mTimeshiftPlayers.clear();
+                    dispose();  // Native Dispose, native code should stop streaming
+                }
+                mMjpegPort = -1;
+                completePublishers();
                 mIsOpen.set(false);
                 mUsbtvConnection.releaseInterface(mUsbtvInterface);
                 mUsbtvConnection.close();
@@ -392,11 +545,21 @@ public class UsbTv extends Handler {
         }
     }
 
+    /**
+     * Called by TimeshiftPlayer.release()
+     */
+    void removeTimeshiftPlayer(TimeshiftPlayer player) {
+        synchronized (mTimeshiftPlayers) {
+            mTimeshiftPlayers.remove(player);
+        }
+    }
+
     private void restartStream() {
         if (mIsStreaming.get()) {
             stopStreaming();
+            discardPublisherFrames();
 
-            if (startStreaming(mDeviceParams)) {
+            if (startStreaming(getStreamParams())) {
                 mIsStreaming.set(true);
             } else {
                 mIsStreaming.set(false);
@@ -408,6 +571,86 @@ public class UsbTv extends Handler {
         }
     }
 
+    /**
+     * Returns the parameters the stream is started with, which are the device parameters
+     * with the quality governor's current level applied
+     */
+    private DeviceParams getStreamParams() {
+        if (mQualityLevel == QualityLevel.FULL) {
+            return mDeviceParams;
+        }
+
+        DeviceParams params = new DeviceParams.Builder(mDeviceParams)
+                .setScanType(ScanType.DISCARD)
+                .build();
+        if (mQualityLevel == QualityLevel.HALF_WIDTH) {
+            params = new DeviceParams.Builder(params)
+                    .setScale(params.getFrameWidth() / 2, params.getFrameHeight())
+                    .build();
+        }
+        return params;
+    }
+
+    private void scheduleQualityCheck() {
+        removeMessages(NativeAction.CHECK_QUALITY.ordinal());
+        if (mQualityGovernor && mIsStreaming.get()) {
+            sendEmptyMessageDelayed(NativeAction.CHECK_QUALITY.ordinal(),
+                    QUALITY_CHECK_INTERVAL_MS);
+        }
+    }
+
+    private void scheduleSignalCheck() {
+        removeMessages(NativeAction.CHECK_SIGNAL.ordinal());
+        if (mSignalDetection && mIsStreaming.get()) {
+            sendEmptyMessageDelayed(NativeAction.CHECK_SIGNAL.ordinal(),
+                    SIGNAL_CHECK_INTERVAL_MS);
+        }
+    }
+
+    private void changeSignalState(SignalState state) {
+        Timber.i("Signal state changed from %s to %s", mSignalState, state);
+        mSignalState = state;
+        onSignalChangedListener listener = mOnSignalChangedListener;
+        if (listener != null) {
+            listener.onSignalChanged(state);
+        }
+    }
+
+    /**
+     * Restarts the stream at a new quality level and notifies the listener
+     */
+    private void changeQualityLevel(QualityLevel level) {
+        Timber.i("Quality level changed from %s to %s", mQualityLevel, level);
+        mQualityLevel = level;
+        restartStream();
+        onQualityChangedListener listener = mOnQualityChangedListener;
+        if (listener != null) {
+            listener.onQualityChanged(level);
+        }
+    }
+
+    /**
+     * Frames held by publishers belong to the pool freed when streaming stops
+     */
+    private void discardPublisherFrames() {
+        if (mOnFrameReceivedListener instanceof FramePublisher) {
+            ((FramePublisher) mOnFrameReceivedListener).discardHeldFrame();
+        }
+        if (mOnSecondaryFrameReceivedListener instanceof FramePublisher) {
+            ((FramePublisher) mOnSecondaryFrameReceivedListener).discardHeldFrame();
+        }
+    }
+
+    private void completePublishers() {
+        discardPublisherFrames();
+        if (mOnFrameReceivedListener instanceof FramePublisher) {
+            ((FramePublisher) mOnFrameReceivedListener).complete();
+        }
+        if (mOnSecondaryFrameReceivedListener instanceof FramePublisher) {
+            ((FramePublisher) mOnSecondaryFrameReceivedListener).complete();
+        }
+    }
+
     /**
      * Calculates the maximum endpoint size based on the value retreived from an endpoint descriptor
      *
@@ -435,23 +678,87 @@ public class UsbTv extends Handler {
     }
 
     // Callback From JNI
-    private void nativeFrameCallback(UsbTvFrame frame, int frameId, int flags) {
+    private void nativeFrameCallback(UsbTvFrame frame, int frameId, int flags,
+                                     long signature) {
         if (mOnFrameReceivedListener != null) {
             frame.setFrameId(frameId);
+            frame.setFlags(flags);
+            frame.setSignature(signature);
             frame.unlock();
             mOnFrameReceivedListener.onFrameReceived(frame);
         }
     }
 
+    /**
+     * Receives secondary stream frames on their own native thread
+     */
+    private void nativeSecondaryFrameCallback(UsbTvFrame frame, int frameId, int flags,
+                                              long signature) {
+        if (mOnSecondaryFrameReceivedListener != null) {
+            frame.setFrameId(frameId);
+            frame.setFlags(flags);
+            frame.setSignature(signature);
+            frame.unlock();
+            mOnSecondaryFrameReceivedListener.onFrameReceived(frame);
+        }
+    }
+
+    /**
+     * Receives motion events on the native frame thread
+     */
+    private void nativeMotionCallback(int state, int frameId, long timestampNs, int regionCount,
+                                      int[] regions) {
+        onMotionListener listener = mOnMotionListener;
+        if (listener != null) {
+            listener.onMotion(UsbTvMotionEvent.fromNative(state, frameId, timestampNs,
+                    regionCount, regions));
+        }
+    }
+
     // Native Methods
     private native boolean initialize(DeviceParams params);
     private native void dispose();
     private native void useCallback(boolean shouldUse);
+    private native void useSecondaryCallback(boolean shouldUse);
     private native boolean startStreaming(DeviceParams params);
     private native void stopStreaming();
     private native boolean setInput(int input);
     private native boolean setControl(int control, int value);
     private native int getControl(int control);
+    private native boolean startRecording(String path, int maxMegabytes);
+    private native void stopRecording();
+    private native int getIsoTransferCount();
+    private native int getIsoPacketsPerRequest();
+    private native void setDenoiseStrength(int strength);
+    private native void setChangeDetection(int threshold, boolean suppressUnchanged);
+    private native void setMotionDetection(int sensitivity, boolean gateFrames);
+    private native boolean setCrop(DeviceParams params);
+    private native int getSecondaryDroppedFrameCount();
+    private native int getSuppressedFrameCount();
+    private native boolean startTimeshift(String path, int seconds);
+    private native void stopTimeshift();
+    private native int exportTimeshift(long startTimeNs, long endTimeNs, String path);
+    private native int getTimeshiftDroppedFrameCount();
+    private native boolean startVideoRecording(String path, int container, int policy,
+                                               int maxMegabytes);
+    private native void stopVideoRecording();
+    private native int getVideoRecordingDroppedFrameCount();
+    private native int startMjpegServer(int port, int quality, int maxFrameRate,
+                                        String accessToken);
+    private native void stopMjpegServer();
+    private native int getMjpegClientCount();
+    private native boolean startFrameSharing(String socketName, int[] allowedUids);
+    private native void stopFrameSharing();
+    private native int getFrameSharingClientCount();
+    private native void setQualityGovernor(boolean enabled);
+    private native int getQualityLevel();
+    private native void setSignalDetection(boolean enabled, boolean idle);
+    private native int getSignalState();
+    private native void setLumaStatistics(boolean enabled);
+    private native void setAutoLevel(boolean enabled);
+    private native boolean startTracing(int eventsPerThread);
+    private native void stopTracing();
+    private native boolean dumpTrace(String path, int format);
 
 
     private final IUsbTvDriver mDriverInterface = new IUsbTvDriver(this) {
@@ -495,6 +802,23 @@ public class UsbTv extends Handler {
             sendMessage(msg);
         }
 
+        @Override
+        public void setOnSecondaryFrameReceivedListener(onFrameReceivedListener cb) {
+            Message msg = obtainMessage(NativeAction.SET_SECONDARY_FRAME_LISTENER.ordinal(), cb);
+            sendMessage(msg);
+        }
+
+        @Override
+        public FramePublisher createFramePublisher(BackpressureStrategy strategy,
+                                                   boolean secondary) {
+            FramePublisher publisher = new FramePublisher(strategy);
+            NativeAction action = secondary ? NativeAction.SET_SECONDARY_FRAME_LISTENER
+                    : NativeAction.SET_FRAME_LISTENER;
+            Message msg = obtainMessage(action.ordinal(), publisher);
+            sendMessage(msg);
+            return publisher;
+        }
+
         @Override
         public void setInput(InputSelection input) {
             Message msg = obtainMessage(NativeAction.SET_INPUT.ordinal(), input);
@@ -513,9 +837,81 @@ public class UsbTv extends Handler {
             sendMessage(msg);
         }
 
+        @Override
+        public void setDeinterlaceMode(DeinterlaceMode mode) {
+            Message msg = obtainMessage(NativeAction.SET_DEINTERLACE_MODE.ordinal(), mode);
+            sendMessage(msg);
+        }
+
+        @Override
+        public void setPixelFormat(PixelFormat format) {
+            Message msg = obtainMessage(NativeAction.SET_PIXEL_FORMAT.ordinal(), format);
+            sendMessage(msg);
+        }
+
+        @Override
+        public void setDenoiseStrength(int strength) {
+            Message msg = obtainMessage(NativeAction.SET_DENOISE_STRENGTH.ordinal());
+            msg.arg1 = strength;
+            sendMessage(msg);
+        }
+
+        @Override
+        public void setChangeDetection(int threshold, boolean suppressUnchanged) {
+            Message msg = obtainMessage(NativeAction.SET_CHANGE_DETECTION.ordinal());
+            msg.arg1 = threshold;
+            msg.arg2 = suppressUnchanged ? 1 : 0;
+            sendMessage(msg);
+        }
+
+        @Override
+        public void setMotionDetection(int sensitivity, boolean gateFrames) {
+            Message msg = obtainMessage(NativeAction.SET_MOTION_DETECTION.ordinal());
+            msg.arg1 = sensitivity;
+            msg.arg2 = gateFrames ? 1 : 0;
+            sendMessage(msg);
+        }
+
+        @Override
+        public void setOnMotionListener(onMotionListener listener) {
+            mOnMotionListener = listener;
+        }
+
+        @Override
+        public void setOnQualityChangedListener(onQualityChangedListener listener) {
+            mOnQualityChangedListener = listener;
+        }
+
+        @Override
+        public void setOnSignalChangedListener(onSignalChangedListener listener) {
+            mOnSignalChangedListener = listener;
+        }
+
+        @Override
+        public void setCrop(int x, int y, int width, int height) {
+            Message msg = obtainMessage(NativeAction.SET_CROP.ordinal(),
+                    new int[] {x, y, width, height});
+            sendMessage(msg);
+        }
+
+        @Override
+        public void setScale(int width, int height, ScaleFilter filter, boolean squarePixels) {
+            Message msg = obtainMessage(NativeAction.SET_SCALE.ordinal(),
+                    new Object[] {width, height, filter, squarePixels});
+            sendMessage(msg);
+        }
+
+        @Override
+        public void setSecondaryStream(int width, int height, ScaleFilter filter,
+                                       DropPolicy policy) {
+            Message msg = obtainMessage(NativeAction.SET_SECONDARY_STREAM.ordinal(),
+                    new Object[] {width, height, filter, policy});
+            sendMessage(msg);
+        }
+
         @Override
         public void setControl(ColorControl control, int value) {
-            Message msg = obtainMessage(NativeAction.SET_CONTROL.ordinal());
+            Message msg = obtainMessage(NativeAction.SET_CONTROL.ordinal(), control);
             msg.arg1 = value;
             sendMessage(msg);
         }
@@ -524,6 +920,202 @@ public class UsbTv extends Handler {
         public int getColorControl(ColorControl control) {
             return getControl(control.ordinal());
         }
+
+        @Override
+        public void startRecording(String path, int maxMegabytes) {
+            Message msg = obtainMessage(NativeAction.START_RECORDING.ordinal(), path);
+            msg.arg1 = maxMegabytes;
+            sendMessage(msg);
+        }
+
+        @Override
+        public void stopRecording() {
+            Message msg = obtainMessage(NativeAction.STOP_RECORDING.ordinal());
+            sendMessage(msg);
+        }
+
+        @Override
+        public void startTimeshift(int seconds, String path) {
+            Message msg = obtainMessage(NativeAction.START_TIMESHIFT.ordinal(), path);
+            msg.arg1 = seconds;
+            sendMessage(msg);
+        }
+
+        @Override
+        public void stopTimeshift() {
+            Message msg = obtainMessage(NativeAction.STOP_TIMESHIFT.ordinal());
+            sendMessage(msg);
+        }
+
+        @Override
+        public TimeshiftPlayer createTimeshiftPlayer(onFrameReceivedListener listener) {
+            synchronized (mTimeshiftPlayers) {
+                if (!mIsOpen.get()) {
+                    Timber.i("Device is closed, cannot create a timeshift player");
+                    return null;
+                }
+                TimeshiftPlayer player = new TimeshiftPlayer(UsbTv.this, getStreamParams(),
+                        listener);
+                mTimeshiftPlayers.add(player);
+                return player;
+            }
+        }
+
+        @Override
+        public int exportTimeshift(long startTimeNs, long endTimeNs, String path) {
+            if (path == null) {
+                return -1;
+            }
+            synchronized (mTimeshiftPlayers) {
+                return UsbTv.this.exportTimeshift(startTimeNs, endTimeNs, path);
+            }
+        }
+
+        @Override
+        public int getTimeshiftDroppedFrameCount() {
+            synchronized (mTimeshiftPlayers) {
+                return UsbTv.this.getTimeshiftDroppedFrameCount();
+            }
+        }
+
+        @Override
+        public void startVideoRecording(String path, VideoContainer container,
+                                        RecordPolicy policy, int maxMegabytes) {
+            Message msg = obtainMessage(NativeAction.START_VIDEO_RECORDING.ordinal(),
+                    new Object[] {path, container, policy});
+            msg.arg1 = maxMegabytes;
+            sendMessage(msg);
+        }
+
+        @Override
+        public void stopVideoRecording() {
+            Message msg = obtainMessage(NativeAction.STOP_VIDEO_RECORDING.ordinal());
+            sendMessage(msg);
+        }
+
+        @Override
+        public int getVideoRecordingDroppedFrameCount() {
+            return UsbTv.this.getVideoRecordingDroppedFrameCount();
+        }
+
+        @Override
+        public void startMjpegServer(int port, int quality, int maxFrameRate,
+                                     String accessToken) {
+            Message msg = obtainMessage(NativeAction.START_MJPEG_SERVER.ordinal(),
+                    new Object[] {new int[] {port, quality, maxFrameRate}, accessToken});
+            sendMessage(msg);
+        }
+
+        @Override
+        public void stopMjpegServer() {
+            Message msg = obtainMessage(NativeAction.STOP_MJPEG_SERVER.ordinal());
+            sendMessage(msg);
+        }
+
+        @Override
+        public int getMjpegServerPort() {
+            return mMjpegPort;
+        }
+
+        @Override
+        public int getMjpegClientCount() {
+            return UsbTv.this.getMjpegClientCount();
+        }
+
+        @Override
+        public void startFrameSharing(String socketName, int... allowedUids) {
+            Message msg = obtainMessage(NativeAction.START_FRAME_SHARING.ordinal(),
+                    new Object[] {socketName, allowedUids});
+            sendMessage(msg);
+        }
+
+        @Override
+        public void stopFrameSharing() {
+            Message msg = obtainMessage(NativeAction.STOP_FRAME_SHARING.ordinal());
+            sendMessage(msg);
+        }
+
+        @Override
+        public int getFrameSharingClientCount() {
+            return UsbTv.this.getFrameSharingClientCount();
+        }
+
+        @Override
+        public void setQualityGovernor(boolean enabled) {
+            Message msg = obtainMessage(NativeAction.SET_QUALITY_GOVERNOR.ordinal());
+            msg.arg1 = enabled ? 1 : 0;
+            sendMessage(msg);
+        }
+
+        @Override
+        public QualityLevel getQualityLevel() {
+            return mQualityLevel;
+        }
+
+        @Override
+        public void setSignalDetection(boolean enabled, boolean idleWithoutSignal) {
+            Message msg = obtainMessage(NativeAction.SET_SIGNAL_DETECTION.ordinal());
+            msg.arg1 = enabled ? 1 : 0;
+            msg.arg2 = idleWithoutSignal ? 1 : 0;
+            sendMessage(msg);
+        }
+
+        @Override
+        public SignalState getSignalState() {
+            return mSignalState;
+        }
+
+        @Override
+        public void setLumaStatistics(boolean enabled) {
+            Message msg = obtainMessage(NativeAction.SET_LUMA_STATISTICS.ordinal());
+            msg.arg1 = enabled ? 1 : 0;
+            sendMessage(msg);
+        }
+
+        @Override
+        public void setAutoLevel(boolean enabled) {
+            Message msg = obtainMessage(NativeAction.SET_AUTO_LEVEL.ordinal());
+            msg.arg1 = enabled ? 1 : 0;
+            sendMessage(msg);
+        }
+
+        @Override
+        public int getIsoTransferCount() {
+            return UsbTv.this.getIsoTransferCount();
+        }
+
+        @Override
+        public int getIsoPacketsPerRequest() {
+            return UsbTv.this.getIsoPacketsPerRequest();
+        }
+
+        @Override
+        public int getSecondaryDroppedFrameCount() {
+            return UsbTv.this.getSecondaryDroppedFrameCount();
+        }
+
+        @Override
+        public int getSuppressedFrameCount() {
+            return UsbTv.this.getSuppressedFrameCount();
+        }
+
+        @Override
+        public boolean startTracing(int eventsPerThread) {
+            return UsbTv.this.startTracing(eventsPerThread);
+        }
+
+        @Override
+        public void stopTracing() {
+            UsbTv.this.stopTracing();
+        }
+
+        @Override
+        public boolean dumpTrace(String path, TraceFormat format) {
+            if (path == null || format == null) {
+                return false;
+            }
+            return UsbTv.this.dumpTrace(path, format.ordinal());
+        }
     };
 
     @Override
@@ -545,13 +1137,15 @@ public class UsbTv extends Handler {
                 break;
             case START_STREAMING:
                 if (!mIsStreaming.get()) {
-                    if (!startStreaming(mDeviceParams)) {
+                    if (!startStreaming(getStreamParams())) {
                         Timber.v("Error starting stream");
                         mIsStreaming.set(false);
                         mDriverCallbacks.onError();  // TODO: add error
                     } else {
                         Timber.v("Stream Started");
                         mIsStreaming.set(true);
+                        scheduleQualityCheck();
+                        scheduleSignalCheck();
                     }
                 } else {
                     Timber.v("Already streaming");
@@ -560,6 +1154,7 @@ public class UsbTv extends Handler {
             case STOP_STREAMING:
                 if (mIsStreaming.get()) {
                     stopStreaming();
+                    discardPublisherFrames();
                     mIsStreaming.set(false);
                 } else {
                     Timber.v("Already not streaming");
@@ -585,6 +1180,63 @@ public class UsbTv extends Handler {
                         .build();
                 restartStream();
                 break;
+            case SET_DEINTERLACE_MODE:
+                mDeviceParams = new DeviceParams.Builder(mDeviceParams)
+                        .setDeinterlaceMode((DeinterlaceMode)msg.obj)
+                        .build();
+                if (mDeviceParams.getScanType() == ScanType.DEINTERLACED) {
+                    restartStream();
+                }
+                break;
+            case SET_PIXEL_FORMAT:
+                mDeviceParams = new DeviceParams.Builder(mDeviceParams)
+                        .setPixelFormat((PixelFormat)msg.obj)
+                        .build();
+                restartStream();
+                break;
+            case SET_DENOISE_STRENGTH:
+                mDeviceParams = new DeviceParams.Builder(mDeviceParams)
+                        .setDenoiseStrength(msg.arg1)
+                        .build();
+                setDenoiseStrength(mDeviceParams.getDenoiseStrength());
+                break;
+            case SET_CHANGE_DETECTION:
+                setChangeDetection(msg.arg1, msg.arg2 != 0);
+                break;
+            case SET_MOTION_DETECTION:
+                setMotionDetection(msg.arg1, msg.arg2 != 0);
+                break;
+            case SET_CROP:
+                int[] crop = (int[]) msg.obj;
+                mDeviceParams = new DeviceParams.Builder(mDeviceParams)
+                        .setCrop(crop[0], crop[1], crop[2], crop[3])
+                        .build();
+                // The frame pool is replaced while streaming
+                discardPublisherFrames();
+                if (!setCrop(getStreamParams())) {
+                    discardPublisherFrames();
+                    mIsStreaming.set(false);
+                    mDriverCallbacks.onError();
+                }
+                break;
+            case SET_SCALE:
+                Object[] scale = (Object[]) msg.obj;
+                mDeviceParams = new DeviceParams.Builder(mDeviceParams)
+                        .setScale((Integer) scale[0], (Integer) scale[1])
+                        .setScaleFilter((ScaleFilter) scale[2])
+                        .setSquarePixels((Boolean) scale[3])
+                        .build();
+                restartStream();
+                break;
+            case SET_SECONDARY_STREAM:
+                Object[] secondary = (Object[]) msg.obj;
+                mDeviceParams = new DeviceParams.Builder(mDeviceParams)
+                        .setSecondaryStream((Integer) secondary[0], (Integer) secondary[1])
+                        .setSecondaryScaleFilter((ScaleFilter) secondary[2])
+                        .setSecondaryDropPolicy((DropPolicy) secondary[3])
+                        .build();
+                restartStream();
+                break;
             case SET_CONTROL:
                 ColorControl control = (ColorControl) msg.obj;
                 if (!setControl(control.ordinal(), msg.arg1)) {
@@ -602,6 +1254,114 @@ public class UsbTv extends Handler {
                     mDriverCallbacks.onError();
                 }
                 break;
+            case SET_SECONDARY_FRAME_LISTENER:
+                if (!mIsStreaming.get()) {
+                    mOnSecondaryFrameReceivedListener = (onFrameReceivedListener) msg.obj;
+                    useSecondaryCallback(mOnSecondaryFrameReceivedListener != null);
+                } else {
+                    Timber.i("Error, cannot change the secondary frame listener while streaming");
+                    mDriverCallbacks.onError();
+                }
+                break;
+            case START_RECORDING:
+                if (!startRecording((String) msg.obj, msg.arg1)) {
+                    Timber.i("Error starting usb recording");
+                    mDriverCallbacks.onError();
+                }
+                break;
+            case STOP_RECORDING:
+                stopRecording();
+                break;
+            case START_TIMESHIFT:
+                if (!startTimeshift((String) msg.obj, msg.arg1)) {
+                    Timber.i("Error starting timeshift");
+                    mDriverCallbacks.onError();
+                }
+                break;
+            case STOP_TIMESHIFT:
+                stopTimeshift();
+                break;
+            case START_VIDEO_RECORDING:
+                Object[] recording = (Object[]) msg.obj;
+                if (!startVideoRecording((String) recording[0],
+                        ((VideoContainer) recording[1]).ordinal(),
+                        ((RecordPolicy) recording[2]).ordinal(), msg.arg1)) {
+                    Timber.i("Error starting video recording");
+                    mDriverCallbacks.onError();
+                }
+                break;
+            case STOP_VIDEO_RECORDING:
+                stopVideoRecording();
+                break;
+            case START_MJPEG_SERVER:
+                Object[] mjpeg = (Object[]) msg.obj;
+                int[] server = (int[]) mjpeg[0];
+                String accessToken = (String) mjpeg[1];
+                mMjpegPort = startMjpegServer(server[0], server[1], server[2], accessToken);
+                if (mMjpegPort < 0) {
+                    Timber.i("Error starting MJPEG server");
+                    mDriverCallbacks.onError();
+                } else if (accessToken != null) {
+                    Timber.w("MJPEG server listening on all interfaces, port %d.  The stream " +
+                            "is unencrypted, anyone on the network may see it.", mMjpegPort);
+                } else {
+                    Timber.i("MJPEG server listening on port %d", mMjpegPort);
+                }
+                break;
+            case STOP_MJPEG_SERVER:
+                stopMjpegServer();
+                mMjpegPort = -1;
+                break;
+            case START_FRAME_SHARING:
+                Object[] sharing = (Object[]) msg.obj;
+                if (!startFrameSharing((String) sharing[0], (int[]) sharing[1])) {
+                    Timber.i("Error starting frame sharing");
+                    mDriverCallbacks.onError();
+                }
+                break;
+            case STOP_FRAME_SHARING:
+                stopFrameSharing();
+                break;
+            case SET_QUALITY_GOVERNOR:
+                mQualityGovernor = msg.arg1 != 0;
+                setQualityGovernor(mQualityGovernor);
+                if (!mQualityGovernor && mQualityLevel != QualityLevel.FULL) {
+                    changeQualityLevel(QualityLevel.FULL);
+                }
+                scheduleQualityCheck();
+                break;
+            case CHECK_QUALITY:
+                if (mQualityGovernor && mIsStreaming.get()) {
+                    QualityLevel level = QualityLevel.values()[getQualityLevel()];
+                    if (level != mQualityLevel) {
+                        changeQualityLevel(level);
+                    }
+                    scheduleQualityCheck();
+                }
+                break;
+            case SET_SIGNAL_DETECTION:
+                mSignalDetection = msg.arg1 != 0;
+                setSignalDetection(mSignalDetection, msg.arg2 != 0);
+                if (mSignalState != SignalState.PRESENT) {
+                    changeSignalState(SignalState.PRESENT);
+                }
+                scheduleSignalCheck();
+                break;
+            case CHECK_SIGNAL:
+                if (mSignalDetection && mIsStreaming.get()) {
+                    SignalState state = SignalState.values()[getSignalState()];
+                    if (state != mSignalState) {
+                        changeSignalState(state);
+                    }
+                    scheduleSignalCheck();
+                }
+                break;
+            case SET_LUMA_STATISTICS:
+                setLumaStatistics(msg.arg1 != 0);
+                break;
+            case SET_AUTO_LEVEL:
+                setAutoLevel(msg.arg1 != 0);
+                break;
             default:
                 Timber.i("Unknown Native Command Received");
         }
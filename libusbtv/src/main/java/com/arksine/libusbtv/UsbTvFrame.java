@@ -4,6 +4,8 @@
 package com.arksine.libusbtv;
 
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import timber.log.Timber;
@@ -14,20 +16,60 @@ import timber.log.Timber;
  */
 
 public class UsbTvFrame {
+    // Must agree with the frame flags in usbtv_definitions.h
+    private static final int FLAG_UNCHANGED = 1 << 5;
+    private static final int FLAG_NO_SIGNAL = 1 << 6;
+
+    // Must agree with LumaStats in usbtv_definitions.h
+    private static final int LUMA_PIXELS = 0;
+    private static final int LUMA_MIN = 1;
+    private static final int LUMA_MAX = 2;
+    private static final int LUMA_SUM = 3;
+    private static final int LUMA_HISTOGRAM = 4;
+    private static final int LUMA_BINS = 256;
 
     private AtomicBoolean mLocked = new AtomicBoolean(false);
     private int mFrameId;
-    private int mFlags;                         // For future use
+    private int mFlags;
+    private long mSignature;
     private final ByteBuffer mFrameBuf;
+    private final IntBuffer mLumaStats;         // Null for frames without statistics
     private final int mPoolIndex;
     private final DeviceParams mParams;
+    private final boolean mSecondary;
+    private final TimeshiftPlayer mPlayer;      // Owner of timeshift playback frames
+
+    UsbTvFrame(DeviceParams params, ByteBuffer frameBuf, int poolIndex, boolean secondary) {
+        this(params, frameBuf, null, poolIndex, secondary);
+    }
 
-    UsbTvFrame(DeviceParams params, ByteBuffer frameBuf, int poolIndex) {
+    UsbTvFrame(DeviceParams params, ByteBuffer frameBuf, ByteBuffer lumaStats, int poolIndex,
+               boolean secondary) {
         mFrameBuf = frameBuf;
+        mLumaStats = (lumaStats != null) ?
+                lumaStats.order(ByteOrder.nativeOrder()).asIntBuffer() : null;
         mParams = params;
         mPoolIndex = poolIndex;
+        mSecondary = secondary;
+        mPlayer = null;
+        mFlags = 0;
+        mFrameId = -1;
+    }
+
+    /**
+     * Creates a timeshift playback frame, which is returned to its player rather than to
+     * the native frame pool
+     */
+    UsbTvFrame(DeviceParams params, ByteBuffer frameBuf, TimeshiftPlayer player) {
+        mFrameBuf = frameBuf;
+        mLumaStats = null;
+        mParams = params;
+        mPoolIndex = -1;
+        mSecondary = false;
+        mPlayer = player;
         mFlags = 0;
         mFrameId = -1;
+        mLocked.set(true);
     }
 
     /**
@@ -46,20 +88,42 @@ public class UsbTvFrame {
      * Returns the Frame Width in pixels
      */
     public int getWidth() {
-        return mParams.getFrameWidth();
+        return mSecondary ? mParams.getSecondaryFrameWidth() : mParams.getFrameWidth();
     }
 
     /**
      * Returns the Frame Height in pixels.
      */
     public int getHeight() {
-        return mParams.getFrameHeight();
+        return mSecondary ? mParams.getSecondaryFrameHeight() : mParams.getFrameHeight();
+    }
+
+    DeviceParams getDeviceParams() {
+        return mParams;
+    }
+
+    /**
+     * Returns true if the frame belongs to the secondary stream
+     */
+    public boolean isSecondary() {
+        return mSecondary;
+    }
+
+    /**
+     * Returns true if the frame was played back from the timeshift
+     */
+    public boolean isPlayback() {
+        return mPlayer != null;
     }
 
     public UsbTv.ScanType getScanType() {
         return mParams.getScanType();
     }
 
+    public UsbTv.PixelFormat getPixelFormat() {
+        return mParams.getPixelFormat();
+    }
+
     public UsbTv.TvNorm getFrameTvNorm() {
         return mParams.getTvNorm();
     }
@@ -72,6 +136,88 @@ public class UsbTvFrame {
         mFrameId = id;
     }
 
+    void setFlags(int flags) {
+        mFlags = flags;
+    }
+
+    void setSignature(long signature) {
+        mSignature = signature;
+    }
+
+    /**
+     * Returns true if change detection found the frame unchanged from the last changed
+     * frame, see {@link IUsbTvDriver#setChangeDetection(int, boolean)}.  Always false while
+     * change detection is disabled.
+     */
+    public boolean isUnchanged() {
+        return (mFlags & FLAG_UNCHANGED) != 0;
+    }
+
+    /**
+     * Returns true if the frame was captured while signal detection found no signal, see
+     * {@link IUsbTvDriver#setSignalDetection(boolean, boolean)}.  Always false while signal
+     * detection is disabled.
+     */
+    public boolean isNoSignal() {
+        return (mFlags & FLAG_NO_SIGNAL) != 0;
+    }
+
+    /**
+     * Returns the signature computed by change detection, or 0 while it is disabled.  Frames
+     * that look alike to the detector have equal signatures.
+     */
+    public long getSignature() {
+        return mSignature;
+    }
+
+    /**
+     * Returns true if the frame carries luma statistics, see
+     * {@link IUsbTvDriver#setLumaStatistics(boolean)}
+     */
+    public boolean hasLumaStatistics() {
+        return mLumaStats != null && mLumaStats.get(LUMA_PIXELS) != 0;
+    }
+
+    /**
+     * Returns the lowest luma level in the frame, 0 without statistics
+     */
+    public int getLumaMin() {
+        return hasLumaStatistics() ? mLumaStats.get(LUMA_MIN) : 0;
+    }
+
+    /**
+     * Returns the highest luma level in the frame, 0 without statistics
+     */
+    public int getLumaMax() {
+        return hasLumaStatistics() ? mLumaStats.get(LUMA_MAX) : 0;
+    }
+
+    /**
+     * Returns the mean luma level of the frame, 0 without statistics
+     */
+    public float getLumaMean() {
+        if (!hasLumaStatistics()) {
+            return 0f;
+        }
+        long sum = mLumaStats.get(LUMA_SUM) & 0xFFFFFFFFL;
+        long pixels = mLumaStats.get(LUMA_PIXELS) & 0xFFFFFFFFL;
+        return (float) sum / pixels;
+    }
+
+    /**
+     * Returns a read-only view of the frame's luma histogram, the number of pixels at each of
+     * the 256 luma levels, or null without statistics.  The view is only valid until the
+     * frame is returned.
+     */
+    public IntBuffer getLumaHistogram() {
+        if (!hasLumaStatistics()) {
+            return null;
+        }
+        IntBuffer histogram = mLumaStats.duplicate();
+        histogram.position(LUMA_HISTOGRAM);
+        histogram.limit(LUMA_HISTOGRAM + LUMA_BINS);
+        return histogram.slice().asReadOnlyBuffer();
+    }
 
 
     /**
@@ -88,8 +234,16 @@ public class UsbTvFrame {
         mFrameBuf.rewind();
         clone.flip();
 
-        UsbTvFrame frame = new UsbTvFrame(mParams, clone, -1);
+        ByteBuffer stats = null;
+        if (hasLumaStatistics()) {
+            stats = ByteBuffer.allocate(mLumaStats.capacity() * 4).order(ByteOrder.nativeOrder());
+            stats.asIntBuffer().put(mLumaStats.duplicate());
+        }
+
+        UsbTvFrame frame = new UsbTvFrame(mParams, clone, stats, -1, mSecondary);
         frame.mFrameId = mFrameId;
+        frame.mFlags = mFlags;
+        frame.mSignature = mSignature;
         frame.mLocked.set(true);
         return frame;
     }
@@ -102,7 +256,9 @@ public class UsbTvFrame {
 
         // Lock the frame after a return, so it cannot be returned twice
         if (mLocked.compareAndSet(false, true)) {
-            if (!returnFrameToPool(mPoolIndex)) {
+            if (mPlayer != null) {
+                mPlayer.recycleFrame(this);
+            } else if (!returnFrameToPool(mPoolIndex)) {
                 Timber.d("Error returning frame to pool");
             }
         }
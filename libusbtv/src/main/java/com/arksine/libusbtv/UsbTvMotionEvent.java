@@ -0,0 +1,73 @@
+// Copyright (C) 2020 Eric Callahan <arksine.code@gmail.com>
+//
+// This file may be distributed under the terms of the GNU GPLv3 license
+package com.arksine.libusbtv;
+
+import android.graphics.Rect;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Motion found by the native motion detector, see
+ * {@link IUsbTvDriver#setMotionDetection(int, boolean)}.  START is raised once motion is
+ * seen in consecutive frames, UPDATE for each frame with motion after that, and END once
+ * no motion has been seen for half a second.
+ */
+public class UsbTvMotionEvent {
+    // Must agree with MotionState in MotionDetector.h
+    public enum State {START, UPDATE, END}
+
+    private final State mState;
+    private final int mFrameId;
+    private final long mTimestampNs;
+    private final List<Rect> mRegions;
+
+    UsbTvMotionEvent(State state, int frameId, long timestampNs, List<Rect> regions) {
+        mState = state;
+        mFrameId = frameId;
+        mTimestampNs = timestampNs;
+        mRegions = Collections.unmodifiableList(regions);
+    }
+
+    /**
+     * Builds an event from the arguments of the native motion callback
+     */
+    static UsbTvMotionEvent fromNative(int state, int frameId, long timestampNs,
+                                       int regionCount, int[] regions) {
+        ArrayList<Rect> list = new ArrayList<>(regionCount);
+        for (int i = 0; i < regionCount; i++) {
+            int x = regions[4 * i];
+            int y = regions[4 * i + 1];
+            list.add(new Rect(x, y, x + regions[4 * i + 2], y + regions[4 * i + 3]));
+        }
+        return new UsbTvMotionEvent(State.values()[state], frameId, timestampNs, list);
+    }
+
+    public State getState() {
+        return mState;
+    }
+
+    /**
+     * Returns the id of the frame the event was raised for
+     */
+    public int getFrameId() {
+        return mFrameId;
+    }
+
+    /**
+     * Returns the time the frame was captured, on the {@link System#nanoTime()} clock
+     */
+    public long getTimestampNs() {
+        return mTimestampNs;
+    }
+
+    /**
+     * Returns the bounding boxes of the largest regions with motion in the frame, largest
+     * first, in pixels of the captured frame before scaling.  Empty for END.
+     */
+    public List<Rect> getRegions() {
+        return mRegions;
+    }
+}
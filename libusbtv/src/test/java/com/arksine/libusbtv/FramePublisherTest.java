@@ -0,0 +1,292 @@
+// Copyright (C) 2020 Eric Callahan <arksine.code@gmail.com>
+//
+// This file may be distributed under the terms of the GNU GPLv3 license
+package com.arksine.libusbtv;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Demand, backpressure and signal ordering of FramePublisher, driven from the test thread
+ * as the native callback thread would
+ */
+public class FramePublisherTest {
+
+    /**
+     * Counts returns rather than handing the frame back to the native pool
+     */
+    private static class TestFrame extends UsbTvFrame {
+        final int mNumber;
+        int mReturned = 0;
+
+        TestFrame(int number) {
+            super(null, ByteBuffer.allocate(1), -1, false);
+            mNumber = number;
+        }
+
+        @Override
+        public void returnFrame() {
+            mReturned++;
+        }
+    }
+
+    private static class RecordingSubscriber implements FramePublisher.Subscriber {
+        final List<String> mEvents = new ArrayList<>();
+        final List<TestFrame> mFrames = new ArrayList<>();
+        FramePublisher.Subscription mSubscription;
+        Throwable mError;
+
+        @Override
+        public void onSubscribe(FramePublisher.Subscription subscription) {
+            mSubscription = subscription;
+            mEvents.add("subscribe");
+        }
+
+        @Override
+        public void onNext(UsbTvFrame frame) {
+            mFrames.add((TestFrame) frame);
+            mEvents.add("next " + ((TestFrame) frame).mNumber);
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            mError = error;
+            mEvents.add("error");
+        }
+
+        @Override
+        public void onComplete() {
+            mEvents.add("complete");
+        }
+    }
+
+    private static TestFrame[] offer(FramePublisher publisher, int first, int count) {
+        TestFrame[] frames = new TestFrame[count];
+        for (int i = 0; i < count; i++) {
+            frames[i] = new TestFrame(first + i);
+            publisher.onFrameReceived(frames[i]);
+        }
+        return frames;
+    }
+
+    private static List<Integer> delivered(RecordingSubscriber subscriber) {
+        List<Integer> numbers = new ArrayList<>();
+        for (TestFrame frame : subscriber.mFrames) {
+            numbers.add(frame.mNumber);
+        }
+        return numbers;
+    }
+
+    @Test
+    public void dropReturnsFramesWithoutDemand() {
+        FramePublisher publisher = new FramePublisher(UsbTv.BackpressureStrategy.DROP);
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber);
+
+        TestFrame[] early = offer(publisher, 1, 3);
+        for (TestFrame frame : early) {
+            assertEquals(1, frame.mReturned);
+        }
+
+        subscriber.mSubscription.request(2);
+        TestFrame[] late = offer(publisher, 4, 3);
+        assertEquals(Arrays.asList(4, 5), delivered(subscriber));
+        assertEquals(0, late[0].mReturned);
+        assertEquals(0, late[1].mReturned);
+        assertEquals(1, late[2].mReturned);
+    }
+
+    @Test
+    public void latestHoldsOnlyTheNewestFrame() {
+        FramePublisher publisher = new FramePublisher(UsbTv.BackpressureStrategy.LATEST);
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber);
+
+        TestFrame[] frames = offer(publisher, 1, 3);
+        assertEquals(1, frames[0].mReturned);
+        assertEquals(1, frames[1].mReturned);
+        assertEquals(0, frames[2].mReturned);
+        assertTrue(subscriber.mFrames.isEmpty());
+
+        // The held frame is delivered on the requesting thread
+        subscriber.mSubscription.request(1);
+        assertEquals(Arrays.asList(3), delivered(subscriber));
+        assertEquals(0, frames[2].mReturned);
+
+        subscriber.mSubscription.request(1);
+        assertEquals(1, subscriber.mFrames.size());
+    }
+
+    @Test
+    public void downsampleDecimatesWhileBehindAndRecovers() {
+        FramePublisher publisher = new FramePublisher(UsbTv.BackpressureStrategy.DOWNSAMPLE);
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber);
+
+        // Two missed deliveries raise the decimation to every 4th frame
+        for (TestFrame frame : offer(publisher, 1, 3)) {
+            assertEquals(1, frame.mReturned);
+        }
+
+        subscriber.mSubscription.request(1);
+        TestFrame[] frames = offer(publisher, 4, 4);
+        assertEquals(Arrays.asList(7), delivered(subscriber));
+        for (int i = 0; i < 3; i++) {
+            assertEquals(1, frames[i].mReturned);
+        }
+
+        // Spare demand halves it again with each delivery
+        subscriber.mSubscription.request(10);
+        offer(publisher, 8, 8);
+        assertEquals(Arrays.asList(7, 11, 13, 14, 15), delivered(subscriber));
+    }
+
+    @Test
+    public void unboundedDemandDeliversEveryFrame() {
+        for (UsbTv.BackpressureStrategy strategy : UsbTv.BackpressureStrategy.values()) {
+            FramePublisher publisher = new FramePublisher(strategy);
+            RecordingSubscriber subscriber = new RecordingSubscriber();
+            publisher.subscribe(subscriber);
+            subscriber.mSubscription.request(Long.MAX_VALUE);
+            subscriber.mSubscription.request(Long.MAX_VALUE);
+
+            offer(publisher, 1, 5);
+            assertEquals(strategy.name(), Arrays.asList(1, 2, 3, 4, 5), delivered(subscriber));
+        }
+    }
+
+    @Test
+    public void cancelDuringDrainReturnsTheHeldFrame() {
+        final FramePublisher publisher = new FramePublisher(UsbTv.BackpressureStrategy.LATEST);
+        final TestFrame arriving = new TestFrame(2);
+        RecordingSubscriber subscriber = new RecordingSubscriber() {
+            @Override
+            public void onNext(UsbTvFrame frame) {
+                super.onNext(frame);
+                // A frame arrives while the first is being delivered, then the subscriber
+                // cancels before the drain reaches it
+                publisher.onFrameReceived(arriving);
+                mSubscription.cancel();
+            }
+        };
+        publisher.subscribe(subscriber);
+        subscriber.mSubscription.request(5);
+
+        TestFrame first = offer(publisher, 1, 1)[0];
+        assertEquals(Arrays.asList(1), delivered(subscriber));
+        assertEquals(0, first.mReturned);
+        assertEquals(1, arriving.mReturned);
+
+        TestFrame after = offer(publisher, 3, 1)[0];
+        assertEquals(1, after.mReturned);
+        publisher.complete();
+        assertEquals(Arrays.asList("subscribe", "next 1"), subscriber.mEvents);
+    }
+
+    @Test
+    public void cancelAllowsAnotherSubscriber() {
+        FramePublisher publisher = new FramePublisher(UsbTv.BackpressureStrategy.LATEST);
+        RecordingSubscriber first = new RecordingSubscriber();
+        publisher.subscribe(first);
+        offer(publisher, 1, 1);
+        first.mSubscription.cancel();
+
+        RecordingSubscriber second = new RecordingSubscriber();
+        publisher.subscribe(second);
+        second.mSubscription.request(1);
+        offer(publisher, 2, 1);
+        assertTrue(first.mFrames.isEmpty());
+        assertEquals(Arrays.asList(2), delivered(second));
+        assertEquals(Arrays.asList("subscribe", "next 2"), second.mEvents);
+    }
+
+    @Test
+    public void secondSubscriberIsRefused() {
+        FramePublisher publisher = new FramePublisher(UsbTv.BackpressureStrategy.DROP);
+        RecordingSubscriber first = new RecordingSubscriber();
+        RecordingSubscriber second = new RecordingSubscriber();
+        publisher.subscribe(first);
+        publisher.subscribe(second);
+
+        assertEquals(Arrays.asList("subscribe", "error"), second.mEvents);
+        assertTrue(second.mError instanceof IllegalStateException);
+
+        first.mSubscription.request(1);
+        offer(publisher, 1, 1);
+        assertEquals(Arrays.asList(1), delivered(first));
+        assertTrue(second.mFrames.isEmpty());
+    }
+
+    @Test
+    public void invalidRequestSignalsErrorOnce() {
+        FramePublisher publisher = new FramePublisher(UsbTv.BackpressureStrategy.LATEST);
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber);
+        TestFrame held = offer(publisher, 1, 1)[0];
+
+        subscriber.mSubscription.request(0);
+        assertTrue(subscriber.mError instanceof IllegalArgumentException);
+        assertEquals(1, held.mReturned);
+
+        subscriber.mSubscription.request(1);
+        TestFrame after = offer(publisher, 2, 1)[0];
+        assertEquals(1, after.mReturned);
+        publisher.complete();
+        assertEquals(Arrays.asList("subscribe", "error"), subscriber.mEvents);
+    }
+
+    @Test
+    public void completeFollowsDeliveredFramesOnce() {
+        FramePublisher publisher = new FramePublisher(UsbTv.BackpressureStrategy.LATEST);
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber);
+        subscriber.mSubscription.request(1);
+        offer(publisher, 1, 1);
+        TestFrame held = offer(publisher, 2, 1)[0];
+
+        publisher.complete();
+        publisher.complete();
+        subscriber.mSubscription.request(1);
+        assertEquals(Arrays.asList("subscribe", "next 1", "complete"), subscriber.mEvents);
+        assertEquals(1, held.mReturned);
+    }
+
+    @Test
+    public void subscribeAfterCompleteCompletesAtOnce() {
+        FramePublisher publisher = new FramePublisher(UsbTv.BackpressureStrategy.DROP);
+        publisher.complete();
+
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber);
+        subscriber.mSubscription.request(1);
+        TestFrame frame = offer(publisher, 1, 1)[0];
+        assertEquals(Arrays.asList("subscribe", "complete"), subscriber.mEvents);
+        assertEquals(1, frame.mReturned);
+    }
+
+    @Test
+    public void throwingSubscriberIsCancelled() {
+        FramePublisher publisher = new FramePublisher(UsbTv.BackpressureStrategy.DROP);
+        RecordingSubscriber subscriber = new RecordingSubscriber() {
+            @Override
+            public void onNext(UsbTvFrame frame) {
+                super.onNext(frame);
+                throw new IllegalStateException("Subscriber failure");
+            }
+        };
+        publisher.subscribe(subscriber);
+        subscriber.mSubscription.request(5);
+
+        offer(publisher, 1, 1);
+        TestFrame after = offer(publisher, 2, 1)[0];
+        assertEquals(Arrays.asList(1), delivered(subscriber));
+        assertEquals(1, after.mReturned);
+        assertNull(subscriber.mError);
+    }
+}